@@ -0,0 +1,313 @@
+package com.fred.notesapp.cache;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tails a MongoDB change stream and publishes typed invalidation events for tenants,
+ * users, notes and note partitions.
+ *
+ * The stream is opened on the whole deployment rather than the application database,
+ * because a tenant's notes may be partitioned into a collection in another database.
+ * Collections are therefore matched by full namespace (db.collection): tenants, users
+ * and note_partitions in the application database, and every collection the partition
+ * directory names as holding notes. The application's user needs the changeStream and
+ * find privileges on the cluster for this.
+ *
+ * Delivery is at-least-once: the resume token is persisted only after the events before
+ * it have been published, every checkpoint-interval-ms or checkpoint-every events, so
+ * after a restart the stream resumes at the last checkpoint and replays what came after
+ * it (invalidation is idempotent). If the oplog no longer holds the resume point, every
+ * cache is flushed and the stream starts from "now".
+ *
+ * The stream carries only the fields the events need, never note bodies. Updates carry
+ * no document at all, so their tenant and user are looked up with a point read by _id
+ * that returns only those fields.
+ */
+@Component
+@ConditionalOnProperty(name = "cache.invalidation.change-streams.enabled", havingValue = "true")
+public class ChangeStreamInvalidationSource {
+
+    private static final String TOKEN_COLLECTION = "cache_resume_tokens";
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+    private static final int INVALID_RESUME_TOKEN = 260;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MongoClient mongoClient;
+
+    @Autowired
+    private InvalidationBus invalidationBus;
+
+    @Value("${cache.invalidation.node-id:${HOSTNAME:local}}")
+    private String nodeId;
+
+    @Value("${cache.invalidation.change-streams.checkpoint-interval-ms:5000}")
+    private long checkpointIntervalMs;
+
+    @Value("${cache.invalidation.change-streams.checkpoint-every:1000}")
+    private int checkpointEvery;
+
+    // Namespaces holding notes: the shared collection plus any partition collections
+    private final Set<String> noteNamespaces = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+    private String database;
+    private Thread worker;
+
+    @PostConstruct
+    public void start() {
+        database = mongoTemplate.getDb().getName();
+        noteNamespaces.add(database + ".notes");
+        worker = new Thread(this::run, "cache-invalidation-change-stream");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        long backoffMs = 1000;
+        while (running) {
+            try {
+                tail();
+                backoffMs = 1000;
+            } catch (MongoCommandException e) {
+                if (e.getErrorCode() == CHANGE_STREAM_HISTORY_LOST || e.getErrorCode() == INVALID_RESUME_TOKEN) {
+                    System.err.println("Change stream resume point lost, flushing all caches");
+                    tokens().deleteOne(Filters.eq("_id", nodeId));
+                    flushAll();
+                } else {
+                    backoffMs = sleepBackoff(e, backoffMs);
+                }
+            } catch (RuntimeException e) {
+                backoffMs = sleepBackoff(e, backoffMs);
+            }
+        }
+    }
+
+    private void tail() {
+        for (Document partition : mongoTemplate.getCollection("note_partitions").find()) {
+            addNoteCollections(partition);
+        }
+        List<Bson> pipeline = List.of(
+                Aggregates.match(Filters.and(
+                        Filters.in("operationType", "insert", "update", "replace", "delete"),
+                        Filters.nor(Filters.and(Filters.eq("ns.db", database), Filters.eq("ns.coll", TOKEN_COLLECTION))))),
+                // Inserts and replaces carry the whole document; keep only what toEvent reads
+                Aggregates.project(Projections.include("operationType", "ns", "documentKey", "wallTime", "clusterTime",
+                        "fullDocument.tenantId", "fullDocument.userId", "fullDocument.slug",
+                        "fullDocument.database", "fullDocument.collection",
+                        "fullDocument.targetDatabase", "fullDocument.targetCollection")));
+        ChangeStreamIterable<Document> stream = mongoClient.watch(pipeline);
+
+        Document saved = tokens().find(Filters.eq("_id", nodeId)).first();
+        BsonDocument savedToken = null;
+        if (saved != null) {
+            savedToken = saved.get("token", Document.class).toBsonDocument();
+            stream = stream.resumeAfter(savedToken);
+        }
+
+        try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = stream.cursor()) {
+            int sinceCheckpoint = 0;
+            long lastCheckpoint = System.currentTimeMillis();
+            while (running) {
+                ChangeStreamDocument<Document> change = cursor.tryNext();
+                if (change != null) {
+                    InvalidationEvent event = toEvent(change);
+                    if (event != null) {
+                        invalidationBus.publish(event);
+                    }
+                    sinceCheckpoint++;
+                }
+                // The cursor's token also moves past changes the pipeline filtered out
+                BsonDocument token = cursor.getResumeToken();
+                long now = System.currentTimeMillis();
+                if (token != null && !token.equals(savedToken)
+                        && (sinceCheckpoint >= checkpointEvery || now - lastCheckpoint >= checkpointIntervalMs)) {
+                    // Every change before this token has been handed to the bus
+                    saveToken(token);
+                    savedToken = token;
+                    sinceCheckpoint = 0;
+                    lastCheckpoint = now;
+                }
+            }
+            BsonDocument token = cursor.getResumeToken();
+            if (token != null && !token.equals(savedToken)) {
+                saveToken(token);
+            }
+        }
+    }
+
+    private InvalidationEvent toEvent(ChangeStreamDocument<Document> change) {
+        MongoNamespace namespace = change.getNamespace();
+        if (namespace == null) {
+            return null;
+        }
+        String collection = collectionOf(namespace);
+        if (collection == null) {
+            return null;
+        }
+        String id = idOf(change.getDocumentKey());
+        Document doc = change.getFullDocument();
+        if (doc == null && "update".equals(change.getOperationType() == null ? null : change.getOperationType().getValue())) {
+            doc = lookup(namespace, collection, change.getDocumentKey());
+        }
+        long changedAt = change.getWallTime() != null ? change.getWallTime().getValue()
+                : change.getClusterTime() != null ? change.getClusterTime().getTime() * 1000L
+                : System.currentTimeMillis();
+
+        switch (collection) {
+            case "tenants":
+                // Tenant caches are keyed by slug; on delete it is unknown, so flush them
+                String slug = doc == null ? null : doc.getString("slug");
+                return new InvalidationEvent(InvalidationEvent.Type.TENANT, slug, id, null, changedAt);
+            case "users":
+                return new InvalidationEvent(InvalidationEvent.Type.USER, id,
+                        doc == null ? null : stringOf(doc.get("tenantId")), null, changedAt);
+            case "note_partitions":
+                if (doc != null) {
+                    addNoteCollections(doc);
+                }
+                return new InvalidationEvent(InvalidationEvent.Type.NOTE_PARTITION, id, id, null, changedAt);
+            default:
+                return new InvalidationEvent(InvalidationEvent.Type.NOTE, id,
+                        doc == null ? null : stringOf(doc.get("tenantId")),
+                        doc == null ? null : stringOf(doc.get("userId")), changedAt);
+        }
+    }
+
+    /**
+     * The application collection a namespace stands for: tenants, users and note_partitions
+     * in the application database, the full namespace for note collections, or null for
+     * anything else.
+     */
+    private String collectionOf(MongoNamespace namespace) {
+        if (noteNamespaces.contains(namespace.getFullName())) {
+            return namespace.getFullName();
+        }
+        if (!database.equals(namespace.getDatabaseName())) {
+            return null;
+        }
+        switch (namespace.getCollectionName()) {
+            case "tenants":
+            case "users":
+            case "note_partitions":
+                return namespace.getCollectionName();
+            default:
+                return null;
+        }
+    }
+
+    // Just the fields toEvent reads, for update events
+    private Document lookup(MongoNamespace namespace, String collection, BsonDocument documentKey) {
+        if (documentKey == null || !documentKey.containsKey("_id")) {
+            return null;
+        }
+        Bson fields;
+        switch (collection) {
+            case "tenants":
+                fields = Projections.include("slug");
+                break;
+            case "users":
+                fields = Projections.include("tenantId");
+                break;
+            case "note_partitions":
+                fields = Projections.include("database", "collection", "targetDatabase", "targetCollection");
+                break;
+            default:
+                fields = Projections.include("_id", "tenantId", "userId");
+        }
+        return mongoClient.getDatabase(namespace.getDatabaseName()).getCollection(namespace.getCollectionName()).find(Filters.eq("_id", documentKey.get("_id")))
+                .projection(fields).first();
+    }
+
+    private void addNoteCollections(Document partition) {
+        addNoteNamespace(partition.getString("database"), partition.getString("collection"));
+        addNoteNamespace(partition.getString("targetDatabase"), partition.getString("targetCollection"));
+    }
+
+    // A partition without a database lives in the application database
+    private void addNoteNamespace(String partitionDatabase, String collection) {
+        if (collection != null) {
+            noteNamespaces.add((partitionDatabase == null ? database : partitionDatabase) + "." + collection);
+        }
+    }
+
+    private void flushAll() {
+        for (InvalidationEvent.Type type : InvalidationEvent.Type.values()) {
+            invalidationBus.publish(InvalidationEvent.of(type, null));
+        }
+    }
+
+    private void saveToken(BsonDocument token) {
+        if (token == null) {
+            return;
+        }
+        tokens().replaceOne(Filters.eq("_id", nodeId),
+                new Document("_id", nodeId).append("token", Document.parse(token.toJson())),
+                new ReplaceOptions().upsert(true));
+    }
+
+    private MongoCollection<Document> tokens() {
+        return mongoTemplate.getCollection(TOKEN_COLLECTION);
+    }
+
+    private long sleepBackoff(Exception e, long backoffMs) {
+        if (!running) {
+            return backoffMs;
+        }
+        System.err.println("Change stream failed, retrying in " + backoffMs + "ms: " + e.getMessage());
+        try {
+            Thread.sleep(backoffMs);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+        return Math.min(backoffMs * 2, 30000);
+    }
+
+    private static String idOf(BsonDocument documentKey) {
+        if (documentKey == null || !documentKey.containsKey("_id")) {
+            return null;
+        }
+        BsonValue id = documentKey.get("_id");
+        if (id.isObjectId()) {
+            return id.asObjectId().getValue().toHexString();
+        }
+        return id.isString() ? id.asString().getValue() : id.toString();
+    }
+
+    private static String stringOf(Object value) {
+        return value == null ? null : value.toString();
+    }
+}
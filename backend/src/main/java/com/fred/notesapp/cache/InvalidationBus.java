@@ -0,0 +1,71 @@
+package com.fred.notesapp.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Routes typed invalidation events from the transport to the local caches that registered
+ * for them, and records how stale a cache was by the time it heard about a change
+ * ({@code cache.invalidation.lag}). Each cache also keeps its own TTL, which is the hard
+ * upper bound on staleness if an event is ever lost.
+ */
+@Component
+public class InvalidationBus {
+
+    @Autowired
+    private InvalidationTransport transport;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<InvalidationEvent.Type, List<Consumer<InvalidationEvent>>> listeners =
+            new EnumMap<>(InvalidationEvent.Type.class);
+    private final Map<InvalidationEvent.Type, Timer> lagTimers = new EnumMap<>(InvalidationEvent.Type.class);
+    private Counter delivered;
+
+    @PostConstruct
+    public void init() {
+        for (InvalidationEvent.Type type : InvalidationEvent.Type.values()) {
+            listeners.put(type, new CopyOnWriteArrayList<>());
+            lagTimers.put(type, Timer.builder("cache.invalidation.lag")
+                    .description("Time from a change at the source to local cache invalidation")
+                    .tag("type", type.name())
+                    .publishPercentiles(0.5, 0.99)
+                    .register(meterRegistry));
+        }
+        delivered = Counter.builder("cache.invalidation.delivered").register(meterRegistry);
+        transport.subscribe(this::deliver);
+    }
+
+    public void register(InvalidationEvent.Type type, Consumer<InvalidationEvent> listener) {
+        listeners.get(type).add(listener);
+    }
+
+    public void publish(InvalidationEvent event) {
+        transport.publish(event);
+    }
+
+    private void deliver(InvalidationEvent event) {
+        for (Consumer<InvalidationEvent> listener : listeners.get(event.getType())) {
+            try {
+                listener.accept(event);
+            } catch (RuntimeException e) {
+                System.err.println("Cache invalidation listener failed for " + event + ": " + e.getMessage());
+            }
+        }
+        delivered.increment();
+        long lag = System.currentTimeMillis() - event.getChangedAtMillis();
+        lagTimers.get(event.getType()).record(Math.max(0, lag), TimeUnit.MILLISECONDS);
+    }
+}
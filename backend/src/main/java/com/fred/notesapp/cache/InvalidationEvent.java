@@ -0,0 +1,55 @@
+package com.fred.notesapp.cache;
+
+/**
+ * Tells local caches that an entity changed somewhere in the cluster.
+ * A null key means "everything of this type" (used when the changed key is unknown).
+ */
+public class InvalidationEvent {
+
+    public enum Type { TENANT, USER, NOTE, NOTE_PARTITION }
+
+    private final Type type;
+    private final String key;
+    // Extra routing information for note events, when known
+    private final String tenantId;
+    private final String userId;
+    // Wall-clock time of the change at the source, used to measure staleness
+    private final long changedAtMillis;
+
+    public InvalidationEvent(Type type, String key, String tenantId, String userId, long changedAtMillis) {
+        this.type = type;
+        this.key = key;
+        this.tenantId = tenantId;
+        this.userId = userId;
+        this.changedAtMillis = changedAtMillis;
+    }
+
+    public static InvalidationEvent of(Type type, String key) {
+        return new InvalidationEvent(type, key, null, null, System.currentTimeMillis());
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public long getChangedAtMillis() {
+        return changedAtMillis;
+    }
+
+    @Override
+    public String toString() {
+        return type + ":" + key;
+    }
+}
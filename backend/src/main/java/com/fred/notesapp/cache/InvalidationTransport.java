@@ -0,0 +1,14 @@
+package com.fred.notesapp.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries invalidation events to the caches of this node. Implementations may fan events
+ * out to other nodes (a message broker, for example); the in-JVM one delivers locally.
+ */
+public interface InvalidationTransport {
+
+    void publish(InvalidationEvent event);
+
+    void subscribe(Consumer<InvalidationEvent> subscriber);
+}
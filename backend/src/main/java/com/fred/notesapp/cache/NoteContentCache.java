@@ -0,0 +1,352 @@
+package com.fred.notesapp.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Off-heap cache of note bodies as UTF-8 bytes, keyed by note id and validated by the
+ * note's version, so large hot notes do not sit on the Java heap as Strings.
+ *
+ * Memory is a fixed number of direct slabs carved into equal blocks; an entry is a list of
+ * blocks. Admission and eviction use a segmented LRU: new entries go to probation, a second
+ * hit promotes them to the protected segment, and protected overflow is demoted back to
+ * probation, whose least recently used entries are evicted first. Readers pin an entry
+ * while they copy it out, and an evicted entry's blocks are only reused once unpinned.
+ * A handle may be closed from another thread (e.g. a request timeout) while it is being
+ * written out; the pin is then dropped when the write finishes.
+ */
+@Component
+public class NoteContentCache {
+
+    @Autowired
+    private InvalidationBus invalidationBus;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.content-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${notes.content-cache.capacity-bytes:67108864}")
+    private long capacityBytes;
+
+    @Value("${notes.content-cache.slab-bytes:1048576}")
+    private int slabBytes;
+
+    @Value("${notes.content-cache.block-bytes:4096}")
+    private int blockBytes;
+
+    @Value("${notes.content-cache.max-entry-bytes:8388608}")
+    private int maxEntryBytes;
+
+    @Value("${notes.content-cache.protected-ratio:0.8}")
+    private double protectedRatio;
+
+    // All fields below are guarded by this
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(256, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(256, 0.75f, true);
+    private int[] freeBlocks;
+    private int freeCount;
+    private int allocatedBlocks;
+    private int maxBlocks;
+    private int blocksPerSlab;
+    private int protectedBlocks;
+    private int maxProtectedBlocks;
+    private int usedBlocks;
+
+    private Counter hits;
+    private Counter misses;
+    private Counter evictions;
+
+    @PostConstruct
+    public void init() {
+        blocksPerSlab = slabBytes / blockBytes;
+        maxBlocks = (int) (capacityBytes / slabBytes) * blocksPerSlab;
+        maxProtectedBlocks = (int) (maxBlocks * protectedRatio);
+        freeBlocks = new int[maxBlocks];
+
+        hits = Counter.builder("notes.content-cache.requests").tag("result", "hit").register(meterRegistry);
+        misses = Counter.builder("notes.content-cache.requests").tag("result", "miss").register(meterRegistry);
+        evictions = Counter.builder("notes.content-cache.evictions").register(meterRegistry);
+        Gauge.builder("notes.content-cache.bytes", this, cache -> cache.getUsedBlocks() * (double) blockBytes)
+                .description("Off-heap bytes held by cached note bodies")
+                .register(meterRegistry);
+
+        invalidationBus.register(InvalidationEvent.Type.NOTE, event -> {
+            if (event.getKey() == null) {
+                invalidateAll();
+            } else {
+                invalidate(event.getKey());
+            }
+        });
+    }
+
+    /**
+     * Pins and returns the cached body if it is present at {@code version}, otherwise null.
+     * The caller must close the handle once it has written the bytes out.
+     */
+    public synchronized Handle acquire(String noteId, long version) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = probation.remove(noteId);
+        if (entry != null) {
+            if (entry.version != version) {
+                discard(entry);
+                misses.increment();
+                return null;
+            }
+            // Second hit: promote
+            protectedSegment.put(noteId, entry);
+            protectedBlocks += entry.blocks.length;
+            demoteOverflow();
+        } else {
+            entry = protectedSegment.get(noteId);
+            if (entry == null || entry.version != version) {
+                if (entry != null) {
+                    removeProtected(noteId);
+                    discard(entry);
+                }
+                misses.increment();
+                return null;
+            }
+        }
+        entry.pins++;
+        hits.increment();
+        return new Handle(entry);
+    }
+
+    public void put(String noteId, long version, byte[] content) {
+        if (!enabled || content.length > maxEntryBytes) {
+            return;
+        }
+        int needed = Math.max(1, (content.length + blockBytes - 1) / blockBytes);
+        synchronized (this) {
+            invalidate(noteId);
+            while (availableBlocks() < needed && evictOne()) {
+                // keep evicting
+            }
+            if (availableBlocks() < needed) {
+                // Everything left is pinned by readers
+                return;
+            }
+            int[] blocks = new int[needed];
+            for (int i = 0; i < needed; i++) {
+                blocks[i] = allocateBlock();
+                int offset = i * blockBytes;
+                slabOf(blocks[i]).put(offsetOf(blocks[i]), content, offset, Math.min(blockBytes, content.length - offset));
+            }
+            usedBlocks += needed;
+            probation.put(noteId, new Entry(version, blocks, content.length));
+        }
+    }
+
+    public synchronized void invalidate(String noteId) {
+        Entry entry = probation.remove(noteId);
+        if (entry == null) {
+            entry = removeProtected(noteId);
+        }
+        if (entry != null) {
+            discard(entry);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        for (Entry entry : probation.values()) {
+            discard(entry);
+        }
+        for (Entry entry : protectedSegment.values()) {
+            discard(entry);
+        }
+        probation.clear();
+        protectedSegment.clear();
+        protectedBlocks = 0;
+    }
+
+    public synchronized int getUsedBlocks() {
+        return usedBlocks;
+    }
+
+    private void demoteOverflow() {
+        Iterator<Map.Entry<String, Entry>> eldest = protectedSegment.entrySet().iterator();
+        while (protectedBlocks > maxProtectedBlocks && eldest.hasNext()) {
+            Map.Entry<String, Entry> demoted = eldest.next();
+            eldest.remove();
+            protectedBlocks -= demoted.getValue().blocks.length;
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    private boolean evictOne() {
+        LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+        Iterator<Map.Entry<String, Entry>> eldest = segment.entrySet().iterator();
+        if (!eldest.hasNext()) {
+            return false;
+        }
+        Entry entry = eldest.next().getValue();
+        eldest.remove();
+        if (segment == protectedSegment) {
+            protectedBlocks -= entry.blocks.length;
+        }
+        discard(entry);
+        evictions.increment();
+        return true;
+    }
+
+    private Entry removeProtected(String noteId) {
+        Entry entry = protectedSegment.remove(noteId);
+        if (entry != null) {
+            protectedBlocks -= entry.blocks.length;
+        }
+        return entry;
+    }
+
+    // Blocks of a pinned entry are freed by the last reader instead
+    private void discard(Entry entry) {
+        entry.removed = true;
+        if (entry.pins == 0) {
+            freeEntry(entry);
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.pins--;
+        if (entry.removed && entry.pins == 0) {
+            freeEntry(entry);
+        }
+    }
+
+    private void freeEntry(Entry entry) {
+        if (entry.freed) {
+            return;
+        }
+        entry.freed = true;
+        for (int block : entry.blocks) {
+            freeBlocks[freeCount++] = block;
+        }
+        usedBlocks -= entry.blocks.length;
+    }
+
+    private int availableBlocks() {
+        return freeCount + (maxBlocks - allocatedBlocks);
+    }
+
+    // Slabs are allocated lazily, so an idle cache costs no direct memory
+    private int allocateBlock() {
+        if (freeCount > 0) {
+            return freeBlocks[--freeCount];
+        }
+        if (allocatedBlocks % blocksPerSlab == 0) {
+            slabs.add(ByteBuffer.allocateDirect(slabBytes));
+        }
+        return allocatedBlocks++;
+    }
+
+    private ByteBuffer slabOf(int block) {
+        return slabs.get(block / blocksPerSlab);
+    }
+
+    private int offsetOf(int block) {
+        return (block % blocksPerSlab) * blockBytes;
+    }
+
+    /**
+     * A pinned cache entry. {@link #writeTo} copies block by block through a single
+     * block-sized buffer, so the body is never materialised on the heap.
+     */
+    public final class Handle implements AutoCloseable {
+        private final Entry entry;
+        // Guarded by the cache
+        private boolean closed;
+        private boolean writing;
+        private boolean released;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        public int getLength() {
+            return entry.length;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            // The slab list only grows and pinned blocks are not rewritten, so no lock is needed
+            List<ByteBuffer> slabsSnapshot;
+            synchronized (NoteContentCache.this) {
+                if (closed) {
+                    throw new IllegalStateException("Cache handle already closed");
+                }
+                writing = true;
+                slabsSnapshot = new ArrayList<>(slabs);
+            }
+            try {
+                byte[] chunk = new byte[Math.min(blockBytes, Math.max(1, entry.length))];
+                int remaining = entry.length;
+                for (int block : entry.blocks) {
+                    int length = Math.min(blockBytes, remaining);
+                    if (length <= 0) {
+                        break;
+                    }
+                    slabsSnapshot.get(block / blocksPerSlab).get(offsetOf(block), chunk, 0, length);
+                    out.write(chunk, 0, length);
+                    remaining -= length;
+                }
+            } finally {
+                synchronized (NoteContentCache.this) {
+                    writing = false;
+                    if (closed) {
+                        releaseOnce();
+                    }
+                }
+            }
+        }
+
+        // Safe to call more than once and from any thread
+        @Override
+        public void close() {
+            synchronized (NoteContentCache.this) {
+                closed = true;
+                if (!writing) {
+                    releaseOnce();
+                }
+            }
+        }
+
+        private void releaseOnce() {
+            if (!released) {
+                released = true;
+                release(entry);
+            }
+        }
+    }
+
+    private static final class Entry {
+        final long version;
+        final int[] blocks;
+        final int length;
+        int pins;
+        boolean removed;
+        boolean freed;
+
+        Entry(long version, int[] blocks, int length) {
+            this.version = version;
+            this.blocks = blocks;
+            this.length = length;
+        }
+    }
+}
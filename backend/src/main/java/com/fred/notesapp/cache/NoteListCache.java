@@ -0,0 +1,178 @@
+package com.fred.notesapp.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches serialised note list pages per (tenantId, userId, page).
+ *
+ * Validity is tracked with a generation counter per user: every write bumps it, and an
+ * entry is only served if it was built at the current generation, so invalidation is
+ * one atomic increment with no scanning. New counters start from a process-wide clock
+ * rather than zero, so dropping a counter can never make an old entry valid again.
+ * Entries are evicted least-recently-used once their total size exceeds the byte budget.
+ *
+ * Each page carries a strong ETag computed from its bytes, so conditional list requests are
+ * answered from the cache and the tag means the same thing on every node.
+ *
+ * A TTL bounds staleness for changes this node never hears about, e.g. a page built from a
+ * lagging secondary after someone else edited the user's notes.
+ */
+@Component
+public class NoteListCache {
+
+    @Autowired
+    private InvalidationBus invalidationBus;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.list-cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    @Value("${notes.list-cache.ttl-ms:60000}")
+    private long ttlMs;
+
+    @Value("${notes.list-cache.max-tracked-users:100000}")
+    private int maxTrackedUsers;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    // Guarded by itself
+    private final LinkedHashMap<String, Page> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+    private Counter hits;
+    private Counter misses;
+
+    @PostConstruct
+    public void init() {
+        hits = Counter.builder("notes.list-cache.requests").tag("result", "hit").register(meterRegistry);
+        misses = Counter.builder("notes.list-cache.requests").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("notes.list-cache.bytes", this, NoteListCache::getTotalBytes).register(meterRegistry);
+        invalidationBus.register(InvalidationEvent.Type.NOTE, event -> {
+            if (event.getTenantId() != null && event.getUserId() != null) {
+                invalidateUser(event.getTenantId(), event.getUserId());
+            } else {
+                invalidateAll();
+            }
+        });
+    }
+
+    /**
+     * Current generation for a user. Read it before querying and pass it to {@link #put},
+     * so a write that lands during the query makes the new entry stale immediately.
+     */
+    public long generation(String tenantId, String userId) {
+        return counter(tenantId, userId).get();
+    }
+
+    public Page get(String tenantId, String userId, int page) {
+        long current = generation(tenantId, userId);
+        Page entry;
+        synchronized (entries) {
+            entry = entries.get(pageKey(tenantId, userId, page));
+        }
+        if (entry == null || entry.generation != current || entry.expiresAt < System.currentTimeMillis()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    public Page put(String tenantId, String userId, int page, long generation, byte[] body) {
+        Page entry = new Page(generation, body, etagOf(body), System.currentTimeMillis() + ttlMs);
+        if (body.length > maxBytes) {
+            return entry;
+        }
+        synchronized (entries) {
+            Page previous = entries.put(pageKey(tenantId, userId, page), entry);
+            if (previous != null) {
+                totalBytes -= previous.body.length;
+            }
+            totalBytes += body.length;
+            Iterator<Map.Entry<String, Page>> eldest = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                totalBytes -= eldest.next().getValue().body.length;
+                eldest.remove();
+            }
+        }
+        return entry;
+    }
+
+    // O(1): outdated entries are simply never served again and age out of the LRU
+    public void invalidateUser(String tenantId, String userId) {
+        counter(tenantId, userId).set(clock.incrementAndGet());
+    }
+
+    public void invalidateAll() {
+        generations.clear();
+    }
+
+    public long getTotalBytes() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    private AtomicLong counter(String tenantId, String userId) {
+        String key = tenantId + "|" + userId;
+        AtomicLong counter = generations.get(key);
+        if (counter != null) {
+            return counter;
+        }
+        if (generations.size() >= maxTrackedUsers) {
+            generations.clear();
+        }
+        return generations.computeIfAbsent(key, k -> new AtomicLong(clock.incrementAndGet()));
+    }
+
+    private static String pageKey(String tenantId, String userId, int page) {
+        return tenantId + "|" + userId + "|" + page;
+    }
+
+    private static String etagOf(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            return "\"" + HexFormat.of().formatHex(digest, 0, 16) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static final class Page {
+        private final long generation;
+        private final byte[] body;
+        private final String etag;
+        private final long expiresAt;
+
+        Page(long generation, byte[] body, String etag, long expiresAt) {
+            this.generation = generation;
+            this.body = body;
+            this.etag = etag;
+            this.expiresAt = expiresAt;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+    }
+}
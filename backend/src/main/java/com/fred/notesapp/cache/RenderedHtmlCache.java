@@ -0,0 +1,95 @@
+package com.fred.notesapp.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sanitised HTML rendered from Markdown, keyed by a hash of the Markdown source.
+ *
+ * The key is the content itself, not a note, so an entry never goes stale: editing a note
+ * simply looks up a different key, and identical content in different notes or tenants
+ * shares one entry. Nothing needs invalidating; entries are evicted least-recently-used
+ * once their estimated size exceeds the byte budget.
+ */
+@Component
+public class RenderedHtmlCache {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.render.cache.max-bytes:33554432}")
+    private long maxBytes;
+
+    // Guarded by itself
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+    private Counter hits;
+    private Counter misses;
+
+    @PostConstruct
+    public void init() {
+        hits = Counter.builder("notes.render.cache.requests").tag("result", "hit").register(meterRegistry);
+        misses = Counter.builder("notes.render.cache.requests").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("notes.render.cache.bytes", this, RenderedHtmlCache::getTotalBytes).register(meterRegistry);
+    }
+
+    public String get(String hash) {
+        String html;
+        synchronized (entries) {
+            html = entries.get(hash);
+        }
+        if (html == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return html;
+    }
+
+    public void put(String hash, String html) {
+        long size = sizeOf(hash, html);
+        if (size > maxBytes) {
+            return;
+        }
+        synchronized (entries) {
+            String previous = entries.put(hash, html);
+            if (previous != null) {
+                totalBytes -= sizeOf(hash, previous);
+            }
+            totalBytes += size;
+            Iterator<Map.Entry<String, String>> eldest = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, String> entry = eldest.next();
+                totalBytes -= sizeOf(entry.getKey(), entry.getValue());
+                eldest.remove();
+            }
+        }
+    }
+
+    // Peeks without counting a request or touching the LRU order
+    public boolean contains(String hash) {
+        synchronized (entries) {
+            return entries.containsKey(hash);
+        }
+    }
+
+    public long getTotalBytes() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    // Two bytes per char plus a rough per-entry overhead
+    private static long sizeOf(String hash, String html) {
+        return 2L * (hash.length() + html.length()) + 64;
+    }
+}
@@ -0,0 +1,21 @@
+package com.fred.notesapp.collab;
+
+/**
+ * The note's collaboration session is hosted by another node; editors have to connect there.
+ */
+public class CollabHostedElsewhereException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String hostUrl;
+
+    public CollabHostedElsewhereException(String hostUrl) {
+        super("Collaboration session is hosted on another node");
+        this.hostUrl = hostUrl;
+    }
+
+    // The host's collab.advertised-url; empty if it does not advertise one
+    public String getHostUrl() {
+        return hostUrl;
+    }
+}
@@ -0,0 +1,279 @@
+package com.fred.notesapp.collab;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.service.NoteService;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Updates;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Owns the live collaboration sessions, one per note being edited. Sessions are written back
+ * through NoteService, so caches, revisions and optimistic locking behave as for any update:
+ * periodically while edits arrive, when the last participant leaves, and on eviction.
+ *
+ * A note's session lives on exactly one node. Opening one claims a lease on the note in
+ * {@code collab_hosts}, renewed with every flush; a node that finds the lease held elsewhere
+ * turns the editor away with the host's address (collab.advertised-url) to reconnect to,
+ * instead of starting a second session whose edits would overwrite the first's.
+ */
+@Service
+public class CollabService {
+
+    @Autowired
+    private NoteService noteService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${collab.max-sessions:1000}")
+    private int maxSessions;
+
+    @Value("${collab.max-participants:200}")
+    private int maxParticipants;
+
+    // Live editing works on the inline body only, so this is at most notes.chunked.inline-max-bytes
+    @Value("${collab.max-document-chars:1048576}")
+    private int maxDocumentChars;
+
+    @Value("${collab.history.max-ops:512}")
+    private int maxHistoryOps;
+
+    @Value("${collab.history.max-chars:262144}")
+    private int maxHistoryChars;
+
+    @Value("${collab.max-queued-messages:1000}")
+    private int maxQueuedMessages;
+
+    @Value("${collab.idle-timeout-ms:600000}")
+    private long idleTimeoutMs;
+
+    // Must comfortably exceed collab.flush-interval-ms, which renews it
+    @Value("${collab.host-lease-ms:30000}")
+    private long hostLeaseMs;
+
+    // Where editors of this node's sessions should connect, e.g. wss://node-1.notes.example
+    @Value("${collab.advertised-url:}")
+    private String advertisedUrl;
+
+    public static final String HOSTS = "collab_hosts";
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Map<String, CollabSession> sessions = new ConcurrentHashMap<>();
+    private CollabSession.Limits limits;
+    private Counter overwrites;
+
+    @PostConstruct
+    public void init() {
+        limits = new CollabSession.Limits(maxDocumentChars, maxHistoryOps, maxHistoryChars, maxParticipants);
+        Gauge.builder("collab.sessions", sessions, Map::size).register(meterRegistry);
+        overwrites = Counter.builder("collab.overwrites").register(meterRegistry);
+    }
+
+    Participant newParticipant(WebSocketSession socket, String userId) {
+        return new Participant(socket, userId, maxQueuedMessages);
+    }
+
+    /**
+     * Adds a participant to the note's session, opening one from note if there is none.
+     * Returns empty if the server or the session is at capacity; throws
+     * {@link CollabHostedElsewhereException} if another node hosts the note's session.
+     */
+    Optional<CollabSession> join(Note note, Participant participant) {
+        while (true) {
+            CollabSession session = sessions.get(note.getId());
+            if (session == null) {
+                if (sessions.size() >= maxSessions) {
+                    return Optional.empty();
+                }
+                claimHost(note.getId());
+                CollabSession created = new CollabSession(note, objectMapper, limits);
+                session = sessions.putIfAbsent(note.getId(), created);
+                if (session == null) {
+                    session = created;
+                }
+            }
+            if (session.join(participant)) {
+                session.drain();
+                return Optional.of(session);
+            }
+            if (!session.isClosed()) {
+                return Optional.empty();
+            }
+            // Closed between lookup and join; it is about to be removed
+            remove(session);
+        }
+    }
+
+    void leave(CollabSession session, Participant participant) {
+        if (session.leave(participant.id)) {
+            flush(session);
+            remove(session);
+        } else {
+            session.drain();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${collab.flush-interval-ms:5000}",
+            initialDelayString = "${collab.flush-interval-ms:5000}")
+    public void flushAndEvict() {
+        renewHosts();
+        for (CollabSession session : sessions.values()) {
+            try {
+                if (session.idleMillis() > idleTimeoutMs) {
+                    evict(session, CloseStatus.GOING_AWAY.withReason("Idle"));
+                } else {
+                    flush(session);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Collaboration flush failed for note " + session.noteId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (CollabSession session : sessions.values()) {
+            try {
+                evict(session, CloseStatus.SERVICE_RESTARTED);
+            } catch (RuntimeException e) {
+                System.err.println("Collaboration flush failed for note " + session.noteId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void evict(CollabSession session, CloseStatus status) {
+        CollabSession.disconnect(session.close(), status);
+        flush(session);
+        remove(session);
+    }
+
+    /**
+     * Writes the session's text if it changed. If the note was updated elsewhere in the
+     * meantime, that change is merged into the session and the write retried once; after
+     * that the session's text wins.
+     */
+    void flush(CollabSession session) {
+        synchronized (session.flushLock) {
+            for (int attempt = 0; attempt < 3; attempt++) {
+                CollabSession.Pending pending = session.pending();
+                if (pending == null) {
+                    return;
+                }
+                try {
+                    Note saved = noteService.update(pending.note, pending.authorId, pending.note.getVersion());
+                    session.flushed(pending, saved);
+                    return;
+                } catch (OptimisticLockingFailureException e) {
+                    Optional<Note> stored = noteService.findByIdForWrite(session.noteId, session.tenantId);
+                    if (!stored.isPresent() || stored.get().isChunked()) {
+                        // Deleted or replaced by a large upload while being edited
+                        CollabSession.disconnect(session.close(), CloseStatus.GOING_AWAY.withReason("Note changed"));
+                        remove(session);
+                        return;
+                    }
+                    if (attempt > 0 || !session.merge(stored.get())) {
+                        // Only a REST update can get here, never another session, since sessions are single-hosted
+                        System.out.println("Collaboration session for note " + session.noteId + " overwrote a concurrent update");
+                        overwrites.increment();
+                        session.overwrite(stored.get());
+                    }
+                    session.drain();
+                }
+            }
+        }
+    }
+
+    // Takes the note's host lease for this node, unless another node holds an unexpired one
+    private void claimHost(String noteId) {
+        long now = System.currentTimeMillis();
+        try {
+            hosts().findOneAndUpdate(
+                    Filters.and(Filters.eq("_id", noteId), Filters.or(Filters.eq("owner", nodeId), Filters.lt("leaseUntil", now))),
+                    Updates.combine(Updates.set("owner", nodeId), Updates.set("url", advertisedUrl),
+                            Updates.set("leaseUntil", now + hostLeaseMs)),
+                    new FindOneAndUpdateOptions().upsert(true));
+        } catch (RuntimeException e) {
+            if (!isDuplicateKey(e)) {
+                throw e;
+            }
+            Document host = hosts().find(Filters.eq("_id", noteId)).first();
+            throw new CollabHostedElsewhereException(host == null ? "" : host.getString("url"));
+        }
+    }
+
+    // One update for all leases; sessions whose lease went missing are claimed again or closed
+    private void renewHosts() {
+        if (sessions.isEmpty()) {
+            return;
+        }
+        try {
+            long matched = hosts().updateMany(
+                    Filters.and(Filters.in("_id", new ArrayList<>(sessions.keySet())), Filters.eq("owner", nodeId)),
+                    Updates.set("leaseUntil", System.currentTimeMillis() + hostLeaseMs)).getMatchedCount();
+            if (matched == sessions.size()) {
+                return;
+            }
+            for (CollabSession session : sessions.values()) {
+                try {
+                    claimHost(session.noteId);
+                } catch (CollabHostedElsewhereException e) {
+                    evict(session, CloseStatus.SERVICE_RESTARTED.withReason("Session moved to another node"));
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Renewing collaboration host leases failed: " + e.getMessage());
+        }
+    }
+
+    private void remove(CollabSession session) {
+        if (sessions.remove(session.noteId, session) && !sessions.containsKey(session.noteId)) {
+            try {
+                hosts().deleteOne(Filters.and(Filters.eq("_id", session.noteId), Filters.eq("owner", nodeId)));
+            } catch (RuntimeException e) {
+                // The lease expires on its own
+                System.err.println("Releasing collaboration host lease for note " + session.noteId + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // The upsert of a claim lost to a document another node holds
+    private static boolean isDuplicateKey(RuntimeException e) {
+        return (e instanceof MongoCommandException && ((MongoCommandException) e).getErrorCode() == 11000)
+                || (e instanceof MongoWriteException && ((MongoWriteException) e).getCode() == 11000);
+    }
+
+    private MongoCollection<Document> hosts() {
+        return mongoTemplate.getCollection(HOSTS);
+    }
+}
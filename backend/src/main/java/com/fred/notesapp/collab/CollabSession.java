@@ -0,0 +1,287 @@
+package com.fred.notesapp.collab;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fred.notesapp.model.Note;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The in-memory copy of one note being edited together. Operations are serialized by the
+ * session lock: each is transformed against everything applied since the client's revision,
+ * applied, acknowledged to its sender and broadcast to everyone else.
+ *
+ * Memory is bounded by the document size limit, the history limits (a client further behind
+ * than the history gets a full resync instead) and each participant's outbox limit.
+ */
+public class CollabSession {
+
+    static final String SERVER_CLIENT_ID = "server";
+
+    final String noteId;
+    final String tenantId;
+    // Held while writing to MongoDB, so flushes of one session never overlap
+    final Object flushLock = new Object();
+
+    private final ObjectMapper objectMapper;
+    private final Limits limits;
+    private final Map<String, Participant> participants = new ConcurrentHashMap<>();
+    private final ArrayDeque<TextOperation> history = new ArrayDeque<>();
+
+    private Note note; // as last read from or written to MongoDB
+    private String text;
+    private long rev;
+    private long historyStartRev;
+    private int historyChars;
+    private String flushedText;
+    private long flushedRev;
+    private String lastAuthorId;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private boolean closed;
+
+    CollabSession(Note note, ObjectMapper objectMapper, Limits limits) {
+        this.noteId = note.getId();
+        this.tenantId = note.getTenantId();
+        this.objectMapper = objectMapper;
+        this.limits = limits;
+        this.note = new Note(note);
+        this.text = note.getContent() == null ? "" : note.getContent();
+        this.flushedText = text;
+    }
+
+    // False if the session is full or already closed; a closed session must be replaced
+    synchronized boolean join(Participant participant) {
+        if (closed || participants.size() >= limits.maxParticipants) {
+            return false;
+        }
+        participants.put(participant.id, participant);
+        lastActivity = System.currentTimeMillis();
+        ObjectNode init = message("init")
+                .put("clientId", participant.id)
+                .put("title", note.getTitle())
+                .put("text", text)
+                .put("participants", participants.size());
+        participant.enqueue(toMessage(init));
+        broadcast(presence(), participant.id);
+        return true;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // Returns true if the session was left empty and has been closed
+    synchronized boolean leave(String participantId) {
+        if (participants.remove(participantId) == null) {
+            return false;
+        }
+        if (participants.isEmpty()) {
+            closed = true;
+            return true;
+        }
+        broadcast(presence(), null);
+        return false;
+    }
+
+    /**
+     * Applies an operation a client made against baseRev. A client ahead of the server or
+     * behind the kept history, or one whose operation does not fit, is sent the current text.
+     */
+    synchronized void submit(Participant participant, long baseRev, TextOperation operation) {
+        if (closed || !participants.containsKey(participant.id)) {
+            return;
+        }
+        if (baseRev > rev || baseRev < historyStartRev) {
+            participant.enqueue(resync());
+            return;
+        }
+        String next;
+        try {
+            Iterator<TextOperation> concurrent = history.iterator();
+            for (long r = historyStartRev; r < baseRev; r++) {
+                concurrent.next();
+            }
+            while (concurrent.hasNext()) {
+                operation = TextOperation.transform(operation, concurrent.next())[0];
+            }
+            next = operation.apply(text);
+        } catch (IllegalArgumentException e) {
+            participant.enqueue(toMessage(message("error").put("message", e.getMessage())));
+            participant.enqueue(resync());
+            return;
+        }
+        if (next.length() > limits.maxChars) {
+            participant.enqueue(toMessage(message("error").put("message", "Note is too large for live editing")));
+            participant.enqueue(resync());
+            return;
+        }
+
+        apply(operation, next);
+        lastAuthorId = participant.userId;
+        participant.enqueue(toMessage(message("ack")));
+        broadcast(operationMessage(operation, participant.id), participant.id);
+    }
+
+    // Sends queued messages; call without holding the session lock
+    void drain() {
+        for (Participant participant : participants.values()) {
+            participant.drain();
+        }
+    }
+
+    // The current state if it has not been stored yet
+    synchronized Pending pending() {
+        if (rev == flushedRev) {
+            return null;
+        }
+        Note dirty = new Note(note);
+        dirty.setContent(text);
+        return new Pending(dirty, rev, text, lastAuthorId);
+    }
+
+    synchronized void flushed(Pending pending, Note saved) {
+        note = new Note(saved);
+        flushedRev = pending.rev;
+        flushedText = pending.text;
+    }
+
+    /**
+     * Folds a change someone made outside the session (through the REST API) into the
+     * document, as if it were one more concurrent operation from the server. Returns false
+     * if the session's history no longer reaches back to its last flush; the session's
+     * text then wins.
+     */
+    synchronized boolean merge(Note stored) {
+        note = new Note(stored);
+        String storedText = stored.getContent() == null ? "" : stored.getContent();
+        if (flushedRev < historyStartRev) {
+            return false;
+        }
+        TextOperation external = TextOperation.diff(flushedText, storedText);
+        Iterator<TextOperation> concurrent = history.iterator();
+        for (long r = historyStartRev; r < flushedRev; r++) {
+            concurrent.next();
+        }
+        try {
+            while (concurrent.hasNext()) {
+                // Put the session's own edits first where both inserted at the same place
+                external = TextOperation.transform(concurrent.next(), external)[1];
+            }
+            String next = external.apply(text);
+            if (next.length() > limits.maxChars) {
+                return false;
+            }
+            apply(external, next);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        broadcast(operationMessage(external, SERVER_CLIENT_ID), null);
+        return true;
+    }
+
+    // Takes the stored note's version without its content, so the next flush overwrites it
+    synchronized void overwrite(Note stored) {
+        note = new Note(stored);
+    }
+
+    long idleMillis() {
+        return System.currentTimeMillis() - lastActivity;
+    }
+
+    // Ends the session and returns its participants so they can be disconnected outside the lock
+    synchronized List<Participant> close() {
+        closed = true;
+        List<Participant> removed = new ArrayList<>(participants.values());
+        participants.clear();
+        return removed;
+    }
+
+    static void disconnect(List<Participant> participants, CloseStatus status) {
+        for (Participant participant : participants) {
+            participant.close(status);
+        }
+    }
+
+    private void apply(TextOperation operation, String next) {
+        text = next;
+        rev++;
+        history.addLast(operation);
+        historyChars += operation.insertedLength();
+        while (history.size() > limits.maxHistoryOps
+                || (historyChars > limits.maxHistoryChars && history.size() > 1)) {
+            historyChars -= history.removeFirst().insertedLength();
+            historyStartRev++;
+        }
+        lastActivity = System.currentTimeMillis();
+    }
+
+    private void broadcast(TextMessage message, String exceptId) {
+        for (Participant participant : participants.values()) {
+            if (!participant.id.equals(exceptId)) {
+                participant.enqueue(message);
+            }
+        }
+    }
+
+    private TextMessage operationMessage(TextOperation operation, String clientId) {
+        ObjectNode op = message("op").put("clientId", clientId);
+        op.set("op", objectMapper.valueToTree(operation.toJson()));
+        return toMessage(op);
+    }
+
+    private TextMessage presence() {
+        return toMessage(message("presence").put("participants", participants.size()));
+    }
+
+    private TextMessage resync() {
+        return toMessage(message("resync").put("text", text));
+    }
+
+    private ObjectNode message(String type) {
+        return objectMapper.createObjectNode().put("type", type).put("rev", rev);
+    }
+
+    private TextMessage toMessage(ObjectNode node) {
+        try {
+            return new TextMessage(objectMapper.writeValueAsString(node));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static final class Pending {
+        final Note note;
+        final long rev;
+        final String text;
+        final String authorId;
+
+        Pending(Note note, long rev, String text, String authorId) {
+            this.note = note;
+            this.rev = rev;
+            this.text = text;
+            this.authorId = authorId;
+        }
+    }
+
+    static final class Limits {
+        final int maxChars;
+        final int maxHistoryOps;
+        final int maxHistoryChars;
+        final int maxParticipants;
+
+        Limits(int maxChars, int maxHistoryOps, int maxHistoryChars, int maxParticipants) {
+            this.maxChars = maxChars;
+            this.maxHistoryOps = maxHistoryOps;
+            this.maxHistoryChars = maxHistoryChars;
+            this.maxParticipants = maxParticipants;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.fred.notesapp.collab;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.User;
+import com.fred.notesapp.service.NoteService;
+import com.fred.notesapp.service.TenantService;
+import com.fred.notesapp.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.SubProtocolCapable;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * WebSocket endpoint at /notes/{id}/collab. Clients send {"type":"op","rev":n,"op":[...]}
+ * with an ot.js operation made against server revision n, and receive "init", "ack", "op",
+ * "presence", "resync" and "error" messages, each carrying the server revision it leaves
+ * the document at.
+ *
+ * Clients offer the {@value #SUBPROTOCOL} subprotocol, plus their JWT as a second
+ * subprotocol "bearer.&lt;jwt&gt;" (browsers cannot set headers on the handshake, and a query
+ * parameter would end up in access logs).
+ */
+@Component
+public class CollabWebSocketHandler extends TextWebSocketHandler implements SubProtocolCapable {
+
+    public static final String SUBPROTOCOL = "notes.collab";
+    public static final String TOKEN_SUBPROTOCOL_PREFIX = "bearer.";
+
+    // The reason is the URL to reconnect to (empty if the host advertises none)
+    static final int HOSTED_ELSEWHERE = 4001;
+
+    private static final String SESSION = "collab.session";
+    private static final String PARTICIPANT = "collab.participant";
+
+    @Autowired
+    private CollabService collabService;
+
+    @Autowired
+    private NoteService noteService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private TenantService tenantService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Override
+    public List<String> getSubProtocols() {
+        return List.of(SUBPROTOCOL);
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession socket) throws IOException {
+        Principal principal = socket.getPrincipal();
+        if (principal == null) {
+            socket.close(CloseStatus.POLICY_VIOLATION.withReason("Authentication required"));
+            return;
+        }
+
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            socket.close(CloseStatus.POLICY_VIOLATION.withReason("User not found"));
+            return;
+        }
+
+        User user = userOpt.get();
+
+        Optional<Note> noteOpt = noteService.findByIdForWrite(noteIdOf(socket), user.getTenantId());
+        if (!noteOpt.isPresent()) {
+            socket.close(CloseStatus.POLICY_VIOLATION.withReason("Note not found"));
+            return;
+        }
+
+        Note note = noteOpt.get();
+
+        // Same rule as updating the note: the owner or a tenant admin
+        if (!note.getUserId().equals(user.getId()) && !"ADMIN".equals(user.getRole())) {
+            socket.close(CloseStatus.POLICY_VIOLATION.withReason("Access denied"));
+            return;
+        }
+
+        if (note.isChunked()) {
+            socket.close(CloseStatus.NOT_ACCEPTABLE.withReason("Note is too large for live editing"));
+            return;
+        }
+
+        Participant participant = collabService.newParticipant(socket, user.getId());
+        Optional<CollabSession> session;
+        try {
+            session = collabService.join(note, participant);
+        } catch (CollabHostedElsewhereException e) {
+            socket.close(new CloseStatus(HOSTED_ELSEWHERE, e.getHostUrl()));
+            return;
+        }
+        if (!session.isPresent()) {
+            socket.close(CloseStatus.SERVICE_OVERLOAD.withReason("Too many editors"));
+            return;
+        }
+        socket.getAttributes().put(SESSION, session.get());
+        socket.getAttributes().put(PARTICIPANT, participant);
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession socket, TextMessage message) throws IOException {
+        CollabSession session = (CollabSession) socket.getAttributes().get(SESSION);
+        Participant participant = (Participant) socket.getAttributes().get(PARTICIPANT);
+        if (session == null || participant == null) {
+            return;
+        }
+
+        TextOperation operation;
+        long rev;
+        try {
+            JsonNode json = objectMapper.readTree(message.getPayload());
+            if (!"op".equals(json.path("type").asText()) || !json.path("rev").canConvertToLong() || !json.path("op").isArray()) {
+                throw new IllegalArgumentException("Expected {\"type\":\"op\",\"rev\":n,\"op\":[...]}");
+            }
+            rev = json.get("rev").asLong();
+            operation = TextOperation.fromJson(objectMapper.convertValue(json.get("op"), List.class));
+        } catch (IOException | IllegalArgumentException e) {
+            // Through the outbox: only the drainer may write to the socket
+            participant.enqueue(new TextMessage(objectMapper.createObjectNode()
+                    .put("type", "error")
+                    .put("message", e.getMessage())
+                    .toString()));
+            participant.drain();
+            return;
+        }
+
+        session.submit(participant, rev, operation);
+        session.drain();
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession socket, CloseStatus status) {
+        CollabSession session = (CollabSession) socket.getAttributes().get(SESSION);
+        Participant participant = (Participant) socket.getAttributes().get(PARTICIPANT);
+        if (session != null && participant != null) {
+            collabService.leave(session, participant);
+        }
+    }
+
+    // The path is /notes/{id}/collab
+    private static String noteIdOf(WebSocketSession socket) {
+        String[] segments = socket.getUri().getPath().split("/");
+        return segments[segments.length - 2];
+    }
+
+    private String getTenantIdFromEmail(String email) {
+        String[] emailParts = email.split("@");
+        if (emailParts.length < 2) {
+            return null;
+        }
+        String tenantSlug = emailParts[1].split("\\.")[0]; // Extract "acme" from "admin@acme.test"
+
+        // Get tenant by slug and return its ID
+        return tenantService.findBySlug(tenantSlug)
+                .map(tenant -> tenant.getId())
+                .orElse(null);
+    }
+}
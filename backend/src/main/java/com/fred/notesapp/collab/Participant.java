@@ -0,0 +1,82 @@
+package com.fred.notesapp.collab;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One connection to a collaboration session. Messages are queued in session order while
+ * the session lock is held and written to the socket afterwards by a single drainer, so a
+ * slow client never stalls the other editors. A client that falls too far behind is
+ * disconnected and gets a fresh copy when it reconnects.
+ */
+final class Participant {
+
+    final String id;
+    final String userId;
+    private final WebSocketSession socket;
+    private final int maxQueued;
+    private final Queue<TextMessage> outbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean overflowed;
+
+    Participant(WebSocketSession socket, String userId, int maxQueued) {
+        this.id = socket.getId();
+        this.userId = userId;
+        this.socket = socket;
+        this.maxQueued = maxQueued;
+    }
+
+    // Called under the session lock, so it never touches the socket
+    void enqueue(TextMessage message) {
+        if (overflowed) {
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            overflowed = true;
+            outbox.clear();
+            return;
+        }
+        outbox.add(message);
+    }
+
+    void drain() {
+        if (overflowed) {
+            close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Too far behind"));
+            return;
+        }
+        while (!outbox.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                TextMessage message;
+                while ((message = outbox.poll()) != null) {
+                    queued.decrementAndGet();
+                    if (socket.isOpen()) {
+                        socket.sendMessage(message);
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                close(CloseStatus.SESSION_NOT_RELIABLE);
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    void close(CloseStatus status) {
+        outbox.clear();
+        try {
+            if (socket.isOpen()) {
+                socket.close(status);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to close collaboration socket " + id + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.fred.notesapp.collab;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An edit to a whole document, in the ot.js wire format: positive integers retain that
+ * many characters, negative integers delete, strings insert. Lengths are UTF-16 code
+ * units, the same as JavaScript strings, so browser clients can use ot.js unchanged.
+ */
+public final class TextOperation {
+
+    private final List<Object> ops = new ArrayList<>();
+    private int baseLength;
+    private int targetLength;
+
+    public int getBaseLength() {
+        return baseLength;
+    }
+
+    public int getTargetLength() {
+        return targetLength;
+    }
+
+    // Characters inserted, used to bound what a session keeps in its history
+    public int insertedLength() {
+        int n = 0;
+        for (Object op : ops) {
+            if (op instanceof String) {
+                n += ((String) op).length();
+            }
+        }
+        return n;
+    }
+
+    public TextOperation retain(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("retain expects a non-negative count");
+        }
+        if (n == 0) {
+            return this;
+        }
+        baseLength += n;
+        targetLength += n;
+        Object last = last();
+        if (last instanceof Integer && (Integer) last > 0) {
+            ops.set(ops.size() - 1, (Integer) last + n);
+        } else {
+            ops.add(n);
+        }
+        return this;
+    }
+
+    public TextOperation insert(String s) {
+        if (s.isEmpty()) {
+            return this;
+        }
+        targetLength += s.length();
+        Object last = last();
+        if (last instanceof String) {
+            ops.set(ops.size() - 1, last + s);
+        } else if (last instanceof Integer && (Integer) last < 0) {
+            // Inserts go before deletes so equivalent operations have one representation
+            Object beforeLast = ops.size() > 1 ? ops.get(ops.size() - 2) : null;
+            if (beforeLast instanceof String) {
+                ops.set(ops.size() - 2, beforeLast + s);
+            } else {
+                ops.add(ops.size() - 1, s);
+            }
+        } else {
+            ops.add(s);
+        }
+        return this;
+    }
+
+    public TextOperation delete(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("delete expects a non-negative count");
+        }
+        if (n == 0) {
+            return this;
+        }
+        baseLength += n;
+        Object last = last();
+        if (last instanceof Integer && (Integer) last < 0) {
+            ops.set(ops.size() - 1, (Integer) last - n);
+        } else {
+            ops.add(-n);
+        }
+        return this;
+    }
+
+    /**
+     * Applies the operation to a document of exactly baseLength characters. Rejects edits
+     * that would split a surrogate pair, since the result could not be stored as UTF-8.
+     */
+    public String apply(String doc) {
+        if (doc.length() != baseLength) {
+            throw new IllegalArgumentException("Operation expects a document of " + baseLength
+                    + " characters, got " + doc.length());
+        }
+        StringBuilder out = new StringBuilder(targetLength);
+        int index = 0;
+        for (Object op : ops) {
+            checkBoundary(doc, index);
+            if (op instanceof String) {
+                out.append((String) op);
+            } else if ((Integer) op > 0) {
+                out.append(doc, index, index + (Integer) op);
+                index += (Integer) op;
+            } else {
+                index -= (Integer) op;
+            }
+        }
+        return out.toString();
+    }
+
+    public List<Object> toJson() {
+        return Collections.unmodifiableList(ops);
+    }
+
+    public static TextOperation fromJson(List<?> json) {
+        TextOperation operation = new TextOperation();
+        for (Object op : json) {
+            if (op instanceof String) {
+                operation.insert((String) op);
+            } else if (op instanceof Integer || op instanceof Long) {
+                long n = ((Number) op).longValue();
+                if (n == 0 || Math.abs(n) > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Invalid operation component: " + op);
+                }
+                if (n > 0) {
+                    operation.retain((int) n);
+                } else {
+                    operation.delete((int) -n);
+                }
+            } else {
+                throw new IllegalArgumentException("Invalid operation component: " + op);
+            }
+        }
+        return operation;
+    }
+
+    // The operation that turns before into after, as one replaced span
+    public static TextOperation diff(String before, String after) {
+        int max = Math.min(before.length(), after.length());
+        int prefix = 0;
+        while (prefix < max && before.charAt(prefix) == after.charAt(prefix)) {
+            prefix++;
+        }
+        if (prefix > 0 && Character.isHighSurrogate(after.charAt(prefix - 1))) {
+            prefix--;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && before.charAt(before.length() - 1 - suffix) == after.charAt(after.length() - 1 - suffix)) {
+            suffix++;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(after.charAt(after.length() - suffix))) {
+            suffix--;
+        }
+        return new TextOperation()
+                .retain(prefix)
+                .insert(after.substring(prefix, after.length() - suffix))
+                .delete(before.length() - prefix - suffix)
+                .retain(suffix);
+    }
+
+    /**
+     * Transforms two concurrent operations on the same document into a pair (a', b') such
+     * that applying a then b' gives the same result as b then a'. Where both insert at the
+     * same position, a's text comes first.
+     */
+    public static TextOperation[] transform(TextOperation a, TextOperation b) {
+        if (a.baseLength != b.baseLength) {
+            throw new IllegalArgumentException("Concurrent operations must have the same base length");
+        }
+        TextOperation aPrime = new TextOperation();
+        TextOperation bPrime = new TextOperation();
+        int i = 0;
+        int j = 0;
+        Object opA = next(a, i++);
+        Object opB = next(b, j++);
+        while (opA != null || opB != null) {
+            if (opA instanceof String) {
+                aPrime.insert((String) opA);
+                bPrime.retain(((String) opA).length());
+                opA = next(a, i++);
+                continue;
+            }
+            if (opB instanceof String) {
+                aPrime.retain(((String) opB).length());
+                bPrime.insert((String) opB);
+                opB = next(b, j++);
+                continue;
+            }
+            if (opA == null || opB == null) {
+                throw new IllegalArgumentException("Operations do not cover the same document");
+            }
+            int x = (Integer) opA;
+            int y = (Integer) opB;
+            if (x > 0 && y > 0) {
+                int min = Math.min(x, y);
+                aPrime.retain(min);
+                bPrime.retain(min);
+                opA = x > min ? (Object) (x - min) : next(a, i++);
+                opB = y > min ? (Object) (y - min) : next(b, j++);
+            } else if (x < 0 && y < 0) {
+                // Both deleted the same characters
+                int min = Math.min(-x, -y);
+                opA = -x > min ? (Object) (x + min) : next(a, i++);
+                opB = -y > min ? (Object) (y + min) : next(b, j++);
+            } else if (x < 0) {
+                int min = Math.min(-x, y);
+                aPrime.delete(min);
+                opA = -x > min ? (Object) (x + min) : next(a, i++);
+                opB = y > min ? (Object) (y - min) : next(b, j++);
+            } else {
+                int min = Math.min(x, -y);
+                bPrime.delete(min);
+                opA = x > min ? (Object) (x - min) : next(a, i++);
+                opB = -y > min ? (Object) (y + min) : next(b, j++);
+            }
+        }
+        return new TextOperation[] {aPrime, bPrime};
+    }
+
+    private Object last() {
+        return ops.isEmpty() ? null : ops.get(ops.size() - 1);
+    }
+
+    private static Object next(TextOperation operation, int index) {
+        return index < operation.ops.size() ? operation.ops.get(index) : null;
+    }
+
+    private static void checkBoundary(String doc, int index) {
+        if (index > 0 && index < doc.length()
+                && Character.isHighSurrogate(doc.charAt(index - 1)) && Character.isLowSurrogate(doc.charAt(index))) {
+            throw new IllegalArgumentException("Operation splits a surrogate pair at " + index);
+        }
+    }
+}
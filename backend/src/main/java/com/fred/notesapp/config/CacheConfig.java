@@ -0,0 +1,18 @@
+package com.fred.notesapp.config;
+
+import com.fred.notesapp.cache.InvalidationTransport;
+import com.fred.notesapp.cache.LocalInvalidationTransport;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class CacheConfig {
+    
+    // Default in-JVM transport; define another InvalidationTransport bean to fan events out across nodes
+    @Bean
+    @ConditionalOnMissingBean(InvalidationTransport.class)
+    public InvalidationTransport invalidationTransport() {
+        return new LocalInvalidationTransport();
+    }
+}
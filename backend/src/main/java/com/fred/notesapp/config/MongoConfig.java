@@ -0,0 +1,39 @@
+package com.fred.notesapp.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.ReadingConverter;
+import org.springframework.data.convert.WritingConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.List;
+
+@Configuration
+public class MongoConfig {
+    
+    // Timestamps are stored as UTC instants whatever the server's time zone, matching the UTC-based ETags
+    @Bean
+    public MongoCustomConversions mongoCustomConversions() {
+        return new MongoCustomConversions(List.of(new LocalDateTimeToDate(), new DateToLocalDateTime()));
+    }
+    
+    @WritingConverter
+    static class LocalDateTimeToDate implements Converter<LocalDateTime, Date> {
+        @Override
+        public Date convert(LocalDateTime source) {
+            return Date.from(source.toInstant(ZoneOffset.UTC));
+        }
+    }
+    
+    @ReadingConverter
+    static class DateToLocalDateTime implements Converter<Date, LocalDateTime> {
+        @Override
+        public LocalDateTime convert(Date source) {
+            return LocalDateTime.ofInstant(source.toInstant(), ZoneOffset.UTC);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.fred.notesapp.controller;
+
+import com.fred.notesapp.dto.AttachmentResponse;
+import com.fred.notesapp.model.Attachment;
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.User;
+import com.fred.notesapp.repository.NoteContentTooLargeException;
+import com.fred.notesapp.service.AttachmentService;
+import com.fred.notesapp.service.NoteService;
+import com.fred.notesapp.service.StorageQuotaExceededException;
+import com.fred.notesapp.service.TenantService;
+import com.fred.notesapp.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+@RestController
+@RequestMapping("/notes/{noteId}/attachments")
+@CrossOrigin(origins = "*")
+public class AttachmentController {
+
+    @Autowired
+    private NoteService noteService;
+
+    @Autowired
+    private AttachmentService attachmentService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private TenantService tenantService;
+
+    // Upload an attachment by streaming the request body
+    @PostMapping
+    public ResponseEntity<?> upload(@PathVariable String noteId, @RequestParam String filename,
+                                    @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType,
+                                    InputStream body, Principal principal) throws IOException {
+        NoteAccess access = resolve(noteId, principal, true);
+        if (access.error != null) {
+            return access.error;
+        }
+
+        Attachment attachment;
+        try {
+            attachment = noteService.addAttachment(access.note, access.user.getId(), filename, storedContentType(contentType), body);
+        } catch (StorageQuotaExceededException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body("Attachment storage quota reached. Upgrade to PRO plan for more storage.");
+        } catch (NoteContentTooLargeException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(e.getMessage());
+        }
+
+        return ResponseEntity.status(HttpStatus.CREATED).eTag(etagOf(attachment)).body(toResponse(attachment));
+    }
+
+    // List a note's attachments
+    @GetMapping
+    public ResponseEntity<?> list(@PathVariable String noteId, Principal principal) {
+        NoteAccess access = resolve(noteId, principal, false);
+        if (access.error != null) {
+            return access.error;
+        }
+
+        List<AttachmentResponse> response = attachmentService.findByNote(access.note).stream()
+                .map(this::toResponse)
+                .collect(Collectors.toList());
+        return ResponseEntity.ok(response);
+    }
+
+    // Download an attachment, with Range and If-None-Match support
+    @GetMapping("/{attachmentId}")
+    public ResponseEntity<?> download(@PathVariable String noteId, @PathVariable String attachmentId,
+                                      @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+                                      @RequestHeader(value = "Range", required = false) String range,
+                                      Principal principal) {
+        NoteAccess access = resolve(noteId, principal, false);
+        if (access.error != null) {
+            return access.error;
+        }
+
+        Optional<Attachment> attachmentOpt = attachmentService.findById(access.note, attachmentId);
+        if (!attachmentOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Attachment not found");
+        }
+
+        Attachment attachment = attachmentOpt.get();
+        String etag = etagOf(attachment);
+        // Content-addressed, so any matching tag means the client already has these bytes
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+
+        long size = attachment.getSize();
+        ByteRange bytes = ByteRange.parse(range, size);
+        if (!bytes.satisfiable) {
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, bytes.contentRange(size))
+                    .build();
+        }
+
+        StreamingResponseBody body = out -> {
+            if (bytes.length() > 0) {
+                attachmentService.copyTo(attachment, bytes.start, bytes.end, out);
+            }
+        };
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(bytes.partial ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
+                .eTag(etag)
+                .contentType(MediaType.parseMediaType(attachment.getContentType()))
+                .contentLength(bytes.length())
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename(attachment.getFilename(), StandardCharsets.UTF_8).build().toString());
+        if (bytes.partial) {
+            builder.header(HttpHeaders.CONTENT_RANGE, bytes.contentRange(size));
+        }
+        return builder.body(body);
+    }
+
+    // Delete an attachment
+    @DeleteMapping("/{attachmentId}")
+    public ResponseEntity<?> delete(@PathVariable String noteId, @PathVariable String attachmentId, Principal principal) {
+        NoteAccess access = resolve(noteId, principal, true);
+        if (access.error != null) {
+            return access.error;
+        }
+
+        Optional<Attachment> attachmentOpt = attachmentService.findById(access.note, attachmentId);
+        if (!attachmentOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Attachment not found");
+        }
+
+        attachmentService.delete(attachmentOpt.get());
+        return ResponseEntity.ok().body("Attachment deleted successfully");
+    }
+
+    // Same rules as the note itself: the owner or a tenant admin
+    private NoteAccess resolve(String noteId, Principal principal, boolean forWrite) {
+        // Check if principal is null
+        if (principal == null) {
+            return NoteAccess.denied(ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required"));
+        }
+
+        // Get user from principal
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            return NoteAccess.denied(ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found"));
+        }
+
+        User user = userOpt.get();
+
+        // Attachments only need the note's identity and owner, never its body
+        Optional<Note> noteOpt = forWrite
+                ? noteService.findVersionByIdForWrite(noteId, user.getTenantId())
+                : noteService.findVersionById(noteId, user.getTenantId(), user.getId());
+        if (!noteOpt.isPresent()) {
+            return NoteAccess.denied(ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found"));
+        }
+
+        Note note = noteOpt.get();
+
+        // Check if note belongs to user or user is admin
+        if (!note.getUserId().equals(user.getId()) && !"ADMIN".equals(user.getRole())) {
+            return NoteAccess.denied(ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied"));
+        }
+
+        return new NoteAccess(user, note, null);
+    }
+
+    private AttachmentResponse toResponse(Attachment attachment) {
+        return new AttachmentResponse(
+                attachment.getId(),
+                attachment.getFilename(),
+                attachment.getContentType(),
+                attachment.getSize(),
+                attachment.getSha256(),
+                attachment.getCreatedAt()
+        );
+    }
+
+    // Stored as sent when valid, so downloads can echo it back
+    private static String storedContentType(String contentType) {
+        if (contentType == null) {
+            return MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        }
+        try {
+            return MediaType.parseMediaType(contentType).toString();
+        } catch (InvalidMediaTypeException e) {
+            return MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        }
+    }
+
+    private static String etagOf(Attachment attachment) {
+        return "\"" + attachment.getSha256() + "\"";
+    }
+
+    private String getTenantIdFromEmail(String email) {
+        String[] emailParts = email.split("@");
+        if (emailParts.length < 2) {
+            return null;
+        }
+        String tenantSlug = emailParts[1].split("\\.")[0]; // Extract "acme" from "admin@acme.test"
+
+        // Get tenant by slug and return its ID
+        return tenantService.findBySlug(tenantSlug)
+                .map(tenant -> tenant.getId())
+                .orElse(null);
+    }
+
+    private static final class NoteAccess {
+        final User user;
+        final Note note;
+        final ResponseEntity<?> error;
+
+        NoteAccess(User user, Note note, ResponseEntity<?> error) {
+            this.user = user;
+            this.note = note;
+            this.error = error;
+        }
+
+        static NoteAccess denied(ResponseEntity<?> error) {
+            return new NoteAccess(null, null, error);
+        }
+    }
+}
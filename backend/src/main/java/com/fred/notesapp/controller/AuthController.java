@@ -6,16 +6,19 @@ import com.fred.notesapp.dto.SignupRequest;
 import com.fred.notesapp.model.Tenant;
 import com.fred.notesapp.model.User;
 import com.fred.notesapp.security.JwtUtil;
+import com.fred.notesapp.security.PasswordHashingRejectedException;
 import com.fred.notesapp.service.TenantService;
 import com.fred.notesapp.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @RestController
 @CrossOrigin(origins = "*")
@@ -30,9 +33,6 @@ public class AuthController {
     @Autowired
     private TenantService tenantService;
     
-    @Autowired
-    private PasswordEncoder passwordEncoder;
-    
     @GetMapping("/test")
     public ResponseEntity<?> test() {
         return ResponseEntity.ok("Test endpoint working");
@@ -73,33 +73,33 @@ public class AuthController {
         }
     }
     
-    // Signup endpoint
+    // Signup endpoint; completes asynchronously so no request thread waits for the password hash
     @PostMapping("/signup")
-    public ResponseEntity<?> signup(@RequestBody SignupRequest signupRequest) {
+    public CompletableFuture<ResponseEntity<?>> signup(@RequestBody SignupRequest signupRequest) {
         try {
             System.out.println("Signup request received for email: " + signupRequest.getEmail());
             
             // Validate input
             if (signupRequest.getEmail() == null || signupRequest.getEmail().isEmpty()) {
                 System.out.println("Email is required");
-                return ResponseEntity.badRequest().body("Email is required");
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("Email is required"));
             }
             
             if (signupRequest.getPassword() == null || signupRequest.getPassword().isEmpty()) {
                 System.out.println("Password is required");
-                return ResponseEntity.badRequest().body("Password is required");
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("Password is required"));
             }
             
             if (signupRequest.getTenantName() == null || signupRequest.getTenantName().isEmpty()) {
                 System.out.println("Tenant name is required");
-                return ResponseEntity.badRequest().body("Tenant name is required");
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("Tenant name is required"));
             }
             
             // Extract tenant from email (before @)
             String[] emailParts = signupRequest.getEmail().split("@");
             if (emailParts.length < 2) {
                 System.out.println("Invalid email format");
-                return ResponseEntity.badRequest().body("Invalid email format");
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("Invalid email format"));
             }
             
             String tenantSlug = emailParts[1].split("\\.")[0]; // Extract "acme" from "acme.test"
@@ -123,57 +123,56 @@ public class AuthController {
             Optional<User> existingUser = userService.findByEmailAndTenantId(signupRequest.getEmail(), tenant.getId());
             if (existingUser.isPresent()) {
                 System.out.println("User already exists");
-                return ResponseEntity.badRequest().body("User already exists");
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("User already exists"));
             }
             
-            // Create new user
-            String encodedPassword = passwordEncoder.encode(signupRequest.getPassword());
-            User user = new User(signupRequest.getEmail(), encodedPassword, "MEMBER", tenant.getId());
-            user = userService.save(user);
-            System.out.println("Created new user: " + user.getEmail() + " with ID: " + user.getId());
-            
-            // Generate JWT token
-            System.out.println("Generating JWT token");
-            final String jwt = jwtUtil.generateToken(user.getEmail());
-            System.out.println("JWT token generated: " + jwt);
-            
-            LoginResponse response = new LoginResponse(
-                    jwt,
-                    user.getEmail(),
-                    user.getRole(),
-                    tenant.getSlug()
-            );
-            
-            System.out.println("Signup successful");
-            return ResponseEntity.ok(response);
+            // Create new user (UserService hashes the password on the hashing pool)
+            String tenantSlugForResponse = tenant.getSlug();
+            User newUser = new User(signupRequest.getEmail(), signupRequest.getPassword(), "MEMBER", tenant.getId());
+            return userService.saveAsync(newUser).<ResponseEntity<?>>thenApply(user -> {
+                System.out.println("Created new user: " + user.getEmail() + " with ID: " + user.getId());
+                
+                // Generate JWT token
+                System.out.println("Generating JWT token");
+                final String jwt = jwtUtil.generateToken(user.getEmail());
+                System.out.println("JWT token generated: " + jwt);
+                
+                LoginResponse response = new LoginResponse(
+                        jwt,
+                        user.getEmail(),
+                        user.getRole(),
+                        tenantSlugForResponse
+                );
+                
+                System.out.println("Signup successful");
+                return ResponseEntity.ok(response);
+            }).exceptionally(e -> failure("signup", e));
         } catch (Exception e) {
-            System.err.println("Internal server error in signup: " + e.getMessage());
-            e.printStackTrace();
-            return ResponseEntity.status(500).body("Internal server error: " + e.getMessage());
+            return CompletableFuture.completedFuture(failure("signup", e));
         }
     }
     
     @PostMapping("/login")
-    public ResponseEntity<?> login(@RequestBody LoginRequest loginRequest) {
+    public CompletableFuture<ResponseEntity<?>> login(@RequestBody LoginRequest loginRequest) {
         try {
             System.out.println("Login request received for email: " + loginRequest.getEmail());
             
             // Validate input
             if (loginRequest.getEmail() == null || loginRequest.getEmail().isEmpty()) {
                 System.out.println("Email is required");
-                return ResponseEntity.badRequest().body("Email is required");
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("Email is required"));
             }
             
             if (loginRequest.getPassword() == null || loginRequest.getPassword().isEmpty()) {
                 System.out.println("Password is required");
-                return ResponseEntity.badRequest().body("Password is required");
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("Password is required"));
             }
             
             // Extract tenant from email (before @)
             String[] emailParts = loginRequest.getEmail().split("@");
             if (emailParts.length < 2) {
                 System.out.println("Invalid email format");
-                return ResponseEntity.badRequest().body("Invalid email format");
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("Invalid email format"));
             }
             
             String tenantDomain = emailParts[1].split("\\.")[0]; // Extract "acme" from "acme.test"
@@ -187,7 +186,7 @@ public class AuthController {
             
             if (!tenantOpt.isPresent()) {
                 System.out.println("Tenant not found");
-                return ResponseEntity.badRequest().body("Tenant not found");
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("Tenant not found"));
             }
             
             System.out.println("Tenant found: " + tenantOpt.get().getName() + " with ID: " + tenantOpt.get().getId());
@@ -196,7 +195,7 @@ public class AuthController {
             
             if (!userOpt.isPresent()) {
                 System.out.println("User not found for email: " + loginRequest.getEmail() + " and tenant ID: " + tenantOpt.get().getId());
-                return ResponseEntity.badRequest().body("User not found");
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("User not found"));
             }
             
             User user = userOpt.get();
@@ -204,35 +203,47 @@ public class AuthController {
             
             // Check if password matches
             System.out.println("Checking password match");
-            System.out.println("Plain password: " + loginRequest.getPassword());
-            System.out.println("Encrypted password: " + user.getPassword());
-            boolean passwordMatches = passwordEncoder.matches(loginRequest.getPassword(), user.getPassword());
-            System.out.println("Password matches: " + passwordMatches);
-            
-            if (!passwordMatches) {
-                System.out.println("Invalid credentials");
-                return ResponseEntity.status(401).body("Invalid credentials");
-            }
-            
-            // Generate JWT token
-            System.out.println("Generating JWT token");
-            final String jwt = jwtUtil.generateToken(user.getEmail());
-            System.out.println("JWT token generated: " + jwt);
-            
-            LoginResponse response = new LoginResponse(
-                    jwt,
-                    user.getEmail(),
-                    user.getRole(),
-                    tenantOpt.get().getSlug()
-            );
-            
-            System.out.println("Login successful");
-            return ResponseEntity.ok(response);
+            String tenantSlug = tenantOpt.get().getSlug();
+            return userService.checkPasswordAsync(user, loginRequest.getPassword()).<ResponseEntity<?>>thenApply(passwordMatches -> {
+                System.out.println("Password matches: " + passwordMatches);
+                
+                if (!passwordMatches) {
+                    System.out.println("Invalid credentials");
+                    return ResponseEntity.status(401).body("Invalid credentials");
+                }
+                
+                userService.rehashPasswordIfNeeded(user, loginRequest.getPassword());
+                
+                // Generate JWT token
+                System.out.println("Generating JWT token");
+                final String jwt = jwtUtil.generateToken(user.getEmail());
+                System.out.println("JWT token generated: " + jwt);
+                
+                LoginResponse response = new LoginResponse(
+                        jwt,
+                        user.getEmail(),
+                        user.getRole(),
+                        tenantSlug
+                );
+                
+                System.out.println("Login successful");
+                return ResponseEntity.ok(response);
+            }).exceptionally(e -> failure("login", e));
         } catch (Exception e) {
-            System.err.println("Internal server error in login: " + e.getMessage());
-            e.printStackTrace();
-            return ResponseEntity.status(500).body("Internal server error: " + e.getMessage());
+            return CompletableFuture.completedFuture(failure("login", e));
+        }
+    }
+    
+    // 503 with Retry-After when password hashing is saturated, otherwise 500
+    private ResponseEntity<?> failure(String operation, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof PasswordHashingRejectedException) {
+            System.err.println("Rejected " + operation + ", password hashing pool saturated");
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "1").body("Server busy, please retry");
         }
+        System.err.println("Internal server error in " + operation + ": " + cause.getMessage());
+        cause.printStackTrace();
+        return ResponseEntity.status(500).body("Internal server error: " + cause.getMessage());
     }
     
     // Initialize test data
@@ -0,0 +1,56 @@
+package com.fred.notesapp.controller;
+
+/**
+ * A parsed single "bytes=" Range header against a body of known size. Multiple ranges and
+ * malformed headers are treated as no range, so the full body is served (RFC 9110 allows this).
+ */
+final class ByteRange {
+
+    final long start;
+    final long end; // inclusive; start - 1 for an empty body
+    final boolean partial;
+    final boolean satisfiable;
+
+    private ByteRange(long start, long end, boolean partial, boolean satisfiable) {
+        this.start = start;
+        this.end = end;
+        this.partial = partial;
+        this.satisfiable = satisfiable;
+    }
+
+    static ByteRange parse(String header, long size) {
+        ByteRange full = new ByteRange(0, size - 1, false, true);
+        if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+            return full;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        long start;
+        long end = size - 1;
+        try {
+            if (dash == 0) {
+                // Suffix range: the last N bytes
+                start = Math.max(0, size - Long.parseLong(spec.substring(1)));
+            } else if (dash > 0) {
+                start = Long.parseLong(spec.substring(0, dash));
+                if (dash < spec.length() - 1) {
+                    end = Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+                }
+            } else {
+                return full;
+            }
+        } catch (NumberFormatException e) {
+            return full;
+        }
+        boolean satisfiable = start < size && start <= end;
+        return new ByteRange(start, end, true, satisfiable);
+    }
+
+    long length() {
+        return Math.max(0, end - start + 1);
+    }
+
+    String contentRange(long size) {
+        return satisfiable ? "bytes " + start + "-" + end + "/" + size : "bytes */" + size;
+    }
+}
@@ -1,21 +1,53 @@
 package com.fred.notesapp.controller;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fred.notesapp.cache.NoteContentCache;
+import com.fred.notesapp.cache.NoteListCache;
 import com.fred.notesapp.dto.NoteRequest;
 import com.fred.notesapp.dto.NoteResponse;
+import com.fred.notesapp.dto.NoteRevisionResponse;
+import com.fred.notesapp.dto.TrashedNoteResponse;
+import com.fred.notesapp.limit.ConcurrencyLimitFilter;
 import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.NoteRevision;
 import com.fred.notesapp.model.User;
+import com.fred.notesapp.repository.NoteContentTooLargeException;
+import com.fred.notesapp.repository.NoteQuery;
+import com.fred.notesapp.repository.NoteQueryPendingException;
+import com.fred.notesapp.service.MarkdownRenderer;
+import com.fred.notesapp.service.NoteFacetService;
+import com.fred.notesapp.service.NoteOrderPendingException;
 import com.fred.notesapp.service.NoteService;
 import com.fred.notesapp.service.TenantService;
 import com.fred.notesapp.service.UserService;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.Principal;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
 @RestController
@@ -32,6 +64,24 @@ public class NoteController {
     @Autowired
     private TenantService tenantService;
     
+    @Autowired
+    private NoteFacetService noteFacetService;
+    
+    @Autowired
+    private MarkdownRenderer markdownRenderer;
+    
+    @Autowired
+    private NoteListCache noteListCache;
+    
+    @Autowired
+    private NoteContentCache noteContentCache;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @Value("${notes.list.page-size:50}")
+    private int pageSize;
+    
     // Create a note
     @PostMapping
     public ResponseEntity<?> createNote(@RequestBody NoteRequest noteRequest, Principal principal) {
@@ -63,23 +113,38 @@ public class NoteController {
                 user.getTenantId(),
                 user.getId()
         );
+        try {
+            applyTagsAndFolder(note, noteRequest);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
         
-        Note savedNote = noteService.save(note);
+        Note savedNote = noteService.save(note, user.getId());
         
         NoteResponse response = new NoteResponse(
                 savedNote.getId(),
                 savedNote.getTitle(),
                 savedNote.getContent(),
                 savedNote.getCreatedAt(),
-                savedNote.getUpdatedAt()
+                savedNote.getUpdatedAt(),
+                savedNote.getTags(),
+                savedNote.getFolder()
         );
         
-        return ResponseEntity.ok(response);
+        return ResponseEntity.ok().eTag(etagOf(savedNote)).body(response);
     }
     
-    // List all notes for current tenant
+    // List the current user's notes, optionally one page at a time
     @GetMapping
-    public ResponseEntity<?> getAllNotes(Principal principal) {
+    public ResponseEntity<?> getAllNotes(@RequestParam(required = false) Integer page,
+                                         @RequestParam(required = false) String tag,
+                                         @RequestParam(required = false) String folder,
+                                         @RequestParam(required = false) String q,
+                                         @RequestParam(required = false) String sort,
+                                         @RequestParam(required = false) String format,
+                                         @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+                                         Principal principal,
+                                         HttpServletRequest request) throws IOException {
         // Check if principal is null
         if (principal == null) {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
@@ -93,24 +158,139 @@ public class NoteController {
         
         User user = userOpt.get();
         
-        List<Note> notes = noteService.findByTenantIdAndUserId(user.getTenantId(), user.getId());
+        if (page != null && page < 0) {
+            return ResponseEntity.badRequest().body("page must be >= 0");
+        }
+        
+        if ((q != null || sort != null) && (tag != null || folder != null)) {
+            return ResponseEntity.badRequest().body("q and sort cannot be combined with tag or folder");
+        }
+        if (format != null && !"html".equals(format)) {
+            return ResponseEntity.badRequest().body("format must be html");
+        }
         
-        List<NoteResponse> response = notes.stream().map(note -> 
-                new NoteResponse(
+        // Anything but the manual order goes through the query language, which only accepts indexed shapes
+        boolean ordered = "position".equals(sort);
+        NoteQuery query = null;
+        String ownerId = user.getId();
+        if (q != null || (sort != null && !ordered)) {
+            if (ordered) {
+                return ResponseEntity.badRequest().body("sort=position cannot be combined with q");
+            }
+            try {
+                query = NoteQuery.parse(q, sort);
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(e.getMessage());
+            }
+            // Admins may list any user's notes in their tenant
+            if (query.getOwner() != null && !query.getOwner().equals(user.getId())) {
+                if (!"ADMIN".equals(user.getRole())) {
+                    return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied");
+                }
+                Optional<User> owner = userService.findById(query.getOwner());
+                if (!owner.isPresent() || !user.getTenantId().equals(owner.get().getTenantId())) {
+                    return ResponseEntity.status(HttpStatus.NOT_FOUND).body("User not found");
+                }
+                ownerId = query.getOwner();
+            }
+        }
+        
+        // Queried, filtered and manually ordered lists are not cached here; their indexes keep them cheap
+        if (query != null || tag != null || folder != null || sort != null) {
+            List<Note> notes;
+            try {
+                if (query != null) {
+                    notes = noteService.query(user.getTenantId(), ownerId, query, page, pageSize);
+                } else if (ordered) {
+                    notes = noteService.findOrderedPage(user.getTenantId(), user.getId(), page, pageSize);
+                } else if (tag != null || folder != null) {
+                    notes = noteService.findFiltered(user.getTenantId(), user.getId(),
+                            tag == null ? null : tag.trim(),
+                            folder == null ? null : noteFacetService.normalizeFolder(folder),
+                            folder == null, page, pageSize);
+                } else {
+                    notes = page == null
+                            ? noteService.findByTenantIdAndUserId(user.getTenantId(), user.getId())
+                            : noteService.findPageByTenantIdAndUserId(user.getTenantId(), user.getId(), page, pageSize);
+                }
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(e.getMessage());
+            } catch (NoteQueryPendingException e) {
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "60").body(e.getMessage());
+            }
+            return ResponseEntity.ok(notes.stream().map(note -> {
+                NoteResponse response = new NoteResponse(
                         note.getId(),
                         note.getTitle(),
                         note.getContent(),
                         note.getCreatedAt(),
-                        note.getUpdatedAt()
-                )
-        ).collect(Collectors.toList());
+                        note.getUpdatedAt(),
+                        note.getTags(),
+                        note.getFolder()
+                );
+                if (format != null) {
+                    response.setPreview(markdownRenderer.preview(note.getContent()));
+                }
+                return response;
+            }).collect(Collectors.toList()));
+        }
         
-        return ResponseEntity.ok(response);
+        // -1 caches the unpaged list
+        int cachePage = page == null ? -1 : page;
+        
+        // Serve the cached JSON bytes as-is while the user's generation is unchanged
+        NoteListCache.Page cached = noteListCache.get(user.getTenantId(), user.getId(), cachePage);
+        if (cached != null) {
+            ConcurrencyLimitFilter.skipLatencySample(request);
+        } else {
+            long generation = noteListCache.generation(user.getTenantId(), user.getId());
+            List<Note> notes = page == null
+                    ? noteService.findByTenantIdAndUserId(user.getTenantId(), user.getId())
+                    : noteService.findPageByTenantIdAndUserId(user.getTenantId(), user.getId(), page, pageSize);
+            
+            List<NoteResponse> response = notes.stream().map(note -> 
+                    new NoteResponse(
+                            note.getId(),
+                            note.getTitle(),
+                            note.getContent(),
+                            note.getCreatedAt(),
+                            note.getUpdatedAt(),
+                            note.getTags(),
+                            note.getFolder()
+                    )
+            ).collect(Collectors.toList());
+            
+            byte[] body = objectMapper.writeValueAsBytes(response);
+            cached = noteListCache.put(user.getTenantId(), user.getId(), cachePage, generation, body);
+        }
+        
+        if (format != null) {
+            // Previews are added to the cached page; they follow from its content, so its tag still identifies them
+            String etag = htmlEtagOf(cached.getETag());
+            if (ifNoneMatch != null && etagMatches(ifNoneMatch, etag, true)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+            }
+            ArrayNode notes = (ArrayNode) objectMapper.readTree(cached.getBody());
+            for (JsonNode note : notes) {
+                if (note.hasNonNull("content")) {
+                    ((ObjectNode) note).put("preview", markdownRenderer.preview(note.get("content").asText()));
+                }
+            }
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).eTag(etag).body(objectMapper.writeValueAsBytes(notes));
+        }
+        
+        if (ifNoneMatch != null && etagMatches(ifNoneMatch, cached.getETag(), true)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(cached.getETag()).build();
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).eTag(cached.getETag()).body(cached.getBody());
     }
     
     // Get a specific note
     @GetMapping("/{id}")
-    public ResponseEntity<?> getNote(@PathVariable String id, Principal principal) {
+    public ResponseEntity<?> getNote(@PathVariable String id,
+                                     @RequestParam(required = false) String format,
+                                     @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+                                     Principal principal) {
         // Check if principal is null
         if (principal == null) {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
@@ -124,7 +304,22 @@ public class NoteController {
         
         User user = userOpt.get();
         
-        Optional<Note> noteOpt = noteService.findById(id);
+        if (format != null && !"html".equals(format)) {
+            return ResponseEntity.badRequest().body("format must be html");
+        }
+        boolean html = format != null;
+        
+        // Revalidation is answered from the version index without loading the note body
+        if (ifNoneMatch != null) {
+            Optional<Note> version = noteService.findVersionById(id, user.getTenantId(), user.getId());
+            if (version.isPresent()
+                    && (version.get().getUserId().equals(user.getId()) || "ADMIN".equals(user.getRole()))
+                    && etagMatches(ifNoneMatch, etagOf(version.get(), html), true)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etagOf(version.get(), html)).build();
+            }
+        }
+        
+        Optional<Note> noteOpt = noteService.findById(id, user.getTenantId(), user.getId());
         if (!noteOpt.isPresent()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found");
         }
@@ -146,15 +341,255 @@ public class NoteController {
                 note.getTitle(),
                 note.getContent(),
                 note.getCreatedAt(),
-                note.getUpdatedAt()
+                note.getUpdatedAt(),
+                note.getTags(),
+                note.getFolder()
         );
         
+        if (html) {
+            if (note.isChunked()) {
+                return ResponseEntity.badRequest().body("Notes stored in chunks cannot be rendered; use /notes/" + id + "/content");
+            }
+            try {
+                response.setHtml(markdownRenderer.render(note.getContent()));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(e.getMessage());
+            }
+        }
+        
+        return ResponseEntity.ok().eTag(etagOf(note, html)).body(response);
+    }
+    
+    // Get a note's body as plain text, served from the off-heap content cache when possible
+    @GetMapping("/{id}/content")
+    public ResponseEntity<?> getNoteContent(@PathVariable String id,
+                                            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+                                            @RequestHeader(value = "Range", required = false) String range,
+                                            Principal principal,
+                                            HttpServletRequest request) {
+        // Check if principal is null
+        if (principal == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
+        }
+        
+        // Get user from principal
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found");
+        }
+        
+        User user = userOpt.get();
+        
+        // The version check and access check only need the index-only projection
+        Optional<Note> versionOpt = noteService.findVersionById(id, user.getTenantId(), user.getId());
+        if (!versionOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found");
+        }
+        
+        Note version = versionOpt.get();
+        
+        // Check if note belongs to user or user is admin
+        if (!version.getUserId().equals(user.getId()) && !"ADMIN".equals(user.getRole())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied");
+        }
+        
+        if (ifNoneMatch != null && etagMatches(ifNoneMatch, etagOf(version), true)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etagOf(version)).build();
+        }
+        
+        MediaType textUtf8 = new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8);
+        NoteContentCache.Handle cached = noteContentCache.acquire(id, versionOf(version));
+        if (cached != null) {
+            StreamingResponseBody body = out -> {
+                try {
+                    cached.writeTo(out);
+                } finally {
+                    cached.close();
+                }
+            };
+            // Also unpinned when the request times out or fails before the body has been written
+            WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(NoteContentCache.class.getName(),
+                    new CallableProcessingInterceptor() {
+                        @Override
+                        public <T> void afterCompletion(NativeWebRequest webRequest, Callable<T> task) {
+                            cached.close();
+                        }
+                    });
+            return ResponseEntity.ok()
+                    .eTag(etagOf(version))
+                    .contentType(textUtf8)
+                    .contentLength(cached.getLength())
+                    .body(body);
+        }
+        
+        Optional<Note> noteOpt = noteService.findById(id, user.getTenantId(), user.getId());
+        if (!noteOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found");
+        }
+        
+        Note note = noteOpt.get();
+        if (note.isChunked()) {
+            return chunkedContent(note, range, textUtf8);
+        }
+        
+        byte[] content = note.getContent() == null ? new byte[0] : note.getContent().getBytes(StandardCharsets.UTF_8);
+        noteContentCache.put(id, versionOf(note), content);
+        
+        return ResponseEntity.ok().eTag(etagOf(note)).contentType(textUtf8).body(content);
+    }
+    
+    // Replace a note's body by streaming the request body; large bodies are stored in chunks
+    @PutMapping("/{id}/content")
+    public ResponseEntity<?> putNoteContent(@PathVariable String id, InputStream body,
+                                            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+                                            Principal principal) throws IOException {
+        // Check if principal is null
+        if (principal == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
+        }
+        
+        // Get user from principal
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found");
+        }
+        
+        User user = userOpt.get();
+        
+        Optional<Note> noteOpt = noteService.findByIdForWrite(id, user.getTenantId());
+        if (!noteOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found");
+        }
+        
+        Note note = noteOpt.get();
+        
+        // Check if note belongs to user or user is admin
+        if (!note.getUserId().equals(user.getId()) && !"ADMIN".equals(user.getRole())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied");
+        }
+        
+        if (ifMatch != null && !etagMatches(ifMatch, etagOf(note), false)) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).eTag(etagOf(note)).body("Note has been modified");
+        }
+        
+        Note updatedNote;
+        try {
+            updatedNote = noteService.writeContent(note, body, user.getId(), requiresVersion(ifMatch) ? note.getVersion() : null);
+        } catch (NoteContentTooLargeException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(e.getMessage());
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body("Note has been modified");
+        }
+        
+        return ResponseEntity.ok().eTag(etagOf(updatedNote)).body("Note content updated");
+    }
+    
+    // List a note's revisions, newest first
+    @GetMapping("/{id}/revisions")
+    public ResponseEntity<?> getRevisions(@PathVariable String id, Principal principal) {
+        // Check if principal is null
+        if (principal == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
+        }
+        
+        // Get user from principal
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found");
+        }
+        
+        User user = userOpt.get();
+        
+        // Access only needs the note's owner, not its body
+        Optional<Note> noteOpt = noteService.findVersionById(id, user.getTenantId(), user.getId());
+        if (!noteOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found");
+        }
+        
+        Note note = noteOpt.get();
+        
+        // Check if note belongs to user or user is admin
+        if (!note.getUserId().equals(user.getId()) && !"ADMIN".equals(user.getRole())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied");
+        }
+        
+        List<NoteRevisionResponse> response = noteService.findRevisions(note).stream()
+                .map(revision -> new NoteRevisionResponse(
+                        revision.getRev(),
+                        revision.getTitle(),
+                        null,
+                        revision.getLength(),
+                        revision.getAuthorId(),
+                        revision.getCreatedAt()))
+                .collect(Collectors.toList());
+        
         return ResponseEntity.ok(response);
     }
     
+    // Get a note as it was at a given revision
+    @GetMapping("/{id}/revisions/{rev}")
+    public ResponseEntity<?> getRevision(@PathVariable String id, @PathVariable long rev,
+                                         @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+                                         Principal principal) {
+        // Check if principal is null
+        if (principal == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
+        }
+        
+        // Get user from principal
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found");
+        }
+        
+        User user = userOpt.get();
+        
+        Optional<Note> noteOpt = noteService.findVersionById(id, user.getTenantId(), user.getId());
+        if (!noteOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found");
+        }
+        
+        Note note = noteOpt.get();
+        
+        // Check if note belongs to user or user is admin
+        if (!note.getUserId().equals(user.getId()) && !"ADMIN".equals(user.getRole())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied");
+        }
+        
+        // Compaction removes old revisions, which must not keep answering 304 from a client's cache
+        if (!noteService.hasRevision(note, rev)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Revision not found");
+        }
+        
+        // Revisions never change, so the tag only depends on the number
+        String etag = "\"" + note.getId() + "-r" + rev + "\"";
+        if (ifNoneMatch != null && etagMatches(ifNoneMatch, etag, true)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        
+        Optional<NoteRevision> revisionOpt = noteService.findRevision(note, rev);
+        if (!revisionOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Revision not found");
+        }
+        
+        NoteRevision revision = revisionOpt.get();
+        NoteRevisionResponse response = new NoteRevisionResponse(
+                revision.getRev(),
+                revision.getTitle(),
+                revision.getContent(),
+                revision.getLength(),
+                revision.getAuthorId(),
+                revision.getCreatedAt()
+        );
+        
+        return ResponseEntity.ok().eTag(etag).body(response);
+    }
+    
     // Update a note
     @PutMapping("/{id}")
-    public ResponseEntity<?> updateNote(@PathVariable String id, @RequestBody NoteRequest noteRequest, Principal principal) {
+    public ResponseEntity<?> updateNote(@PathVariable String id, @RequestBody NoteRequest noteRequest,
+                                        @RequestHeader(value = "If-Match", required = false) String ifMatch,
+                                        Principal principal) {
         // Check if principal is null
         if (principal == null) {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
@@ -168,7 +603,7 @@ public class NoteController {
         
         User user = userOpt.get();
         
-        Optional<Note> noteOpt = noteService.findById(id);
+        Optional<Note> noteOpt = noteService.findByIdForWrite(id, user.getTenantId());
         if (!noteOpt.isPresent()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found");
         }
@@ -185,27 +620,47 @@ public class NoteController {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied");
         }
         
+        // Optimistic concurrency: only apply the update to the version the client last saw
+        if (ifMatch != null && !etagMatches(ifMatch, etagOf(note), false)) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).eTag(etagOf(note)).body("Note has been modified");
+        }
+        Long expectedVersion = requiresVersion(ifMatch) ? note.getVersion() : null;
+        
         // Update note
         note.setTitle(noteRequest.getTitle());
         note.setContent(noteRequest.getContent());
-        note.setUpdatedAt(LocalDateTime.now());
+        try {
+            applyTagsAndFolder(note, noteRequest);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+        note.setUpdatedAt(LocalDateTime.now(ZoneOffset.UTC));
         
-        Note updatedNote = noteService.update(note);
+        Note updatedNote;
+        try {
+            updatedNote = noteService.update(note, user.getId(), expectedVersion);
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body("Note has been modified");
+        }
         
         NoteResponse response = new NoteResponse(
                 updatedNote.getId(),
                 updatedNote.getTitle(),
                 updatedNote.getContent(),
                 updatedNote.getCreatedAt(),
-                updatedNote.getUpdatedAt()
+                updatedNote.getUpdatedAt(),
+                updatedNote.getTags(),
+                updatedNote.getFolder()
         );
         
-        return ResponseEntity.ok(response);
+        return ResponseEntity.ok().eTag(etagOf(updatedNote)).body(response);
     }
     
     // Delete a note
     @DeleteMapping("/{id}")
-    public ResponseEntity<?> deleteNote(@PathVariable String id, Principal principal) {
+    public ResponseEntity<?> deleteNote(@PathVariable String id,
+                                        @RequestHeader(value = "If-Match", required = false) String ifMatch,
+                                        Principal principal) {
         // Check if principal is null
         if (principal == null) {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
@@ -219,7 +674,7 @@ public class NoteController {
         
         User user = userOpt.get();
         
-        Optional<Note> noteOpt = noteService.findById(id);
+        Optional<Note> noteOpt = noteService.findByIdForWrite(id, user.getTenantId());
         if (!noteOpt.isPresent()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found");
         }
@@ -236,11 +691,300 @@ public class NoteController {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied");
         }
         
-        noteService.deleteById(id);
+        if (ifMatch != null && !etagMatches(ifMatch, etagOf(note), false)) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).eTag(etagOf(note)).body("Note has been modified");
+        }
+        
+        try {
+            noteService.delete(note, user.getId(), requiresVersion(ifMatch) ? note.getVersion() : null);
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body("Note has been modified");
+        }
         
         return ResponseEntity.ok().body("Note deleted successfully");
     }
     
+    // Delete all of a user's notes (the caller's own, or any user's in the tenant for admins)
+    @DeleteMapping
+    public ResponseEntity<?> deleteAllNotes(@RequestParam(required = false) String userId, Principal principal) {
+        // Check if principal is null
+        if (principal == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
+        }
+        
+        // Get user from principal
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found");
+        }
+        
+        User user = userOpt.get();
+        
+        String ownerId = userId == null ? user.getId() : userId;
+        if (!ownerId.equals(user.getId())) {
+            if (!"ADMIN".equals(user.getRole())) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied");
+            }
+            Optional<User> owner = userService.findById(ownerId);
+            if (!owner.isPresent() || !user.getTenantId().equals(owner.get().getTenantId())) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("User not found");
+            }
+        }
+        
+        long trashed = noteService.deleteAllForUser(user.getTenantId(), ownerId, user.getId());
+        return ResponseEntity.ok().body(trashed + " notes moved to trash");
+    }
+    
+    // Move a note in its owner's manual order: {"after": noteId}, or {"after": null} for the top
+    @PutMapping("/{id}/position")
+    public ResponseEntity<?> moveNote(@PathVariable String id, @RequestBody Map<String, String> request,
+                                      Principal principal) {
+        // Check if principal is null
+        if (principal == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
+        }
+        
+        // Get user from principal
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found");
+        }
+        
+        User user = userOpt.get();
+        
+        Optional<Note> noteOpt = noteService.findByIdForWrite(id, user.getTenantId());
+        if (!noteOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found");
+        }
+        
+        Note note = noteOpt.get();
+        
+        // Check if note belongs to user or user is admin
+        if (!note.getUserId().equals(user.getId()) && !"ADMIN".equals(user.getRole())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied");
+        }
+        
+        String position;
+        try {
+            position = noteService.move(note, request.get("after"));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Note has been moved or deleted concurrently");
+        } catch (NoteOrderPendingException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "10").body(e.getMessage());
+        }
+        
+        Map<String, String> response = new LinkedHashMap<>();
+        response.put("id", note.getId());
+        response.put("position", position);
+        return ResponseEntity.ok(response);
+    }
+    
+    // Tag and folder counts of the current user's notes, most used first
+    @GetMapping("/facets")
+    public ResponseEntity<?> getFacets(Principal principal) {
+        // Check if principal is null
+        if (principal == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
+        }
+        
+        // Get user from principal
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found");
+        }
+        
+        User user = userOpt.get();
+        
+        Map<String, Map<String, Long>> facets = noteService.findFacets(user.getTenantId(), user.getId());
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("tags", facets.get(NoteFacetService.TAG));
+        response.put("folders", facets.get(NoteFacetService.FOLDER));
+        return ResponseEntity.ok(response);
+    }
+    
+    // Move one of the current user's folders, including its subfolders; "/" as the target moves it to the top level
+    @PostMapping("/folders/move")
+    public ResponseEntity<?> moveFolder(@RequestBody Map<String, String> request, Principal principal) {
+        // Check if principal is null
+        if (principal == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
+        }
+        
+        // Get user from principal
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found");
+        }
+        
+        User user = userOpt.get();
+        
+        if (request.get("from") == null || request.get("to") == null) {
+            return ResponseEntity.badRequest().body("from and to are required");
+        }
+        
+        long moved;
+        try {
+            String from = noteFacetService.normalizeFolder(request.get("from"));
+            if (from == null) {
+                return ResponseEntity.badRequest().body("The top level cannot be moved");
+            }
+            moved = noteService.moveFolder(user.getTenantId(), user.getId(), from,
+                    noteFacetService.normalizeFolder(request.get("to")));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+        return ResponseEntity.ok().body(moved + " notes moved");
+    }
+    
+    // List the current user's trashed notes, most recently deleted first
+    @GetMapping("/trash")
+    public ResponseEntity<?> getTrash(Principal principal) {
+        // Check if principal is null
+        if (principal == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
+        }
+        
+        // Get user from principal
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found");
+        }
+        
+        User user = userOpt.get();
+        
+        List<TrashedNoteResponse> response = noteService.findTrash(user.getTenantId(), user.getId()).stream()
+                .map(note -> new TrashedNoteResponse(
+                        note.getId(),
+                        note.getTitle(),
+                        note.getCreatedAt(),
+                        note.getUpdatedAt(),
+                        note.getDeletedAt()))
+                .collect(Collectors.toList());
+        
+        return ResponseEntity.ok(response);
+    }
+    
+    // Move a note back out of the trash
+    @PostMapping("/{id}/restore")
+    public ResponseEntity<?> restoreNote(@PathVariable String id, Principal principal) {
+        // Check if principal is null
+        if (principal == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Authentication required");
+        }
+        
+        // Get user from principal
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), getTenantIdFromEmail(principal.getName()));
+        if (!userOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found");
+        }
+        
+        User user = userOpt.get();
+        
+        Optional<Note> noteOpt = noteService.findTrashedById(id, user.getTenantId());
+        if (!noteOpt.isPresent()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found in trash");
+        }
+        
+        Note note = noteOpt.get();
+        
+        // Check if note belongs to user or user is admin
+        if (!note.getUserId().equals(user.getId()) && !"ADMIN".equals(user.getRole())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied");
+        }
+        
+        // A restored note counts against its owner's plan limit again
+        String ownerRole = note.getUserId().equals(user.getId()) ? user.getRole()
+                : userService.findById(note.getUserId()).map(User::getRole).orElse("USER");
+        if (noteService.isNoteLimitReached(note.getTenantId(), note.getUserId(), ownerRole)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Note limit reached. Upgrade to PRO plan to restore more notes.");
+        }
+        
+        if (!noteService.restore(note, user.getId())) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Note not found in trash");
+        }
+        
+        return ResponseEntity.ok().body("Note restored successfully");
+    }
+    
+    // Streams a chunked note body, honouring a single "bytes=" range
+    private ResponseEntity<?> chunkedContent(Note note, String range, MediaType contentType) {
+        long size = note.getContentSize();
+        ByteRange bytes = ByteRange.parse(range, size);
+        if (!bytes.satisfiable) {
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, bytes.contentRange(size))
+                    .build();
+        }
+        
+        StreamingResponseBody body = out -> {
+            if (bytes.length() > 0) {
+                noteService.copyChunkedContent(note, bytes.start, bytes.end, out);
+            }
+        };
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(bytes.partial ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
+                .eTag(etagOf(note))
+                .contentType(contentType)
+                .contentLength(bytes.length())
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (bytes.partial) {
+            builder.header(HttpHeaders.CONTENT_RANGE, bytes.contentRange(size));
+        }
+        return builder.body(body);
+    }
+    
+    // Tags and folder left null in the request are kept as they are; "/" moves the note to the top level
+    private void applyTagsAndFolder(Note note, NoteRequest noteRequest) {
+        if (noteRequest.getTags() != null) {
+            note.setTags(noteFacetService.normalizeTags(noteRequest.getTags()));
+        }
+        if (noteRequest.getFolder() != null) {
+            note.setFolder(noteFacetService.normalizeFolder(noteRequest.getFolder()));
+        }
+    }
+    
+    // Strong ETag from the note's identity and version, which every visible change increments
+    private static String etagOf(Note note) {
+        return "\"" + note.getId() + "-" + Long.toHexString(versionOf(note)) + "\"";
+    }
+    
+    // The rendered representation is a different body, so it gets its own tag
+    private static String etagOf(Note note, boolean html) {
+        return html ? "\"" + note.getId() + "-" + Long.toHexString(versionOf(note)) + "-html\"" : etagOf(note);
+    }
+    
+    // A cached list page's tag, for the same page with previews
+    private static String htmlEtagOf(String etag) {
+        return etag.substring(0, etag.length() - 1) + "-html\"";
+    }
+    
+    private static long versionOf(Note note) {
+        return note.getVersion();
+    }
+    
+    // If-None-Match uses weak comparison, If-Match strong (RFC 9110)
+    private static boolean etagMatches(String header, String etag, boolean weak) {
+        for (String candidate : header.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (weak && tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // "If-Match: *" only requires the note to exist, not a particular version
+    private static boolean requiresVersion(String ifMatch) {
+        return ifMatch != null && !ifMatch.trim().equals("*");
+    }
+    
     private String getTenantIdFromEmail(String email) {
         String[] emailParts = email.split("@");
         if (emailParts.length < 2) {
@@ -1,7 +1,10 @@
 package com.fred.notesapp.controller;
 
+import com.fred.notesapp.cache.InvalidationBus;
+import com.fred.notesapp.cache.InvalidationEvent;
 import com.fred.notesapp.model.Tenant;
 import com.fred.notesapp.model.User;
+import com.fred.notesapp.service.NotePartitionService;
 import com.fred.notesapp.service.TenantService;
 import com.fred.notesapp.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,6 +12,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.security.Principal;
+import java.util.Map;
 import java.util.Optional;
 
 @RestController
@@ -22,6 +26,12 @@ public class TenantController {
     @Autowired
     private UserService userService;
     
+    @Autowired
+    private InvalidationBus invalidationBus;
+    
+    @Autowired
+    private NotePartitionService notePartitionService;
+    
     // Upgrade tenant plan
     @PostMapping("/{slug}/upgrade")
     public ResponseEntity<?> upgradeTenant(@PathVariable String slug, Principal principal) {
@@ -54,7 +64,63 @@ public class TenantController {
         // Upgrade plan
         tenant.setPlan("PRO");
         tenantService.save(tenant);
+        invalidationBus.publish(InvalidationEvent.of(InvalidationEvent.Type.TENANT, slug));
         
         return ResponseEntity.ok().body("Tenant upgraded to PRO plan successfully");
     }
+    
+    // Show where the tenant's notes are stored
+    @GetMapping("/{slug}/partition")
+    public ResponseEntity<?> getPartition(@PathVariable String slug, Principal principal) {
+        ResponseEntity<?> denied = checkAdmin(slug, principal);
+        if (denied != null) {
+            return denied;
+        }
+        Tenant tenant = tenantService.findBySlug(slug).get();
+        return ResponseEntity.ok(notePartitionService.getPartition(tenant.getId()));
+    }
+    
+    // Move the tenant's notes to another partition online.
+    // Body: {"database": "<optional>", "collection": "<name>"}; omit both for the shared collection.
+    @PostMapping("/{slug}/partition")
+    public ResponseEntity<?> moveTenant(@PathVariable String slug, @RequestBody Map<String, String> body, Principal principal) {
+        ResponseEntity<?> denied = checkAdmin(slug, principal);
+        if (denied != null) {
+            return denied;
+        }
+        Tenant tenant = tenantService.findBySlug(slug).get();
+        
+        String database = body.get("database");
+        String collection = body.getOrDefault("collection", "notes");
+        if (!collection.matches("[A-Za-z0-9_]+") || (database != null && !database.matches("[A-Za-z0-9_]+"))) {
+            return ResponseEntity.badRequest().body("Invalid database or collection name");
+        }
+        
+        if (!notePartitionService.startMove(tenant.getId(), database, collection)) {
+            return ResponseEntity.status(409).body("A move is already in progress for this tenant");
+        }
+        return ResponseEntity.accepted().body("Partition move started");
+    }
+    
+    // Returns an error response unless the principal is an admin of the tenant
+    private ResponseEntity<?> checkAdmin(String slug, Principal principal) {
+        if (principal == null) {
+            return ResponseEntity.status(401).body("Authentication required");
+        }
+        
+        Optional<Tenant> tenantOpt = tenantService.findBySlug(slug);
+        if (!tenantOpt.isPresent()) {
+            return ResponseEntity.status(404).body("Tenant not found");
+        }
+        
+        Optional<User> userOpt = userService.findByEmailAndTenantId(principal.getName(), tenantOpt.get().getId());
+        if (!userOpt.isPresent()) {
+            return ResponseEntity.status(401).body("User not found");
+        }
+        
+        if (!"ADMIN".equals(userOpt.get().getRole())) {
+            return ResponseEntity.status(403).body("Only admins can manage note storage");
+        }
+        return null;
+    }
 }
\ No newline at end of file
@@ -1,8 +1,12 @@
 package com.fred.notesapp.dto;
 
+import java.util.List;
+
 public class NoteRequest {
     private String title;
     private String content;
+    private List<String> tags; // null leaves a note's tags unchanged on update
+    private String folder;
     
     // Constructors
     public NoteRequest() {}
@@ -28,4 +32,20 @@ public class NoteRequest {
     public void setContent(String content) {
         this.content = content;
     }
+    
+    public List<String> getTags() {
+        return tags;
+    }
+    
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
+    
+    public String getFolder() {
+        return folder;
+    }
+    
+    public void setFolder(String folder) {
+        this.folder = folder;
+    }
 }
\ No newline at end of file
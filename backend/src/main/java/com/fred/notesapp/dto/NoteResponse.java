@@ -1,6 +1,9 @@
 package com.fred.notesapp.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.time.LocalDateTime;
+import java.util.List;
 
 public class NoteResponse {
     private String id;
@@ -8,6 +11,14 @@ public class NoteResponse {
     private String content;
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
+    private List<String> tags;
+    private String folder;
+    
+    // Sanitised HTML of the content and of its start; only sent when requested with format=html
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String html;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String preview;
     
     // Constructors
     public NoteResponse() {}
@@ -20,6 +31,13 @@ public class NoteResponse {
         this.updatedAt = updatedAt;
     }
     
+    public NoteResponse(String id, String title, String content, LocalDateTime createdAt, LocalDateTime updatedAt,
+                        List<String> tags, String folder) {
+        this(id, title, content, createdAt, updatedAt);
+        this.tags = tags;
+        this.folder = folder;
+    }
+    
     // Getters and Setters
     public String getId() {
         return id;
@@ -60,4 +78,36 @@ public class NoteResponse {
     public void setUpdatedAt(LocalDateTime updatedAt) {
         this.updatedAt = updatedAt;
     }
+    
+    public List<String> getTags() {
+        return tags;
+    }
+    
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
+    
+    public String getFolder() {
+        return folder;
+    }
+    
+    public void setFolder(String folder) {
+        this.folder = folder;
+    }
+    
+    public String getHtml() {
+        return html;
+    }
+    
+    public void setHtml(String html) {
+        this.html = html;
+    }
+    
+    public String getPreview() {
+        return preview;
+    }
+    
+    public void setPreview(String preview) {
+        this.preview = preview;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+package com.fred.notesapp.dto;
+
+import java.time.LocalDateTime;
+
+public class NoteRevisionResponse {
+    private long rev;
+    private String title;
+    private String content; // only when a single revision is requested
+    private int length;
+    private String authorId;
+    private LocalDateTime createdAt;
+    
+    // Constructors
+    public NoteRevisionResponse() {}
+    
+    public NoteRevisionResponse(long rev, String title, String content, int length, String authorId, LocalDateTime createdAt) {
+        this.rev = rev;
+        this.title = title;
+        this.content = content;
+        this.length = length;
+        this.authorId = authorId;
+        this.createdAt = createdAt;
+    }
+    
+    // Getters and Setters
+    public long getRev() {
+        return rev;
+    }
+    
+    public void setRev(long rev) {
+        this.rev = rev;
+    }
+    
+    public String getTitle() {
+        return title;
+    }
+    
+    public void setTitle(String title) {
+        this.title = title;
+    }
+    
+    public String getContent() {
+        return content;
+    }
+    
+    public void setContent(String content) {
+        this.content = content;
+    }
+    
+    public int getLength() {
+        return length;
+    }
+    
+    public void setLength(int length) {
+        this.length = length;
+    }
+    
+    public String getAuthorId() {
+        return authorId;
+    }
+    
+    public void setAuthorId(String authorId) {
+        this.authorId = authorId;
+    }
+    
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+    
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -0,0 +1,117 @@
+package com.fred.notesapp.limit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency limit driven by the latency gradient.
+ *
+ * Two moving averages of request latency are kept: a short window that follows the
+ * current load, and a long window that stands in for normal latency, whatever mix of
+ * fast and slow requests the route carries. While the short average is within
+ * {@code tolerance} of the long one the limit grows by about sqrt(limit) per sample,
+ * as long as the limiter is actually being used; as the short average climbs past it
+ * the limit shrinks in proportion, by at most half. Individual slow requests only move
+ * the short average a little, so a mixed workload does not cut the limit; a backend
+ * that is queueing moves every sample and does. Failed requests cut the limit by
+ * {@code backoffRatio}.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    // Smoothing factors of roughly 10 and 500 samples, and how fast the limit follows its target
+    private static final double SHORT_WINDOW = 0.1;
+    private static final double LONG_WINDOW = 0.002;
+    private static final double LIMIT_SMOOTHING = 0.2;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoffRatio;
+
+    private final AtomicInteger inflight = new AtomicInteger();
+    private volatile int limit;
+
+    // Guarded by this
+    private double estimatedLimit;
+    private double shortRttNanos = Double.NaN;
+    private double longRttNanos = Double.NaN;
+
+    public AdaptiveConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit,
+                                      double tolerance, double backoffRatio) {
+        this.name = name;
+        this.limit = initialLimit;
+        this.estimatedLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoffRatio = backoffRatio;
+    }
+
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inflight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inflight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a permit and feeds the request's latency into the limit.
+     *
+     * @param failed true if the request errored (treated like an overload signal)
+     */
+    public void release(long latencyNanos, boolean failed) {
+        int inflightAtRelease = inflight.getAndDecrement();
+        synchronized (this) {
+            if (failed) {
+                setLimit(estimatedLimit * backoffRatio);
+                return;
+            }
+            if (Double.isNaN(shortRttNanos)) {
+                shortRttNanos = latencyNanos;
+                longRttNanos = latencyNanos;
+                return;
+            }
+            shortRttNanos += (latencyNanos - shortRttNanos) * SHORT_WINDOW;
+            longRttNanos += (latencyNanos - longRttNanos) * LONG_WINDOW;
+            // After an overload the long average lags behind the recovery; let it catch up quickly
+            if (longRttNanos > shortRttNanos * 2) {
+                longRttNanos *= 0.95;
+            }
+
+            double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRttNanos / shortRttNanos));
+            double target = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            // Do not grow a limit the traffic is not using
+            if (inflightAtRelease * 2 < estimatedLimit) {
+                target = Math.min(target, estimatedLimit);
+            }
+            setLimit(estimatedLimit * (1 - LIMIT_SMOOTHING) + target * LIMIT_SMOOTHING);
+        }
+    }
+
+    // Returns a permit without a latency sample, for responses that did not touch the backend
+    public void release() {
+        inflight.decrementAndGet();
+    }
+
+    private void setLimit(double newLimit) {
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+}
@@ -0,0 +1,180 @@
+package com.fred.notesapp.limit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sheds load in front of the note endpoints when MongoDB slows down.
+ *
+ * Reads and writes under /notes each get their own adaptive limit, and /login has a
+ * separate limiter so a note backlog can never take away login capacity. Requests over
+ * the limit fail fast with 503 instead of waiting in Tomcat's queue.
+ *
+ * Responses that never reached MongoDB (304s, and anything a handler marks with
+ * {@link #skipLatencySample}) release their permit without a latency sample, so fast
+ * cache hits do not drag the learned latency down. Async requests hold their permit
+ * until the response completes.
+ */
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE - 10)
+public class ConcurrencyLimitFilter extends OncePerRequestFilter {
+
+    private static final String SKIP_SAMPLE_ATTRIBUTE = ConcurrencyLimitFilter.class.getName() + ".skipSample";
+
+    // Called by handlers that answered from a cache
+    public static void skipLatencySample(HttpServletRequest request) {
+        request.setAttribute(SKIP_SAMPLE_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${concurrency.enabled:true}")
+    private boolean enabled;
+
+    @Value("${concurrency.notes.read.initial-limit:100}")
+    private int readInitialLimit;
+
+    @Value("${concurrency.notes.read.max-limit:400}")
+    private int readMaxLimit;
+
+    @Value("${concurrency.notes.write.initial-limit:40}")
+    private int writeInitialLimit;
+
+    @Value("${concurrency.notes.write.max-limit:200}")
+    private int writeMaxLimit;
+
+    @Value("${concurrency.login.limit:20}")
+    private int loginLimit;
+
+    @Value("${concurrency.min-limit:4}")
+    private int minLimit;
+
+    @Value("${concurrency.latency-tolerance:2.0}")
+    private double latencyTolerance;
+
+    @Value("${concurrency.backoff-ratio:0.9}")
+    private double backoffRatio;
+
+    private final Map<String, Counter> rejectedCounters = new HashMap<>();
+    private AdaptiveConcurrencyLimiter readLimiter;
+    private AdaptiveConcurrencyLimiter writeLimiter;
+    private AdaptiveConcurrencyLimiter loginLimiter;
+
+    @PostConstruct
+    public void init() {
+        readLimiter = new AdaptiveConcurrencyLimiter("notes-read", readInitialLimit, minLimit, readMaxLimit,
+                latencyTolerance, backoffRatio);
+        writeLimiter = new AdaptiveConcurrencyLimiter("notes-write", writeInitialLimit, minLimit, writeMaxLimit,
+                latencyTolerance, backoffRatio);
+        // Login capacity is reserved: it adapts downwards but never grows past its configured share
+        loginLimiter = new AdaptiveConcurrencyLimiter("login", loginLimit, 1, loginLimit,
+                latencyTolerance, backoffRatio);
+
+        for (AdaptiveConcurrencyLimiter limiter : new AdaptiveConcurrencyLimiter[]{readLimiter, writeLimiter, loginLimiter}) {
+            Gauge.builder("concurrency.limit", limiter, AdaptiveConcurrencyLimiter::getLimit)
+                    .tag("route", limiter.getName())
+                    .register(meterRegistry);
+            Gauge.builder("concurrency.inflight", limiter, AdaptiveConcurrencyLimiter::getInflight)
+                    .tag("route", limiter.getName())
+                    .register(meterRegistry);
+            rejectedCounters.put(limiter.getName(), Counter.builder("concurrency.rejected")
+                    .tag("route", limiter.getName())
+                    .register(meterRegistry));
+        }
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !enabled || limiterFor(request) == null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        AdaptiveConcurrencyLimiter limiter = limiterFor(request);
+        if (!limiter.tryAcquire()) {
+            rejectedCounters.get(limiter.getName()).increment();
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "1");
+            response.getWriter().write("Server busy, please retry");
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean released = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        release(limiter, request, response, start, false);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                release(limiter, request, response, start, false);
+            }
+            released = true;
+        } finally {
+            if (!released) {
+                release(limiter, request, response, start, true);
+            }
+        }
+    }
+
+    private static void release(AdaptiveConcurrencyLimiter limiter, HttpServletRequest request,
+                                HttpServletResponse response, long start, boolean threw) {
+        int status = response.getStatus();
+        if (!threw && (status == HttpServletResponse.SC_NOT_MODIFIED || request.getAttribute(SKIP_SAMPLE_ATTRIBUTE) != null)) {
+            limiter.release();
+            return;
+        }
+        limiter.release(System.nanoTime() - start, threw || status >= 500);
+    }
+
+    private AdaptiveConcurrencyLimiter limiterFor(HttpServletRequest request) {
+        String uri = request.getRequestURI();
+        String method = request.getMethod();
+        if ("OPTIONS".equals(method)) {
+            return null;
+        }
+        if (uri.equals("/login")) {
+            return loginLimiter;
+        }
+        if (uri.equals("/notes") || uri.startsWith("/notes/")) {
+            return "GET".equals(method) || "HEAD".equals(method) ? readLimiter : writeLimiter;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,207 @@
+package com.fred.notesapp.limit;
+
+import com.fred.notesapp.service.TenantPlanCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-tenant bulkhead for the note and tenant controllers.
+ *
+ * Request work runs only while holding one of a fixed number of shared execution slots.
+ * Requests that cannot get a slot straight away wait in their tenant's bounded queue and
+ * are admitted by {@link TenantFairScheduler} in weighted-fair order (PRO tenants weigh
+ * more than FREE ones), so one tenant's burst queues behind its own requests instead of
+ * everyone else's. The total queued across tenants is capped as well, since every
+ * queued request holds a Tomcat thread. This runs before the concurrency limiter so
+ * queue wait is not mistaken for backend latency.
+ *
+ * Queue wait is timed per plan for every request, and per tenant for requests that had
+ * to queue. Only a bounded number of tenants get their own series, the rest share
+ * tenant="other", and tenants that stop queueing give their series up to others.
+ */
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE - 20)
+public class TenantBulkheadFilter extends OncePerRequestFilter {
+
+    @Autowired
+    private TenantPlanCache tenantPlanCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${bulkhead.enabled:true}")
+    private boolean enabled;
+
+    @Value("${bulkhead.slots:100}")
+    private int slots;
+
+    @Value("${bulkhead.max-queue-depth-per-tenant:50}")
+    private int maxQueueDepth;
+
+    // Keep well below Tomcat's thread pool (200 by default) minus the slots
+    @Value("${bulkhead.max-queued-total:80}")
+    private int maxQueuedTotal;
+
+    @Value("${bulkhead.max-wait-ms:2000}")
+    private long maxWaitMs;
+
+    @Value("${bulkhead.weight.free:1}")
+    private double freeWeight;
+
+    @Value("${bulkhead.weight.pro:4}")
+    private double proWeight;
+
+    @Value("${bulkhead.metrics.max-tenants:20}")
+    private int maxTaggedTenants;
+
+    private TenantFairScheduler scheduler;
+    private Counter rejectedCounter;
+    // Every request, by plan
+    private Timer freeQueueWait;
+    private Timer proQueueWait;
+    // Queued requests, by tenant up to maxTaggedTenants
+    private Timer otherTenantsQueueWait;
+    private final Map<String, TenantWait> tenantQueueWaits = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        scheduler = new TenantFairScheduler(slots, maxQueueDepth, maxQueuedTotal);
+        rejectedCounter = Counter.builder("bulkhead.rejected").register(meterRegistry);
+        freeQueueWait = queueWaitTimer("FREE");
+        proQueueWait = queueWaitTimer("PRO");
+        otherTenantsQueueWait = tenantQueueWaitTimer("other");
+        Gauge.builder("bulkhead.queued", scheduler, TenantFairScheduler::getQueuedCount).register(meterRegistry);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if (!enabled || "OPTIONS".equals(request.getMethod())) {
+            return true;
+        }
+        String uri = request.getRequestURI();
+        return !(uri.equals("/notes") || uri.startsWith("/notes/") || uri.startsWith("/tenants/"));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String tenantSlug = authentication == null ? null
+                : TenantPlanCache.slugFromEmail(authentication.getName()).orElse(null);
+        if (tenantSlug == null) {
+            // Unauthenticated requests are rejected by the controllers without doing any work
+            chain.doFilter(request, response);
+            return;
+        }
+
+        boolean pro = "PRO".equals(tenantPlanCache.getPlan(tenantSlug));
+        double weight = pro ? proWeight : freeWeight;
+        long enqueuedAt = System.nanoTime();
+        TenantFairScheduler.Outcome outcome = TenantFairScheduler.Outcome.ACQUIRED;
+        boolean queued = !scheduler.tryAcquire();
+        if (queued) {
+            try {
+                outcome = scheduler.acquire(tenantSlug, weight, TimeUnit.MILLISECONDS.toNanos(maxWaitMs));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+        }
+        long waited = System.nanoTime() - enqueuedAt;
+        (pro ? proQueueWait : freeQueueWait).record(waited, TimeUnit.NANOSECONDS);
+        if (queued) {
+            tenantQueueWait(tenantSlug).record(waited, TimeUnit.NANOSECONDS);
+        }
+
+        if (outcome != TenantFairScheduler.Outcome.ACQUIRED) {
+            rejectedCounter.increment();
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "1");
+            response.getWriter().write("Too many requests queued for this tenant, please retry");
+            return;
+        }
+
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            scheduler.release();
+        }
+    }
+
+    /**
+     * Frees the series of tenants that have not queued since the last run, so the tagged
+     * tenants follow whoever is queueing now.
+     */
+    @Scheduled(fixedDelayString = "${bulkhead.metrics.tenant-idle-ms:600000}",
+            initialDelayString = "${bulkhead.metrics.tenant-idle-ms:600000}")
+    public void evictIdleTenants() {
+        tenantQueueWaits.entrySet().removeIf(entry -> {
+            TenantWait wait = entry.getValue();
+            long count = wait.timer.count();
+            if (count != wait.countAtLastRun) {
+                wait.countAtLastRun = count;
+                return false;
+            }
+            meterRegistry.remove(wait.timer);
+            return true;
+        });
+    }
+
+    private Timer tenantQueueWait(String tenantSlug) {
+        TenantWait wait = tenantQueueWaits.get(tenantSlug);
+        if (wait != null) {
+            return wait.timer;
+        }
+        synchronized (tenantQueueWaits) {
+            if (tenantQueueWaits.size() >= maxTaggedTenants) {
+                return otherTenantsQueueWait;
+            }
+            return tenantQueueWaits.computeIfAbsent(tenantSlug,
+                    tenant -> new TenantWait(tenantQueueWaitTimer(tenant))).timer;
+        }
+    }
+
+    private Timer tenantQueueWaitTimer(String tenant) {
+        return Timer.builder("bulkhead.tenant.queue.wait")
+                .tag("tenant", tenant)
+                .register(meterRegistry);
+    }
+
+    private Timer queueWaitTimer(String plan) {
+        return Timer.builder("bulkhead.queue.wait")
+                .tag("plan", plan)
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+    }
+
+    private static final class TenantWait {
+        final Timer timer;
+        long countAtLastRun;
+
+        TenantWait(Timer timer) {
+            this.timer = timer;
+        }
+    }
+}
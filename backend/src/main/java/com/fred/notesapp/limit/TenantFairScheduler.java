@@ -0,0 +1,176 @@
+package com.fred.notesapp.limit;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out a fixed number of execution slots to tenants using start-time fair queueing.
+ *
+ * Every tenant has its own bounded queue. A waiter is tagged with a virtual finish time
+ * {@code max(virtualTime, tenant's last finish) + 1/weight}, and a freed slot always goes to
+ * the waiter with the smallest tag, so over time each busy tenant receives slots in
+ * proportion to its weight no matter how many requests it has queued.
+ *
+ * Waiters block their (request) thread, so the total across all tenants is bounded too:
+ * many tenants each under their own depth must not be able to occupy every server thread.
+ */
+public class TenantFairScheduler {
+
+    private final int maxQueueDepth;
+    private final int maxTotalQueued;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>((a, b) -> {
+        int byTag = Double.compare(a.finishTag, b.finishTag);
+        return byTag != 0 ? byTag : Long.compare(a.sequence, b.sequence);
+    });
+    private final Map<String, TenantState> tenants = new HashMap<>();
+
+    // Guarded by lock
+    private int availableSlots;
+    private double virtualTime;
+    private long sequence;
+
+    public TenantFairScheduler(int slots, int maxQueueDepth, int maxTotalQueued) {
+        this.availableSlots = slots;
+        this.maxQueueDepth = maxQueueDepth;
+        this.maxTotalQueued = maxTotalQueued;
+    }
+
+    public enum Outcome { ACQUIRED, QUEUE_FULL, TIMED_OUT }
+
+    /**
+     * Takes a slot only if one is free and nobody is waiting for it.
+     * A successful acquire must be paired with {@link #release()}.
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (availableSlots > 0 && waiters.isEmpty()) {
+                availableSlots--;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for an execution slot on behalf of {@code tenant}.
+     * A successful acquire must be paired with {@link #release()}.
+     */
+    public Outcome acquire(String tenant, double weight, long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            if (availableSlots > 0 && waiters.isEmpty()) {
+                availableSlots--;
+                return Outcome.ACQUIRED;
+            }
+
+            if (waiters.size() >= maxTotalQueued) {
+                return Outcome.QUEUE_FULL;
+            }
+            TenantState state = tenants.computeIfAbsent(tenant, t -> new TenantState());
+            if (state.queued.size() >= maxQueueDepth) {
+                return Outcome.QUEUE_FULL;
+            }
+
+            Waiter waiter = new Waiter(tenant, lock.newCondition());
+            waiter.startTag = Math.max(virtualTime, state.lastFinishTag);
+            waiter.finishTag = waiter.startTag + 1.0 / weight;
+            waiter.sequence = sequence++;
+            state.lastFinishTag = waiter.finishTag;
+            state.queued.addLast(waiter);
+            waiters.add(waiter);
+
+            long remaining = timeoutNanos;
+            while (!waiter.granted) {
+                if (remaining <= 0) {
+                    remove(waiter);
+                    return Outcome.TIMED_OUT;
+                }
+                try {
+                    remaining = waiter.condition.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    if (waiter.granted) {
+                        releaseLocked();
+                    } else {
+                        remove(waiter);
+                    }
+                    throw e;
+                }
+            }
+            return Outcome.ACQUIRED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            releaseLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseLocked() {
+        Waiter next = waiters.poll();
+        if (next == null) {
+            availableSlots++;
+            return;
+        }
+        TenantState state = tenants.get(next.tenant);
+        state.queued.remove(next);
+        if (state.queued.isEmpty()) {
+            tenants.remove(next.tenant);
+        }
+        virtualTime = next.startTag;
+        next.granted = true;
+        next.condition.signal();
+    }
+
+    private void remove(Waiter waiter) {
+        waiters.remove(waiter);
+        TenantState state = tenants.get(waiter.tenant);
+        if (state != null) {
+            state.queued.remove(waiter);
+            if (state.queued.isEmpty()) {
+                tenants.remove(waiter.tenant);
+            }
+        }
+    }
+
+    private static final class TenantState {
+        final ArrayDeque<Waiter> queued = new ArrayDeque<>();
+        double lastFinishTag;
+    }
+
+    private static final class Waiter {
+        final String tenant;
+        final Condition condition;
+        double startTag;
+        double finishTag;
+        long sequence;
+        boolean granted;
+
+        Waiter(String tenant, Condition condition) {
+            this.tenant = tenant;
+            this.condition = condition;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.fred.notesapp.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+// A file attached to a note. The bytes live in GridFS, shared between identical uploads via AttachmentBlob.
+@Document(collection = "note_attachments")
+public class Attachment {
+    @Id
+    private String id;
+
+    @Indexed
+    private String noteId;
+
+    private String tenantId;
+    private String userId;
+    private String filename;
+    private String contentType;
+    private long size;
+    private String sha256; // hex, also the download ETag
+    private LocalDateTime createdAt;
+
+    // Constructors
+    public Attachment() {}
+
+    public Attachment(String noteId, String tenantId, String userId, String filename, String contentType, long size, String sha256) {
+        this.noteId = noteId;
+        this.tenantId = tenantId;
+        this.userId = userId;
+        this.filename = filename;
+        this.contentType = contentType;
+        this.size = size;
+        this.sha256 = sha256;
+        this.createdAt = LocalDateTime.now(ZoneOffset.UTC);
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getNoteId() {
+        return noteId;
+    }
+
+    public void setNoteId(String noteId) {
+        this.noteId = noteId;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public void setTenantId(String tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -0,0 +1,78 @@
+package com.fred.notesapp.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+// One stored GridFS file per distinct content within a tenant; id is "tenantId:sha256"
+@Document(collection = "attachment_blobs")
+public class AttachmentBlob {
+    @Id
+    private String id;
+
+    private String tenantId;
+    private String sha256;
+    private String fileId; // GridFS file id
+    private long size;
+    private long refCount; // attachments pointing at this blob
+
+    // Constructors
+    public AttachmentBlob() {}
+
+    public AttachmentBlob(String tenantId, String sha256, String fileId, long size) {
+        this.id = tenantId + ":" + sha256;
+        this.tenantId = tenantId;
+        this.sha256 = sha256;
+        this.fileId = fileId;
+        this.size = size;
+        this.refCount = 1;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public void setTenantId(String tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getRefCount() {
+        return refCount;
+    }
+
+    public void setRefCount(long refCount) {
+        this.refCount = refCount;
+    }
+}
@@ -5,6 +5,9 @@ import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
 
 @Document(collection = "notes")
 public class Note {
@@ -23,6 +26,34 @@ public class Note {
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
     
+    // Incremented by every write that changes what clients see; ETags and If-Match use it
+    private long version;
+    
+    // Folder path such as "/work/projects"; null is the top level
+    private String folder;
+    private List<String> tags;
+    
+    // NoteRank key for the owner's manual order; only changed by moves and rebalancing
+    private String position;
+    
+    // Large notes keep their body in note_chunks instead of content
+    private boolean chunked;
+    private long contentSize;
+    private int chunkSize;
+    private String contentVersion;
+    
+    // Latest entry in note_revisions and its distance from the last snapshot
+    private long revision;
+    private int revisionDepth;
+    
+    // Trashed notes are tombstones until purged; every live note stores deleted=false
+    private boolean deleted;
+    private LocalDateTime deletedAt;
+    
+    // Cold notes keep only this stub here, without content; the full note is in note_archive
+    private boolean archived;
+    private LocalDateTime promotedAt;
+    
     // Constructors
     public Note() {}
     
@@ -31,8 +62,33 @@ public class Note {
         this.content = content;
         this.tenantId = tenantId;
         this.userId = userId;
-        this.createdAt = LocalDateTime.now();
-        this.updatedAt = LocalDateTime.now();
+        this.createdAt = LocalDateTime.now(ZoneOffset.UTC);
+        this.updatedAt = LocalDateTime.now(ZoneOffset.UTC);
+    }
+    
+    // Copy constructor
+    public Note(Note other) {
+        this.id = other.id;
+        this.title = other.title;
+        this.content = other.content;
+        this.tenantId = other.tenantId;
+        this.userId = other.userId;
+        this.createdAt = other.createdAt;
+        this.updatedAt = other.updatedAt;
+        this.version = other.version;
+        this.tags = other.tags == null ? null : new ArrayList<>(other.tags);
+        this.folder = other.folder;
+        this.position = other.position;
+        this.chunked = other.chunked;
+        this.contentSize = other.contentSize;
+        this.chunkSize = other.chunkSize;
+        this.contentVersion = other.contentVersion;
+        this.revision = other.revision;
+        this.revisionDepth = other.revisionDepth;
+        this.deleted = other.deleted;
+        this.deletedAt = other.deletedAt;
+        this.archived = other.archived;
+        this.promotedAt = other.promotedAt;
     }
     
     // Getters and Setters
@@ -91,4 +147,116 @@ public class Note {
     public void setUpdatedAt(LocalDateTime updatedAt) {
         this.updatedAt = updatedAt;
     }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    public void setVersion(long version) {
+        this.version = version;
+    }
+    
+    public boolean isChunked() {
+        return chunked;
+    }
+    
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+    
+    public long getContentSize() {
+        return contentSize;
+    }
+    
+    public void setContentSize(long contentSize) {
+        this.contentSize = contentSize;
+    }
+    
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+    
+    public String getContentVersion() {
+        return contentVersion;
+    }
+    
+    public void setContentVersion(String contentVersion) {
+        this.contentVersion = contentVersion;
+    }
+    
+    public long getRevision() {
+        return revision;
+    }
+    
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+    
+    public int getRevisionDepth() {
+        return revisionDepth;
+    }
+    
+    public void setRevisionDepth(int revisionDepth) {
+        this.revisionDepth = revisionDepth;
+    }
+    
+    public boolean isDeleted() {
+        return deleted;
+    }
+    
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
+    
+    public LocalDateTime getDeletedAt() {
+        return deletedAt;
+    }
+    
+    public void setDeletedAt(LocalDateTime deletedAt) {
+        this.deletedAt = deletedAt;
+    }
+    
+    public boolean isArchived() {
+        return archived;
+    }
+    
+    public void setArchived(boolean archived) {
+        this.archived = archived;
+    }
+    
+    public LocalDateTime getPromotedAt() {
+        return promotedAt;
+    }
+    
+    public void setPromotedAt(LocalDateTime promotedAt) {
+        this.promotedAt = promotedAt;
+    }
+    
+    public List<String> getTags() {
+        return tags;
+    }
+    
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
+    
+    public String getFolder() {
+        return folder;
+    }
+    
+    public void setFolder(String folder) {
+        this.folder = folder;
+    }
+    
+    public String getPosition() {
+        return position;
+    }
+    
+    public void setPosition(String position) {
+        this.position = position;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.fred.notesapp.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+// Number of a user's live notes with one tag or in one folder, maintained with $inc on write
+@Document(collection = "note_facets")
+public class NoteFacet {
+    @Id
+    private String id; // tenantId|userId|kind|value
+
+    private String tenantId;
+    private String userId;
+    private String kind; // "tag" or "folder"
+    private String value;
+    private long count;
+
+    // Constructors
+    public NoteFacet() {}
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public void setTenantId(String tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public void setKind(String kind) {
+        this.kind = kind;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+}
@@ -0,0 +1,122 @@
+package com.fred.notesapp.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+// Directory entry mapping a tenant to where its notes live. Tenants without an entry use the shared "notes" collection.
+@Document(collection = "note_partitions")
+public class NotePartition {
+    @Id
+    private String tenantId;
+
+    private String database; // null means the application's default database
+    private String collection;
+
+    private String state; // "ACTIVE", "MOVING", or "DRAINING" while the old copy is removed
+
+    // Destination while state is MOVING; the old location while DRAINING
+    private String targetDatabase;
+    private String targetCollection;
+
+    // The node running the move, how long its claim lasts, and the last note _id copied
+    private String owner;
+    private LocalDateTime leaseUntil;
+    private String moveCheckpoint;
+
+    private LocalDateTime updatedAt;
+
+    // Constructors
+    public NotePartition() {}
+
+    public NotePartition(String tenantId, String database, String collection) {
+        this.tenantId = tenantId;
+        this.database = database;
+        this.collection = collection;
+        this.state = "ACTIVE";
+        this.updatedAt = LocalDateTime.now(ZoneOffset.UTC);
+    }
+
+    // Getters and Setters
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public void setTenantId(String tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    public String getDatabase() {
+        return database;
+    }
+
+    public void setDatabase(String database) {
+        this.database = database;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public void setCollection(String collection) {
+        this.collection = collection;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public String getTargetDatabase() {
+        return targetDatabase;
+    }
+
+    public void setTargetDatabase(String targetDatabase) {
+        this.targetDatabase = targetDatabase;
+    }
+
+    public String getTargetCollection() {
+        return targetCollection;
+    }
+
+    public void setTargetCollection(String targetCollection) {
+        this.targetCollection = targetCollection;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public LocalDateTime getLeaseUntil() {
+        return leaseUntil;
+    }
+
+    public void setLeaseUntil(LocalDateTime leaseUntil) {
+        this.leaseUntil = leaseUntil;
+    }
+
+    public String getMoveCheckpoint() {
+        return moveCheckpoint;
+    }
+
+    public void setMoveCheckpoint(String moveCheckpoint) {
+        this.moveCheckpoint = moveCheckpoint;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -0,0 +1,168 @@
+package com.fred.notesapp.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * One saved state of a note. Snapshots hold the full content; every other revision holds
+ * a single-span edit against baseRev: keep the first prefix and last suffix characters of
+ * the base content and put insert between them.
+ */
+@Document(collection = "note_revisions")
+public class NoteRevision {
+    @Id
+    private String id;
+    
+    private String noteId;
+    private String tenantId;
+    private long rev;
+    private long baseRev;
+    private int depth; // deltas since the last snapshot in this revision's chain
+    private boolean snapshot;
+    
+    private String title;
+    private String content; // snapshots only
+    private int prefix;
+    private int suffix;
+    private String insert;
+    private int length; // content length after applying this revision
+    
+    private String authorId;
+    private LocalDateTime createdAt;
+    
+    // Constructors
+    public NoteRevision() {}
+    
+    public NoteRevision(String noteId, String tenantId, long rev, String title, String authorId) {
+        this.noteId = noteId;
+        this.tenantId = tenantId;
+        this.rev = rev;
+        this.title = title;
+        this.authorId = authorId;
+        this.createdAt = LocalDateTime.now(ZoneOffset.UTC);
+    }
+    
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+    
+    public void setId(String id) {
+        this.id = id;
+    }
+    
+    public String getNoteId() {
+        return noteId;
+    }
+    
+    public void setNoteId(String noteId) {
+        this.noteId = noteId;
+    }
+    
+    public String getTenantId() {
+        return tenantId;
+    }
+    
+    public void setTenantId(String tenantId) {
+        this.tenantId = tenantId;
+    }
+    
+    public long getRev() {
+        return rev;
+    }
+    
+    public void setRev(long rev) {
+        this.rev = rev;
+    }
+    
+    public long getBaseRev() {
+        return baseRev;
+    }
+    
+    public void setBaseRev(long baseRev) {
+        this.baseRev = baseRev;
+    }
+    
+    public int getDepth() {
+        return depth;
+    }
+    
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+    
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+    
+    public void setSnapshot(boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+    
+    public String getTitle() {
+        return title;
+    }
+    
+    public void setTitle(String title) {
+        this.title = title;
+    }
+    
+    public String getContent() {
+        return content;
+    }
+    
+    public void setContent(String content) {
+        this.content = content;
+    }
+    
+    public int getPrefix() {
+        return prefix;
+    }
+    
+    public void setPrefix(int prefix) {
+        this.prefix = prefix;
+    }
+    
+    public int getSuffix() {
+        return suffix;
+    }
+    
+    public void setSuffix(int suffix) {
+        this.suffix = suffix;
+    }
+    
+    public String getInsert() {
+        return insert;
+    }
+    
+    public void setInsert(String insert) {
+        this.insert = insert;
+    }
+    
+    public int getLength() {
+        return length;
+    }
+    
+    public void setLength(int length) {
+        this.length = length;
+    }
+    
+    public String getAuthorId() {
+        return authorId;
+    }
+    
+    public void setAuthorId(String authorId) {
+        this.authorId = authorId;
+    }
+    
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+    
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -24,6 +24,14 @@ public class Tenant {
         this.plan = plan;
     }
     
+    // Copy constructor
+    public Tenant(Tenant other) {
+        this.id = other.id;
+        this.slug = other.slug;
+        this.name = other.name;
+        this.plan = other.plan;
+    }
+    
     // Getters and Setters
     public String getId() {
         return id;
@@ -0,0 +1,33 @@
+package com.fred.notesapp.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+// Running storage totals per tenant, maintained with $inc as blobs are stored and removed
+@Document(collection = "tenant_usage")
+public class TenantUsage {
+    @Id
+    private String tenantId;
+
+    private long attachmentBytes;
+
+    // Constructors
+    public TenantUsage() {}
+
+    // Getters and Setters
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public void setTenantId(String tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    public long getAttachmentBytes() {
+        return attachmentBytes;
+    }
+
+    public void setAttachmentBytes(long attachmentBytes) {
+        this.attachmentBytes = attachmentBytes;
+    }
+}
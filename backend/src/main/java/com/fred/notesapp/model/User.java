@@ -31,6 +31,15 @@ public class User {
         this.tenantId = tenantId;
     }
     
+    // Copy constructor
+    public User(User other) {
+        this.id = other.id;
+        this.email = other.email;
+        this.password = other.password;
+        this.role = other.role;
+        this.tenantId = other.tenantId;
+    }
+    
     // Getters and Setters
     public String getId() {
         return id;
@@ -0,0 +1,14 @@
+package com.fred.notesapp.repository;
+
+import com.fred.notesapp.model.Attachment;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface AttachmentRepository extends MongoRepository<Attachment, String> {
+    List<Attachment> findByNoteId(String noteId);
+    Optional<Attachment> findByIdAndNoteId(String id, String noteId);
+}
@@ -0,0 +1,123 @@
+package com.fred.notesapp.repository;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Progress of background data migrations in {@code migration_checkpoints}, one document
+ * per migration key: the last _id processed, whether the migration is complete, and which
+ * node is currently running it.
+ *
+ * A node runs a batch only while it holds the key's lease, so every migration runs on one
+ * node at a time cluster-wide, and continues from its checkpoint after a restart or on
+ * another node once the lease has expired.
+ */
+@Component
+public class MigrationCheckpoints {
+
+    public static final String COLLECTION = "migration_checkpoints";
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${migrations.lease-ms:60000}")
+    private long leaseMs;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Set<String> completed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Claims (or renews) the lease on a migration for this node. Returns the checkpoint to
+     * continue from, or null if the migration is complete or another node is running it.
+     */
+    public Checkpoint claim(String key) {
+        if (completed.contains(key)) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Document claimed;
+        try {
+            claimed = checkpoints().findOneAndUpdate(
+                    Filters.and(Filters.eq("_id", key), Filters.ne("complete", true),
+                            Filters.or(Filters.eq("owner", nodeId), Filters.lt("leaseUntil", now), Filters.exists("owner", false))),
+                    Updates.combine(Updates.set("owner", nodeId), Updates.set("leaseUntil", now + leaseMs)),
+                    new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+        } catch (MongoCommandException | MongoWriteException e) {
+            // The upsert lost to an existing document: complete, or leased to another node
+            if (code(e) != DUPLICATE_KEY) {
+                throw e;
+            }
+            if (isComplete(key)) {
+                completed.add(key);
+            }
+            return null;
+        }
+        return claimed == null ? null : new Checkpoint(claimed.get("lastId"));
+    }
+
+    // Records the last _id processed; throws if this node no longer holds the lease
+    public void advance(String key, Object lastId) {
+        long now = System.currentTimeMillis();
+        long matched = checkpoints().updateOne(Filters.and(Filters.eq("_id", key), Filters.eq("owner", nodeId)),
+                Updates.combine(Updates.set("lastId", lastId), Updates.set("leaseUntil", now + leaseMs))).getMatchedCount();
+        if (matched == 0) {
+            throw new IllegalStateException("Lost the lease on migration " + key);
+        }
+    }
+
+    public void complete(String key) {
+        checkpoints().updateOne(Filters.eq("_id", key),
+                Updates.combine(Updates.set("complete", true), Updates.unset("owner"), Updates.unset("leaseUntil")));
+        completed.add(key);
+    }
+
+    public boolean isComplete(String key) {
+        if (completed.contains(key)) {
+            return true;
+        }
+        Document checkpoint = checkpoints().find(Filters.eq("_id", key)).first();
+        if (checkpoint != null && Boolean.TRUE.equals(checkpoint.getBoolean("complete"))) {
+            completed.add(key);
+            return true;
+        }
+        return false;
+    }
+
+    private static int code(RuntimeException e) {
+        return e instanceof MongoCommandException ? ((MongoCommandException) e).getErrorCode()
+                : ((MongoWriteException) e).getCode();
+    }
+
+    private MongoCollection<Document> checkpoints() {
+        return mongoTemplate.getCollection(COLLECTION);
+    }
+
+    public static final class Checkpoint {
+        private final Object lastId;
+
+        Checkpoint(Object lastId) {
+            this.lastId = lastId;
+        }
+
+        // Null before the first batch
+        public Object getLastId() {
+            return lastId;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.fred.notesapp.repository;
+
+import com.fred.notesapp.model.Note;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.model.CreateCollectionOptions;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Full copies of archived notes, keyed by note id, in {@code note_archive}. The collection
+ * is created with a stronger block compressor than the hot collections; large bodies are
+ * additionally compressed per document by {@link NoteContentCodec} as usual.
+ */
+@Component
+public class NoteArchive {
+
+    public static final String COLLECTION = "note_archive";
+
+    private static final int NAMESPACE_EXISTS = 48;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${notes.archive.block-compressor:zstd}")
+    private String blockCompressor;
+
+    private volatile boolean created;
+
+    public void put(Note note) {
+        ensureCollection();
+        mongoTemplate.save(note, COLLECTION);
+    }
+
+    public Optional<Note> find(String id) {
+        return Optional.ofNullable(mongoTemplate.findById(id, Note.class, COLLECTION));
+    }
+
+    public Map<String, Note> findAll(Collection<String> ids) {
+        Map<String, Note> notes = new HashMap<>();
+        for (Note note : mongoTemplate.find(new Query(Criteria.where("_id").in(ids)), Note.class, COLLECTION)) {
+            notes.put(note.getId(), note);
+        }
+        return notes;
+    }
+
+    public void delete(String id) {
+        mongoTemplate.remove(new Query(Criteria.where("_id").is(id)), Note.class, COLLECTION);
+    }
+
+    // Created on first use so startup does not depend on MongoDB being reachable
+    private void ensureCollection() {
+        if (created) {
+            return;
+        }
+        try {
+            mongoTemplate.getDb().createCollection(COLLECTION, new CreateCollectionOptions().storageEngineOptions(
+                    new Document("wiredTiger", new Document("configString", "block_compressor=" + blockCompressor))));
+        } catch (MongoCommandException e) {
+            if (e.getErrorCode() != NAMESPACE_EXISTS) {
+                throw e;
+            }
+        }
+        created = true;
+    }
+}
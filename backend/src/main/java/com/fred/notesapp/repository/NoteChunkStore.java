@@ -0,0 +1,164 @@
+package com.fred.notesapp.repository;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * GridFS-style storage for the bodies of large notes: fixed-size chunks in
+ * {@code note_chunks}, keyed by (noteId, version, n).
+ *
+ * Every upload is written under a fresh version, and the note only points at it once all
+ * chunks are stored, so readers never see a half-written body. Versions a note no longer
+ * points at are retired rather than deleted: they are recorded in {@code note_chunks_retired}
+ * and swept after a grace period, so range reads that started on them can finish.
+ */
+@Component
+public class NoteChunkStore {
+
+    public static final String COLLECTION = "note_chunks";
+    public static final String RETIRED_COLLECTION = "note_chunks_retired";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    // GridFS default: keeps a chunk plus its overhead well inside one BSON document
+    @Value("${notes.chunked.chunk-size-bytes:261120}")
+    private int chunkSize;
+
+    @Value("${notes.chunked.retired-grace-ms:900000}")
+    private long retiredGraceMs;
+
+    @Value("${notes.chunked.sweep-batch-size:100}")
+    private int sweepBatchSize;
+
+    private volatile boolean indexed;
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Streams {@code in} into chunks of {@code version}, holding one chunk in memory at a time.
+     * Returns the number of bytes stored. Partial writes are removed on failure.
+     */
+    public long write(String noteId, String version, InputStream in, long maxBytes) throws IOException {
+        ensureIndex();
+        long total = 0;
+        int n = 0;
+        byte[] buffer = new byte[chunkSize];
+        try {
+            while (true) {
+                int filled = in.readNBytes(buffer, 0, chunkSize);
+                if (filled == 0 && n > 0) {
+                    return total;
+                }
+                total += filled;
+                if (total > maxBytes) {
+                    throw new NoteContentTooLargeException(maxBytes);
+                }
+                byte[] data = filled == chunkSize ? buffer.clone() : Arrays.copyOf(buffer, filled);
+                chunks().insertOne(new Document("noteId", noteId)
+                        .append("version", version)
+                        .append("n", n++)
+                        .append("data", new Binary(data)));
+                if (filled < chunkSize) {
+                    return total;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            delete(noteId, version);
+            throw e;
+        }
+    }
+
+    // Writes bytes [start, endInclusive] of the stored body, reading only the chunks that cover them
+    public void copyTo(String noteId, String version, int noteChunkSize, long start, long endInclusive,
+                       OutputStream out) throws IOException {
+        int firstChunk = (int) (start / noteChunkSize);
+        int lastChunk = (int) (endInclusive / noteChunkSize);
+        Iterable<Document> found = chunks()
+                .find(Filters.and(Filters.eq("noteId", noteId), Filters.eq("version", version),
+                        Filters.gte("n", firstChunk), Filters.lte("n", lastChunk)))
+                .sort(Sorts.ascending("n"))
+                .batchSize(4);
+        int expected = firstChunk;
+        for (Document chunk : found) {
+            int n = chunk.getInteger("n");
+            if (n != expected) {
+                throw new IOException("Missing chunk " + expected + " of note " + noteId);
+            }
+            byte[] data = chunk.get("data", Binary.class).getData();
+            long chunkStart = (long) n * noteChunkSize;
+            int from = (int) Math.max(0, start - chunkStart);
+            int to = (int) Math.min(data.length, endInclusive - chunkStart + 1);
+            out.write(data, from, to - from);
+            expected++;
+        }
+        if (expected != lastChunk + 1) {
+            throw new IOException("Missing chunk " + expected + " of note " + noteId);
+        }
+    }
+
+    public void delete(String noteId, String version) {
+        chunks().deleteMany(Filters.and(Filters.eq("noteId", noteId), Filters.eq("version", version)));
+    }
+
+    // Deletes the version once the grace period has passed; see sweepRetired
+    public void retire(String noteId, String version) {
+        ensureIndex();
+        retired().insertOne(new Document("noteId", noteId)
+                .append("version", version)
+                .append("retiredAt", new Date()));
+    }
+
+    @Scheduled(fixedDelayString = "${notes.chunked.sweep-interval-ms:60000}",
+            initialDelayString = "${notes.chunked.sweep-interval-ms:60000}")
+    public void sweepRetired() {
+        try {
+            Date cutoff = new Date(System.currentTimeMillis() - retiredGraceMs);
+            for (Document version : retired().find(Filters.lt("retiredAt", cutoff)).limit(sweepBatchSize)) {
+                delete(version.getString("noteId"), version.getString("version"));
+                retired().deleteOne(Filters.eq("_id", version.get("_id")));
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Sweeping retired note chunks failed: " + e.getMessage());
+        }
+    }
+
+    public void deleteAll(String noteId) {
+        chunks().deleteMany(Filters.eq("noteId", noteId));
+    }
+
+    // Created on first use so startup does not depend on MongoDB being reachable
+    private void ensureIndex() {
+        if (!indexed) {
+            chunks().createIndex(Indexes.ascending("noteId", "version", "n"), new IndexOptions().unique(true));
+            retired().createIndex(Indexes.ascending("retiredAt"));
+            indexed = true;
+        }
+    }
+
+    private MongoCollection<Document> chunks() {
+        return mongoTemplate.getCollection(COLLECTION);
+    }
+
+    private MongoCollection<Document> retired() {
+        return mongoTemplate.getCollection(RETIRED_COLLECTION);
+    }
+}
@@ -0,0 +1,166 @@
+package com.fred.notesapp.repository;
+
+import com.fred.notesapp.model.Note;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.mapping.event.AfterConvertCallback;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveCallback;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores large note content compressed, transparently to everything above the template.
+ *
+ * On save, content of at least {@code notes.compression.threshold-bytes} UTF-8 bytes is
+ * replaced in the stored document by {@code contentZ} (Deflate) with a {@code contentCodec}
+ * marker and the original length. On read the content is restored before the entity is
+ * returned. Content that does not shrink is kept as text and marked {@code identity}, so
+ * the background migration does not retry it.
+ */
+@Component
+public class NoteContentCodec implements BeforeSaveCallback<Note>, AfterConvertCallback<Note> {
+
+    public static final String CONTENT = "content";
+    public static final String COMPRESSED_CONTENT = "contentZ";
+    public static final String CODEC = "contentCodec";
+    public static final String LENGTH = "contentLength";
+    public static final String DEFLATE = "deflate";
+    public static final String IDENTITY = "identity";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.compression.enabled:true}")
+    private boolean enabled;
+
+    @Value("${notes.compression.threshold-bytes:8192}")
+    private int thresholdBytes;
+
+    @Value("${notes.compression.level:6}")
+    private int level;
+
+    // Keep compressed form only if it saves at least this fraction
+    @Value("${notes.compression.min-savings:0.1}")
+    private double minSavings;
+
+    private Timer encodeTimer;
+    private Timer decodeTimer;
+    private Counter rawBytes;
+    private Counter storedBytes;
+
+    @PostConstruct
+    public void init() {
+        encodeTimer = Timer.builder("notes.compression.encode").register(meterRegistry);
+        decodeTimer = Timer.builder("notes.compression.decode").register(meterRegistry);
+        rawBytes = Counter.builder("notes.compression.bytes").tag("form", "raw").register(meterRegistry);
+        storedBytes = Counter.builder("notes.compression.bytes").tag("form", "stored").register(meterRegistry);
+    }
+
+    @Override
+    public Note onBeforeSave(Note entity, Document document, String collection) {
+        Object content = document.get(CONTENT);
+        if (enabled && content instanceof String) {
+            encodeInto(document, (String) content);
+        }
+        return entity;
+    }
+
+    @Override
+    public Note onAfterConvert(Note entity, Document document, String collection) {
+        Object compressed = document.get(COMPRESSED_CONTENT);
+        if (compressed instanceof Binary) {
+            entity.setContent(decode(document.getString(CODEC), ((Binary) compressed).getData(),
+                    document.getInteger(LENGTH, 0)));
+        }
+        return entity;
+    }
+
+    /**
+     * Rewrites {@code document} so it stores {@code content} in its preferred form.
+     * Returns false if the content is below the threshold and the document is unchanged.
+     */
+    public boolean encodeInto(Document document, String content) {
+        byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+        if (raw.length < thresholdBytes) {
+            return false;
+        }
+        byte[] compressed = encodeTimer.record(() -> deflate(raw));
+        if (compressed.length > raw.length * (1 - minSavings)) {
+            document.put(CODEC, IDENTITY);
+            return true;
+        }
+        rawBytes.increment(raw.length);
+        storedBytes.increment(compressed.length);
+        document.remove(CONTENT);
+        document.put(COMPRESSED_CONTENT, new Binary(compressed));
+        document.put(CODEC, DEFLATE);
+        document.put(LENGTH, raw.length);
+        return true;
+    }
+
+    public int getThresholdBytes() {
+        return thresholdBytes;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private String decode(String codec, byte[] data, int length) {
+        if (!DEFLATE.equals(codec)) {
+            throw new IllegalStateException("Unknown note content codec: " + codec);
+        }
+        return decodeTimer.record(() -> new String(inflate(data, length), StandardCharsets.UTF_8));
+    }
+
+    private byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] inflate(byte[] data, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] out = new byte[length];
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(out, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != length) {
+                throw new IllegalStateException("Corrupt compressed note content");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed note content", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.fred.notesapp.repository;
+
+/**
+ * Thrown when a streamed note body exceeds the configured maximum size.
+ * Controllers translate this into a 413.
+ */
+public class NoteContentTooLargeException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public NoteContentTooLargeException(long maxBytes) {
+        super("Note content exceeds " + maxBytes + " bytes");
+    }
+}
@@ -0,0 +1,256 @@
+package com.fred.notesapp.repository;
+
+import com.fred.notesapp.cache.InvalidationBus;
+import com.fred.notesapp.cache.InvalidationEvent;
+import com.fred.notesapp.model.NotePartition;
+import com.mongodb.client.MongoClient;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mapping.callback.EntityCallbacks;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tenant -> note partition directory, cached in memory.
+ *
+ * A partition is a (database, collection) pair. Tenants without a directory entry live in
+ * the shared "notes" collection of the default database. While a tenant is being moved
+ * its placement has two targets: reads use the source, writes go to both.
+ */
+@Component
+public class NotePartitionDirectory {
+
+    // Covers the projection used to answer conditional requests without reading note bodies
+    public static final String VERSION_INDEX = "note_version_counter";
+    // Its predecessor, keyed on updatedAt; dropped where it still exists
+    private static final String LEGACY_VERSION_INDEX = "note_version_live";
+    public static final String SHARED_COLLECTION = "notes";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MongoClient mongoClient;
+
+    @Autowired
+    private InvalidationBus invalidationBus;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Value("${notes.partition.directory-ttl-ms:10000}")
+    private long ttlMs;
+
+    private final ConcurrentHashMap<String, CachedPlacement> placements = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MongoTemplate> templates = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Boolean> indexedCollections = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        invalidationBus.register(InvalidationEvent.Type.NOTE_PARTITION, event -> {
+            if (event.getKey() == null) {
+                placements.clear();
+            } else {
+                invalidate(event.getKey());
+            }
+        });
+    }
+
+    public Placement placementFor(String tenantId) {
+        String key = tenantId == null ? "" : tenantId;
+        long now = System.currentTimeMillis();
+        CachedPlacement cached = placements.get(key);
+        if (cached != null && cached.expiresAt > now) {
+            return cached.placement;
+        }
+        NotePartition partition = tenantId == null ? null : mongoTemplate.findById(tenantId, NotePartition.class);
+        Placement placement = toPlacement(partition);
+        placements.put(key, new CachedPlacement(placement, now + ttlMs));
+        return placement;
+    }
+
+    public void invalidate(String tenantId) {
+        placements.remove(tenantId);
+    }
+
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    public Target target(String database, String collection) {
+        MongoTemplate template = database == null ? mongoTemplate
+                : templates.computeIfAbsent(database, this::templateFor);
+        String name = collection == null ? SHARED_COLLECTION : collection;
+        // Dedicated collections do not get the entity's annotated indexes automatically
+        indexedCollections.computeIfAbsent((database == null ? "" : database) + "." + name, key -> {
+            template.indexOps(name).ensureIndex(new Index().on("tenantId", Sort.Direction.ASC).on("userId", Sort.Direction.ASC));
+            template.indexOps(name).ensureIndex(new Index().named(VERSION_INDEX)
+                    .on("_id", Sort.Direction.ASC)
+                    .on("tenantId", Sort.Direction.ASC)
+                    .on("userId", Sort.Direction.ASC)
+                    .on("updatedAt", Sort.Direction.ASC)
+                    .on("version", Sort.Direction.ASC)
+                    .on("deleted", Sort.Direction.ASC));
+            if (template.indexOps(name).getIndexInfo().stream().anyMatch(index -> index.getName().equals(LEGACY_VERSION_INDEX))) {
+                template.indexOps(name).dropIndex(LEGACY_VERSION_INDEX);
+            }
+            // Live and trashed notes are indexed separately, so the trash never weighs on normal queries
+            template.indexOps(name).ensureIndex(new Index().named("note_live")
+                    .on("tenantId", Sort.Direction.ASC)
+                    .on("userId", Sort.Direction.ASC)
+                    .on("_id", Sort.Direction.ASC)
+                    .partial(PartialIndexFilter.of(Criteria.where("deleted").is(false))));
+            template.indexOps(name).ensureIndex(new Index().named("note_trash")
+                    .on("tenantId", Sort.Direction.ASC)
+                    .on("userId", Sort.Direction.ASC)
+                    .on("deletedAt", Sort.Direction.ASC)
+                    .partial(PartialIndexFilter.of(Criteria.where("deleted").is(true))));
+            template.indexOps(name).ensureIndex(new Index().named("note_trash_expiry")
+                    .on("deletedAt", Sort.Direction.ASC)
+                    .partial(PartialIndexFilter.of(Criteria.where("deleted").is(true))));
+            // Tag (multikey) and folder filters on a user's notes, in list order
+            template.indexOps(name).ensureIndex(new Index().named("note_tags")
+                    .on("tenantId", Sort.Direction.ASC)
+                    .on("userId", Sort.Direction.ASC)
+                    .on("tags", Sort.Direction.ASC)
+                    .on("_id", Sort.Direction.ASC)
+                    .partial(PartialIndexFilter.of(Criteria.where("deleted").is(false))));
+            template.indexOps(name).ensureIndex(new Index().named("note_folder")
+                    .on("tenantId", Sort.Direction.ASC)
+                    .on("userId", Sort.Direction.ASC)
+                    .on("folder", Sort.Direction.ASC)
+                    .on("_id", Sort.Direction.ASC)
+                    .partial(PartialIndexFilter.of(Criteria.where("deleted").is(false))));
+            // Manual order: pages sorted by position come straight off the index
+            template.indexOps(name).ensureIndex(new Index().named("note_position")
+                    .on("tenantId", Sort.Direction.ASC)
+                    .on("userId", Sort.Direction.ASC)
+                    .on("position", Sort.Direction.ASC)
+                    .on("_id", Sort.Direction.ASC)
+                    .partial(PartialIndexFilter.of(Criteria.where("deleted").is(false))));
+            // The filter and sort shapes NoteQuery accepts
+            for (NoteQuery.Shape shape : NoteQuery.Shape.values()) {
+                if (shape != NoteQuery.Shape.LIVE) {
+                    template.indexOps(name).ensureIndex(new Index().named(shape.getIndex())
+                            .on("tenantId", Sort.Direction.ASC)
+                            .on("userId", Sort.Direction.ASC)
+                            .on(shape.getField(), Sort.Direction.ASC)
+                            .on("_id", Sort.Direction.ASC)
+                            .partial(PartialIndexFilter.of(Criteria.where("deleted").is(false))));
+                }
+            }
+            // Finds each tenant's cold notes for the archiver without scanning the hot set
+            template.indexOps(name).ensureIndex(new Index().named("note_tiering")
+                    .on("tenantId", Sort.Direction.ASC)
+                    .on("archived", Sort.Direction.ASC)
+                    .on("chunked", Sort.Direction.ASC)
+                    .on("updatedAt", Sort.Direction.ASC)
+                    .partial(PartialIndexFilter.of(Criteria.where("deleted").is(false))));
+            return Boolean.TRUE;
+        });
+        return new Target(template, name);
+    }
+
+    // Every collection that currently holds notes: the shared one plus each partition's
+    public List<Target> allTargets() {
+        List<Target> targets = new ArrayList<>();
+        targets.add(target(null, SHARED_COLLECTION));
+        for (NotePartition partition : mongoTemplate.findAll(NotePartition.class)) {
+            Target source = target(partition.getDatabase(), partition.getCollection());
+            if (targets.stream().noneMatch(source::sameAs)) {
+                targets.add(source);
+            }
+        }
+        return targets;
+    }
+
+    // Same mapping and entity callbacks (e.g. content compression) as the default template
+    private MongoTemplate templateFor(String database) {
+        MongoTemplate template = new MongoTemplate(new SimpleMongoClientDatabaseFactory(mongoClient, database),
+                mongoTemplate.getConverter());
+        template.setEntityCallbacks(EntityCallbacks.create(applicationContext));
+        return template;
+    }
+
+    private Placement toPlacement(NotePartition partition) {
+        if (partition == null) {
+            return new Placement(target(null, SHARED_COLLECTION), null);
+        }
+        Target source = target(partition.getDatabase(), partition.getCollection());
+        Target moveTarget = "MOVING".equals(partition.getState())
+                ? target(partition.getTargetDatabase(), partition.getTargetCollection())
+                : null;
+        return new Placement(source, moveTarget);
+    }
+
+    // One physical location for notes
+    public static final class Target {
+        private final MongoTemplate template;
+        private final String collection;
+
+        Target(MongoTemplate template, String collection) {
+            this.template = template;
+            this.collection = collection;
+        }
+
+        public MongoTemplate getTemplate() {
+            return template;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        public boolean sameAs(Target other) {
+            return other != null && template.getDb().getName().equals(other.template.getDb().getName())
+                    && collection.equals(other.collection);
+        }
+    }
+
+    // Where a tenant's notes are read from and written to
+    public static final class Placement {
+        private final Target source;
+        private final Target moveTarget;
+
+        Placement(Target source, Target moveTarget) {
+            this.source = source;
+            this.moveTarget = moveTarget;
+        }
+
+        public Target getReadTarget() {
+            return source;
+        }
+
+        public List<Target> getWriteTargets() {
+            if (moveTarget == null) {
+                return Collections.singletonList(source);
+            }
+            List<Target> targets = new ArrayList<>(2);
+            targets.add(source);
+            targets.add(moveTarget);
+            return targets;
+        }
+    }
+
+    private static final class CachedPlacement {
+        final Placement placement;
+        final long expiresAt;
+
+        CachedPlacement(Placement placement, long expiresAt) {
+            this.placement = placement;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.fred.notesapp.repository;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+
+/**
+ * A filter and sort over one user's live notes, parsed from the list endpoint's
+ * {@code q} and {@code sort} parameters, e.g.
+ * {@code q=updatedAt>=2024-01-01;updatedAt<2024-02-01;owner=<userId>&sort=-updatedAt}.
+ *
+ * Clauses are separated by ';' and are one of
+ * <ul>
+ *   <li>{@code createdAt} or {@code updatedAt} with {@code > >= < <=} and an ISO date or UTC date-time</li>
+ *   <li>{@code title^=prefix}, a case-sensitive prefix match</li>
+ *   <li>{@code owner=userId}, whose notes to list (authorisation is the caller's job)</li>
+ * </ul>
+ * Sort is one of {@code createdAt}, {@code updatedAt} or {@code title}, with a leading
+ * '-' for descending; ties are broken by _id.
+ *
+ * Only queries one of the {@link Shape}s can answer from its index, without a collection
+ * scan or an in-memory sort, are accepted: at most one field may be filtered, and the sort,
+ * if given, must be on that same field. Anything else is rejected when parsed.
+ */
+public final class NoteQuery {
+
+    /** The index shapes queries are allowed to use: {tenantId, userId, field, _id}, live notes only. */
+    public enum Shape {
+        LIVE("note_live", "_id"),
+        CREATED("note_created", "createdAt"),
+        UPDATED("note_updated", "updatedAt"),
+        TITLE("note_title", "title");
+
+        private final String index;
+        private final String field;
+
+        Shape(String index, String field) {
+            this.index = index;
+            this.field = field;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        static Shape of(String field) {
+            for (Shape shape : values()) {
+                if (shape.field.equals(field)) {
+                    return shape;
+                }
+            }
+            throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    private static final int MAX_CLAUSES = 8;
+
+    private String filterField;
+    private LocalDateTime lowerBound;
+    private boolean lowerInclusive;
+    private LocalDateTime upperBound;
+    private boolean upperInclusive;
+    private String titlePrefix;
+    private String owner;
+    private Shape shape = Shape.LIVE;
+    private boolean descending;
+
+    private NoteQuery() {}
+
+    // Either argument may be null; throws IllegalArgumentException for anything unsupported
+    public static NoteQuery parse(String filter, String sort) {
+        NoteQuery query = new NoteQuery();
+        if (filter != null && !filter.isBlank()) {
+            String[] clauses = filter.split(";");
+            if (clauses.length > MAX_CLAUSES) {
+                throw new IllegalArgumentException("A query can have at most " + MAX_CLAUSES + " clauses");
+            }
+            for (String clause : clauses) {
+                if (!clause.isBlank()) {
+                    query.addClause(clause.trim());
+                }
+            }
+        }
+        String sortField = null;
+        if (sort != null && !sort.isBlank()) {
+            query.descending = sort.startsWith("-");
+            sortField = query.descending ? sort.substring(1) : sort;
+            if (!sortField.equals("createdAt") && !sortField.equals("updatedAt") && !sortField.equals("title")) {
+                throw new IllegalArgumentException("sort must be createdAt, updatedAt or title, optionally prefixed with -");
+            }
+        }
+        if (query.filterField != null && sortField != null && !sortField.equals(query.filterField)) {
+            throw new IllegalArgumentException("Sorting by " + sortField + " while filtering on " + query.filterField
+                    + " needs an in-memory sort; sort by the filtered field instead");
+        }
+        String indexed = query.filterField != null ? query.filterField : sortField;
+        query.shape = indexed == null ? Shape.LIVE : Shape.of(indexed);
+        return query;
+    }
+
+    private void addClause(String clause) {
+        if (clause.startsWith("owner=")) {
+            owner = value(clause, "owner=".length());
+            return;
+        }
+        if (clause.startsWith("title^=")) {
+            filterOn("title");
+            if (titlePrefix != null) {
+                throw new IllegalArgumentException("title^= can only be given once");
+            }
+            titlePrefix = value(clause, "title^=".length());
+            return;
+        }
+        for (String field : new String[] {"createdAt", "updatedAt"}) {
+            if (!clause.startsWith(field)) {
+                continue;
+            }
+            String rest = clause.substring(field.length());
+            String operator = rest.startsWith(">=") || rest.startsWith("<=") ? rest.substring(0, 2)
+                    : rest.startsWith(">") || rest.startsWith("<") ? rest.substring(0, 1) : null;
+            if (operator == null) {
+                break;
+            }
+            filterOn(field);
+            LocalDateTime bound = parseTime(value(rest, operator.length()));
+            if (operator.startsWith(">")) {
+                if (lowerBound != null) {
+                    throw new IllegalArgumentException(field + " has more than one lower bound");
+                }
+                lowerBound = bound;
+                lowerInclusive = operator.length() == 2;
+            } else {
+                if (upperBound != null) {
+                    throw new IllegalArgumentException(field + " has more than one upper bound");
+                }
+                upperBound = bound;
+                upperInclusive = operator.length() == 2;
+            }
+            return;
+        }
+        throw new IllegalArgumentException("Unsupported clause: " + clause);
+    }
+
+    // One index can bound only one field
+    private void filterOn(String field) {
+        if (filterField != null && !filterField.equals(field)) {
+            throw new IllegalArgumentException("Only one of createdAt, updatedAt and title can be filtered at a time");
+        }
+        filterField = field;
+    }
+
+    private static String value(String clause, int start) {
+        String value = clause.substring(start).trim();
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("Missing value in " + clause);
+        }
+        return value;
+    }
+
+    // 2024-01-31, 2024-01-31T12:00:00 (UTC) or 2024-01-31T12:00:00+02:00
+    private static LocalDateTime parseTime(String value) {
+        try {
+            if (value.length() == 10) {
+                return LocalDate.parse(value).atStartOfDay();
+            }
+            if (value.endsWith("Z") || value.lastIndexOf('+') > 10 || value.lastIndexOf('-') > 10) {
+                return OffsetDateTime.parse(value).withOffsetSameInstant(ZoneOffset.UTC).toLocalDateTime();
+            }
+            return LocalDateTime.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date or time: " + value);
+        }
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public LocalDateTime getLowerBound() {
+        return lowerBound;
+    }
+
+    public boolean isLowerInclusive() {
+        return lowerInclusive;
+    }
+
+    public LocalDateTime getUpperBound() {
+        return upperBound;
+    }
+
+    public boolean isUpperInclusive() {
+        return upperInclusive;
+    }
+
+    public String getTitlePrefix() {
+        return titlePrefix;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+}
@@ -0,0 +1,15 @@
+package com.fred.notesapp.repository;
+
+/**
+ * Thrown when a note query is run before every note stores its live flag: the partial
+ * indexes the query language relies on do not cover older notes until then, so the query
+ * could only run as a collection scan. Controllers translate this into a 503 with Retry-After.
+ */
+public class NoteQueryPendingException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public NoteQueryPendingException() {
+        super("Queries are unavailable until the note index backfill has finished, please retry");
+    }
+}
@@ -0,0 +1,945 @@
+package com.fred.notesapp.repository;
+
+import com.fred.notesapp.model.Note;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Projections;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import com.mongodb.bulk.BulkWriteError;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.ReplaceOptions;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Note persistence with read/write routing, beneath {@link com.fred.notesapp.service.NoteService}.
+ *
+ * Each tenant's notes live in the partition named by {@link NotePartitionDirectory}.
+ * Writes always go to the primary. Reads use the configured read preference
+ * (secondary-preferred with a max staleness by default). After a user writes, their
+ * reads run in a causally consistent session that carries the write's operation time,
+ * so a secondary only answers once it has caught up to that write. Once the max
+ * staleness window has passed every eligible member has the write and the token is dropped.
+ */
+@Component
+public class NoteStore {
+
+    private static final ClientSessionOptions CAUSAL = ClientSessionOptions.builder()
+            .causallyConsistent(true)
+            .build();
+
+    @Autowired
+    private MongoClient mongoClient;
+
+    @Autowired
+    private NotePartitionDirectory partitionDirectory;
+
+    @Autowired
+    private ObjectIdReferences references;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private NoteContentCodec codec;
+
+    @Value("${notes.read.preference:secondaryPreferred}")
+    private String readPreferenceName;
+
+    @Value("${notes.read.max-staleness-seconds:90}")
+    private long maxStalenessSeconds;
+
+    // Server-side limit on routed reads, which also bounds a hedged read's losing attempt
+    @Value("${notes.read.max-time-ms:5000}")
+    private long readMaxTimeMs;
+
+    // Explains every NoteQuery before running it; meant for development, not production
+    @Value("${notes.query.explain-check:false}")
+    private boolean explainCheck;
+
+    private final ConcurrentHashMap<String, CausalToken> lastWrites = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counter> routeCounters = new ConcurrentHashMap<>();
+    private ReadPreference readPreference;
+    private volatile boolean legacyLiveReads = true;
+
+    @PostConstruct
+    public void init() {
+        if ("primary".equals(readPreferenceName)) {
+            readPreference = ReadPreference.primary();
+        } else {
+            readPreference = ReadPreference.valueOf(readPreferenceName, List.of(), maxStalenessSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    // Reads
+
+    public Optional<Note> findById(String id, String tenantId, String readerId) {
+        return findById(id, tenantId, readerId, readPreference);
+    }
+
+    public Optional<Note> findById(String id, String tenantId, String readerId, ReadPreference route) {
+        Query query = new Query(live(Criteria.where("_id").is(id).and("tenantId").in(references.valuesOf(tenantId))));
+        return Optional.ofNullable(read("findById", tenantId, readerId, query, route,
+                (ops, q, collection) -> ops.findOne(q, Note.class, collection)));
+    }
+
+    // Only _id, tenantId, userId, updatedAt and version, answered from the version index alone
+    public Optional<Note> findVersionById(String id, String tenantId, String readerId) {
+        Query query = new Query(live(Criteria.where("_id").is(id).and("tenantId").in(references.valuesOf(tenantId))))
+                .withHint(NotePartitionDirectory.VERSION_INDEX);
+        query.fields().include("_id", "tenantId", "userId", "updatedAt", "version");
+        return Optional.ofNullable(read("findVersionById", tenantId, readerId, query, readPreference,
+                (ops, q, collection) -> ops.findOne(q, Note.class, collection)));
+    }
+
+    public List<Note> findByTenantIdAndUserId(String tenantId, String userId) {
+        return findByTenantIdAndUserId(tenantId, userId, readPreference);
+    }
+
+    public List<Note> findByTenantIdAndUserId(String tenantId, String userId, ReadPreference route) {
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId))));
+        return read("findByTenantIdAndUserId", tenantId, userId, query, route,
+                (ops, q, collection) -> ops.find(q, Note.class, collection));
+    }
+
+    // Stable page order: ObjectIds grow with insertion time
+    public List<Note> findPageByTenantIdAndUserId(String tenantId, String userId, int page, int size,
+                                                  ReadPreference route) {
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId))))
+                .with(Sort.by("_id"))
+                .skip((long) page * size)
+                .limit(size);
+        return read("findPageByTenantIdAndUserId", tenantId, userId, query, route,
+                (ops, q, collection) -> ops.find(q, Note.class, collection));
+    }
+
+    public List<Note> findByTenantId(String tenantId, String readerId) {
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId))));
+        return read("findByTenantId", tenantId, readerId, query, readPreference,
+                (ops, q, collection) -> ops.find(q, Note.class, collection));
+    }
+
+    // A user's notes with a tag and/or in exactly one folder (null tag or folder: any); page null for all
+    public List<Note> findFiltered(String tenantId, String userId, String tag, String folder, boolean anyFolder,
+                                   Integer page, int size) {
+        Criteria criteria = live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId)));
+        if (tag != null) {
+            criteria.and("tags").is(tag);
+        }
+        if (!anyFolder) {
+            criteria.and("folder").is(folder);
+        }
+        Query query = new Query(criteria).with(Sort.by("_id"));
+        if (page != null) {
+            query.skip((long) page * size).limit(size);
+        }
+        return read("findFiltered", tenantId, userId, query, readPreference,
+                (ops, q, collection) -> ops.find(q, Note.class, collection));
+    }
+
+    // Up to limit of a user's notes in folder or any folder below it; ids and folders only
+    public List<Note> findInFolderTree(String tenantId, String userId, String folder, int limit) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId)))
+                .orOperator(Criteria.where("folder").is(folder), Criteria.where("folder").regex("^" + literalRegex(folder + "/"))))
+                .limit(limit);
+        query.fields().include("_id", "tenantId", "userId", "folder");
+        return target.getTemplate().find(query, Note.class, target.getCollection());
+    }
+
+    /**
+     * Sets each note's folder (noteId -> new folder) with one unordered bulk update. A note
+     * is only moved if it is still in the folder it was read with. Returns the ids of the
+     * notes that were moved.
+     */
+    public Set<String> moveToFolders(String tenantId, List<Note> notes, Map<String, String> folders, LocalDateTime updatedAt) {
+        Set<String> moved = new HashSet<>();
+        List<NotePartitionDirectory.Target> targets = partitionDirectory.placementFor(tenantId).getWriteTargets();
+        NotePartitionDirectory.Target target = targets.get(0);
+        BulkOperations bulk = target.getTemplate().bulkOps(BulkOperations.BulkMode.UNORDERED, Note.class, target.getCollection());
+        for (Note note : notes) {
+            String folder = folders.get(note.getId());
+            Update update = folder == null ? new Update().unset("folder") : new Update().set("folder", folder);
+            bulk.updateOne(new Query(Criteria.where("_id").is(note.getId()).and("folder").is(note.getFolder())),
+                    update.set("updatedAt", updatedAt).inc("version", 1));
+        }
+        int matched = bulk.execute().getMatchedCount();
+        if (matched == notes.size()) {
+            notes.forEach(note -> moved.add(note.getId()));
+        } else {
+            // The bulk result has no per-update counts: a note was moved if it is in its new folder now
+            Query query = new Query(Criteria.where("_id").in(folders.keySet()));
+            query.fields().include("_id", "folder");
+            for (Note current : target.getTemplate().find(query, Note.class, target.getCollection())) {
+                if (Objects.equals(current.getFolder(), folders.get(current.getId()))) {
+                    moved.add(current.getId());
+                }
+            }
+        }
+        copyToMoveTargets(targets, new Query(Criteria.where("_id").in(moved)));
+        return moved;
+    }
+
+    /**
+     * Recounts a user's live notes per tag and per folder on the primary, kind -> value ->
+     * count, with one grouped aggregation per kind over its partial index.
+     */
+    public Map<String, Map<String, Long>> countFacets(String tenantId, String userId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        MongoCollection<Document> collection = target.getTemplate().getCollection(target.getCollection());
+        Document owner = live(Criteria.where("tenantId").in(references.valuesOf(tenantId))
+                .and("userId").in(references.valuesOf(userId))).getCriteriaObject();
+        Map<String, Map<String, Long>> counts = new LinkedHashMap<>();
+        counts.put("tag", group(collection, owner, "tags", true));
+        counts.put("folder", group(collection, new Document(owner).append("folder", new Document("$ne", null)), "folder", false));
+        return counts;
+    }
+
+    private static Map<String, Long> group(MongoCollection<Document> collection, Document match, String field, boolean array) {
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(Aggregates.match(match));
+        pipeline.add(Aggregates.project(Projections.include(field)));
+        if (array) {
+            pipeline.add(Aggregates.unwind("$" + field));
+        }
+        pipeline.add(Aggregates.group("$" + field, Accumulators.sum("count", 1L)));
+        Map<String, Long> counts = new HashMap<>();
+        for (Document group : collection.aggregate(pipeline)) {
+            counts.put(String.valueOf(group.get("_id")), ((Number) group.get("count")).longValue());
+        }
+        return counts;
+    }
+
+    // A page of a user's notes in manual order; notes never positioned sort first
+    public List<Note> findOrderedPage(String tenantId, String userId, Integer page, int size) {
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId))))
+                .with(Sort.by("position", "_id"));
+        if (page != null) {
+            query.skip((long) page * size).limit(size);
+        }
+        return read("findOrderedPage", tenantId, userId, query, readPreference,
+                (ops, q, collection) -> ops.find(q, Note.class, collection));
+    }
+
+    /**
+     * Runs a parsed query over a user's live notes, sorted along the query's index so the
+     * server never sorts in memory. The index is hinted, so the planner cannot fall back to
+     * a collection scan. Throws NoteQueryPendingException until every note carries the live
+     * flag, since the partial indexes do not cover older notes before then.
+     */
+    public List<Note> query(String tenantId, String userId, NoteQuery noteQuery, Integer page, int size) {
+        if (legacyLiveReads) {
+            throw new NoteQueryPendingException();
+        }
+        NoteQuery.Shape shape = noteQuery.getShape();
+        Criteria criteria = live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId)));
+        if (noteQuery.getLowerBound() != null || noteQuery.getUpperBound() != null) {
+            Criteria range = criteria.and(shape.getField());
+            if (noteQuery.getLowerBound() != null) {
+                if (noteQuery.isLowerInclusive()) {
+                    range.gte(noteQuery.getLowerBound());
+                } else {
+                    range.gt(noteQuery.getLowerBound());
+                }
+            }
+            if (noteQuery.getUpperBound() != null) {
+                if (noteQuery.isUpperInclusive()) {
+                    range.lte(noteQuery.getUpperBound());
+                } else {
+                    range.lt(noteQuery.getUpperBound());
+                }
+            }
+        }
+        if (noteQuery.getTitlePrefix() != null) {
+            criteria.and("title").regex("^" + literalRegex(noteQuery.getTitlePrefix()));
+        }
+        Sort.Direction direction = noteQuery.isDescending() ? Sort.Direction.DESC : Sort.Direction.ASC;
+        Sort sort = shape == NoteQuery.Shape.LIVE ? Sort.by(direction, "_id")
+                : Sort.by(direction, shape.getField()).and(Sort.by(direction, "_id"));
+        Query query = new Query(criteria).with(sort);
+        if (page != null) {
+            query.skip((long) page * size).limit(size);
+        }
+        query.withHint(shape.getIndex());
+        if (explainCheck) {
+            assertIndexed(tenantId, query, shape);
+        }
+        return read("query." + shape.getIndex(), tenantId, userId, query, readPreference,
+                (ops, q, collection) -> ops.find(q, Note.class, collection));
+    }
+
+    // Development check: fails the request if the winning plan scans the collection or sorts in memory
+    private void assertIndexed(String tenantId, Query query, NoteQuery.Shape shape) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Document plan = target.getTemplate().getCollection(target.getCollection())
+                .find(query.getQueryObject())
+                .sort(query.getSortObject())
+                .hintString(shape.getIndex())
+                .explain(ExplainVerbosity.QUERY_PLANNER);
+        List<String> stages = new ArrayList<>();
+        collectStages(plan.get("queryPlanner"), stages);
+        if (stages.contains("COLLSCAN") || stages.contains("SORT")) {
+            throw new IllegalStateException("Query " + query.getQueryObject().toJson() + " is not answered from "
+                    + shape.getIndex() + " alone; plan stages " + stages);
+        }
+    }
+
+    private static void collectStages(Object node, List<String> stages) {
+        if (node instanceof Document) {
+            Document document = (Document) node;
+            if (document.get("stage") instanceof String) {
+                stages.add(document.getString("stage"));
+            }
+            for (Map.Entry<String, Object> entry : document.entrySet()) {
+                if (!entry.getKey().equals("rejectedPlans")) {
+                    collectStages(entry.getValue(), stages);
+                }
+            }
+        } else if (node instanceof List) {
+            for (Object item : (List<?>) node) {
+                collectStages(item, stages);
+            }
+        }
+    }
+
+    // Primary reads of positions, answered from note_position alone where possible
+
+    // The key of the note at the end of the user's order, or null if none has one
+    public String findLastPosition(String tenantId, String userId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId))
+                .and("position").ne(null)))
+                .with(Sort.by(Sort.Direction.DESC, "position"))
+                .limit(1);
+        query.fields().include("position").exclude("_id");
+        Note last = target.getTemplate().findOne(query, Note.class, target.getCollection());
+        return last == null ? null : last.getPosition();
+    }
+
+    // The smallest key after position (or the first key, for null) among the user's other notes
+    public String findNextPosition(String tenantId, String userId, String position, String excludeId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Criteria criteria = live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId))
+                .and("_id").ne(excludeId));
+        criteria = position == null ? criteria.and("position").ne(null) : criteria.and("position").gt(position);
+        Query query = new Query(criteria).with(Sort.by("position")).limit(1);
+        query.fields().include("position");
+        Note next = target.getTemplate().findOne(query, Note.class, target.getCollection());
+        return next == null ? null : next.getPosition();
+    }
+
+    /**
+     * The user's other notes that share position with afterId but sort after it (by _id),
+     * in order. Keys are not unique: notes created or moved concurrently can get the same one.
+     */
+    public List<Note> findPositionTies(String tenantId, String userId, String position, String afterId, String excludeId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId))
+                .and("position").is(position)
+                .andOperator(Criteria.where("_id").gt(afterId), Criteria.where("_id").ne(excludeId))))
+                .with(Sort.by("_id"));
+        query.fields().include("_id", "position");
+        return target.getTemplate().find(query, Note.class, target.getCollection());
+    }
+
+    public Optional<Note> findPositionById(String id, String tenantId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Query query = new Query(live(Criteria.where("_id").is(id).and("tenantId").in(references.valuesOf(tenantId))));
+        query.fields().include("_id", "userId", "position");
+        return Optional.ofNullable(target.getTemplate().findOne(query, Note.class, target.getCollection()));
+    }
+
+    // Every live note of a user in manual order; ids and positions only
+    public List<Note> findPositions(String tenantId, String userId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId))))
+                .with(Sort.by("position", "_id"));
+        query.fields().include("_id", "position");
+        return target.getTemplate().find(query, Note.class, target.getCollection());
+    }
+
+    public boolean hasUnpositioned(String tenantId, String userId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId))
+                .and("position").is(null)));
+        return target.getTemplate().exists(query, Note.class, target.getCollection());
+    }
+
+    // Moves one note in its owner's order if its key is still expected; a single-document write
+    public boolean setPosition(String id, String tenantId, String expected, String position) {
+        Query query = new Query(live(Criteria.where("_id").is(id).and("tenantId").in(references.valuesOf(tenantId))
+                .and("position").is(expected)));
+        Update update = new Update().set("position", position);
+        List<NotePartitionDirectory.Target> targets = partitionDirectory.placementFor(tenantId).getWriteTargets();
+        NotePartitionDirectory.Target target = targets.get(0);
+        if (target.getTemplate().updateFirst(query, update, Note.class, target.getCollection()).getMatchedCount() == 0) {
+            return false;
+        }
+        copyToMoveTargets(targets, byId(id));
+        return true;
+    }
+
+    /**
+     * Sets new keys (noteId -> position) with one unordered bulk update. A note whose key
+     * changed since it was read keeps that key.
+     */
+    public void setPositions(String tenantId, List<Note> notes, Map<String, String> positions) {
+        List<NotePartitionDirectory.Target> targets = partitionDirectory.placementFor(tenantId).getWriteTargets();
+        NotePartitionDirectory.Target target = targets.get(0);
+        BulkOperations bulk = target.getTemplate().bulkOps(BulkOperations.BulkMode.UNORDERED, Note.class, target.getCollection());
+        for (Note note : notes) {
+            String position = positions.get(note.getId());
+            if (position != null) {
+                bulk.updateOne(new Query(Criteria.where("_id").is(note.getId()).and("position").is(note.getPosition())),
+                        new Update().set("position", position));
+            }
+        }
+        bulk.execute();
+        copyToMoveTargets(targets, new Query(Criteria.where("_id").in(positions.keySet())));
+    }
+
+    // Most recently trashed first
+    public List<Note> findTrashByTenantIdAndUserId(String tenantId, String userId) {
+        Query query = new Query(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId))
+                .and("deleted").is(true))
+                .with(Sort.by(Sort.Direction.DESC, "deletedAt"));
+        return read("findTrashByTenantIdAndUserId", tenantId, userId, query, readPreference,
+                (ops, q, collection) -> ops.find(q, Note.class, collection));
+    }
+
+    // Primary reads for read-modify-write paths and quota checks
+
+    public Optional<Note> findByIdOnPrimary(String id, String tenantId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Query query = new Query(live(Criteria.where("_id").is(id).and("tenantId").in(references.valuesOf(tenantId))));
+        return Optional.ofNullable(target.getTemplate().findOne(query, Note.class, target.getCollection()));
+    }
+
+    // Identity and version only, like findVersionById, for checking access before a write
+    public Optional<Note> findVersionByIdOnPrimary(String id, String tenantId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Query query = new Query(live(Criteria.where("_id").is(id).and("tenantId").in(references.valuesOf(tenantId))))
+                .withHint(NotePartitionDirectory.VERSION_INDEX);
+        query.fields().include("_id", "tenantId", "userId", "updatedAt", "version");
+        return Optional.ofNullable(target.getTemplate().findOne(query, Note.class, target.getCollection()));
+    }
+
+    public Optional<Note> findTrashedByIdOnPrimary(String id, String tenantId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Query query = new Query(Criteria.where("_id").is(id).and("tenantId").in(references.valuesOf(tenantId))
+                .and("deleted").is(true));
+        return Optional.ofNullable(target.getTemplate().findOne(query, Note.class, target.getCollection()));
+    }
+
+    public long countByTenantId(String tenantId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId))));
+        return target.getTemplate().count(query, Note.class, target.getCollection());
+    }
+
+    public long countByTenantIdAndUserId(String tenantId, String userId) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId))));
+        return target.getTemplate().count(query, Note.class, target.getCollection());
+    }
+
+    public ReadPreference getReadPreference() {
+        return readPreference;
+    }
+
+    // True while the user's reads still need to wait for one of their own writes
+    public boolean hasRecentWrite(String userId) {
+        CausalToken token = userId == null ? null : lastWrites.get(userId);
+        return token != null && !token.isExpired();
+    }
+
+    // Writes (to every target while the tenant is being moved between partitions)
+
+    // Stores a new note at version 1; throws the error that kept it from being stored
+    public Note insert(Note note, String writerId) {
+        RuntimeException failure = insertAll(List.of(note), List.of(writerId))[0];
+        if (failure != null) {
+            throw failure;
+        }
+        return note;
+    }
+
+    public Note save(Note note, String writerId) {
+        return save(note, writerId, null);
+    }
+
+    /**
+     * Saves the note under its next version. With {@code expectedVersion} the write only
+     * applies if the stored note still has that version, checked atomically on the
+     * authoritative (first) target; otherwise an {@link OptimisticLockingFailureException}
+     * is thrown.
+     */
+    public Note save(Note note, String writerId, Long expectedVersion) {
+        replace(note, writerId, expectedVersion);
+        return note;
+    }
+
+    /**
+     * Saves the note as {@link #save(Note, String, Long)} does and returns the tags, folder
+     * and chunk version it had before, read atomically with the write on the first target.
+     */
+    public Note replace(Note note, String writerId, Long expectedVersion) {
+        List<NotePartitionDirectory.Target> targets = partitionDirectory.placementFor(note.getTenantId()).getWriteTargets();
+        try (ClientSession session = mongoClient.startSession(CAUSAL)) {
+            MongoTemplate template = targets.get(0).getTemplate().withSession(session);
+            String collection = targets.get(0).getCollection();
+            Note previous = replaceNextVersion(template, collection, note, expectedVersion);
+            // Positions belong to moves and rebalancing; put back one that changed since the note was read
+            if (previous != null && !Objects.equals(previous.getPosition(), note.getPosition())) {
+                Query query = new Query(Criteria.where("_id").is(note.getId()).and("position").is(note.getPosition()));
+                Update update = previous.getPosition() == null ? new Update().unset("position") : new Update().set("position", previous.getPosition());
+                template.updateFirst(query, update, Note.class, collection);
+                note.setPosition(previous.getPosition());
+            }
+            copyToMoveTargets(targets, byId(note.getId()));
+            recordWrite(writerId, session);
+            return previous;
+        }
+    }
+
+    /**
+     * Replaces the stored note only while it still has the version the replacement is based
+     * on, and stores it as the next one, so two different bodies never share a version (or
+     * an ETag). Without {@code expectedVersion} the write applies whatever is stored: it
+     * rebases onto the current version and retries until it lands. Either way only a live
+     * note is replaced; a note that was trashed or purged meanwhile is never written back,
+     * and an {@link OptimisticLockingFailureException} is thrown instead.
+     */
+    private Note replaceNextVersion(MongoTemplate template, String collection, Note note, Long expectedVersion) {
+        while (true) {
+            long base;
+            if (expectedVersion != null) {
+                base = expectedVersion;
+            } else {
+                Query current = new Query(live(Criteria.where("_id").is(note.getId())
+                        .and("tenantId").in(references.valuesOf(note.getTenantId()))));
+                current.fields().include("version");
+                Note stored = template.findOne(current, Note.class, collection);
+                if (stored == null) {
+                    throw new OptimisticLockingFailureException("Note " + note.getId() + " was deleted concurrently");
+                }
+                base = stored.getVersion();
+            }
+            Criteria criteria = live(Criteria.where("_id").is(note.getId()).and("tenantId").in(references.valuesOf(note.getTenantId())));
+            // Notes stored before the counter existed have no version field
+            criteria = base == 0 ? criteria.and("version").in(0L, null) : criteria.and("version").is(base);
+            Query query = new Query(criteria);
+            query.fields().include("tags", "folder", "position", "chunked", "contentVersion");
+            note.setVersion(base + 1);
+            Note previous = template.findAndReplace(query, note, FindAndReplaceOptions.none(), Note.class, collection);
+            if (previous != null) {
+                return previous;
+            }
+            if (expectedVersion != null) {
+                note.setVersion(base);
+                throw new OptimisticLockingFailureException("Note " + note.getId() + " was modified concurrently");
+            }
+        }
+    }
+
+    /**
+     * Inserts new notes with one unordered bulk insert per target collection, so one bad
+     * note does not fail the rest. Returns, per note, the error that kept it from being
+     * stored on its authoritative target, or null if it was stored. A failure on a move's
+     * second target is only counted: the note is stored, and the move copies whatever the
+     * new location is missing before it drops the old copy.
+     */
+    public RuntimeException[] insertAll(List<Note> notes, List<String> writerIds) {
+        RuntimeException[] failures = new RuntimeException[notes.size()];
+        for (Note note : notes) {
+            note.setVersion(1);
+        }
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        Map<String, List<NotePartitionDirectory.Target>> groupTargets = new HashMap<>();
+        for (int i = 0; i < notes.size(); i++) {
+            List<NotePartitionDirectory.Target> targets = partitionDirectory.placementFor(notes.get(i).getTenantId()).getWriteTargets();
+            StringBuilder key = new StringBuilder();
+            for (NotePartitionDirectory.Target target : targets) {
+                key.append(target.getTemplate().getDb().getName()).append('.').append(target.getCollection()).append('|');
+            }
+            groups.computeIfAbsent(key.toString(), k -> new ArrayList<>()).add(i);
+            groupTargets.putIfAbsent(key.toString(), targets);
+        }
+
+        try (ClientSession session = mongoClient.startSession(CAUSAL)) {
+            for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+                List<NotePartitionDirectory.Target> targets = groupTargets.get(group.getKey());
+                for (int t = 0; t < targets.size(); t++) {
+                    List<Integer> indexes = new ArrayList<>();
+                    List<Note> batch = new ArrayList<>();
+                    for (int i : group.getValue()) {
+                        if (failures[i] == null) {
+                            indexes.add(i);
+                            batch.add(notes.get(i));
+                        }
+                    }
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    NotePartitionDirectory.Target target = targets.get(t);
+                    try {
+                        target.getTemplate().withSession(session)
+                                .bulkOps(BulkOperations.BulkMode.UNORDERED, Note.class, target.getCollection())
+                                .insert(batch)
+                                .execute();
+                    } catch (BulkOperationException e) {
+                        for (BulkWriteError error : e.getErrors()) {
+                            if (t == 0) {
+                                failures[indexes.get(error.getIndex())] = error.getCode() == 11000
+                                        ? new DuplicateKeyException(error.getMessage())
+                                        : new DataIntegrityViolationException(error.getMessage());
+                            } else if (error.getCode() != 11000) {
+                                // On a move target, duplicates are copies that are already there
+                                dualWriteFailed(target, e);
+                                break;
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        if (t > 0) {
+                            dualWriteFailed(target, e);
+                            continue;
+                        }
+                        for (int i : indexes) {
+                            failures[i] = e;
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < notes.size(); i++) {
+                if (failures[i] == null) {
+                    recordWrite(writerIds.get(i), session);
+                }
+            }
+        }
+        return failures;
+    }
+
+    private void dualWriteFailed(NotePartitionDirectory.Target target, RuntimeException e) {
+        meterRegistry.counter("notes.dualwrite.failures").increment();
+        System.err.println("Dual write to " + target.getCollection() + " failed, left to the move's catch-up: " + e.getMessage());
+    }
+
+    /**
+     * Writes the notes matching {@code written}, as they now are on the authoritative target,
+     * to a move's second target. A partial update there would miss notes the move has not
+     * copied yet, and the copy would then bring over the stale document. Each note replaces
+     * (or creates) the copy unless the copy already has a newer version.
+     */
+    private void copyToMoveTargets(List<NotePartitionDirectory.Target> targets, Query written) {
+        if (targets.size() < 2) {
+            return;
+        }
+        NotePartitionDirectory.Target authoritative = targets.get(0);
+        try (Stream<Note> notes = authoritative.getTemplate().stream(written, Note.class, authoritative.getCollection())) {
+            notes.forEach(note -> {
+                for (int i = 1; i < targets.size(); i++) {
+                    copyIfNotNewer(targets.get(i), note);
+                }
+            });
+        }
+    }
+
+    private void copyIfNotNewer(NotePartitionDirectory.Target target, Note note) {
+        Query notNewer = new Query(Criteria.where("_id").is(note.getId())
+                .orOperator(Criteria.where("version").lte(note.getVersion()), Criteria.where("version").exists(false)));
+        try {
+            target.getTemplate().replace(notNewer, note, ReplaceOptions.replaceOptions().upsert(), target.getCollection());
+        } catch (DuplicateKeyException e) {
+            // The copy exists with a newer version, written by a later write
+        } catch (RuntimeException e) {
+            dualWriteFailed(target, e);
+        }
+    }
+
+    private static Query byId(String id) {
+        return new Query(Criteria.where("_id").is(id));
+    }
+
+    /**
+     * Moves a note to the trash with one update; returns false if it was not live. With
+     * {@code expectedVersion} this only applies if the note still has that version;
+     * otherwise an {@link OptimisticLockingFailureException} is thrown.
+     */
+    public boolean trash(String id, String tenantId, String writerId, Long expectedVersion, LocalDateTime deletedAt) {
+        Criteria criteria = live(Criteria.where("_id").is(id).and("tenantId").in(references.valuesOf(tenantId)));
+        Query expected = null;
+        if (expectedVersion != null) {
+            Criteria current = live(Criteria.where("_id").is(id).and("tenantId").in(references.valuesOf(tenantId)));
+            expected = new Query(expectedVersion == 0 ? current.and("version").in(0L, null) : current.and("version").is(expectedVersion));
+        }
+        Update update = new Update().set("deleted", true).set("deletedAt", deletedAt).set("updatedAt", deletedAt).inc("version", 1);
+        try (ClientSession session = mongoClient.startSession(CAUSAL)) {
+            List<NotePartitionDirectory.Target> targets = partitionDirectory.placementFor(tenantId).getWriteTargets();
+            NotePartitionDirectory.Target target = targets.get(0);
+            Query query = expected != null ? expected : new Query(criteria);
+            long matched = target.getTemplate().withSession(session)
+                    .updateFirst(query, update, Note.class, target.getCollection()).getMatchedCount();
+            if (matched == 0) {
+                if (query == expected) {
+                    throw new OptimisticLockingFailureException("Note " + id + " was modified concurrently");
+                }
+                return false;
+            }
+            copyToMoveTargets(targets, byId(id));
+            recordWrite(writerId, session);
+        }
+        return true;
+    }
+
+    // Trashes all of a user's notes with one statement; the purger cleans up later
+    public long trashAll(String tenantId, String userId, String writerId, LocalDateTime deletedAt) {
+        Query query = new Query(live(Criteria.where("tenantId").in(references.valuesOf(tenantId)).and("userId").in(references.valuesOf(userId))));
+        Update update = new Update().set("deleted", true).set("deletedAt", deletedAt).set("updatedAt", deletedAt).inc("version", 1);
+        long trashed;
+        try (ClientSession session = mongoClient.startSession(CAUSAL)) {
+            List<NotePartitionDirectory.Target> targets = partitionDirectory.placementFor(tenantId).getWriteTargets();
+            NotePartitionDirectory.Target target = targets.get(0);
+            trashed = target.getTemplate().withSession(session)
+                    .updateMulti(query, update, Note.class, target.getCollection()).getModifiedCount();
+            // Stored times are truncated to milliseconds; later trashes are copied too, harmlessly
+            copyToMoveTargets(targets, new Query(Criteria.where("tenantId").in(references.valuesOf(tenantId))
+                    .and("userId").in(references.valuesOf(userId))
+                    .and("deleted").is(true)
+                    .and("deletedAt").gte(deletedAt.truncatedTo(ChronoUnit.MILLIS))));
+            recordWrite(writerId, session);
+        }
+        return trashed;
+    }
+
+    // Returns false if the note is not in the trash (never trashed, or already purged)
+    public boolean restore(String id, String tenantId, String writerId, LocalDateTime restoredAt) {
+        Query query = new Query(Criteria.where("_id").is(id).and("tenantId").in(references.valuesOf(tenantId))
+                .and("deleted").is(true));
+        Update update = new Update().set("deleted", false).unset("deletedAt").set("updatedAt", restoredAt).inc("version", 1);
+        try (ClientSession session = mongoClient.startSession(CAUSAL)) {
+            List<NotePartitionDirectory.Target> targets = partitionDirectory.placementFor(tenantId).getWriteTargets();
+            NotePartitionDirectory.Target target = targets.get(0);
+            long matched = target.getTemplate().withSession(session)
+                    .updateFirst(query, update, Note.class, target.getCollection()).getMatchedCount();
+            if (matched == 0) {
+                return false;
+            }
+            copyToMoveTargets(targets, byId(id));
+            recordWrite(writerId, session);
+        }
+        return true;
+    }
+
+    // Trashed notes in one collection deleted before cutoff, oldest first, without their bodies
+    public List<Note> findExpiredTrash(NotePartitionDirectory.Target target, LocalDateTime cutoff, int limit) {
+        Query query = new Query(Criteria.where("deleted").is(true).and("deletedAt").lt(cutoff))
+                .with(Sort.by(Sort.Direction.ASC, "deletedAt"))
+                .limit(limit);
+        query.fields().include("_id", "tenantId", "userId", "chunked", "archived");
+        return target.getTemplate().find(query, Note.class, target.getCollection());
+    }
+
+    // Removes a note for good, but only if it is still in the trash
+    public boolean purge(String id, String tenantId) {
+        Query query = new Query(Criteria.where("_id").is(id).and("tenantId").in(references.valuesOf(tenantId))
+                .and("deleted").is(true));
+        List<NotePartitionDirectory.Target> targets = partitionDirectory.placementFor(tenantId).getWriteTargets();
+        for (int i = 0; i < targets.size(); i++) {
+            NotePartitionDirectory.Target target = targets.get(i);
+            long removed = target.getTemplate().remove(query, Note.class, target.getCollection()).getDeletedCount();
+            if (i == 0 && removed == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A tenant's notes last changed (and last promoted) before cutoff that still hold their body here
+    public List<Note> findArchiveCandidates(String tenantId, LocalDateTime cutoff, int limit) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        Criteria criteria = live(Criteria.where("tenantId").in(references.valuesOf(tenantId))
+                .and("archived").in(false, null)
+                .and("chunked").in(false, null)
+                .and("updatedAt").lt(cutoff))
+                .orOperator(Criteria.where("promotedAt").is(null), Criteria.where("promotedAt").lt(cutoff));
+        return target.getTemplate().find(new Query(criteria).limit(limit), Note.class, target.getCollection());
+    }
+
+    /**
+     * Replaces a note's stored body with the archived flag, leaving a stub. Only applies if
+     * the note still has the version that was copied to the archive; returns false otherwise.
+     */
+    public boolean stub(Note note) {
+        Query query = new Query(atVersion(live(Criteria.where("_id").is(note.getId())
+                .and("tenantId").in(references.valuesOf(note.getTenantId()))
+                .and("archived").in(false, null)), note.getVersion()));
+        Update update = new Update().set("archived", true)
+                .unset(NoteContentCodec.CONTENT)
+                .unset(NoteContentCodec.COMPRESSED_CONTENT)
+                .unset(NoteContentCodec.CODEC)
+                .unset(NoteContentCodec.LENGTH);
+        List<NotePartitionDirectory.Target> targets = partitionDirectory.placementFor(note.getTenantId()).getWriteTargets();
+        NotePartitionDirectory.Target target = targets.get(0);
+        if (target.getTemplate().updateFirst(query, update, Note.class, target.getCollection()).getMatchedCount() == 0) {
+            return false;
+        }
+        copyToMoveTargets(targets, byId(note.getId()));
+        return true;
+    }
+
+    /**
+     * Stores an archived note's body in the hot collection again, setting only the body
+     * fields a stub lacks. Only applies if the note is still the stub of that version, so a
+     * concurrent write is never overwritten; returns false otherwise.
+     */
+    public boolean unstub(Note note, String content, LocalDateTime promotedAt) {
+        Query query = new Query(atVersion(live(Criteria.where("_id").is(note.getId())
+                .and("tenantId").in(references.valuesOf(note.getTenantId()))
+                .and("archived").is(true)), note.getVersion()));
+        Document body = new Document(NoteContentCodec.CONTENT, content);
+        if (codec.isEnabled()) {
+            codec.encodeInto(body, content);
+        }
+        Update update = new Update().set("archived", false).set("promotedAt", promotedAt);
+        body.forEach(update::set);
+        List<NotePartitionDirectory.Target> targets = partitionDirectory.placementFor(note.getTenantId()).getWriteTargets();
+        NotePartitionDirectory.Target target = targets.get(0);
+        if (target.getTemplate().updateFirst(query, update, Note.class, target.getCollection()).getMatchedCount() == 0) {
+            return false;
+        }
+        copyToMoveTargets(targets, byId(note.getId()));
+        return true;
+    }
+
+    // Turned off once every note stores its deleted flag, so the partial live index covers them all
+    public void setLegacyLiveReads(boolean legacyLiveReads) {
+        this.legacyLiveReads = legacyLiveReads;
+    }
+
+    public boolean isLegacyLiveReads() {
+        return legacyLiveReads;
+    }
+
+    // Escapes each character individually so the server can still use the prefix for index bounds
+    private static String literalRegex(String text) {
+        return text.replaceAll("[\\\\^$.|?*+()\\[\\]{}]", "\\\\$0");
+    }
+
+    // Notes stored before the counter existed have no version field
+    private static Criteria atVersion(Criteria criteria, long version) {
+        return version == 0 ? criteria.and("version").in(0L, null) : criteria.and("version").is(version);
+    }
+
+    // Restricts criteria to notes that are not in the trash
+    private Criteria live(Criteria criteria) {
+        return legacyLiveReads ? criteria.and("deleted").in(false, null) : criteria.and("deleted").is(false);
+    }
+
+    private <T> T read(String queryName, String tenantId, String readerId, Query query, ReadPreference route,
+                       ReadOperation<T> reader) {
+        NotePartitionDirectory.Target target = partitionDirectory.placementFor(tenantId).getReadTarget();
+        query.withReadPreference(route);
+        if (readMaxTimeMs > 0) {
+            query.maxTimeMsec(readMaxTimeMs);
+        }
+        CausalToken token = readerId == null ? null : lastWrites.get(readerId);
+        if (token == null || token.isExpired()) {
+            count(queryName, route, false);
+            return reader.apply(target.getTemplate(), query, target.getCollection());
+        }
+
+        count(queryName, route, true);
+        query.withReadConcern(ReadConcern.MAJORITY);
+        try (ClientSession session = mongoClient.startSession(CAUSAL)) {
+            if (token.clusterTime != null) {
+                session.advanceClusterTime(token.clusterTime);
+            }
+            if (token.operationTime != null) {
+                session.advanceOperationTime(token.operationTime);
+            }
+            return reader.apply(target.getTemplate().withSession(session), query, target.getCollection());
+        }
+    }
+
+    private void recordWrite(String writerId, ClientSession session) {
+        if (writerId == null) {
+            return;
+        }
+        long expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(maxStalenessSeconds);
+        lastWrites.put(writerId, new CausalToken(session.getClusterTime(), session.getOperationTime(), expiresAt));
+    }
+
+    private void count(String queryName, ReadPreference route, boolean causal) {
+        String routeName = route.getName() + (causal ? "-causal" : "");
+        routeCounters.computeIfAbsent(queryName + "|" + routeName, k -> Counter.builder("notes.read.route")
+                .tag("query", queryName)
+                .tag("route", routeName)
+                .register(meterRegistry)).increment();
+    }
+
+    @Scheduled(fixedDelayString = "${notes.read.token-sweep-interval-ms:60000}")
+    public void evictExpiredTokens() {
+        lastWrites.values().removeIf(CausalToken::isExpired);
+    }
+
+    @FunctionalInterface
+    private interface ReadOperation<T> {
+        T apply(MongoTemplate template, Query query, String collection);
+    }
+
+    private static final class CausalToken {
+        final BsonDocument clusterTime;
+        final BsonTimestamp operationTime;
+        final long expiresAt;
+
+        CausalToken(BsonDocument clusterTime, BsonTimestamp operationTime, long expiresAt) {
+            this.clusterTime = clusterTime;
+            this.operationTime = operationTime;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+}
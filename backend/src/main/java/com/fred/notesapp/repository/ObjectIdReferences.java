@@ -0,0 +1,64 @@
+package com.fred.notesapp.repository;
+
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.User;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveCallback;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Stores the tenantId and userId references of notes and users as ObjectIds instead of
+ * 24-character hex strings (12 bytes instead of 29 per value, in documents and index keys).
+ * The entities keep String ids; reading an ObjectId into a String is built into the converter.
+ *
+ * Until the background migration has converted every old document, queries match both
+ * forms via {@link #valuesOf(String)}. The migration records its completion, so this is
+ * switched off again shortly after a restart instead of staying on until a full rescan.
+ *
+ * This is a save callback rather than {@code @Field(targetType = OBJECT_ID)} on purpose:
+ * the annotation also converts query values, which would turn the string form passed by
+ * valuesOf into an ObjectId and stop matching unmigrated documents during the migration.
+ */
+@Component
+public class ObjectIdReferences implements BeforeSaveCallback<Object> {
+
+    private volatile boolean legacyReads = true;
+
+    @Override
+    public Object onBeforeSave(Object entity, Document document, String collection) {
+        if (entity instanceof Note) {
+            toObjectId(document, "tenantId");
+            toObjectId(document, "userId");
+        } else if (entity instanceof User) {
+            toObjectId(document, "tenantId");
+        }
+        return entity;
+    }
+
+    // Values a reference may be stored as, for use with $in
+    public List<Object> valuesOf(String id) {
+        if (id == null || !ObjectId.isValid(id)) {
+            return List.of(id == null ? "" : id);
+        }
+        return legacyReads ? List.of(new ObjectId(id), id) : List.of(new ObjectId(id));
+    }
+
+    public boolean isLegacyReads() {
+        return legacyReads;
+    }
+
+    // Called once no string references are left
+    public void setLegacyReads(boolean legacyReads) {
+        this.legacyReads = legacyReads;
+    }
+
+    private static void toObjectId(Document document, String field) {
+        Object value = document.get(field);
+        if (value instanceof String && ObjectId.isValid((String) value)) {
+            document.put(field, new ObjectId((String) value));
+        }
+    }
+}
@@ -2,13 +2,17 @@ package com.fred.notesapp.repository;
 
 import com.fred.notesapp.model.User;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface UserRepository extends MongoRepository<User, String> {
-    Optional<User> findByEmailAndTenantId(String email, String tenantId);
+    // tenantIds from ObjectIdReferences.valuesOf, so documents not yet migrated still match
+    @Query("{ 'email': ?0, 'tenantId': { $in: ?1 } }")
+    Optional<User> findByEmailAndTenantIdIn(String email, List<Object> tenantIds);
     Optional<User> findByEmail(String email);
     void deleteAll();
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package com.fred.notesapp.security;
 
+import com.fred.notesapp.collab.CollabWebSocketHandler;
+import com.fred.notesapp.service.TenantPlanCache;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
@@ -14,6 +16,8 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
 
 @Component
 public class JwtRequestFilter extends OncePerRequestFilter {
@@ -24,12 +28,16 @@ public class JwtRequestFilter extends OncePerRequestFilter {
     @Autowired
     private JwtUtil jwtUtil;
     
+    @Autowired
+    private RateLimiter rateLimiter;
+    
+    @Autowired
+    private TenantPlanCache tenantPlanCache;
+    
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
             throws ServletException, IOException {
         
-        System.out.println("Processing request: " + request.getMethod() + " " + request.getRequestURI());
-        
         // Skip authentication for login, init, health, and test endpoints
         // Also skip for OPTIONS requests (CORS preflight)
         String requestURI = request.getRequestURI();
@@ -43,7 +51,6 @@ public class JwtRequestFilter extends OncePerRequestFilter {
             requestURI.equals("/test-users") ||
             requestURI.startsWith("/swagger") ||
             requestURI.startsWith("/v3/api-docs")) {
-            System.out.println("Skipping authentication for: " + method + " " + requestURI);
             chain.doFilter(request, response);
             return;
         }
@@ -55,27 +62,43 @@ public class JwtRequestFilter extends OncePerRequestFilter {
         
         if (authorizationHeader != null && authorizationHeader.startsWith("Bearer ")) {
             jwt = authorizationHeader.substring(7);
+        } else if (requestURI.endsWith("/collab")) {
+            // Browsers cannot set headers on a WebSocket handshake, but can offer subprotocols
+            jwt = tokenFromSubprotocols(request.getHeaders("Sec-WebSocket-Protocol"));
+        }
+        
+        if (jwt != null) {
             try {
                 email = jwtUtil.extractEmail(jwt);
-                System.out.println("Extracted email from JWT: " + email);
             } catch (Exception e) {
                 System.err.println("Error extracting email from JWT: " + e.getMessage());
-                System.err.println("JWT token: " + jwt);
                 e.printStackTrace();
             }
         }
         
+        // Rate limit per tenant and per user before loading the user, so a flood of requests
+        // is shed without a database read each; a parsed email means the signature was valid
+        if (email != null) {
+            String tenantSlug = TenantPlanCache.slugFromEmail(email).orElse("");
+            long waitNanos = rateLimiter.tryAcquire(tenantSlug, email, tenantPlanCache.getPlan(tenantSlug));
+            if (waitNanos > 0) {
+                long retryAfterSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+                response.setStatus(429);
+                response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+                response.getWriter().write("Rate limit exceeded");
+                return;
+            }
+        }
+        
         if (email != null && SecurityContextHolder.getContext().getAuthentication() == null) {
             try {
                 UserDetails userDetails = this.userDetailsService.loadUserByUsername(email);
-                System.out.println("Loaded user details for: " + email);
                 
                 if (jwtUtil.validateToken(jwt, userDetails.getUsername())) {
                     UsernamePasswordAuthenticationToken usernamePasswordAuthenticationToken = 
                             new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
                     usernamePasswordAuthenticationToken.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
                     SecurityContextHolder.getContext().setAuthentication(usernamePasswordAuthenticationToken);
-                    System.out.println("Authentication set for user: " + email);
                 } else {
                     System.out.println("JWT token validation failed for user: " + email);
                 }
@@ -83,12 +106,20 @@ public class JwtRequestFilter extends OncePerRequestFilter {
                 System.err.println("Error loading user details: " + e.getMessage());
                 e.printStackTrace();
             }
-        } else if (email == null && authorizationHeader != null) {
-            System.out.println("No email extracted from JWT, authorization header: " + authorizationHeader);
-        } else if (SecurityContextHolder.getContext().getAuthentication() != null) {
-            System.out.println("Authentication already exists in context");
         }
         
         chain.doFilter(request, response);
     }
+    
+    private static String tokenFromSubprotocols(Enumeration<String> headers) {
+        while (headers != null && headers.hasMoreElements()) {
+            for (String protocol : headers.nextElement().split(",")) {
+                String candidate = protocol.trim();
+                if (candidate.startsWith(CollabWebSocketHandler.TOKEN_SUBPROTOCOL_PREFIX)) {
+                    return candidate.substring(CollabWebSocketHandler.TOKEN_SUBPROTOCOL_PREFIX.length());
+                }
+            }
+        }
+        return null;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.fred.notesapp.security;
+
+/**
+ * Thrown when the password hashing pool is saturated (queue full) or a hashing
+ * task did not finish in time. Controllers translate this into a 503.
+ */
+public class PasswordHashingRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public PasswordHashingRejectedException(String message) {
+        super(message);
+    }
+
+    public PasswordHashingRejectedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
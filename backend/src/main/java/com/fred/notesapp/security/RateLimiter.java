@@ -0,0 +1,168 @@
+package com.fred.notesapp.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-tenant and per-user token buckets, with limits chosen by the tenant's plan.
+ *
+ * Each bucket is a single {@link AtomicLong} holding its "theoretical arrival time"
+ * (the GCRA formulation of a token bucket), so a check is one map lookup plus one CAS
+ * and never blocks. Buckets live in {@link ConcurrentHashMap}s, whose bins are striped
+ * and whose reads are lock-free. A bucket whose arrival time is in the past is full,
+ * which is indistinguishable from a fresh bucket, so idle eviction loses no state.
+ */
+@Component
+public class RateLimiter {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${ratelimit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${ratelimit.free.tenant-rps:50}")
+    private double freeTenantRps;
+
+    @Value("${ratelimit.free.tenant-burst:100}")
+    private int freeTenantBurst;
+
+    @Value("${ratelimit.free.user-rps:10}")
+    private double freeUserRps;
+
+    @Value("${ratelimit.free.user-burst:20}")
+    private int freeUserBurst;
+
+    @Value("${ratelimit.pro.tenant-rps:500}")
+    private double proTenantRps;
+
+    @Value("${ratelimit.pro.tenant-burst:1000}")
+    private int proTenantBurst;
+
+    @Value("${ratelimit.pro.user-rps:50}")
+    private double proUserRps;
+
+    @Value("${ratelimit.pro.user-burst:100}")
+    private int proUserBurst;
+
+    private final ConcurrentHashMap<String, AtomicLong> tenantBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> userBuckets = new ConcurrentHashMap<>();
+
+    private Limit freeTenant;
+    private Limit freeUser;
+    private Limit proTenant;
+    private Limit proUser;
+    private Counter tenantLimited;
+    private Counter userLimited;
+
+    @PostConstruct
+    public void init() {
+        freeTenant = new Limit(freeTenantRps, freeTenantBurst);
+        freeUser = new Limit(freeUserRps, freeUserBurst);
+        proTenant = new Limit(proTenantRps, proTenantBurst);
+        proUser = new Limit(proUserRps, proUserBurst);
+        tenantLimited = Counter.builder("ratelimit.limited").tag("scope", "tenant").register(meterRegistry);
+        userLimited = Counter.builder("ratelimit.limited").tag("scope", "user").register(meterRegistry);
+        Gauge.builder("ratelimit.buckets", tenantBuckets, ConcurrentHashMap::size).tag("scope", "tenant").register(meterRegistry);
+        Gauge.builder("ratelimit.buckets", userBuckets, ConcurrentHashMap::size).tag("scope", "user").register(meterRegistry);
+    }
+
+    /**
+     * Takes one token from the tenant bucket and one from the user bucket, or from
+     * neither: a request rejected by one bucket does not spend a token from the other.
+     *
+     * @return 0 if the request may proceed, otherwise the nanoseconds until it could be retried
+     */
+    public long tryAcquire(String tenantSlug, String email, String plan) {
+        if (!enabled) {
+            return 0;
+        }
+        boolean pro = "PRO".equals(plan);
+        Limit tenantLimit = pro ? proTenant : freeTenant;
+        Limit userLimit = pro ? proUser : freeUser;
+        long now = System.nanoTime();
+        AtomicLong tenantBucket = bucket(tenantBuckets, tenantSlug, now);
+        AtomicLong userBucket = bucket(userBuckets, email, now);
+        while (true) {
+            // Check both before committing either
+            long tenantTat = tenantBucket.get();
+            long tenantWait = excess(tenantTat, tenantLimit, now);
+            if (tenantWait > 0) {
+                tenantLimited.increment();
+                return tenantWait;
+            }
+            long userWait = excess(userBucket.get(), userLimit, now);
+            if (userWait > 0) {
+                userLimited.increment();
+                return userWait;
+            }
+            if (!tenantBucket.compareAndSet(tenantTat, next(tenantTat, tenantLimit, now))) {
+                continue;
+            }
+            userWait = acquire(userBucket, userLimit, now);
+            if (userWait == 0) {
+                return 0;
+            }
+            // Another request from this user took the last token in between; give the tenant's back
+            tenantBucket.addAndGet(-tenantLimit.intervalNanos);
+            userLimited.increment();
+            return userWait;
+        }
+    }
+
+    private static AtomicLong bucket(ConcurrentHashMap<String, AtomicLong> buckets, String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        return bucket != null ? bucket : buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+
+    private static long acquire(AtomicLong bucket, Limit limit, long now) {
+        while (true) {
+            long tat = bucket.get();
+            long excess = excess(tat, limit, now);
+            if (excess > 0) {
+                return excess;
+            }
+            if (bucket.compareAndSet(tat, next(tat, limit, now))) {
+                return 0;
+            }
+        }
+    }
+
+    // The arrival time after taking a token, and how far that overshoots the burst
+    private static long next(long tat, Limit limit, long now) {
+        return (tat - now > 0 ? tat : now) + limit.intervalNanos;
+    }
+
+    private static long excess(long tat, Limit limit, long now) {
+        return next(tat, limit, now) - now - limit.toleranceNanos;
+    }
+
+    // Drop buckets that have fully refilled; they carry no information
+    @Scheduled(fixedDelayString = "${ratelimit.eviction-interval-ms:60000}")
+    public void evictIdleBuckets() {
+        long now = System.nanoTime();
+        tenantBuckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+        userBuckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+
+    private static final class Limit {
+        // Nanoseconds between tokens, and how far ahead of "now" the bucket may run (the burst)
+        final long intervalNanos;
+        final long toleranceNanos;
+
+        Limit(double ratePerSecond, int burst) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+            this.toleranceNanos = intervalNanos * Math.max(burst, 1);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.model.Attachment;
+import com.fred.notesapp.model.AttachmentBlob;
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.TenantUsage;
+import com.fred.notesapp.repository.AttachmentRepository;
+import com.fred.notesapp.repository.NoteContentTooLargeException;
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Note attachments stored in the "attachments" GridFS bucket.
+ *
+ * Uploads stream straight into GridFS while a SHA-256 is computed on the fly. If the
+ * tenant already has a blob with that hash, the new file is dropped and the existing
+ * blob's reference count is incremented instead. Only new blobs count against the
+ * tenant's quota: the bytes are reserved with a conditional $inc on tenant_usage.
+ */
+@Service
+public class AttachmentService {
+
+    @Autowired
+    private AttachmentRepository attachmentRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${attachments.max-bytes:104857600}")
+    private long maxBytes;
+
+    private GridFSBucket bucket;
+    private volatile boolean indexed;
+    private Counter stored;
+    private Counter deduplicated;
+
+    @PostConstruct
+    public void init() {
+        bucket = GridFSBuckets.create(mongoTemplate.getDb(), "attachments");
+        stored = Counter.builder("attachments.uploads").tag("result", "stored").register(meterRegistry);
+        deduplicated = Counter.builder("attachments.uploads").tag("result", "deduplicated").register(meterRegistry);
+    }
+
+    // quotaBytes is the tenant's total attachment allowance, decided by NoteService from the plan
+    public Attachment upload(Note note, String userId, String filename, String contentType, InputStream body,
+                             long quotaBytes) throws IOException {
+        String tenantId = note.getTenantId();
+        long remaining = quotaBytes - getUsedBytes(tenantId);
+        if (remaining <= 0) {
+            throw new StorageQuotaExceededException();
+        }
+
+        MessageDigest digest = sha256();
+        // Anything over the remaining quota would be rejected anyway, unless it deduplicates
+        CountingInputStream in = new CountingInputStream(new DigestInputStream(body, digest), Math.min(maxBytes, remaining));
+        ObjectId fileId;
+        try {
+            fileId = bucket.uploadFromStream(filename, in,
+                    new GridFSUploadOptions().metadata(new Document("tenantId", tenantId).append("contentType", contentType)));
+        } catch (MongoGridFSException e) {
+            // The driver has already removed the partial upload
+            if (e.getCause() instanceof LimitExceededException) {
+                throw new NoteContentTooLargeException(((LimitExceededException) e.getCause()).limit);
+            }
+            throw e;
+        }
+        long size = in.count;
+        String sha256 = HexFormat.of().formatHex(digest.digest());
+
+        attachBlob(tenantId, sha256, fileId, size, quotaBytes);
+        return attachmentRepository.save(new Attachment(note.getId(), tenantId, userId, filename, contentType, size, sha256));
+    }
+
+    public List<Attachment> findByNote(Note note) {
+        ensureIndex();
+        return attachmentRepository.findByNoteId(note.getId());
+    }
+
+    public Optional<Attachment> findById(Note note, String attachmentId) {
+        return attachmentRepository.findByIdAndNoteId(attachmentId, note.getId());
+    }
+
+    // Copies bytes [start, endInclusive]; GridFS skips whole chunks without reading them
+    public void copyTo(Attachment attachment, long start, long endInclusive, OutputStream out) throws IOException {
+        AttachmentBlob blob = mongoTemplate.findById(blobId(attachment.getTenantId(), attachment.getSha256()), AttachmentBlob.class);
+        if (blob == null) {
+            throw new IOException("Attachment data missing for " + attachment.getId());
+        }
+        try (InputStream in = bucket.openDownloadStream(new ObjectId(blob.getFileId()))) {
+            in.skipNBytes(start);
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = endInclusive - start + 1;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Attachment data truncated for " + attachment.getId());
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    public void delete(Attachment attachment) {
+        attachmentRepository.delete(attachment);
+        releaseBlob(attachment.getTenantId(), attachment.getSha256());
+    }
+
+    public void deleteAllForNote(Note note) {
+        ensureIndex();
+        for (Attachment attachment : attachmentRepository.findByNoteId(note.getId())) {
+            delete(attachment);
+        }
+    }
+
+    public long getUsedBytes(String tenantId) {
+        TenantUsage usage = mongoTemplate.findById(tenantId, TenantUsage.class);
+        return usage == null ? 0 : usage.getAttachmentBytes();
+    }
+
+    private void attachBlob(String tenantId, String sha256, ObjectId fileId, long size, long quotaBytes) {
+        String id = blobId(tenantId, sha256);
+        while (true) {
+            // Identical content already stored for this tenant: share it
+            AttachmentBlob existing = mongoTemplate.findAndModify(Query.query(Criteria.where("_id").is(id)),
+                    new Update().inc("refCount", 1), AttachmentBlob.class);
+            if (existing != null) {
+                bucket.delete(fileId);
+                deduplicated.increment();
+                return;
+            }
+
+            try {
+                reserveBytes(tenantId, size, quotaBytes);
+            } catch (StorageQuotaExceededException e) {
+                bucket.delete(fileId);
+                throw e;
+            }
+            try {
+                mongoTemplate.insert(new AttachmentBlob(tenantId, sha256, fileId.toHexString(), size));
+                stored.increment();
+                return;
+            } catch (DuplicateKeyException e) {
+                // Lost a race with an identical upload; undo and share theirs
+                adjustUsage(tenantId, -size);
+            }
+        }
+    }
+
+    private void releaseBlob(String tenantId, String sha256) {
+        String id = blobId(tenantId, sha256);
+        AttachmentBlob blob = mongoTemplate.findAndModify(Query.query(Criteria.where("_id").is(id)),
+                new Update().inc("refCount", -1), FindAndModifyOptions.options().returnNew(true), AttachmentBlob.class);
+        if (blob == null || blob.getRefCount() > 0) {
+            return;
+        }
+        // Only remove it if no upload has started sharing it again meanwhile
+        if (mongoTemplate.remove(Query.query(Criteria.where("_id").is(id).and("refCount").lte(0)), AttachmentBlob.class)
+                .getDeletedCount() > 0) {
+            bucket.delete(new ObjectId(blob.getFileId()));
+            adjustUsage(tenantId, -blob.getSize());
+        }
+    }
+
+    // Atomically adds size to the tenant's usage unless that would exceed the quota
+    private void reserveBytes(String tenantId, long size, long quotaBytes) {
+        if (size > quotaBytes) {
+            throw new StorageQuotaExceededException();
+        }
+        try {
+            mongoTemplate.upsert(Query.query(Criteria.where("_id").is(tenantId).and("attachmentBytes").lte(quotaBytes - size)),
+                    new Update().inc("attachmentBytes", size), TenantUsage.class);
+        } catch (DuplicateKeyException e) {
+            // The usage document exists but the condition failed
+            throw new StorageQuotaExceededException();
+        }
+    }
+
+    private void adjustUsage(String tenantId, long delta) {
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(tenantId)),
+                new Update().inc("attachmentBytes", delta), TenantUsage.class);
+    }
+
+    // Index annotations are not auto-created here; done on first use so startup does not need MongoDB
+    private void ensureIndex() {
+        if (!indexed) {
+            mongoTemplate.indexOps(Attachment.class).ensureIndex(new Index().on("noteId", Sort.Direction.ASC));
+            indexed = true;
+        }
+    }
+
+    private static String blobId(String tenantId, String sha256) {
+        return tenantId + ":" + sha256;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // An IOException so GridFS aborts the upload and deletes the chunks written so far
+    private static final class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long limit;
+
+        LimitExceededException(long limit) {
+            super("Upload exceeds " + limit + " bytes");
+            this.limit = limit;
+        }
+    }
+
+    // Counts bytes read and stops the upload once it passes the limit
+    private static final class CountingInputStream extends FilterInputStream {
+        private final long limit;
+        private long count;
+
+        CountingInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                add(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                add(n);
+            }
+            return n;
+        }
+
+        private void add(long n) throws LimitExceededException {
+            count += n;
+            if (count > limit) {
+                throw new LimitExceededException(limit);
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.fred.notesapp.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Turns many concurrent single writes into few batched ones. Producers put items into a
+ * bounded lock-free ring buffer; one committer thread takes up to maxBatch of them, waiting
+ * at most maxDelay after the first for more to arrive, and hands them to the writer in one
+ * call. Each item's future completes only after its batch has been written.
+ *
+ * With maxDelay of zero the committer never waits: batches are whatever queued up while
+ * the previous write was in flight, so latency is never worse than writing one at a time.
+ */
+public class GroupCommitter<T> {
+
+    // Writes a batch, setting failures[i] for each item that was not stored
+    public interface BatchWriter<T> {
+        void write(List<T> items, RuntimeException[] failures);
+    }
+
+    private final Ring<Entry<T>> ring;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final BatchWriter<T> writer;
+    private final Thread committer;
+    private final DistributionSummary batchSizes;
+    private final Timer commitTimer;
+    private volatile boolean waiting;
+    private volatile boolean closed;
+
+    public GroupCommitter(String name, int capacity, int maxBatch, long maxDelay, TimeUnit unit,
+                          BatchWriter<T> writer, MeterRegistry meterRegistry) {
+        this.ring = new Ring<>(capacity);
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.writer = writer;
+        this.batchSizes = DistributionSummary.builder("groupcommit.batch.size").tag("name", name).register(meterRegistry);
+        this.commitTimer = Timer.builder("groupcommit.commit").tag("name", name).register(meterRegistry);
+        this.committer = new Thread(this::run, "group-commit-" + name);
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * Queues an item. Returns null if the buffer is full or the committer is shut down;
+     * the caller should then write the item itself.
+     */
+    public CompletableFuture<Void> submit(T item) {
+        if (closed) {
+            return null;
+        }
+        Entry<T> entry = new Entry<>(item);
+        if (!ring.offer(entry)) {
+            return null;
+        }
+        if (waiting) {
+            LockSupport.unpark(committer);
+        }
+        if (closed && !committer.isAlive()) {
+            // Raced with close after the committer's last look at the ring
+            failQueued();
+        }
+        return entry.future;
+    }
+
+    /**
+     * Writes everything already queued, then stops the committer. Whatever is left is failed
+     * only once the committer has terminated: while it is still writing (a slow batch past
+     * the join timeout), it remains the ring's only consumer and writes the rest itself.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(committer);
+        try {
+            committer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (committer.isAlive()) {
+            System.err.println(committer.getName() + " still writing after 30s; it will finish the queued writes on its own");
+            return;
+        }
+        failQueued();
+    }
+
+    // Only called once the committer has terminated; synchronized so there is still a single consumer
+    private synchronized void failQueued() {
+        Entry<T> entry;
+        while ((entry = ring.poll()) != null) {
+            entry.future.completeExceptionally(new IllegalStateException("Write pipeline is shut down"));
+        }
+    }
+
+    private void run() {
+        List<Entry<T>> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            Entry<T> first = ring.poll();
+            if (first == null) {
+                if (closed) {
+                    return;
+                }
+                await(TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+            batch.add(first);
+            long deadline = System.nanoTime() + maxDelayNanos;
+            while (batch.size() < maxBatch) {
+                Entry<T> next = ring.poll();
+                if (next != null) {
+                    batch.add(next);
+                    continue;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || closed) {
+                    break;
+                }
+                await(remaining);
+            }
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    // Parks until a producer signals or the timeout passes; the flag is set before re-checking so no signal is lost
+    private void await(long nanos) {
+        waiting = true;
+        if (ring.isEmpty() && !closed) {
+            LockSupport.parkNanos(this, nanos);
+        }
+        waiting = false;
+    }
+
+    private void commit(List<Entry<T>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Entry<T> entry : batch) {
+            items.add(entry.item);
+        }
+        RuntimeException[] failures = new RuntimeException[batch.size()];
+        long start = System.nanoTime();
+        try {
+            writer.write(items, failures);
+        } catch (RuntimeException e) {
+            for (int i = 0; i < failures.length; i++) {
+                failures[i] = e;
+            }
+        }
+        commitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        batchSizes.record(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            if (failures[i] == null) {
+                batch.get(i).future.complete(null);
+            } else {
+                batch.get(i).future.completeExceptionally(failures[i]);
+            }
+        }
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Entry(T item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * Bounded multi-producer ring buffer (Vyukov's sequence-numbered slots). A producer claims
+     * a slot with one CAS on the tail; the slot's sequence tells the single consumer when the
+     * item is published and tells producers when the slot is free again.
+     */
+    static final class Ring<E> {
+        private final int mask;
+        private final AtomicReferenceArray<E> items;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head; // written by the consumer only
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            mask = size - 1;
+            items = new AtomicReferenceArray<>(size);
+            sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        boolean offer(E item) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        items.set(index, item);
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false; // full
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        E poll() {
+            long position = head;
+            int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1) {
+                return null;
+            }
+            E item = items.get(index);
+            items.set(index, null);
+            sequences.set(index, position + mask + 1);
+            head = position + 1;
+            return item;
+        }
+
+        boolean isEmpty() {
+            return sequences.get((int) (head & mask)) != head + 1;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.repository.MigrationCheckpoints;
+import com.fred.notesapp.repository.NotePartitionDirectory;
+import com.fred.notesapp.repository.NoteStore;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores deleted=false on notes written before the trash existed, so the partial live
+ * index covers them. Until it is complete, queries also treat a missing flag as live.
+ *
+ * Each collection is walked once in _id order from a checkpoint in
+ * {@link MigrationCheckpoints}, one batch per collection per run, so it runs on one node at
+ * a time and the write rate is bounded by the interval. Completion is recorded, so other
+ * nodes and restarts switch to the strict live filter without scanning again.
+ */
+@Service
+public class LiveFlagMigrator {
+
+    private static final String KEY = "live-flag";
+
+    @Autowired
+    private NotePartitionDirectory partitionDirectory;
+
+    @Autowired
+    private NoteStore noteStore;
+
+    @Autowired
+    private MigrationCheckpoints checkpoints;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.live-flag-migration.enabled:true}")
+    private boolean enabled;
+
+    @Value("${notes.live-flag-migration.batch-size:1000}")
+    private int batchSize;
+
+    private Counter migrated;
+
+    @PostConstruct
+    public void init() {
+        migrated = Counter.builder("notes.live-flag.migrated").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${notes.live-flag-migration.interval-ms:2000}",
+            initialDelayString = "${notes.live-flag-migration.interval-ms:2000}")
+    public void migrateBatch() {
+        if (!noteStore.isLegacyLiveReads()) {
+            return;
+        }
+        try {
+            // Finished earlier, possibly by another node
+            if (checkpoints.isComplete(KEY)) {
+                noteStore.setLegacyLiveReads(false);
+                return;
+            }
+            if (!enabled) {
+                return;
+            }
+            boolean done = true;
+            for (NotePartitionDirectory.Target target : partitionDirectory.allTargets()) {
+                done &= migrate(target.getTemplate().getCollection(target.getCollection()));
+            }
+            if (done) {
+                checkpoints.complete(KEY);
+                noteStore.setLegacyLiveReads(false);
+                System.out.println("Live flag migration complete");
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Live flag migration failed: " + e.getMessage());
+        }
+    }
+
+    // Flags the next batch of the collection; returns true once the whole collection has been walked
+    private boolean migrate(MongoCollection<Document> collection) {
+        String key = KEY + ":" + collection.getNamespace().getFullName();
+        if (checkpoints.isComplete(key)) {
+            return true;
+        }
+        MigrationCheckpoints.Checkpoint checkpoint = checkpoints.claim(key);
+        if (checkpoint == null) {
+            // Another node is on it, or just finished it
+            return checkpoints.isComplete(key);
+        }
+        Bson after = checkpoint.getLastId() == null ? new Document() : Filters.gt("_id", checkpoint.getLastId());
+
+        Object last = null;
+        List<Object> missing = new ArrayList<>();
+        for (Document doc : collection.find(after)
+                .projection(Projections.include("deleted"))
+                .sort(Sorts.ascending("_id"))
+                .limit(batchSize)) {
+            last = doc.get("_id");
+            if (!doc.containsKey("deleted")) {
+                missing.add(last);
+            }
+        }
+        if (!missing.isEmpty()) {
+            // Still conditional, so a note trashed meanwhile keeps its flag
+            long modified = collection.updateMany(
+                    Filters.and(Filters.in("_id", missing), Filters.exists("deleted", false)),
+                    Updates.set("deleted", false)).getModifiedCount();
+            migrated.increment(modified);
+        }
+        if (last == null) {
+            checkpoints.complete(key);
+            return true;
+        }
+        checkpoints.advance(key, last);
+        return false;
+    }
+}
@@ -0,0 +1,180 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.cache.RenderedHtmlCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.commonmark.Extension;
+import org.commonmark.ext.gfm.tables.TablesExtension;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
+import org.owasp.html.HtmlPolicyBuilder;
+import org.owasp.html.PolicyFactory;
+import org.owasp.html.Sanitizers;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Renders note Markdown (CommonMark) to HTML and sanitises the result, so raw HTML and
+ * unsafe links in a note can never reach a client as markup. Output is memoised in
+ * {@link RenderedHtmlCache} by a hash of the source, and concurrent renders of the same
+ * source are coalesced.
+ */
+@Service
+public class MarkdownRenderer {
+
+    private static final Pattern CODE_LANGUAGE = Pattern.compile("language-[A-Za-z0-9_+-]{1,32}");
+
+    @Autowired
+    private RenderedHtmlCache cache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Larger sources are not rendered on the request path
+    @Value("${notes.render.max-source-chars:262144}")
+    private int maxSourceChars;
+
+    @Value("${notes.render.preview-chars:280}")
+    private int previewChars;
+
+    @Value("${notes.render.warm.enabled:true}")
+    private boolean warmEnabled;
+
+    @Value("${notes.render.warm-threads:1}")
+    private int warmThreads;
+
+    @Value("${notes.render.warm-queue-capacity:256}")
+    private int warmQueueCapacity;
+
+    private final List<Extension> extensions = List.of(TablesExtension.create());
+    private final Parser parser = Parser.builder().extensions(extensions).build();
+    private final HtmlRenderer renderer = HtmlRenderer.builder().extensions(extensions).sanitizeUrls(true).build();
+    // The code policy comes first: for an element allowed by several, the first one's attributes win
+    private final PolicyFactory policy = new HtmlPolicyBuilder()
+            .allowElements("pre", "hr", "code")
+            .allowAttributes("class").matching(CODE_LANGUAGE).onElements("code")
+            .toFactory()
+            .and(Sanitizers.FORMATTING)
+            .and(Sanitizers.BLOCKS)
+            .and(Sanitizers.LINKS)
+            .and(Sanitizers.IMAGES)
+            .and(Sanitizers.TABLES);
+
+    private SingleFlight<String, String> renders;
+    private ThreadPoolExecutor warmer;
+    private Timer renderTimer;
+    private Counter warmDropped;
+
+    @PostConstruct
+    public void init() {
+        renders = new SingleFlight<>("note.render", meterRegistry, html -> html);
+        AtomicInteger threadIndex = new AtomicInteger();
+        warmer = new ThreadPoolExecutor(warmThreads, warmThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(warmQueueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "markdown-warm-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> warmDropped.increment());
+        renderTimer = Timer.builder("notes.render.duration")
+                .description("Time spent rendering and sanitising Markdown on a cache miss")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        warmDropped = Counter.builder("notes.render.warm.dropped")
+                .description("Cache warm-ups skipped because the warm queue was full")
+                .register(meterRegistry);
+        Gauge.builder("notes.render.warm.queue.size", warmer, e -> e.getQueue().size())
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        warmer.shutdownNow();
+    }
+
+    // Sanitised HTML for the Markdown source; throws IllegalArgumentException if it is too large
+    public String render(String markdown) {
+        if (markdown == null) {
+            return null;
+        }
+        if (markdown.length() > maxSourceChars) {
+            throw new IllegalArgumentException("Note is too large to render (over " + maxSourceChars + " characters)");
+        }
+        String hash = hash(markdown);
+        String html = cache.get(hash);
+        return html != null ? html : renderAndCache(hash, markdown);
+    }
+
+    // HTML of roughly the first preview-chars characters, cut at a paragraph or word boundary
+    public String preview(String markdown) {
+        return markdown == null ? null : render(excerpt(markdown));
+    }
+
+    // Renders the note's full body and preview in the background; skipped if the queue is full
+    public void warm(String markdown) {
+        if (!warmEnabled || markdown == null || markdown.length() > maxSourceChars) {
+            return;
+        }
+        warmer.execute(() -> {
+            try {
+                for (String source : new String[] {markdown, excerpt(markdown)}) {
+                    String hash = hash(source);
+                    if (!cache.contains(hash)) {
+                        renderAndCache(hash, source);
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Warming rendered HTML failed: " + e.getMessage());
+            }
+        });
+    }
+
+    // Warm-ups bypass the request counters, so the hit rate reflects what readers see
+    private String renderAndCache(String hash, String markdown) {
+        return renders.execute(hash, () -> {
+            String rendered = renderTimer.record(() -> policy.sanitize(renderer.render(parser.parse(markdown))));
+            cache.put(hash, rendered);
+            return rendered;
+        });
+    }
+
+    private String excerpt(String markdown) {
+        if (markdown.length() <= previewChars) {
+            return markdown;
+        }
+        int cut = markdown.lastIndexOf("\n\n", previewChars);
+        if (cut <= 0) {
+            cut = markdown.lastIndexOf(' ', previewChars);
+        }
+        if (cut <= 0) {
+            cut = Character.isHighSurrogate(markdown.charAt(previewChars - 1)) ? previewChars - 1 : previewChars;
+        }
+        return markdown.substring(0, cut).stripTrailing() + " \u2026";
+    }
+
+    private static String hash(String markdown) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(markdown.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
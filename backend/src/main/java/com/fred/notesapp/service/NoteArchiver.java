@@ -0,0 +1,202 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.Tenant;
+import com.fred.notesapp.repository.NoteArchive;
+import com.fred.notesapp.repository.NoteStore;
+import com.fred.notesapp.repository.TenantRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves notes that have not changed for a plan-dependent number of days out of the hot
+ * note collections into {@link NoteArchive}, leaving a stub without the body behind.
+ *
+ * Readers get the body back transparently. A note read often enough within one tiering
+ * interval is promoted back to the hot collection and is not archived again until it has
+ * been left alone for the full threshold once more.
+ */
+@Service
+public class NoteArchiver {
+
+    @Autowired
+    private NoteStore noteStore;
+
+    @Autowired
+    private NoteArchive archive;
+
+    @Autowired
+    private TenantRepository tenantRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.archive.enabled:true}")
+    private boolean enabled;
+
+    @Value("${notes.archive.after-days.free:90}")
+    private long freeAfterDays;
+
+    @Value("${notes.archive.after-days.pro:180}")
+    private long proAfterDays;
+
+    @Value("${notes.archive.batch-size:200}")
+    private int batchSize;
+
+    // Single-note reads of an archived note, within one tiering interval, that promote it
+    @Value("${notes.archive.promote-after-reads:3}")
+    private int promoteAfterReads;
+
+    @Value("${notes.archive.max-tracked-reads:10000}")
+    private int maxTrackedReads;
+
+    private final Map<String, AtomicInteger> reads = new ConcurrentHashMap<>();
+    private Counter archived;
+    private Counter rehydrated;
+    private Counter promoted;
+    private Counter missing;
+
+    @PostConstruct
+    public void init() {
+        archived = Counter.builder("notes.archive.moved").tag("direction", "archived").register(meterRegistry);
+        promoted = Counter.builder("notes.archive.moved").tag("direction", "promoted").register(meterRegistry);
+        rehydrated = Counter.builder("notes.archive.rehydrated").register(meterRegistry);
+        missing = Counter.builder("notes.archive.missing").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${notes.archive.interval-ms:3600000}",
+            initialDelayString = "${notes.archive.interval-ms:3600000}")
+    public void archiveBatch() {
+        reads.clear();
+        if (!enabled) {
+            return;
+        }
+        try {
+            LocalDateTime now = LocalDateTime.now(ZoneOffset.UTC);
+            int remaining = batchSize;
+            for (Tenant tenant : tenantRepository.findAll()) {
+                if (remaining <= 0) {
+                    break;
+                }
+                long afterDays = "PRO".equals(tenant.getPlan()) ? proAfterDays : freeAfterDays;
+                for (Note note : noteStore.findArchiveCandidates(tenant.getId(), now.minusDays(afterDays), remaining)) {
+                    archive(note);
+                    remaining--;
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Note archiving failed: " + e.getMessage());
+        }
+    }
+
+    // Copies the note to the archive first, so the stub never points at nothing
+    private void archive(Note note) {
+        archive.put(note);
+        if (noteStore.stub(note)) {
+            archived.increment();
+        } else {
+            // Changed since it was read; it is no longer cold
+            archive.delete(note.getId());
+        }
+    }
+
+    /**
+     * Fills in an archived note's body. Throws if the archived copy is missing, rather than
+     * returning a note without content that a later save would store as empty.
+     */
+    public Note rehydrate(Note note) {
+        if (note == null || !note.isArchived()) {
+            return note;
+        }
+        Note full = archive.find(note.getId()).orElse(null);
+        if (full == null) {
+            return recover(note);
+        }
+        note.setContent(full.getContent());
+        rehydrated.increment();
+        return note;
+    }
+
+    // Like rehydrate, and promotes the note once it has been read often enough
+    public Note read(Note note) {
+        if (note == null || !note.isArchived()) {
+            return note;
+        }
+        rehydrate(note);
+        if (reads.size() >= maxTrackedReads) {
+            reads.clear();
+        }
+        if (reads.computeIfAbsent(note.getId(), id -> new AtomicInteger()).incrementAndGet() >= promoteAfterReads) {
+            reads.remove(note.getId());
+            promote(note);
+        }
+        return note;
+    }
+
+    // Lists fill in bodies with one archive query and do not count toward promotion
+    public List<Note> rehydrateAll(List<Note> notes) {
+        List<String> ids = new ArrayList<>();
+        for (Note note : notes) {
+            if (note.isArchived()) {
+                ids.add(note.getId());
+            }
+        }
+        if (ids.isEmpty()) {
+            return notes;
+        }
+        Map<String, Note> full = archive.findAll(ids);
+        for (Note note : notes) {
+            Note copy = note.isArchived() ? full.get(note.getId()) : null;
+            if (copy != null) {
+                note.setContent(copy.getContent());
+            } else if (note.isArchived()) {
+                recover(note);
+            }
+        }
+        rehydrated.increment(full.size());
+        return notes;
+    }
+
+    // The archived copy is gone: fine if the note was promoted meanwhile, lost data otherwise
+    private Note recover(Note stub) {
+        Note current = noteStore.findByIdOnPrimary(stub.getId(), stub.getTenantId()).orElse(null);
+        if (current != null && !current.isArchived()) {
+            stub.setContent(current.getContent());
+            stub.setArchived(false);
+            return stub;
+        }
+        missing.increment();
+        throw new IllegalStateException("Archived note " + stub.getId() + " is missing from " + NoteArchive.COLLECTION);
+    }
+
+    // Drops the archived copy once the note's body is stored in the hot collection again
+    public void discard(String noteId) {
+        archive.delete(noteId);
+    }
+
+    // Sets only the body fields, so nothing written since the read is overwritten
+    private void promote(Note note) {
+        try {
+            if (noteStore.unstub(note, note.getContent(), LocalDateTime.now(ZoneOffset.UTC))) {
+                archive.delete(note.getId());
+                promoted.increment();
+            }
+            // Otherwise updated meanwhile, which stores the body in the hot collection anyway
+        } catch (RuntimeException e) {
+            System.err.println("Failed to promote archived note " + note.getId() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.repository.MigrationCheckpoints;
+import com.fred.notesapp.repository.NoteContentCodec;
+import com.fred.notesapp.repository.NotePartitionDirectory;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compresses large notes that were written before compression was enabled, one small
+ * batch per collection per run so it never competes with live traffic.
+ *
+ * Each collection is walked once in _id order, with the last _id persisted in
+ * {@link MigrationCheckpoints}, so every batch reads only the next batch-size notes and a
+ * restart continues where it stopped. Each rewrite is conditional on the stored content
+ * being unchanged, so a concurrent edit always wins. One pass is enough, since new writes
+ * are already stored in their final form by {@link NoteContentCodec}.
+ */
+@Service
+public class NoteCompressionMigrator {
+
+    @Autowired
+    private NotePartitionDirectory partitionDirectory;
+
+    @Autowired
+    private NoteContentCodec codec;
+
+    @Autowired
+    private MigrationCheckpoints checkpoints;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.compression.migration.enabled:true}")
+    private boolean enabled;
+
+    @Value("${notes.compression.migration.batch-size:200}")
+    private int batchSize;
+
+    private Counter migrated;
+
+    @PostConstruct
+    public void init() {
+        migrated = Counter.builder("notes.compression.migrated").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${notes.compression.migration.interval-ms:10000}",
+            initialDelayString = "${notes.compression.migration.interval-ms:10000}")
+    public void migrateBatch() {
+        if (!enabled || !codec.isEnabled()) {
+            return;
+        }
+        try {
+            for (NotePartitionDirectory.Target target : partitionDirectory.allTargets()) {
+                String key = "compression:" + target.getTemplate().getDb().getName() + "." + target.getCollection();
+                MigrationCheckpoints.Checkpoint checkpoint = checkpoints.claim(key);
+                if (checkpoint == null) {
+                    continue;
+                }
+                Object lastId = migrate(target, checkpoint.getLastId());
+                if (lastId == null) {
+                    checkpoints.complete(key);
+                    System.out.println("Note compression migration complete for " + key);
+                } else {
+                    checkpoints.advance(key, lastId);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Note compression migration failed: " + e.getMessage());
+        }
+    }
+
+    // Compresses the candidates among the next batch after lastId; returns the last _id read, or null at the end
+    private Object migrate(NotePartitionDirectory.Target target, Object lastId) {
+        MongoCollection<Document> collection = target.getTemplate().getCollection(target.getCollection());
+        Bson after = lastId == null ? new Document() : Filters.gt("_id", lastId);
+
+        Object last = null;
+        for (Document note : collection.find(after)
+                .projection(Projections.include(NoteContentCodec.CONTENT, NoteContentCodec.CODEC))
+                .sort(Sorts.ascending("_id"))
+                .limit(batchSize)) {
+            last = note.get("_id");
+            Object content = note.get(NoteContentCodec.CONTENT);
+            if (!(content instanceof String) || note.containsKey(NoteContentCodec.CODEC)
+                    || ((String) content).getBytes(StandardCharsets.UTF_8).length < codec.getThresholdBytes()) {
+                continue;
+            }
+            Document encoded = new Document();
+            if (!codec.encodeInto(encoded, (String) content)) {
+                continue;
+            }
+            Document update = new Document("$set", encoded);
+            if (encoded.containsKey(NoteContentCodec.COMPRESSED_CONTENT)) {
+                update.append("$unset", new Document(NoteContentCodec.CONTENT, ""));
+            }
+            long modified = collection.updateOne(
+                    Filters.and(Filters.eq("_id", note.get("_id")), Filters.eq(NoteContentCodec.CONTENT, content)),
+                    update).getModifiedCount();
+            migrated.increment(modified);
+        }
+        return last;
+    }
+}
@@ -0,0 +1,112 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.repository.MigrationCheckpoints;
+import com.fred.notesapp.repository.NoteStore;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Recounts users' tag and folder counts from their notes and corrects the stored ones.
+ * Each run first takes users whose count adjustment failed, then continues a rolling
+ * pass over all users in _id order, so drift from any cause is bounded by one pass.
+ *
+ * The pass keeps its position in {@link MigrationCheckpoints} and starts over when it
+ * reaches the end, so it runs on one node at a time and resumes after restarts.
+ */
+@Service
+public class NoteFacetReconciler {
+
+    private static final String KEY = "facet-reconcile";
+
+    @Autowired
+    private NoteStore noteStore;
+
+    @Autowired
+    private NoteFacetService noteFacetService;
+
+    @Autowired
+    private MigrationCheckpoints checkpoints;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.facets.reconcile.enabled:true}")
+    private boolean enabled;
+
+    // Users recounted per run, stale ones included
+    @Value("${notes.facets.reconcile.batch-size:100}")
+    private int batchSize;
+
+    private Counter corrected;
+
+    @PostConstruct
+    public void init() {
+        corrected = Counter.builder("notes.facets.corrected").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${notes.facets.reconcile.interval-ms:60000}",
+            initialDelayString = "${notes.facets.reconcile.interval-ms:60000}")
+    public void reconcileBatch() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            int remaining = batchSize;
+            for (Document mark : noteFacetService.findStale(batchSize)) {
+                reconcile(mark.getString("tenantId"), mark.getString("userId"));
+                noteFacetService.clearStale(mark);
+                remaining--;
+            }
+            if (remaining > 0) {
+                sweep(remaining);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Tag and folder count reconciliation failed: " + e.getMessage());
+        }
+    }
+
+    // Recounts the next users of the rolling pass
+    private void sweep(int limit) {
+        MigrationCheckpoints.Checkpoint checkpoint = checkpoints.claim(KEY);
+        if (checkpoint == null) {
+            return;
+        }
+        Bson after = checkpoint.getLastId() == null ? new Document() : Filters.gt("_id", checkpoint.getLastId());
+        Object last = null;
+        int read = 0;
+        for (Document user : mongoTemplate.getCollection("users").find(after)
+                .projection(Projections.include("tenantId"))
+                .sort(Sorts.ascending("_id"))
+                .limit(limit)) {
+            last = user.get("_id");
+            read++;
+            if (user.get("tenantId") != null) {
+                reconcile(user.get("tenantId").toString(), last.toString());
+            }
+        }
+        // Past the last user, the next run starts the next pass
+        checkpoints.advance(KEY, read < limit ? null : last);
+    }
+
+    private void reconcile(String tenantId, String userId) {
+        int fixed = noteFacetService.reconcile(tenantId, userId, () -> noteStore.countFacets(tenantId, userId));
+        if (fixed > 0) {
+            corrected.increment(fixed);
+            System.out.println("Corrected " + fixed + " tag and folder counts of user " + userId);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.NoteFacet;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Per-user tag and folder counts over live notes, kept in note_facets and adjusted with
+ * $inc whenever a write changes a note's tags or folder, so reading them is one indexed
+ * query instead of a $group over every note.
+ *
+ * The adjustment follows the note write and is not atomic with it. A user whose adjustment
+ * failed is marked stale in note_facets_stale, and {@link NoteFacetReconciler} recounts
+ * stale users first and every user eventually.
+ */
+@Service
+public class NoteFacetService {
+
+    public static final String TAG = "tag";
+    public static final String FOLDER = "folder";
+    public static final String STALE_COLLECTION = "note_facets_stale";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${notes.tags.max-per-note:20}")
+    private int maxTags;
+
+    @Value("${notes.tags.max-length:50}")
+    private int maxTagLength;
+
+    @Value("${notes.folders.max-length:200}")
+    private int maxFolderLength;
+
+    private volatile boolean indexed;
+
+    // Trimmed, without blanks or duplicates; throws IllegalArgumentException if over the limits
+    public List<String> normalizeTags(List<String> tags) {
+        LinkedHashSet<String> normalized = new LinkedHashSet<>();
+        for (String tag : tags) {
+            String trimmed = tag == null ? "" : tag.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (trimmed.length() > maxTagLength) {
+                throw new IllegalArgumentException("Tags can be at most " + maxTagLength + " characters");
+            }
+            normalized.add(trimmed);
+        }
+        if (normalized.size() > maxTags) {
+            throw new IllegalArgumentException("A note can have at most " + maxTags + " tags");
+        }
+        return new ArrayList<>(normalized);
+    }
+
+    // "/work//projects/" becomes "/work/projects"; "/" is the top level, stored as null
+    public String normalizeFolder(String folder) {
+        StringBuilder path = new StringBuilder();
+        for (String segment : folder.split("/")) {
+            String trimmed = segment.trim();
+            if (!trimmed.isEmpty()) {
+                path.append('/').append(trimmed);
+            }
+        }
+        if (path.length() > maxFolderLength) {
+            throw new IllegalArgumentException("Folder paths can be at most " + maxFolderLength + " characters");
+        }
+        return path.length() == 0 ? null : path.toString();
+    }
+
+    // Adjusts the owner's counts for a note going from before to after; either may be null
+    public void applyChange(Note before, Note after) {
+        Note owner = after != null ? after : before;
+        if (owner == null) {
+            return;
+        }
+        Map<String, Long> deltas = new LinkedHashMap<>();
+        count(before, -1, deltas);
+        count(after, 1, deltas);
+        apply(owner.getTenantId(), owner.getUserId(), deltas);
+    }
+
+    // Adds per-folder deltas, e.g. from moving notes between folders
+    public void applyFolderDeltas(String tenantId, String userId, Map<String, Long> folderDeltas) {
+        Map<String, Long> deltas = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> delta : folderDeltas.entrySet()) {
+            deltas.put(key(FOLDER, delta.getKey()), delta.getValue());
+        }
+        apply(tenantId, userId, deltas);
+    }
+
+    // Records that a user's counts may be off, for the reconciler to recount
+    public void markStale(String tenantId, String userId) {
+        stale().updateOne(Filters.eq("_id", tenantId + "|" + userId),
+                Updates.combine(Updates.set("tenantId", tenantId), Updates.set("userId", userId),
+                        Updates.set("markedAt", System.currentTimeMillis())),
+                new UpdateOptions().upsert(true));
+    }
+
+    // Oldest first, at most limit
+    public List<Document> findStale(int limit) {
+        return stale().find().sort(Sorts.ascending("markedAt")).limit(limit).into(new ArrayList<>());
+    }
+
+    // Unless the user was marked again meanwhile, since then the recount may predate the failure
+    public void clearStale(Document mark) {
+        stale().deleteOne(Filters.and(Filters.eq("_id", mark.get("_id")), Filters.eq("markedAt", mark.get("markedAt"))));
+    }
+
+    /**
+     * Corrects the user's stored counts to a recount (kind -> value -> count) where they
+     * differ. The stored counts are read before {@code recount} runs, so a write that
+     * adjusts a count in between is in the recount and has moved the stored count on.
+     * Each correction is an $inc by the difference that only applies if the stored count is
+     * still the one read, so such a count is left for the next pass rather than overwritten.
+     * Returns the number of counts corrected.
+     */
+    public int reconcile(String tenantId, String userId, Supplier<Map<String, Map<String, Long>>> recount) {
+        ensureIndex();
+        Map<String, Long> stored = new LinkedHashMap<>();
+        for (NoteFacet facet : mongoTemplate.find(new Query(Criteria.where("tenantId").is(tenantId).and("userId").is(userId)), NoteFacet.class)) {
+            stored.put(key(facet.getKind(), facet.getValue()), facet.getCount());
+        }
+        Map<String, Long> expected = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Long>> kind : recount.get().entrySet()) {
+            for (Map.Entry<String, Long> value : kind.getValue().entrySet()) {
+                expected.put(key(kind.getKey(), value.getKey()), value.getValue());
+            }
+        }
+        int corrected = 0;
+        for (Map.Entry<String, Long> count : stored.entrySet()) {
+            long want = expected.getOrDefault(count.getKey(), 0L);
+            if (count.getValue() != want) {
+                Query query = new Query(Criteria.where("_id").is(tenantId + "|" + userId + "|" + count.getKey())
+                        .and("count").is(count.getValue()));
+                corrected += (int) mongoTemplate.updateFirst(query, new Update().inc("count", want - count.getValue()), NoteFacet.class)
+                        .getModifiedCount();
+            }
+        }
+        for (Map.Entry<String, Long> count : expected.entrySet()) {
+            if (stored.containsKey(count.getKey())) {
+                continue;
+            }
+            int separator = count.getKey().indexOf('|');
+            // Insert-only, so a count created by a write meanwhile is left alone
+            Query query = new Query(Criteria.where("_id").is(tenantId + "|" + userId + "|" + count.getKey()));
+            if (mongoTemplate.upsert(query, new Update()
+                    .setOnInsert("tenantId", tenantId)
+                    .setOnInsert("userId", userId)
+                    .setOnInsert("kind", count.getKey().substring(0, separator))
+                    .setOnInsert("value", count.getKey().substring(separator + 1))
+                    .setOnInsert("count", count.getValue()), NoteFacet.class).getUpsertedId() != null) {
+                corrected++;
+            }
+        }
+        return corrected;
+    }
+
+    public void clear(String tenantId, String userId) {
+        mongoTemplate.remove(new Query(Criteria.where("tenantId").is(tenantId).and("userId").is(userId)), NoteFacet.class);
+    }
+
+    // kind -> value -> count, largest first
+    public Map<String, Map<String, Long>> find(String tenantId, String userId) {
+        ensureIndex();
+        Query query = new Query(Criteria.where("tenantId").is(tenantId).and("userId").is(userId).and("count").gt(0))
+                .with(Sort.by(Sort.Direction.DESC, "count").and(Sort.by("value")));
+        Map<String, Map<String, Long>> facets = new LinkedHashMap<>();
+        facets.put(TAG, new LinkedHashMap<>());
+        facets.put(FOLDER, new LinkedHashMap<>());
+        for (NoteFacet facet : mongoTemplate.find(query, NoteFacet.class)) {
+            facets.computeIfAbsent(facet.getKind(), k -> new LinkedHashMap<>()).put(facet.getValue(), facet.getCount());
+        }
+        return facets;
+    }
+
+    private static void count(Note note, long sign, Map<String, Long> deltas) {
+        if (note == null) {
+            return;
+        }
+        if (note.getTags() != null) {
+            for (String tag : note.getTags()) {
+                deltas.merge(key(TAG, tag), sign, Long::sum);
+            }
+        }
+        if (note.getFolder() != null) {
+            deltas.merge(key(FOLDER, note.getFolder()), sign, Long::sum);
+        }
+    }
+
+    // One unordered bulk upsert for all changed counts; unchanged ones are skipped
+    private void apply(String tenantId, String userId, Map<String, Long> deltas) {
+        deltas.values().removeIf(delta -> delta == 0);
+        if (deltas.isEmpty()) {
+            return;
+        }
+        ensureIndex();
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, NoteFacet.class);
+        for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+            int separator = delta.getKey().indexOf('|');
+            String kind = delta.getKey().substring(0, separator);
+            String value = delta.getKey().substring(separator + 1);
+            Query query = new Query(Criteria.where("_id").is(tenantId + "|" + userId + "|" + delta.getKey()));
+            bulk.upsert(query, new Update()
+                    .setOnInsert("tenantId", tenantId)
+                    .setOnInsert("userId", userId)
+                    .setOnInsert("kind", kind)
+                    .setOnInsert("value", value)
+                    .inc("count", delta.getValue()));
+        }
+        bulk.execute();
+    }
+
+    private MongoCollection<Document> stale() {
+        return mongoTemplate.getCollection(STALE_COLLECTION);
+    }
+
+    private static String key(String kind, String value) {
+        return kind + "|" + value;
+    }
+
+    // Created on first use so startup does not depend on MongoDB being reachable
+    private void ensureIndex() {
+        if (!indexed) {
+            mongoTemplate.indexOps(NoteFacet.class).ensureIndex(new Index()
+                    .on("tenantId", Sort.Direction.ASC)
+                    .on("userId", Sort.Direction.ASC)
+                    .on("count", Sort.Direction.DESC));
+            indexed = true;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.fred.notesapp.service;
+
+/**
+ * Thrown when a user's notes from before manual ordering have not been given positions
+ * yet; they are queued for the background backfill. Controllers translate this into a
+ * 503 with Retry-After.
+ */
+public class NoteOrderPendingException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public NoteOrderPendingException() {
+        super("Manual order is being prepared, please retry");
+    }
+}
@@ -0,0 +1,398 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.cache.InvalidationBus;
+import com.fred.notesapp.cache.InvalidationEvent;
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.NotePartition;
+import com.fred.notesapp.repository.NotePartitionDirectory;
+import com.fred.notesapp.repository.ObjectIdReferences;
+import com.mongodb.client.MongoClient;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.ReplaceOptions;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Moves a tenant's notes between partitions without downtime.
+ *
+ * 1. The directory entry is marked MOVING, so every node starts writing to both places
+ *    (after waiting one directory TTL so all nodes have seen it).
+ * 2. Existing notes are copied in batches with insert-if-absent, so a fresher dual write
+ *    is never overwritten by the copy.
+ * 3. Notes deleted from the source during the copy are removed from the target.
+ * 4. Notes whose copy is missing or differs from the source (a dual write that failed, or
+ *    one that landed before the copy and was then overwritten by it) are copied again.
+ * 5. The entry is flipped to the target and marked DRAINING, and once every node has seen
+ *    that the source copy is removed and the entry becomes ACTIVE.
+ *
+ * A move is claimed in note_partitions with a conditional update, so only one node in the
+ * cluster runs it, and the claim is a lease renewed after every batch together with the
+ * copy checkpoint. A move whose lease has run out (its node died or was restarted) is
+ * picked up by the next node that checks, from the checkpoint.
+ */
+@Service
+public class NotePartitionService {
+
+    private static final String ACTIVE = "ACTIVE";
+    private static final String MOVING = "MOVING";
+    private static final String DRAINING = "DRAINING";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MongoClient mongoClient;
+
+    @Autowired
+    private NotePartitionDirectory partitionDirectory;
+
+    @Autowired
+    private ObjectIdReferences references;
+
+    @Autowired
+    private InvalidationBus invalidationBus;
+
+    @Value("${notes.partition.move-batch-size:500}")
+    private int batchSize;
+
+    // How long a claim on a move lasts without renewal; must exceed the directory TTL
+    @Value("${notes.partition.move-lease-ms:60000}")
+    private long leaseMs;
+
+    // Shards the shared collection on (tenantId, _id) at startup when running against mongos
+    @Value("${notes.partition.shard-shared-collection:false}")
+    private boolean shardSharedCollection;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private ExecutorService mover;
+
+    @PostConstruct
+    public void init() {
+        mover = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "note-partition-mover");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (shardSharedCollection) {
+            String database = mongoTemplate.getDb().getName();
+            mongoClient.getDatabase("admin").runCommand(new Document("enableSharding", database));
+            mongoClient.getDatabase("admin").runCommand(new Document("shardCollection",
+                    database + "." + NotePartitionDirectory.SHARED_COLLECTION)
+                    .append("key", new Document("tenantId", 1).append("_id", 1)));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        mover.shutdownNow();
+    }
+
+    public NotePartition getPartition(String tenantId) {
+        NotePartition partition = mongoTemplate.findById(tenantId, NotePartition.class);
+        return partition != null ? partition : new NotePartition(tenantId, null, NotePartitionDirectory.SHARED_COLLECTION);
+    }
+
+    /**
+     * Starts moving a tenant to (database, collection) in the background.
+     *
+     * @return false if a move for this tenant is already running on any node
+     */
+    public boolean startMove(String tenantId, String database, String collection) {
+        NotePartition current = getPartition(tenantId);
+        if (partitionDirectory.target(current.getDatabase(), current.getCollection())
+                .sameAs(partitionDirectory.target(database, collection))) {
+            return true;
+        }
+        // Tenants on the shared collection have no entry yet; the upsert creates it
+        Query idle = new Query(Criteria.where("_id").is(tenantId).and("state").nin(MOVING, DRAINING));
+        Update claim = new Update()
+                .set("state", MOVING)
+                .set("targetDatabase", database)
+                .set("targetCollection", collection)
+                .unset("moveCheckpoint")
+                .setOnInsert("collection", NotePartitionDirectory.SHARED_COLLECTION);
+        NotePartition partition;
+        try {
+            partition = mongoTemplate.findAndModify(idle, lease(claim),
+                    FindAndModifyOptions.options().upsert(true).returnNew(true), NotePartition.class);
+        } catch (DuplicateKeyException e) {
+            // The entry exists but did not match: another move holds it
+            return false;
+        }
+        submit(partition);
+        return true;
+    }
+
+    // Picks up moves left behind by a node that stopped; also runs shortly after startup
+    @Scheduled(fixedDelayString = "${notes.partition.resume-interval-ms:30000}", initialDelayString = "${notes.partition.resume-initial-delay-ms:5000}")
+    public void resumeStalledMoves() {
+        LocalDateTime now = LocalDateTime.now(ZoneOffset.UTC);
+        Query stalled = new Query(Criteria.where("state").in(MOVING, DRAINING).and("leaseUntil").lt(now));
+        for (NotePartition candidate : mongoTemplate.find(stalled, NotePartition.class)) {
+            Query unclaimed = new Query(Criteria.where("_id").is(candidate.getTenantId())
+                    .and("state").is(candidate.getState())
+                    .and("leaseUntil").lt(now));
+            NotePartition partition = mongoTemplate.findAndModify(unclaimed, lease(new Update()),
+                    FindAndModifyOptions.options().returnNew(true), NotePartition.class);
+            if (partition != null) {
+                System.out.println("Resuming partition move of tenant " + partition.getTenantId() + " left in " + partition.getState());
+                submit(partition);
+            }
+        }
+    }
+
+    private void submit(NotePartition partition) {
+        mover.submit(() -> {
+            try {
+                move(partition);
+            } catch (Exception e) {
+                // The lease runs out and another node (or this one) resumes the move
+                System.err.println("Partition move failed for tenant " + partition.getTenantId() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        });
+    }
+
+    void move(NotePartition partition) throws InterruptedException {
+        String tenantId = partition.getTenantId();
+        Query tenantQuery = new Query(Criteria.where("tenantId").in(references.valuesOf(tenantId)));
+        if (DRAINING.equals(partition.getState())) {
+            NotePartitionDirectory.Target current = partitionDirectory.target(partition.getDatabase(), partition.getCollection());
+            NotePartitionDirectory.Target old = partitionDirectory.target(partition.getTargetDatabase(), partition.getTargetCollection());
+            drain(tenantId, current, old, tenantQuery);
+            return;
+        }
+        NotePartitionDirectory.Target source = partitionDirectory.target(partition.getDatabase(), partition.getCollection());
+        NotePartitionDirectory.Target target = partitionDirectory.target(partition.getTargetDatabase(), partition.getTargetCollection());
+        System.out.println("Moving notes of tenant " + tenantId + " from " + source.getCollection() + " to " + target.getCollection());
+
+        // 1. Dual writes started with the claim; wait until every node has seen it
+        awaitDirectoryPropagation(tenantId);
+
+        // 2. Copy existing notes, from the checkpoint if this move is being resumed
+        String lastId = partition.getMoveCheckpoint();
+        while (true) {
+            Query batchQuery = new Query(Criteria.where("tenantId").in(references.valuesOf(tenantId)))
+                    .with(Sort.by(Sort.Direction.ASC, "_id"))
+                    .limit(batchSize);
+            if (lastId != null) {
+                batchQuery.addCriteria(Criteria.where("_id").gt(lastId));
+            }
+            List<Note> batch = source.getTemplate().find(batchQuery, Note.class, source.getCollection());
+            if (batch.isEmpty()) {
+                break;
+            }
+            for (Note note : batch) {
+                try {
+                    target.getTemplate().insert(note, target.getCollection());
+                } catch (DuplicateKeyException e) {
+                    // Already written by a dual write, which is at least as fresh
+                }
+            }
+            lastId = batch.get(batch.size() - 1).getId();
+            renew(tenantId, MOVING, new Update().set("moveCheckpoint", lastId));
+        }
+
+        // 3. Drop copies of notes that were deleted from the source meanwhile
+        forEachOnlyIn(target, source, tenantId, id ->
+                target.getTemplate().remove(new Query(Criteria.where("_id").is(id)), Note.class, target.getCollection()));
+
+        // 4. Copy again what the target is missing or holds an older state of
+        mergeWalk(source, target, tenantId, (note, copy) -> {
+            if (copy == null || !sameState(note, copy)) {
+                recopy(source, target, note.getId(), copy);
+            }
+        });
+
+        // 5. Flip reads and writes to the target, remembering the source until it is drained
+        renew(tenantId, MOVING, new Update()
+                .set("state", DRAINING)
+                .set("database", partition.getTargetDatabase())
+                .set("collection", partition.getTargetCollection())
+                .set("targetDatabase", partition.getDatabase())
+                .set("targetCollection", partition.getCollection())
+                .unset("moveCheckpoint"));
+        drain(tenantId, target, source, tenantQuery);
+        System.out.println("Moved notes of tenant " + tenantId + " to " + target.getCollection());
+    }
+
+    /**
+     * Removes the tenant's old copy once no node can still be reading it, then releases the
+     * claim. Notes whose dual write to the new location failed are copied over first; once
+     * the flip has propagated every write goes to the new location first, so none are missed.
+     */
+    private void drain(String tenantId, NotePartitionDirectory.Target current, NotePartitionDirectory.Target old,
+                       Query tenantQuery) throws InterruptedException {
+        awaitDirectoryPropagation(tenantId);
+        renew(tenantId, DRAINING, new Update());
+        forEachOnlyIn(old, current, tenantId, id -> {
+            Note missing = old.getTemplate().findById(id, Note.class, old.getCollection());
+            if (missing != null) {
+                try {
+                    current.getTemplate().insert(missing, current.getCollection());
+                } catch (DuplicateKeyException e) {
+                    // Written meanwhile, which is fresher
+                }
+            }
+        });
+        old.getTemplate().remove(tenantQuery, Note.class, old.getCollection());
+        mongoTemplate.updateFirst(owned(tenantId, DRAINING), new Update()
+                .set("state", ACTIVE)
+                .unset("targetDatabase")
+                .unset("targetCollection")
+                .unset("owner")
+                .unset("leaseUntil")
+                .set("updatedAt", LocalDateTime.now(ZoneOffset.UTC)), NotePartition.class);
+        invalidationBus.publish(InvalidationEvent.of(InvalidationEvent.Type.NOTE_PARTITION, tenantId));
+    }
+
+    // Calls action with the id of every note of the tenant that is in side but not in other
+    private void forEachOnlyIn(NotePartitionDirectory.Target side, NotePartitionDirectory.Target other,
+                               String tenantId, Consumer<String> action) {
+        mergeWalk(side, other, tenantId, (note, copy) -> {
+            if (copy == null) {
+                action.accept(note.getId());
+            }
+        });
+    }
+
+    /**
+     * Calls {@code action} with every note of the tenant in {@code side} and its copy in
+     * {@code other}, or null if there is none. Both are walked in _id order a page at a time,
+     * like a merge, so memory stays at two pages however many notes the tenant has. Notes
+     * carry only the fields {@link #sameState} compares.
+     */
+    private void mergeWalk(NotePartitionDirectory.Target side, NotePartitionDirectory.Target other,
+                           String tenantId, BiConsumer<Note, Note> action) {
+        NotePages sideNotes = new NotePages(side, tenantId);
+        NotePages otherNotes = new NotePages(other, tenantId);
+        for (Note note = sideNotes.next(); note != null; note = sideNotes.next()) {
+            Note copy = otherNotes.peek();
+            while (copy != null && copy.getId().compareTo(note.getId()) < 0) {
+                otherNotes.next();
+                copy = otherNotes.peek();
+            }
+            action.accept(note, copy != null && copy.getId().equals(note.getId()) ? copy : null);
+        }
+    }
+
+    // Every write bumps the version except moves in the manual order and archiving
+    private static boolean sameState(Note note, Note copy) {
+        return note.getVersion() == copy.getVersion()
+                && Objects.equals(note.getPosition(), copy.getPosition())
+                && note.isArchived() == copy.isArchived();
+    }
+
+    /**
+     * Replaces the target's copy with the source's note, but only if the copy is still in the
+     * state the walk saw; otherwise a dual write has updated it from the source meanwhile.
+     */
+    private void recopy(NotePartitionDirectory.Target source, NotePartitionDirectory.Target target, String id, Note copy) {
+        Note note = source.getTemplate().findById(id, Note.class, source.getCollection());
+        if (note == null) {
+            // Purged meanwhile, from both places
+            return;
+        }
+        try {
+            if (copy == null) {
+                target.getTemplate().insert(note, target.getCollection());
+                return;
+            }
+            Criteria seen = Criteria.where("_id").is(id)
+                    .and("position").is(copy.getPosition())
+                    .and("archived").in(copy.isArchived() ? List.of(true) : Arrays.asList(false, null));
+            seen = copy.getVersion() == 0 ? seen.and("version").in(0L, null) : seen.and("version").is(copy.getVersion());
+            target.getTemplate().replace(new Query(seen), note, ReplaceOptions.none(), target.getCollection());
+        } catch (DuplicateKeyException e) {
+            // Inserted meanwhile by a dual write, which is fresher
+        }
+    }
+
+    // Extends this node's claim; throws if another node has taken the move over
+    private void renew(String tenantId, String state, Update update) {
+        if (mongoTemplate.updateFirst(owned(tenantId, state), lease(update), NotePartition.class).getMatchedCount() == 0) {
+            throw new IllegalStateException("Lost the claim on the partition move of tenant " + tenantId);
+        }
+    }
+
+    private Query owned(String tenantId, String state) {
+        return new Query(Criteria.where("_id").is(tenantId).and("state").is(state).and("owner").is(nodeId));
+    }
+
+    private Update lease(Update update) {
+        LocalDateTime now = LocalDateTime.now(ZoneOffset.UTC);
+        return update.set("owner", nodeId).set("leaseUntil", now.plusNanos(leaseMs * 1_000_000)).set("updatedAt", now);
+    }
+
+    // Other nodes pick up directory changes from the invalidation bus, and at worst within one cache TTL
+    private void awaitDirectoryPropagation(String tenantId) throws InterruptedException {
+        invalidationBus.publish(InvalidationEvent.of(InvalidationEvent.Type.NOTE_PARTITION, tenantId));
+        Thread.sleep(partitionDirectory.getTtlMs());
+    }
+
+    // The tenant's notes in one collection, in _id order, read one batch at a time
+    private final class NotePages {
+        private final NotePartitionDirectory.Target target;
+        private final String tenantId;
+        private List<Note> page = List.of();
+        private int index;
+        private boolean exhausted;
+
+        NotePages(NotePartitionDirectory.Target target, String tenantId) {
+            this.target = target;
+            this.tenantId = tenantId;
+        }
+
+        Note peek() {
+            if (index == page.size()) {
+                if (exhausted) {
+                    return null;
+                }
+                Query query = new Query(Criteria.where("tenantId").in(references.valuesOf(tenantId)))
+                        .with(Sort.by(Sort.Direction.ASC, "_id"))
+                        .limit(batchSize);
+                if (!page.isEmpty()) {
+                    query.addCriteria(Criteria.where("_id").gt(page.get(page.size() - 1).getId()));
+                }
+                query.fields().include("_id", "version", "position", "archived");
+                page = target.getTemplate().find(query, Note.class, target.getCollection());
+                index = 0;
+                exhausted = page.size() < batchSize;
+                if (page.isEmpty()) {
+                    return null;
+                }
+            }
+            return page.get(index);
+        }
+
+        Note next() {
+            Note note = peek();
+            if (note != null) {
+                index++;
+            }
+            return note;
+        }
+    }
+}
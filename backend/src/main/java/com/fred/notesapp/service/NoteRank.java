@@ -0,0 +1,169 @@
+package com.fred.notesapp.service;
+
+/**
+ * Fractional rank keys for manually ordered notes. Keys are base-62 strings that sort
+ * in binary (and therefore MongoDB) string order, and a key can always be generated
+ * between any two others, so moving a note only ever rewrites that note's key.
+ *
+ * A key is an integer part followed by an optional fraction. The first character gives
+ * the integer's length ('a' = 1 digit, 'b' = 2 and so on; 'Z', 'Y'... for keys below
+ * "a0"), so appending at either end stays short. Inserting between neighbours extends
+ * the fraction, which is what {@link NoteService} eventually rebalances.
+ */
+public final class NoteRank {
+
+    private static final String DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final String SMALLEST_INTEGER = "A" + "0".repeat(26);
+    private static final String FIRST = "a0";
+
+    private NoteRank() {}
+
+    /**
+     * A key strictly between before and after; either may be null for the start or end
+     * of the list. Throws IllegalArgumentException if before is not less than after.
+     */
+    public static String between(String before, String after) {
+        if (before != null) {
+            validate(before);
+        }
+        if (after != null) {
+            validate(after);
+        }
+        if (before != null && after != null && before.compareTo(after) >= 0) {
+            throw new IllegalArgumentException(before + " is not before " + after);
+        }
+        if (before == null) {
+            if (after == null) {
+                return FIRST;
+            }
+            String integer = integerPart(after);
+            String fraction = after.substring(integer.length());
+            if (integer.equals(SMALLEST_INTEGER)) {
+                return integer + midpoint("", fraction);
+            }
+            if (!fraction.isEmpty()) {
+                return integer;
+            }
+            String decremented = decrement(integer);
+            if (decremented == null) {
+                throw new IllegalArgumentException("Cannot rank before " + after);
+            }
+            return decremented;
+        }
+        String integer = integerPart(before);
+        String fraction = before.substring(integer.length());
+        if (after == null) {
+            String incremented = increment(integer);
+            return incremented == null ? integer + midpoint(fraction, null) : incremented;
+        }
+        String afterInteger = integerPart(after);
+        if (integer.equals(afterInteger)) {
+            return integer + midpoint(fraction, after.substring(afterInteger.length()));
+        }
+        String incremented = increment(integer);
+        if (incremented == null) {
+            throw new IllegalArgumentException("Cannot rank after " + before);
+        }
+        return incremented.compareTo(after) < 0 ? incremented : integer + midpoint(fraction, null);
+    }
+
+    // Fraction digits strictly between a and b (null meaning 1), never ending in '0'
+    private static String midpoint(String a, String b) {
+        if (b != null) {
+            int common = 0;
+            while (common < b.length() && (common < a.length() ? a.charAt(common) : '0') == b.charAt(common)) {
+                common++;
+            }
+            if (common > 0) {
+                return b.substring(0, common) + midpoint(a.substring(Math.min(common, a.length())), b.substring(common));
+            }
+        }
+        int digitA = a.isEmpty() ? 0 : DIGITS.indexOf(a.charAt(0));
+        int digitB = b == null ? DIGITS.length() : DIGITS.indexOf(b.charAt(0));
+        if (digitB - digitA > 1) {
+            return String.valueOf(DIGITS.charAt((digitA + digitB + 1) / 2));
+        }
+        if (b != null && b.length() > 1) {
+            return b.substring(0, 1);
+        }
+        return DIGITS.charAt(digitA) + midpoint(a.isEmpty() ? "" : a.substring(1), null);
+    }
+
+    private static String increment(String integer) {
+        char head = integer.charAt(0);
+        char[] digits = integer.substring(1).toCharArray();
+        for (int i = digits.length - 1; i >= 0; i--) {
+            int digit = DIGITS.indexOf(digits[i]) + 1;
+            if (digit < DIGITS.length()) {
+                digits[i] = DIGITS.charAt(digit);
+                return head + new String(digits);
+            }
+            digits[i] = '0';
+        }
+        // Every digit carried over: the next integer is one digit longer (or shorter, below "a0")
+        if (head == 'Z') {
+            return FIRST;
+        }
+        if (head == 'z') {
+            return null;
+        }
+        char next = (char) (head + 1);
+        String rest = new String(digits);
+        return next > 'a' ? next + rest + "0" : next + rest.substring(1);
+    }
+
+    private static String decrement(String integer) {
+        char head = integer.charAt(0);
+        char[] digits = integer.substring(1).toCharArray();
+        for (int i = digits.length - 1; i >= 0; i--) {
+            int digit = DIGITS.indexOf(digits[i]) - 1;
+            if (digit >= 0) {
+                digits[i] = DIGITS.charAt(digit);
+                return head + new String(digits);
+            }
+            digits[i] = DIGITS.charAt(DIGITS.length() - 1);
+        }
+        if (head == 'a') {
+            return "Z" + DIGITS.charAt(DIGITS.length() - 1);
+        }
+        if (head == 'A') {
+            return null;
+        }
+        char previous = (char) (head - 1);
+        String rest = new String(digits);
+        return previous < 'Z' ? previous + rest + DIGITS.charAt(DIGITS.length() - 1) : previous + rest.substring(1);
+    }
+
+    private static String integerPart(String key) {
+        int length = integerLength(key.charAt(0));
+        if (length > key.length()) {
+            throw new IllegalArgumentException("Invalid rank key " + key);
+        }
+        return key.substring(0, length);
+    }
+
+    private static int integerLength(char head) {
+        if (head >= 'a' && head <= 'z') {
+            return head - 'a' + 2;
+        }
+        if (head >= 'A' && head <= 'Z') {
+            return 'Z' - head + 2;
+        }
+        throw new IllegalArgumentException("Invalid rank key head " + head);
+    }
+
+    private static void validate(String key) {
+        if (key.isEmpty() || key.equals(SMALLEST_INTEGER)) {
+            throw new IllegalArgumentException("Invalid rank key " + key);
+        }
+        String integer = integerPart(key);
+        for (int i = 1; i < key.length(); i++) {
+            if (DIGITS.indexOf(key.charAt(i)) < 0) {
+                throw new IllegalArgumentException("Invalid rank key " + key);
+            }
+        }
+        if (key.length() > integer.length() && key.charAt(key.length() - 1) == '0') {
+            throw new IllegalArgumentException("Invalid rank key " + key);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.repository.MigrationCheckpoints;
+import com.fred.notesapp.repository.NoteStore;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rewrites a user's manual order with the shortest {@link NoteRank} keys, keeping the
+ * order as it is. Moves between the same two notes make keys longer; once a move
+ * produces a key longer than notes.order.rebalance-key-length the user is queued here
+ * and rebalanced in the background, so the move itself stays a single write.
+ *
+ * Notes from before manual ordering have no key. A background backfill walks all users
+ * once, in _id order from a {@link MigrationCheckpoints} checkpoint, and rebalances those
+ * that have such notes; a user who tries to move a note before then is queued ahead of it.
+ */
+@Service
+public class NoteRebalancer {
+
+    private static final String BACKFILL_KEY = "order-backfill";
+
+    @Autowired
+    private NoteStore noteStore;
+
+    @Autowired
+    private MigrationCheckpoints checkpoints;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.order.rebalance-key-length:32}")
+    private int rebalanceKeyLength;
+
+    // Users rebalanced per run, and notes per bulk write
+    @Value("${notes.order.rebalance.users-per-run:20}")
+    private int usersPerRun;
+
+    @Value("${notes.order.rebalance.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${notes.order.backfill.enabled:true}")
+    private boolean backfillEnabled;
+
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private volatile boolean backfilled;
+    private Counter rebalanced;
+    private Counter rewritten;
+
+    @PostConstruct
+    public void init() {
+        rebalanced = Counter.builder("notes.order.rebalanced").register(meterRegistry);
+        rewritten = Counter.builder("notes.order.rewritten").register(meterRegistry);
+    }
+
+    // Queues the user if position has grown past the limit
+    public void check(String tenantId, String userId, String position) {
+        if (position.length() > rebalanceKeyLength) {
+            pending.add(tenantId + "|" + userId);
+        }
+    }
+
+    public void queue(String tenantId, String userId) {
+        pending.add(tenantId + "|" + userId);
+    }
+
+    // True once every note from before manual ordering has a key
+    public boolean isBackfilled() {
+        return backfilled;
+    }
+
+    @Scheduled(fixedDelayString = "${notes.order.rebalance.interval-ms:10000}",
+            initialDelayString = "${notes.order.rebalance.interval-ms:10000}")
+    public void rebalancePending() {
+        Iterator<String> users = pending.iterator();
+        for (int i = 0; i < usersPerRun && users.hasNext(); i++) {
+            String user = users.next();
+            users.remove();
+            int separator = user.indexOf('|');
+            try {
+                rebalance(user.substring(0, separator), user.substring(separator + 1));
+            } catch (RuntimeException e) {
+                System.err.println("Rebalancing note order failed for user " + user.substring(separator + 1) + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${notes.order.backfill.interval-ms:10000}",
+            initialDelayString = "${notes.order.backfill.interval-ms:10000}")
+    public void backfillBatch() {
+        if (backfilled) {
+            return;
+        }
+        try {
+            // Finished earlier, possibly by another node
+            if (checkpoints.isComplete(BACKFILL_KEY)) {
+                backfilled = true;
+                return;
+            }
+            if (!backfillEnabled) {
+                return;
+            }
+            MigrationCheckpoints.Checkpoint checkpoint = checkpoints.claim(BACKFILL_KEY);
+            if (checkpoint == null) {
+                return;
+            }
+            Bson after = checkpoint.getLastId() == null ? new Document() : Filters.gt("_id", checkpoint.getLastId());
+            Object last = null;
+            for (Document user : mongoTemplate.getCollection("users").find(after)
+                    .projection(Projections.include("tenantId"))
+                    .sort(Sorts.ascending("_id"))
+                    .limit(usersPerRun)) {
+                last = user.get("_id");
+                String tenantId = user.get("tenantId") == null ? null : user.get("tenantId").toString();
+                if (tenantId != null && noteStore.hasUnpositioned(tenantId, last.toString())) {
+                    rebalance(tenantId, last.toString());
+                }
+            }
+            if (last == null) {
+                checkpoints.complete(BACKFILL_KEY);
+                backfilled = true;
+                System.out.println("Manual order backfill complete");
+            } else {
+                checkpoints.advance(BACKFILL_KEY, last);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Manual order backfill failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gives every live note of the user a key in its current order, notes without one
+     * first. Notes that already have the right key are not written.
+     */
+    public void rebalance(String tenantId, String userId) {
+        List<Note> notes = noteStore.findPositions(tenantId, userId);
+        List<Note> batch = new ArrayList<>();
+        Map<String, String> positions = new HashMap<>();
+        String position = null;
+        for (Note note : notes) {
+            position = NoteRank.between(position, null);
+            if (!position.equals(note.getPosition())) {
+                batch.add(note);
+                positions.put(note.getId(), position);
+            }
+            if (batch.size() >= batchSize) {
+                write(tenantId, batch, positions);
+            }
+        }
+        write(tenantId, batch, positions);
+        rebalanced.increment();
+    }
+
+    private void write(String tenantId, List<Note> batch, Map<String, String> positions) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        noteStore.setPositions(tenantId, batch, positions);
+        rewritten.increment(batch.size());
+        batch.clear();
+        positions.clear();
+    }
+}
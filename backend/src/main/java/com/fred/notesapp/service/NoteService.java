@@ -1,63 +1,572 @@
 package com.fred.notesapp.service;
 
+import com.fred.notesapp.cache.NoteContentCache;
+import com.fred.notesapp.cache.NoteListCache;
+import com.fred.notesapp.model.Attachment;
 import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.NoteRevision;
 import com.fred.notesapp.model.Tenant;
 import com.fred.notesapp.model.User;
-import com.fred.notesapp.repository.NoteRepository;
+import com.fred.notesapp.repository.NoteChunkStore;
+import com.fred.notesapp.repository.NoteQuery;
+import com.fred.notesapp.repository.NoteStore;
 import com.fred.notesapp.repository.TenantRepository;
+import com.mongodb.ReadPreference;
+import org.bson.types.ObjectId;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class NoteService {
     
     @Autowired
-    private NoteRepository noteRepository;
+    private NoteStore noteStore;
     
     @Autowired
     private TenantRepository tenantRepository;
     
+    @Autowired
+    private ReadHedger readHedger;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Autowired
+    private NoteListCache noteListCache;
+    
+    @Autowired
+    private NoteContentCache noteContentCache;
+    
+    @Autowired
+    private NoteChunkStore noteChunkStore;
+    
+    @Autowired
+    private AttachmentService attachmentService;
+    
+    @Autowired
+    private RevisionService revisionService;
+    
+    @Autowired
+    private NoteArchiver noteArchiver;
+    
+    @Autowired
+    private NoteFacetService noteFacetService;
+    
+    @Autowired
+    private NoteRebalancer noteRebalancer;
+    
+    @Autowired
+    private MarkdownRenderer markdownRenderer;
+    
+    // Total attachment storage per tenant, by plan
+    @Value("${attachments.quota.free-bytes:10485760}")
+    private long freeAttachmentQuota;
+    
+    @Value("${attachments.quota.pro-bytes:1073741824}")
+    private long proAttachmentQuota;
+    
+    @Value("${notes.folders.move-batch-size:500}")
+    private int folderMoveBatchSize;
+    
+    // Bodies up to this size stay inline in the note document
+    @Value("${notes.chunked.inline-max-bytes:1048576}")
+    private int inlineMaxBytes;
+    
+    @Value("${notes.chunked.max-bytes:1073741824}")
+    private long maxContentBytes;
+    
+    // Route used by the second attempt of a hedged read
+    @Value("${notes.hedging.route:primary}")
+    private String hedgeRouteName;
+    
+    // New notes are inserted in batches by one committer thread instead of one round trip each
+    @Value("${notes.insert-pipeline.enabled:false}")
+    private boolean insertPipelineEnabled;
+    
+    @Value("${notes.insert-pipeline.capacity:4096}")
+    private int insertPipelineCapacity;
+    
+    @Value("${notes.insert-pipeline.max-batch:128}")
+    private int insertPipelineMaxBatch;
+    
+    // How long a batch may wait for more notes after its first; 0 batches only what is already queued
+    @Value("${notes.insert-pipeline.max-delay-micros:0}")
+    private long insertPipelineMaxDelayMicros;
+    
+    private ReadPreference hedgeRoute;
+    private SingleFlight<String, Optional<Note>> findByIdFlights;
+    private GroupCommitter<PendingInsert> insertPipeline;
+    
+    @PostConstruct
+    public void init() {
+        hedgeRoute = ReadPreference.valueOf(hedgeRouteName);
+        findByIdFlights = new SingleFlight<>("note.findById", meterRegistry, note -> note.map(Note::new));
+        if (insertPipelineEnabled) {
+            insertPipeline = new GroupCommitter<>("note.insert", insertPipelineCapacity, insertPipelineMaxBatch,
+                    insertPipelineMaxDelayMicros, TimeUnit.MICROSECONDS, this::insertBatch, meterRegistry);
+        }
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        if (insertPipeline != null) {
+            insertPipeline.close();
+        }
+    }
+    
+    // Reads are routed by NoteStore; readerId lets a user read their own recent writes
     public List<Note> findByTenantId(String tenantId) {
-        return noteRepository.findByTenantId(tenantId);
+        return noteStore.findByTenantId(tenantId, null);
     }
     
     public List<Note> findByTenantIdAndUserId(String tenantId, String userId) {
-        return noteRepository.findByTenantIdAndUserId(tenantId, userId);
+        return noteArchiver.rehydrateAll(readHedger.read(
+                () -> noteStore.findByTenantIdAndUserId(tenantId, userId),
+                () -> noteStore.findByTenantIdAndUserId(tenantId, userId, hedgeRoute)));
+    }
+    
+    public List<Note> findPageByTenantIdAndUserId(String tenantId, String userId, int page, int size) {
+        return noteArchiver.rehydrateAll(readHedger.read(
+                () -> noteStore.findPageByTenantIdAndUserId(tenantId, userId, page, size, noteStore.getReadPreference()),
+                () -> noteStore.findPageByTenantIdAndUserId(tenantId, userId, page, size, hedgeRoute)));
+    }
+    
+    public Optional<Note> findById(String id, String tenantId, String readerId) {
+        if (noteStore.hasRecentWrite(readerId)) {
+            // Needs a causally consistent read of its own; an in-flight lookup may predate the write
+            return hedgedFindById(id, tenantId, readerId);
+        }
+        // Identical concurrent lookups share one query; callers still check access themselves
+        return findByIdFlights.execute(tenantId + "|" + id, () -> hedgedFindById(id, tenantId, null));
+    }
+    
+    // Archived notes come back with their body, so callers never see a stub
+    private Optional<Note> hedgedFindById(String id, String tenantId, String readerId) {
+        return readHedger.read(
+                () -> noteStore.findById(id, tenantId, readerId),
+                () -> noteStore.findById(id, tenantId, readerId, hedgeRoute))
+                .map(noteArchiver::read);
+    }
+    
+    // Identity and version only, for answering conditional requests without the body
+    public Optional<Note> findVersionById(String id, String tenantId, String readerId) {
+        return noteStore.findVersionById(id, tenantId, readerId);
+    }
+    
+    // Read-modify-write paths read from the primary so they never act on a stale copy
+    public Optional<Note> findByIdForWrite(String id, String tenantId) {
+        return noteStore.findByIdOnPrimary(id, tenantId).map(noteArchiver::rehydrate);
+    }
+    
+    // Identity and version from the primary, for writes that only need to check access
+    public Optional<Note> findVersionByIdForWrite(String id, String tenantId) {
+        return noteStore.findVersionByIdOnPrimary(id, tenantId);
+    }
+    
+    // Writes go to the primary; actorId is the user performing the write.
+    // Caches are invalidated after the write so nothing built from pre-write
+    // data can be stored as current.
+    public Note save(Note note, String actorId) {
+        note.setUpdatedAt(now());
+        NoteRevision revision = null;
+        boolean created = note.getId() == null;
+        if (created) {
+            // The first revision needs the note's id before the note exists
+            note.setId(new ObjectId().toHexString());
+            revision = revisionService.record(null, note, actorId);
+            // New notes go to the end of the owner's manual order
+            if (note.getPosition() == null) {
+                note.setPosition(NoteRank.between(noteStore.findLastPosition(note.getTenantId(), note.getUserId()), null));
+            }
+        }
+        Note previous = null;
+        try {
+            if (created) {
+                insert(note, actorId);
+            } else {
+                previous = noteStore.replace(note, actorId, null);
+            }
+        } catch (RuntimeException e) {
+            revisionService.discard(revision);
+            throw e;
+        }
+        invalidateCaches(note);
+        updateFacets(previous, note);
+        markdownRenderer.warm(note.getContent());
+        return note;
+    }
+    
+    // Waits for the note's batch to be acknowledged; falls back to a direct write if the pipeline is full
+    private Note insert(Note note, String actorId) {
+        CompletableFuture<Void> queued = insertPipeline == null ? null : insertPipeline.submit(new PendingInsert(note, actorId));
+        if (queued == null) {
+            return noteStore.insert(note, actorId);
+        }
+        try {
+            queued.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return note;
+    }
+    
+    private void insertBatch(List<PendingInsert> batch, RuntimeException[] failures) {
+        List<Note> notes = new ArrayList<>(batch.size());
+        List<String> actorIds = new ArrayList<>(batch.size());
+        for (PendingInsert pending : batch) {
+            notes.add(pending.note);
+            actorIds.add(pending.actorId);
+        }
+        RuntimeException[] stored = noteStore.insertAll(notes, actorIds);
+        System.arraycopy(stored, 0, failures, 0, stored.length);
+    }
+    
+    public Note update(Note note, String actorId) {
+        return update(note, actorId, null);
+    }
+    
+    // With expectedVersion set, throws OptimisticLockingFailureException if the note changed since
+    public Note update(Note note, String actorId, Long expectedVersion) {
+        // Setting inline content on a chunked note turns it back into a single document
+        if (note.isChunked() && note.getContent() != null) {
+            clearChunked(note);
+        }
+        // An edited note is no longer cold; its body goes back into the hot collection
+        boolean unarchived = note.isArchived();
+        note.setArchived(false);
+        note.setUpdatedAt(now());
+        NoteRevision revision = recordRevision(note, actorId);
+        Note previous;
+        try {
+            previous = noteStore.replace(note, actorId, expectedVersion);
+        } catch (RuntimeException e) {
+            revisionService.discard(revision);
+            note.setArchived(unarchived);
+            throw e;
+        }
+        invalidateCaches(note);
+        updateFacets(previous, note);
+        markdownRenderer.warm(note.getContent());
+        // The chunks this write replaced, read atomically with it, so a concurrent upload that
+        // lost is cleaned up too; in-flight range reads of them get a grace period
+        if (previous != null && previous.getContentVersion() != null
+                && !(note.isChunked() && previous.getContentVersion().equals(note.getContentVersion()))) {
+            noteChunkStore.retire(note.getId(), previous.getContentVersion());
+        }
+        if (unarchived) {
+            noteArchiver.discard(note.getId());
+        }
+        return note;
     }
     
-    public Optional<Note> findById(String id) {
-        return noteRepository.findById(id);
+    /**
+     * Replaces the note's body from a stream. Small bodies are stored inline as usual;
+     * larger ones are streamed into chunks under a new version, and the note is switched
+     * to that version only once every chunk has been written.
+     */
+    public Note writeContent(Note note, InputStream body, String actorId, Long expectedVersion) throws IOException {
+        byte[] head = body.readNBytes(inlineMaxBytes + 1);
+        if (head.length <= inlineMaxBytes) {
+            note.setContent(new String(head, StandardCharsets.UTF_8));
+            return update(note, actorId, expectedVersion);
+        }
+        
+        String version = new ObjectId().toHexString();
+        long size = noteChunkStore.write(note.getId(), version,
+                new SequenceInputStream(new ByteArrayInputStream(head), body), maxContentBytes);
+        
+        note.setContent(null);
+        note.setChunked(true);
+        note.setContentSize(size);
+        note.setChunkSize(noteChunkStore.getChunkSize());
+        note.setContentVersion(version);
+        try {
+            return update(note, actorId, expectedVersion);
+        } catch (RuntimeException e) {
+            noteChunkStore.delete(note.getId(), version);
+            throw e;
+        }
+    }
+    
+    // Copies bytes [start, endInclusive] of a chunked note's body to out
+    public void copyChunkedContent(Note note, long start, long endInclusive, OutputStream out) throws IOException {
+        noteChunkStore.copyTo(note.getId(), note.getContentVersion(), note.getChunkSize(), start, endInclusive, out);
+    }
+    
+    public void delete(Note note, String actorId) {
+        delete(note, actorId, null);
+    }
+    
+    // Moves the note to the trash; its body, attachments and revisions stay until it is purged
+    public void delete(Note note, String actorId, Long expectedVersion) {
+        if (noteStore.trash(note.getId(), note.getTenantId(), actorId, expectedVersion, now())) {
+            updateFacets(note, null);
+        }
+        invalidateCaches(note);
+    }
+    
+    // Trashes every note of a user at once; cleanup happens later in the background
+    public long deleteAllForUser(String tenantId, String userId, String actorId) {
+        long trashed = noteStore.trashAll(tenantId, userId, actorId, now());
+        noteListCache.invalidateUser(tenantId, userId);
+        noteFacetService.clear(tenantId, userId);
+        return trashed;
+    }
+    
+    public List<Note> query(String tenantId, String userId, NoteQuery query, Integer page, int size) {
+        return noteArchiver.rehydrateAll(noteStore.query(tenantId, userId, query, page, size));
+    }
+    
+    public List<Note> findOrderedPage(String tenantId, String userId, Integer page, int size) {
+        return noteArchiver.rehydrateAll(noteStore.findOrderedPage(tenantId, userId, page, size));
+    }
+    
+    /**
+     * Moves a note in its owner's manual order to directly after the note afterId, or to
+     * the top if afterId is null. Only the moved note is written, unless notes share
+     * afterId's key. Returns its new position. Throws IllegalArgumentException if afterId is
+     * not one of the owner's other notes, OptimisticLockingFailureException if the note was
+     * moved concurrently and NoteOrderPendingException while the owner's notes from before
+     * manual ordering are still waiting for positions.
+     */
+    public String move(Note note, String afterId) {
+        String tenantId = note.getTenantId();
+        String userId = note.getUserId();
+        if (note.getId().equals(afterId)) {
+            throw new IllegalArgumentException("A note cannot be moved after itself");
+        }
+        // Notes from before manual ordering get keys in their current order first, in the background
+        if (!noteRebalancer.isBackfilled() && noteStore.hasUnpositioned(tenantId, userId)) {
+            noteRebalancer.queue(tenantId, userId);
+            throw new NoteOrderPendingException();
+        }
+        Note moved = noteStore.findPositionById(note.getId(), tenantId)
+                .orElseThrow(() -> new OptimisticLockingFailureException("Note " + note.getId() + " was deleted concurrently"));
+        String before = null;
+        if (afterId != null) {
+            Note after = noteStore.findPositionById(afterId, tenantId)
+                    .filter(n -> userId.equals(n.getUserId()))
+                    .orElseThrow(() -> new IllegalArgumentException("Note " + afterId + " not found"));
+            before = after.getPosition();
+        }
+        String next = noteStore.findNextPosition(tenantId, userId, before, note.getId());
+        if (afterId != null) {
+            // Notes sharing afterId's key sort after it by _id; give them their own keys first, so there is room
+            String key = before;
+            String firstTie = null;
+            for (Note tie : noteStore.findPositionTies(tenantId, userId, before, afterId, note.getId())) {
+                key = NoteRank.between(key, next);
+                if (!noteStore.setPosition(tie.getId(), tenantId, before, key)) {
+                    throw new OptimisticLockingFailureException("Note " + tie.getId() + " was moved concurrently");
+                }
+                firstTie = firstTie == null ? key : firstTie;
+            }
+            next = firstTie == null ? next : firstTie;
+        }
+        String position = NoteRank.between(before, next);
+        if (!noteStore.setPosition(note.getId(), tenantId, moved.getPosition(), position)) {
+            throw new OptimisticLockingFailureException("Note " + note.getId() + " was moved concurrently");
+        }
+        noteRebalancer.check(tenantId, userId, position);
+        return position;
+    }
+    
+    // tag and folder narrow the list; anyFolder ignores folder, otherwise null is the top level
+    public List<Note> findFiltered(String tenantId, String userId, String tag, String folder, boolean anyFolder,
+                                   Integer page, int size) {
+        return noteArchiver.rehydrateAll(noteStore.findFiltered(tenantId, userId, tag, folder, anyFolder, page, size));
+    }
+    
+    public Map<String, Map<String, Long>> findFacets(String tenantId, String userId) {
+        return noteFacetService.find(tenantId, userId);
     }
     
-    public Note save(Note note) {
-        note.setUpdatedAt(LocalDateTime.now());
-        return noteRepository.save(note);
+    /**
+     * Moves a folder and everything below it to a new path, in batches of at most
+     * notes.folders.move-batch-size notes so no single write grows with the folder.
+     * Returns the number of notes moved.
+     */
+    public long moveFolder(String tenantId, String userId, String from, String to) {
+        if (to != null && (to.equals(from) || to.startsWith(from + "/"))) {
+            throw new IllegalArgumentException("A folder cannot be moved into itself");
+        }
+        long moved = 0;
+        while (true) {
+            List<Note> batch = noteStore.findInFolderTree(tenantId, userId, from, folderMoveBatchSize);
+            if (batch.isEmpty()) {
+                break;
+            }
+            Map<String, String> folders = new HashMap<>();
+            for (Note note : batch) {
+                folders.put(note.getId(), noteFacetService.normalizeFolder((to == null ? "" : to) + note.getFolder().substring(from.length())));
+            }
+            Set<String> movedIds = noteStore.moveToFolders(tenantId, batch, folders, now());
+            // Notes changed meanwhile were not moved, and their writer adjusted the counts
+            Map<String, Long> deltas = new HashMap<>();
+            for (Note note : batch) {
+                if (movedIds.contains(note.getId())) {
+                    deltas.merge(note.getFolder(), -1L, Long::sum);
+                    if (folders.get(note.getId()) != null) {
+                        deltas.merge(folders.get(note.getId()), 1L, Long::sum);
+                    }
+                }
+            }
+            try {
+                noteFacetService.applyFolderDeltas(tenantId, userId, deltas);
+            } catch (RuntimeException e) {
+                facetsFailed(tenantId, userId, e);
+            }
+            moved += movedIds.size();
+        }
+        noteListCache.invalidateUser(tenantId, userId);
+        return moved;
     }
     
-    public Note update(Note note) {
-        note.setUpdatedAt(LocalDateTime.now());
-        return noteRepository.save(note);
+    public List<Note> findTrash(String tenantId, String userId) {
+        return noteStore.findTrashByTenantIdAndUserId(tenantId, userId);
     }
     
-    public void deleteById(String id) {
-        noteRepository.deleteById(id);
+    public Optional<Note> findTrashedById(String id, String tenantId) {
+        return noteStore.findTrashedByIdOnPrimary(id, tenantId);
+    }
+    
+    // Returns false if the note was purged in the meantime
+    public boolean restore(Note note, String actorId) {
+        if (!noteStore.restore(note.getId(), note.getTenantId(), actorId, now())) {
+            return false;
+        }
+        invalidateCaches(note);
+        updateFacets(null, note);
+        return true;
+    }
+    
+    // Removes a trashed note and everything stored alongside it; does nothing if it was restored
+    public boolean purge(Note note) {
+        if (!noteStore.purge(note.getId(), note.getTenantId())) {
+            return false;
+        }
+        invalidateCaches(note);
+        if (note.isChunked()) {
+            noteChunkStore.deleteAll(note.getId());
+        }
+        if (note.isArchived()) {
+            noteArchiver.discard(note.getId());
+        }
+        attachmentService.deleteAllForNote(note);
+        revisionService.deleteAll(note.getId());
+        return true;
+    }
+    
+    public List<NoteRevision> findRevisions(Note note) {
+        return revisionService.findByNote(note.getId());
+    }
+    
+    public Optional<NoteRevision> findRevision(Note note, long rev) {
+        return revisionService.reconstruct(note.getId(), rev);
+    }
+    
+    public boolean hasRevision(Note note, long rev) {
+        return revisionService.exists(note.getId(), rev);
+    }
+    
+    // Streams an attachment into storage, charged against the tenant's plan quota
+    public Attachment addAttachment(Note note, String userId, String filename, String contentType, InputStream body) throws IOException {
+        return attachmentService.upload(note, userId, filename, contentType, body, getAttachmentQuotaBytes(note.getTenantId()));
+    }
+    
+    public long getAttachmentQuotaBytes(String tenantId) {
+        return isProPlan(tenantId) ? proAttachmentQuota : freeAttachmentQuota;
+    }
+    
+    // The revision is diffed against the stored note, which may differ from what the caller loaded
+    private NoteRevision recordRevision(Note note, String actorId) {
+        if (!revisionService.isEnabled() || note.isChunked()) {
+            return null;
+        }
+        Note previous = noteStore.findByIdOnPrimary(note.getId(), note.getTenantId()).map(noteArchiver::rehydrate).orElse(null);
+        if (previous != null) {
+            note.setRevision(previous.getRevision());
+            note.setRevisionDepth(previous.getRevisionDepth());
+        }
+        return revisionService.record(previous, note, actorId);
+    }
+    
+    private static void clearChunked(Note note) {
+        note.setChunked(false);
+        note.setContentSize(0);
+        note.setChunkSize(0);
+        note.setContentVersion(null);
+    }
+    
+    // Counts are adjusted after the write; a failure marks them for recounting rather than failing the write
+    private void updateFacets(Note before, Note after) {
+        try {
+            noteFacetService.applyChange(before, after);
+        } catch (RuntimeException e) {
+            Note owner = after != null ? after : before;
+            facetsFailed(owner.getTenantId(), owner.getUserId(), e);
+        }
+    }
+    
+    private void facetsFailed(String tenantId, String userId, RuntimeException cause) {
+        System.err.println("Failed to update tag and folder counts of user " + userId + ": " + cause.getMessage());
+        try {
+            noteFacetService.markStale(tenantId, userId);
+        } catch (RuntimeException e) {
+            // Left to the reconciler's rolling pass
+            System.err.println("Failed to mark the tag and folder counts of user " + userId + " for recounting: " + e.getMessage());
+        }
+    }
+    
+    private void invalidateCaches(Note note) {
+        noteListCache.invalidateUser(note.getTenantId(), note.getUserId());
+        if (note.getId() != null) {
+            noteContentCache.invalidate(note.getId());
+        }
+    }
+    
+    // MongoDB stores milliseconds; truncating keeps ETags identical before and after a round trip
+    private static LocalDateTime now() {
+        return LocalDateTime.now(ZoneOffset.UTC).truncatedTo(ChronoUnit.MILLIS);
     }
     
     public long countByTenantId(String tenantId) {
-        return noteRepository.findByTenantId(tenantId).size();
+        return noteStore.countByTenantId(tenantId);
     }
     
     public long countByTenantIdAndUserId(String tenantId, String userId) {
-        return noteRepository.findByTenantIdAndUserId(tenantId, userId).size();
+        return noteStore.countByTenantIdAndUserId(tenantId, userId);
     }
     
     public boolean isNoteLimitReached(String tenantId, String userId, String userRole) {
-        Optional<Tenant> tenant = tenantRepository.findBySlug(tenantId);
-        if (tenant.isPresent() && "PRO".equals(tenant.get().getPlan())) {
+        if (isProPlan(tenantId)) {
             return false; // No limit for PRO plan
         }
         
@@ -69,4 +578,20 @@ public class NoteService {
             return userNoteCount >= 1; // User limit: 1 note
         }
     }
+    
+    // Notes and users carry the tenant's id, not its slug
+    private boolean isProPlan(String tenantId) {
+        Optional<Tenant> tenant = tenantId == null ? Optional.empty() : tenantRepository.findById(tenantId);
+        return tenant.isPresent() && "PRO".equals(tenant.get().getPlan());
+    }
+    
+    private static final class PendingInsert {
+        final Note note;
+        final String actorId;
+        
+        PendingInsert(Note note, String actorId) {
+            this.note = note;
+            this.actorId = actorId;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,268 @@
+package com.fred.notesapp.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Hedges idempotent reads: if the first attempt has not answered within the recent
+ * p-th percentile latency, a second attempt is sent down a different route and whichever
+ * answers first wins.
+ *
+ * Both attempts run on pools and the caller only waits for the first result, so it can
+ * return as soon as either answers. The losing attempt is never interrupted (that neither
+ * unblocks the driver's socket reads nor leaves the pooled connection usable); it runs to
+ * completion on its pool thread, bounded by the queries' maxTimeMS. When no thread is free
+ * for a first attempt the read runs unhedged on the caller. Hedges use a small pool with a
+ * bounded queue; when it is full the hedge is dropped and the read waits for its first
+ * attempt.
+ *
+ * Hedges are paid for out of a budget that accrues a fraction of a hedge per read
+ * (notes.hedging.budget-ratio), so hedging can never add more than that share of load.
+ */
+@Component
+public class ReadHedger {
+
+    private static final int SAMPLE_SIZE = 1024;
+    private static final long CREDIT_UNIT = 1000;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.hedging.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notes.hedging.percentile:0.95}")
+    private double percentile;
+
+    @Value("${notes.hedging.min-delay-ms:5}")
+    private long minDelayMs;
+
+    @Value("${notes.hedging.budget-ratio:0.05}")
+    private double budgetRatio;
+
+    // First attempts in flight at once, losers still finishing included
+    @Value("${notes.hedging.primary-threads:64}")
+    private int primaryThreads;
+
+    @Value("${notes.hedging.threads:8}")
+    private int threads;
+
+    @Value("${notes.hedging.queue-capacity:32}")
+    private int queueCapacity;
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLE_SIZE);
+    private final AtomicInteger sampleIndex = new AtomicInteger();
+    private final AtomicLong credits = new AtomicLong();
+    private volatile long hedgeDelayNanos;
+    private long creditPerRead;
+    private ThreadPoolExecutor primaries;
+    private ThreadPoolExecutor executor;
+    private Counter hedgesIssued;
+    private Counter hedgesWon;
+    private Counter hedgesDenied;
+    private Counter hedgesDropped;
+    private Counter unhedged;
+
+    @PostConstruct
+    public void init() {
+        hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMs);
+        creditPerRead = (long) (budgetRatio * CREDIT_UNIT);
+        primaries = new ThreadPoolExecutor(0, primaryThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                daemonThreads("read-attempt-"));
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                daemonThreads("read-hedge-"));
+        executor.allowCoreThreadTimeOut(true);
+        hedgesIssued = Counter.builder("notes.hedge.issued").register(meterRegistry);
+        hedgesWon = Counter.builder("notes.hedge.won").description("Hedged reads where the hedge answered first").register(meterRegistry);
+        hedgesDenied = Counter.builder("notes.hedge.denied").description("Hedges skipped because the budget was spent").register(meterRegistry);
+        hedgesDropped = Counter.builder("notes.hedge.dropped").description("Hedges skipped because the hedge queue was full").register(meterRegistry);
+        unhedged = Counter.builder("notes.hedge.unhedged").description("Reads run on the caller because every attempt thread was busy").register(meterRegistry);
+        Gauge.builder("notes.hedge.delay", this, hedger -> hedger.hedgeDelayNanos / 1_000_000.0)
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        Gauge.builder("notes.hedge.queue.size", executor, e -> e.getQueue().size()).register(meterRegistry);
+        Gauge.builder("notes.hedge.attempts.active", primaries, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        primaries.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Runs {@code primary}, hedging with {@code hedge} when it is slow, and returns the first
+     * answer. Both must be idempotent; whichever loses keeps running until it finishes, so
+     * both should be bounded by a server-side time limit.
+     */
+    public <T> T read(Supplier<T> primary, Supplier<T> hedge) {
+        if (!enabled) {
+            return primary.get();
+        }
+        addCredit();
+        Attempts<T> attempts = new Attempts<>();
+        long start = System.nanoTime();
+        try {
+            primaries.execute(() -> {
+                try {
+                    attempts.result.complete(primary.get());
+                } catch (RuntimeException e) {
+                    attempts.failed(e);
+                } finally {
+                    // Recorded whether it won or lost, so slow attempts are not left out of the percentile
+                    record(System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            unhedged.increment();
+            try {
+                return primary.get();
+            } finally {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        try {
+            try {
+                return attempts.result.get(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                startHedge(hedge, attempts);
+            }
+            return attempts.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        } finally {
+            Future<?> hedgeAttempt = attempts.hedge;
+            if (hedgeAttempt != null) {
+                // Only a hedge still queued is dropped; a running one finishes on its own
+                hedgeAttempt.cancel(false);
+            }
+        }
+    }
+
+    // Runs on the caller once the first attempt has taken longer than the hedge delay
+    private <T> void startHedge(Supplier<T> hedge, Attempts<T> attempts) {
+        if (attempts.result.isDone()) {
+            return;
+        }
+        if (!tryTakeCredit()) {
+            hedgesDenied.increment();
+            return;
+        }
+        attempts.pending.incrementAndGet();
+        try {
+            attempts.hedge = executor.submit(() -> {
+                try {
+                    if (attempts.result.complete(hedge.get())) {
+                        hedgesWon.increment();
+                    }
+                } catch (RuntimeException e) {
+                    attempts.failed(e);
+                }
+            });
+            hedgesIssued.increment();
+        } catch (RejectedExecutionException e) {
+            credits.addAndGet(CREDIT_UNIT);
+            hedgesDropped.increment();
+            attempts.failed(null);
+        }
+    }
+
+    private void record(long latencyNanos) {
+        int slot = Math.floorMod(sampleIndex.getAndIncrement(), SAMPLE_SIZE);
+        samples.set(slot, latencyNanos);
+    }
+
+    @Scheduled(fixedDelayString = "${notes.hedging.recompute-interval-ms:1000}")
+    public void recomputeDelay() {
+        int recorded = sampleIndex.get();
+        int count = recorded < 0 || recorded >= SAMPLE_SIZE ? SAMPLE_SIZE : recorded;
+        if (count < 100) {
+            return;
+        }
+        long[] sorted = new long[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        long delay = sorted[(int) Math.min(count - 1, Math.floor(percentile * count))];
+        hedgeDelayNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(minDelayMs), delay);
+    }
+
+    private void addCredit() {
+        // Cap the bank so a quiet period cannot fund a burst of hedges
+        long cap = CREDIT_UNIT * 10;
+        credits.getAndUpdate(current -> Math.min(cap, current + creditPerRead));
+    }
+
+    private boolean tryTakeCredit() {
+        while (true) {
+            long current = credits.get();
+            if (current < CREDIT_UNIT) {
+                return false;
+            }
+            if (credits.compareAndSet(current, current - CREDIT_UNIT)) {
+                return true;
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // The state shared by one read's first attempt and its hedge
+    private static final class Attempts<T> {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+        volatile Future<?> hedge;
+
+        // Surfaces the first error only once no attempt is left that could still succeed
+        void failed(RuntimeException e) {
+            if (e != null) {
+                error.compareAndSet(null, e);
+            }
+            if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(error.get());
+            }
+        }
+    }
+}
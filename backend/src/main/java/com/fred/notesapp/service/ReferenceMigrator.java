@@ -0,0 +1,145 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.repository.MigrationCheckpoints;
+import com.fred.notesapp.repository.NotePartitionDirectory;
+import com.fred.notesapp.repository.ObjectIdReferences;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites tenantId and userId references stored as hex strings to ObjectIds, in small
+ * batches per collection, for every note partition and the users collection.
+ *
+ * Each collection is walked once in _id order from a checkpoint in
+ * {@link MigrationCheckpoints}, so a batch reads only the next batch-size documents and a
+ * restart continues where it stopped. Each rewrite is conditional on the references being
+ * unchanged. When every collection is done the migration is recorded as complete, and
+ * queries stop matching the string form, on every node and after restarts.
+ */
+@Service
+public class ReferenceMigrator {
+
+    private static final Pattern HEX_ID = Pattern.compile("^[0-9a-fA-F]{24}$");
+    private static final String KEY = "references";
+
+    @Autowired
+    private NotePartitionDirectory partitionDirectory;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ObjectIdReferences references;
+
+    @Autowired
+    private MigrationCheckpoints checkpoints;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${schema.reference-migration.enabled:true}")
+    private boolean enabled;
+
+    @Value("${schema.reference-migration.batch-size:500}")
+    private int batchSize;
+
+    private Counter migrated;
+
+    @PostConstruct
+    public void init() {
+        migrated = Counter.builder("schema.references.migrated").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${schema.reference-migration.interval-ms:10000}",
+            initialDelayString = "${schema.reference-migration.interval-ms:10000}")
+    public void migrateBatch() {
+        if (!references.isLegacyReads()) {
+            return;
+        }
+        try {
+            // Finished earlier, possibly by another node
+            if (checkpoints.isComplete(KEY)) {
+                references.setLegacyReads(false);
+                return;
+            }
+            if (!enabled) {
+                return;
+            }
+            List<MongoCollection<Document>> collections = new ArrayList<>();
+            for (NotePartitionDirectory.Target target : partitionDirectory.allTargets()) {
+                collections.add(target.getTemplate().getCollection(target.getCollection()));
+            }
+            boolean done = true;
+            for (MongoCollection<Document> collection : collections) {
+                done &= migrate(collection, List.of("tenantId", "userId"));
+            }
+            done &= migrate(mongoTemplate.getCollection("users"), List.of("tenantId"));
+            if (done) {
+                checkpoints.complete(KEY);
+                references.setLegacyReads(false);
+                System.out.println("ObjectId reference migration complete");
+            }
+        } catch (RuntimeException e) {
+            System.err.println("ObjectId reference migration failed: " + e.getMessage());
+        }
+    }
+
+    // Migrates the next batch of the collection; returns true once the whole collection has been walked
+    private boolean migrate(MongoCollection<Document> collection, List<String> fields) {
+        String key = KEY + ":" + collection.getNamespace().getFullName();
+        if (checkpoints.isComplete(key)) {
+            return true;
+        }
+        MigrationCheckpoints.Checkpoint checkpoint = checkpoints.claim(key);
+        if (checkpoint == null) {
+            // Another node is on it, or just finished it
+            return checkpoints.isComplete(key);
+        }
+        Bson after = checkpoint.getLastId() == null ? new Document() : Filters.gt("_id", checkpoint.getLastId());
+
+        Object last = null;
+        for (Document doc : collection.find(after)
+                .projection(Projections.include(fields))
+                .sort(Sorts.ascending("_id"))
+                .limit(batchSize)) {
+            last = doc.get("_id");
+            List<Bson> unchanged = new ArrayList<>();
+            Document set = new Document();
+            unchanged.add(Filters.eq("_id", doc.get("_id")));
+            for (String field : fields) {
+                Object value = doc.get(field);
+                if (value instanceof String && HEX_ID.matcher((String) value).matches()) {
+                    unchanged.add(Filters.eq(field, value));
+                    set.append(field, new ObjectId((String) value));
+                }
+            }
+            if (!set.isEmpty()) {
+                long modified = collection.updateOne(Filters.and(unchanged), new Document("$set", set)).getModifiedCount();
+                migrated.increment(modified);
+            }
+        }
+        if (last == null) {
+            checkpoints.complete(key);
+            return true;
+        }
+        checkpoints.advance(key, last);
+        return false;
+    }
+}
@@ -0,0 +1,341 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.NoteRevision;
+import com.fred.notesapp.model.Tenant;
+import com.fred.notesapp.repository.TenantRepository;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Revision history for inline notes, kept as delta chains in note_revisions.
+ *
+ * Each save stores a single-span edit against the revision it replaced, and a full snapshot
+ * once the chain since the last snapshot reaches notes.revisions.snapshot-interval, so reading
+ * any revision applies at most that many deltas. Revision numbers come from a per-note counter;
+ * concurrent edits of the same base simply become two branches pointing at it.
+ *
+ * Old revisions are compacted in the background: a note's history is trimmed to its plan's
+ * retention, and retained revisions whose base would be removed are rewritten as snapshots first.
+ * Notes due for compaction are marked on their revision counter, so the work survives restarts
+ * and is picked up by whichever node runs next.
+ */
+@Service
+public class RevisionService {
+
+    public static final String SEQUENCES = "note_revision_seq";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private TenantRepository tenantRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.revisions.enabled:true}")
+    private boolean enabled;
+
+    @Value("${notes.revisions.snapshot-interval:20}")
+    private int snapshotInterval;
+
+    // Revisions kept per note, by plan
+    @Value("${notes.revisions.retention.free:20}")
+    private int freeRetention;
+
+    @Value("${notes.revisions.retention.pro:200}")
+    private int proRetention;
+
+    // Notes compacted per run
+    @Value("${notes.revisions.compaction.batch-size:500}")
+    private int batchSize;
+
+    private volatile boolean indexed;
+
+    private Timer reconstructTimer;
+    private Counter deltaBytes;
+    private Counter snapshotBytes;
+    private Counter compacted;
+
+    @PostConstruct
+    public void init() {
+        reconstructTimer = Timer.builder("notes.revisions.reconstruct").register(meterRegistry);
+        deltaBytes = Counter.builder("notes.revisions.stored.chars").tag("kind", "delta").register(meterRegistry);
+        snapshotBytes = Counter.builder("notes.revisions.stored.chars").tag("kind", "snapshot").register(meterRegistry);
+        compacted = Counter.builder("notes.revisions.compacted").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Stores the revision that turns previous into note and stamps note with its number.
+     * Call before saving the note; returns null when nothing needs recording. previous is
+     * null for a new note.
+     */
+    public NoteRevision record(Note previous, Note note, String authorId) {
+        // Chunked bodies are too large to version
+        if (!enabled || note.isChunked()) {
+            return null;
+        }
+        String content = textOf(note.getContent());
+        if (previous != null && !previous.isChunked() && previous.getRevision() > 0
+                && Objects.equals(previous.getTitle(), note.getTitle())
+                && content.equals(textOf(previous.getContent()))) {
+            return null;
+        }
+
+        ensureIndex();
+        long rev = nextRev(note.getId());
+        NoteRevision revision = new NoteRevision(note.getId(), note.getTenantId(), rev, note.getTitle(), authorId);
+        revision.setLength(content.length());
+
+        boolean snapshot = previous == null || previous.isChunked() || previous.getRevision() == 0
+                || previous.getRevisionDepth() + 1 >= snapshotInterval;
+        if (!snapshot) {
+            diff(textOf(previous.getContent()), content, revision);
+            // A delta nearly as large as the note saves little and lengthens the chain
+            snapshot = revision.getInsert().length() * 2 > content.length() && content.length() > 0;
+        }
+        if (snapshot) {
+            revision.setSnapshot(true);
+            revision.setContent(content);
+            revision.setPrefix(0);
+            revision.setSuffix(0);
+            revision.setInsert(null);
+            snapshotBytes.increment(content.length());
+        } else {
+            revision.setBaseRev(previous.getRevision());
+            revision.setDepth(previous.getRevisionDepth() + 1);
+            deltaBytes.increment(revision.getInsert().length());
+        }
+
+        mongoTemplate.insert(revision);
+        note.setRevision(rev);
+        note.setRevisionDepth(revision.getDepth());
+        if (rev % snapshotInterval == 0) {
+            // The note's history may have outgrown its retention
+            sequences().updateOne(Filters.eq("_id", note.getId()),
+                    Updates.combine(Updates.set("compactRev", rev), Updates.set("tenantId", note.getTenantId())));
+        }
+        return revision;
+    }
+
+    // Removes a revision whose note write did not go through
+    public void discard(NoteRevision revision) {
+        if (revision != null) {
+            mongoTemplate.remove(Query.query(Criteria.where("_id").is(revision.getId())), NoteRevision.class);
+        }
+    }
+
+    // Answered from the (noteId, rev) index
+    public boolean exists(String noteId, long rev) {
+        ensureIndex();
+        return mongoTemplate.exists(Query.query(Criteria.where("noteId").is(noteId).and("rev").is(rev)), NoteRevision.class);
+    }
+
+    // Newest first, without content
+    public List<NoteRevision> findByNote(String noteId) {
+        ensureIndex();
+        Query query = Query.query(Criteria.where("noteId").is(noteId))
+                .with(Sort.by(Sort.Direction.DESC, "rev"));
+        query.fields().exclude("content", "insert");
+        return mongoTemplate.find(query, NoteRevision.class);
+    }
+
+    /**
+     * Returns the revision with its full content. The chain is usually read with one range
+     * query; revisions outside that window are fetched individually. Empty if the revision
+     * does not exist or its chain is broken.
+     */
+    public Optional<NoteRevision> reconstruct(String noteId, long rev) {
+        ensureIndex();
+        return reconstructTimer.record(() -> {
+            Map<Long, NoteRevision> window = new HashMap<>();
+            Query query = Query.query(Criteria.where("noteId").is(noteId).and("rev").lte(rev).gt(rev - 2L * snapshotInterval))
+                    .with(Sort.by(Sort.Direction.DESC, "rev"));
+            for (NoteRevision revision : mongoTemplate.find(query, NoteRevision.class)) {
+                window.put(revision.getRev(), revision);
+            }
+
+            Deque<NoteRevision> chain = new ArrayDeque<>();
+            NoteRevision current = fetch(noteId, rev, window);
+            while (current != null && !current.isSnapshot()) {
+                chain.push(current);
+                current = fetch(noteId, current.getBaseRev(), window);
+            }
+            if (current == null) {
+                if (!chain.isEmpty()) {
+                    System.err.println("Revision chain of note " + noteId + " is broken below rev " + chain.peek().getRev());
+                }
+                return Optional.<NoteRevision>empty();
+            }
+
+            String content = textOf(current.getContent());
+            NoteRevision result = current;
+            while (!chain.isEmpty()) {
+                result = chain.pop();
+                content = apply(content, result);
+            }
+            result.setContent(content);
+            return Optional.of(result);
+        });
+    }
+
+    public void deleteAll(String noteId) {
+        mongoTemplate.remove(Query.query(Criteria.where("noteId").is(noteId)), NoteRevision.class);
+        sequences().deleteOne(Filters.eq("_id", noteId));
+    }
+
+    @Scheduled(fixedDelayString = "${notes.revisions.compaction.interval-ms:60000}",
+            initialDelayString = "${notes.revisions.compaction.interval-ms:60000}")
+    public void compact() {
+        try {
+            ensureIndex();
+            for (Document seq : sequences().find(Filters.exists("compactRev")).limit(batchSize)) {
+                String noteId = seq.getString("_id");
+                try {
+                    compact(noteId, retentionFor(seq.getString("tenantId")));
+                    // Unless the note was marked again meanwhile
+                    sequences().updateOne(Filters.and(Filters.eq("_id", noteId), Filters.eq("compactRev", seq.get("compactRev"))),
+                            Updates.unset("compactRev"));
+                } catch (RuntimeException e) {
+                    System.err.println("Revision compaction failed for note " + noteId + ": " + e.getMessage());
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Revision compaction failed: " + e.getMessage());
+        }
+    }
+
+    // Keeps the newest `retain` revisions of a note
+    void compact(String noteId, int retain) {
+        Query oldestKept = Query.query(Criteria.where("noteId").is(noteId))
+                .with(Sort.by(Sort.Direction.DESC, "rev"))
+                .skip(retain - 1L)
+                .limit(1);
+        oldestKept.fields().include("rev");
+        NoteRevision cutoff = mongoTemplate.findOne(oldestKept, NoteRevision.class);
+        if (cutoff == null) {
+            return;
+        }
+        long cutoffRev = cutoff.getRev();
+
+        // Retained deltas built on revisions about to go become self-contained first
+        Query rebased = Query.query(Criteria.where("noteId").is(noteId).and("rev").gte(cutoffRev)
+                .and("snapshot").is(false).and("baseRev").lt(cutoffRev));
+        rebased.fields().include("rev");
+        for (NoteRevision revision : mongoTemplate.find(rebased, NoteRevision.class)) {
+            Optional<NoteRevision> full = reconstruct(noteId, revision.getRev());
+            if (!full.isPresent()) {
+                return;
+            }
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(revision.getId())),
+                    new Update().set("snapshot", true).set("content", full.get().getContent()).set("depth", 0)
+                            .set("baseRev", 0L).unset("prefix").unset("suffix").unset("insert"),
+                    NoteRevision.class);
+        }
+
+        long removed = mongoTemplate.remove(Query.query(Criteria.where("noteId").is(noteId).and("rev").lt(cutoffRev)),
+                NoteRevision.class).getDeletedCount();
+        compacted.increment(removed);
+    }
+
+    private int retentionFor(String tenantId) {
+        Optional<Tenant> tenant = tenantId == null ? Optional.empty() : tenantRepository.findById(tenantId);
+        return Math.max(1, tenant.isPresent() && "PRO".equals(tenant.get().getPlan()) ? proRetention : freeRetention);
+    }
+
+    private NoteRevision fetch(String noteId, long rev, Map<Long, NoteRevision> window) {
+        NoteRevision revision = window.get(rev);
+        if (revision != null) {
+            return revision;
+        }
+        return mongoTemplate.findOne(Query.query(Criteria.where("noteId").is(noteId).and("rev").is(rev)), NoteRevision.class);
+    }
+
+    private long nextRev(String noteId) {
+        Document seq = sequences().findOneAndUpdate(Filters.eq("_id", noteId),
+                Updates.inc("seq", 1L), new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+        return seq.get("seq", Number.class).longValue();
+    }
+
+    // Created on first use so startup does not depend on MongoDB being reachable
+    private void ensureIndex() {
+        if (!indexed) {
+            mongoTemplate.indexOps(NoteRevision.class).ensureIndex(
+                    new Index().on("noteId", Sort.Direction.ASC).on("rev", Sort.Direction.ASC).unique());
+            sequences().createIndex(Indexes.ascending("compactRev"), new IndexOptions().sparse(true));
+            indexed = true;
+        }
+    }
+
+    private MongoCollection<Document> sequences() {
+        return mongoTemplate.getCollection(SEQUENCES);
+    }
+
+    /**
+     * Fills prefix, suffix and insert with the one span that turns base into target. Span
+     * edges never split a surrogate pair, so insert is always valid UTF-16.
+     */
+    static void diff(String base, String target, NoteRevision revision) {
+        int max = Math.min(base.length(), target.length());
+        int prefix = 0;
+        while (prefix < max && base.charAt(prefix) == target.charAt(prefix)) {
+            prefix++;
+        }
+        if (prefix > 0 && Character.isHighSurrogate(target.charAt(prefix - 1))) {
+            prefix--;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && base.charAt(base.length() - 1 - suffix) == target.charAt(target.length() - 1 - suffix)) {
+            suffix++;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(target.charAt(target.length() - suffix))) {
+            suffix--;
+        }
+        revision.setPrefix(prefix);
+        revision.setSuffix(suffix);
+        revision.setInsert(target.substring(prefix, target.length() - suffix));
+    }
+
+    static String apply(String base, NoteRevision revision) {
+        return base.substring(0, revision.getPrefix()) + revision.getInsert()
+                + base.substring(base.length() - revision.getSuffix());
+    }
+
+    private static String textOf(String content) {
+        return content == null ? "" : content;
+    }
+}
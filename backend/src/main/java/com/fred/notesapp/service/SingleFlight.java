@@ -0,0 +1,57 @@
+package com.fred.notesapp.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Coalesces concurrent identical lookups: the first caller for a key runs the loader,
+ * callers that arrive while it is in flight wait for the same result instead of issuing
+ * their own query. Nothing is cached once the load completes.
+ *
+ * Every caller receives its own copy of the result (via {@code copier}) so no two callers
+ * share a mutable entity. Authorisation stays with each caller.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final UnaryOperator<V> copier;
+    private final Counter leaders;
+    private final Counter followers;
+
+    public SingleFlight(String name, MeterRegistry meterRegistry, UnaryOperator<V> copier) {
+        this.copier = copier;
+        this.leaders = Counter.builder("singleflight.calls").tag("name", name).tag("role", "leader").register(meterRegistry);
+        this.followers = Counter.builder("singleflight.calls").tag("name", name).tag("role", "follower").register(meterRegistry);
+    }
+
+    public V execute(K key, Supplier<V> loader) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            followers.increment();
+            try {
+                return copier.apply(existing.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        leaders.increment();
+        try {
+            V value = loader.get();
+            mine.complete(value);
+            return copier.apply(value);
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.fred.notesapp.service;
+
+/**
+ * Thrown when storing an attachment would take the tenant past its plan's storage quota.
+ * Controllers translate this into a 403, like the note count limit.
+ */
+public class StorageQuotaExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public StorageQuotaExceededException() {
+        super("Attachment storage quota reached");
+    }
+}
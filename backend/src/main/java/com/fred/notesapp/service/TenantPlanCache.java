@@ -0,0 +1,87 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.cache.InvalidationBus;
+import com.fred.notesapp.cache.InvalidationEvent;
+import com.fred.notesapp.model.Tenant;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Small in-memory slug -> plan lookup for hot paths (rate limiting, scheduling)
+ * that cannot afford a MongoDB round trip per request. Entries expire after a TTL.
+ */
+@Component
+public class TenantPlanCache {
+
+    public static final String DEFAULT_PLAN = "FREE";
+
+    @Autowired
+    private TenantService tenantService;
+
+    @Autowired
+    private InvalidationBus invalidationBus;
+
+    @Value("${tenant.plan-cache.ttl-ms:30000}")
+    private long ttlMs;
+
+    private final ConcurrentHashMap<String, CachedPlan> plans = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        invalidationBus.register(InvalidationEvent.Type.TENANT, event -> {
+            if (event.getKey() == null) {
+                plans.clear();
+            } else {
+                invalidate(event.getKey());
+            }
+        });
+    }
+
+    public String getPlan(String tenantSlug) {
+        if (tenantSlug == null) {
+            return DEFAULT_PLAN;
+        }
+        long now = System.currentTimeMillis();
+        CachedPlan cached = plans.get(tenantSlug);
+        if (cached != null && cached.expiresAt > now) {
+            return cached.plan;
+        }
+        String plan = tenantService.findBySlug(tenantSlug)
+                .map(Tenant::getPlan)
+                .orElse(DEFAULT_PLAN);
+        plans.put(tenantSlug, new CachedPlan(plan, now + ttlMs));
+        return plan;
+    }
+
+    public void invalidate(String tenantSlug) {
+        plans.remove(tenantSlug);
+    }
+
+    // Extracts "acme" from "admin@acme.test"
+    public static Optional<String> slugFromEmail(String email) {
+        if (email == null) {
+            return Optional.empty();
+        }
+        int at = email.indexOf('@');
+        if (at < 0 || at == email.length() - 1) {
+            return Optional.empty();
+        }
+        int dot = email.indexOf('.', at + 1);
+        return Optional.of(dot < 0 ? email.substring(at + 1) : email.substring(at + 1, dot));
+    }
+
+    private static final class CachedPlan {
+        final String plan;
+        final long expiresAt;
+
+        CachedPlan(String plan, long expiresAt) {
+            this.plan = plan;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package com.fred.notesapp.service;
 
 import com.fred.notesapp.model.Tenant;
 import com.fred.notesapp.repository.TenantRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -14,8 +16,21 @@ public class TenantService {
     @Autowired
     private TenantRepository tenantRepository;
     
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    private SingleFlight<String, Optional<Tenant>> findBySlugFlights;
+    
+    @PostConstruct
+    public void init() {
+        findBySlugFlights = new SingleFlight<>("tenant.findBySlug", meterRegistry, tenant -> tenant.map(Tenant::new));
+    }
+    
     public Optional<Tenant> findBySlug(String slug) {
-        return tenantRepository.findBySlug(slug);
+        if (slug == null) {
+            return tenantRepository.findBySlug(null);
+        }
+        return findBySlugFlights.execute(slug, () -> tenantRepository.findBySlug(slug));
     }
     
     public Tenant save(Tenant tenant) {
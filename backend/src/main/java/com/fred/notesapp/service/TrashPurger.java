@@ -0,0 +1,81 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.repository.NotePartitionDirectory;
+import com.fred.notesapp.repository.NoteStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+/**
+ * Permanently removes notes that have been in the trash longer than the retention period,
+ * together with their chunks, attachments and revisions. Each run removes at most one
+ * batch across all note collections, which bounds the delete rate off the request path.
+ *
+ * A TTL index would remove the note documents but leave everything stored beside them.
+ */
+@Service
+public class TrashPurger {
+
+    @Autowired
+    private NoteService noteService;
+
+    @Autowired
+    private NoteStore noteStore;
+
+    @Autowired
+    private NotePartitionDirectory partitionDirectory;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${notes.trash.purge.enabled:true}")
+    private boolean enabled;
+
+    @Value("${notes.trash.retention-days:30}")
+    private long retentionDays;
+
+    @Value("${notes.trash.purge.batch-size:100}")
+    private int batchSize;
+
+    private Counter purged;
+
+    @PostConstruct
+    public void init() {
+        purged = Counter.builder("notes.trash.purged").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${notes.trash.purge.interval-ms:60000}",
+            initialDelayString = "${notes.trash.purge.interval-ms:60000}")
+    public void purgeBatch() {
+        try {
+            if (!enabled) {
+                return;
+            }
+            LocalDateTime cutoff = LocalDateTime.now(ZoneOffset.UTC).minusDays(retentionDays);
+            int remaining = batchSize;
+            for (NotePartitionDirectory.Target target : partitionDirectory.allTargets()) {
+                if (remaining <= 0) {
+                    break;
+                }
+                List<Note> expired = noteStore.findExpiredTrash(target, cutoff, remaining);
+                for (Note note : expired) {
+                    if (noteService.purge(note)) {
+                        purged.increment();
+                    }
+                }
+                remaining -= expired.size();
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Trash purge failed: " + e.getMessage());
+        }
+    }
+}
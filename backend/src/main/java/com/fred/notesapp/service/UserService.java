@@ -1,13 +1,24 @@
 package com.fred.notesapp.service;
 
 import com.fred.notesapp.model.User;
+import com.fred.notesapp.repository.ObjectIdReferences;
 import com.fred.notesapp.repository.UserRepository;
+import com.fred.notesapp.security.PasswordHashingRejectedException;
+import com.fred.notesapp.security.PasswordHashingService;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 @Service
 public class UserService {
@@ -16,30 +27,90 @@ public class UserService {
     private UserRepository userRepository;
     
     @Autowired
-    private PasswordEncoder passwordEncoder;
+    private MongoTemplate mongoTemplate;
+    
+    @Autowired
+    private PasswordHashingService passwordHashingService;
+    
+    @Autowired
+    private ObjectIdReferences references;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    // Database writes that follow a hash run here, never on the hashing pool
+    @Autowired
+    @Qualifier("applicationTaskExecutor")
+    private Executor taskExecutor;
+    
+    private SingleFlight<String, Optional<User>> findByEmailFlights;
+    
+    @PostConstruct
+    public void init() {
+        findByEmailFlights = new SingleFlight<>("user.findByEmailAndTenantId", meterRegistry, user -> user.map(User::new));
+    }
     
     public Optional<User> findByEmailAndTenantId(String email, String tenantId) {
-        return userRepository.findByEmailAndTenantId(email, tenantId);
+        return findByEmailFlights.execute(email + "|" + tenantId, () -> userRepository.findByEmailAndTenantIdIn(email, references.valuesOf(tenantId)));
     }
     
     public Optional<User> findByEmail(String email) {
         return userRepository.findByEmail(email);
     }
     
+    // Saves a user whose password field holds the plain password; it is hashed exactly once here
     public User save(User user) {
+        return store(user, passwordHashingService.encode(user.getPassword()));
+    }
+    
+    // Like save, for request paths: completes once hashed and stored, without blocking the caller
+    public CompletableFuture<User> saveAsync(User user) {
+        return passwordHashingService.encodeAsync(user.getPassword())
+                .thenApplyAsync(hash -> store(user, hash), taskExecutor);
+    }
+    
+    private User store(User user, String hash) {
         // Check if user with same email and tenant already exists
-        Optional<User> existingUser = userRepository.findByEmailAndTenantId(user.getEmail(), user.getTenantId());
+        Optional<User> existingUser = userRepository.findByEmailAndTenantIdIn(user.getEmail(), references.valuesOf(user.getTenantId()));
         if (existingUser.isPresent()) {
             // If exists, update the existing user instead of creating a new one
             User updatedUser = existingUser.get();
-            updatedUser.setPassword(passwordEncoder.encode(user.getPassword()));
+            updatedUser.setPassword(hash);
             updatedUser.setRole(user.getRole());
             return userRepository.save(updatedUser);
         }
-        user.setPassword(passwordEncoder.encode(user.getPassword()));
+        user.setPassword(hash);
         return userRepository.save(user);
     }
     
+    public CompletableFuture<Boolean> checkPasswordAsync(User user, String rawPassword) {
+        return passwordHashingService.matchesAsync(rawPassword, user.getPassword());
+    }
+    
+    // Migrates the stored hash to the configured BCrypt cost after a successful login.
+    // Hashes on the hashing pool, saves on the task executor, and never delays or fails the login itself.
+    public void rehashPasswordIfNeeded(User user, String rawPassword) {
+        if (!passwordHashingService.needsRehash(user.getPassword())) {
+            return;
+        }
+        String oldHash = user.getPassword();
+        passwordHashingService.encodeAsync(rawPassword).thenAcceptAsync(hash -> {
+            // Only the password, and only if it is still the hash that was checked, so a
+            // concurrent password change or profile update is never overwritten
+            Query unchanged = new Query(Criteria.where("_id").is(user.getId()).and("password").is(oldHash));
+            if (mongoTemplate.updateFirst(unchanged, new Update().set("password", hash), User.class).getModifiedCount() > 0) {
+                user.setPassword(hash);
+                passwordHashingService.recordRehash();
+            }
+        }, taskExecutor).exceptionally(e -> {
+            // Pool is busy or the save failed; the next login will try again
+            if (!(e.getCause() instanceof PasswordHashingRejectedException)) {
+                System.err.println("Rehashing password failed for " + user.getEmail() + ": " + e.getMessage());
+            }
+            return null;
+        });
+    }
+    
     public List<User> findAll() {
         return userRepository.findAll();
     }
@@ -0,0 +1,154 @@
+package com.fred.notesapp.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Pinning in the off-heap content cache: blocks of an entry that is evicted, invalidated or
+ * replaced while a reader holds it must not be reused until the reader lets go, and must
+ * be freed exactly once.
+ */
+class NoteContentCacheTest {
+
+    // One slab of four 16-byte blocks
+    private static final int BLOCK = 16;
+
+    private NoteContentCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new NoteContentCache();
+        ReflectionTestUtils.setField(cache, "invalidationBus", mock(InvalidationBus.class));
+        ReflectionTestUtils.setField(cache, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "capacityBytes", 4L * BLOCK);
+        ReflectionTestUtils.setField(cache, "slabBytes", 4 * BLOCK);
+        ReflectionTestUtils.setField(cache, "blockBytes", BLOCK);
+        ReflectionTestUtils.setField(cache, "maxEntryBytes", 4 * BLOCK);
+        ReflectionTestUtils.setField(cache, "protectedRatio", 0.8);
+        cache.init();
+    }
+
+    private static byte[] body(char fill, int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) fill);
+        return bytes;
+    }
+
+    private static byte[] read(NoteContentCache.Handle handle) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        handle.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private byte[] readAndClose(String noteId, long version) throws IOException {
+        try (NoteContentCache.Handle handle = cache.acquire(noteId, version)) {
+            return handle == null ? null : read(handle);
+        }
+    }
+
+    @Test
+    void aPinnedEntryIsNotReusedWhenEvicted() throws Exception {
+        cache.put("a", 1, body('a', 2 * BLOCK));
+        NoteContentCache.Handle pinned = cache.acquire("a", 1);
+        cache.put("b", 1, body('b', 2 * BLOCK));
+
+        // Needs the whole cache: b is evicted, a is evicted but still pinned, so c does not fit
+        cache.put("c", 1, body('c', 4 * BLOCK));
+
+        assertNull(cache.acquire("c", 1));
+        assertNull(cache.acquire("a", 1));
+        assertEquals(2, cache.getUsedBlocks());
+        assertArrayEquals(body('a', 2 * BLOCK), read(pinned));
+
+        pinned.close();
+        assertEquals(0, cache.getUsedBlocks());
+        cache.put("c", 1, body('c', 4 * BLOCK));
+        assertArrayEquals(body('c', 4 * BLOCK), readAndClose("c", 1));
+    }
+
+    @Test
+    void closingTwiceFreesTheBlocksOnce() throws Exception {
+        cache.put("a", 1, body('a', 2 * BLOCK));
+        NoteContentCache.Handle handle = cache.acquire("a", 1);
+        cache.invalidate("a");
+
+        handle.close();
+        handle.close();
+        cache.invalidate("a");
+
+        assertEquals(0, cache.getUsedBlocks());
+        // Blocks freed twice would be handed to both entries and overwrite each other
+        cache.put("x", 1, body('x', 2 * BLOCK));
+        cache.put("y", 1, body('y', 2 * BLOCK));
+        assertEquals(4, cache.getUsedBlocks());
+        assertArrayEquals(body('x', 2 * BLOCK), readAndClose("x", 1));
+        assertArrayEquals(body('y', 2 * BLOCK), readAndClose("y", 1));
+    }
+
+    @Test
+    void aNewVersionReplacesAPinnedOneWithoutDisturbingItsReader() throws Exception {
+        cache.put("a", 1, body('1', BLOCK + 1));
+        NoteContentCache.Handle oldVersion = cache.acquire("a", 1);
+
+        cache.put("a", 2, body('2', BLOCK));
+
+        assertArrayEquals(body('2', BLOCK), readAndClose("a", 2));
+        // Both versions are held until the old reader finishes
+        assertEquals(3, cache.getUsedBlocks());
+        assertArrayEquals(body('1', BLOCK + 1), read(oldVersion));
+
+        oldVersion.close();
+        assertEquals(1, cache.getUsedBlocks());
+    }
+
+    @Test
+    void closingDuringAWriteReleasesOnceTheWriteFinishes() throws Exception {
+        cache.put("a", 1, body('a', 2 * BLOCK));
+        NoteContentCache.Handle handle = cache.acquire("a", 1);
+        int[] usedDuringWrite = new int[1];
+        OutputStream timingOut = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                // What a request timeout does while the body is still being written
+                cache.invalidate("a");
+                handle.close();
+                usedDuringWrite[0] = cache.getUsedBlocks();
+            }
+        };
+
+        handle.writeTo(timingOut);
+
+        assertEquals(2, usedDuringWrite[0]);
+        assertEquals(0, cache.getUsedBlocks());
+    }
+
+    @Test
+    void versionMismatchIsAMiss() throws Exception {
+        cache.put("a", 3, "body".getBytes(StandardCharsets.UTF_8));
+
+        assertNull(readAndClose("a", 4));
+        assertNull(cache.acquire("a", 3));
+        cache.put("a", 4, "newer".getBytes(StandardCharsets.UTF_8));
+        assertNotNull(cache.acquire("a", 4));
+    }
+}
@@ -0,0 +1,175 @@
+package com.fred.notesapp.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Generations, the byte-bounded LRU, the TTL and ETags of the note list cache.
+ */
+class NoteListCacheTest {
+
+    private InvalidationBus invalidationBus;
+    private NoteListCache cache;
+
+    @BeforeEach
+    void setUp() {
+        invalidationBus = mock(InvalidationBus.class);
+        cache = newCache(100, 60000, 1000);
+    }
+
+    private NoteListCache newCache(long maxBytes, long ttlMs, int maxTrackedUsers) {
+        NoteListCache listCache = new NoteListCache();
+        ReflectionTestUtils.setField(listCache, "invalidationBus", invalidationBus);
+        ReflectionTestUtils.setField(listCache, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(listCache, "maxBytes", maxBytes);
+        ReflectionTestUtils.setField(listCache, "ttlMs", ttlMs);
+        ReflectionTestUtils.setField(listCache, "maxTrackedUsers", maxTrackedUsers);
+        listCache.init();
+        return listCache;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Builds a page the way the controller does: generation first, then the query, then put
+    private void cachePage(String userId, int page, byte[] body) {
+        cache.put("tenant", userId, page, cache.generation("tenant", userId), body);
+    }
+
+    @Test
+    void pagesBuiltAtTheCurrentGenerationAreServed() {
+        cachePage("user", 0, bytes("[1,2]"));
+
+        NoteListCache.Page page = cache.get("tenant", "user", 0);
+        assertNotNull(page);
+        assertArrayEquals(bytes("[1,2]"), page.getBody());
+        assertNull(cache.get("tenant", "user", 1));
+    }
+
+    @Test
+    void aWriteDuringTheQueryMakesTheNewPageStale() {
+        long generation = cache.generation("tenant", "user");
+        cache.invalidateUser("tenant", "user");
+        cache.put("tenant", "user", 0, generation, bytes("[old]"));
+
+        assertNull(cache.get("tenant", "user", 0));
+    }
+
+    @Test
+    void invalidationOnlyAffectsThatUser() {
+        cachePage("user", 0, bytes("[a]"));
+        cachePage("user", 1, bytes("[b]"));
+        cachePage("other", 0, bytes("[c]"));
+
+        cache.invalidateUser("tenant", "user");
+
+        assertNull(cache.get("tenant", "user", 0));
+        assertNull(cache.get("tenant", "user", 1));
+        assertNotNull(cache.get("tenant", "other", 0));
+    }
+
+    @Test
+    void droppedGenerationsNeverMakeOldPagesValidAgain() {
+        cachePage("user", 0, bytes("[a]"));
+        cache.invalidateAll();
+        assertNull(cache.get("tenant", "user", 0));
+
+        // Overflowing the tracked users also drops the counters
+        NoteListCache small = newCache(100, 60000, 1);
+        small.put("tenant", "user", 0, small.generation("tenant", "user"), bytes("[a]"));
+        small.generation("tenant", "someone-else");
+        assertNull(small.get("tenant", "user", 0));
+    }
+
+    @Test
+    void noteEventsInvalidateTheirUserOrEverything() {
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Consumer<InvalidationEvent>> listener = ArgumentCaptor.forClass(Consumer.class);
+        verify(invalidationBus).register(eq(InvalidationEvent.Type.NOTE), listener.capture());
+        cachePage("user", 0, bytes("[a]"));
+        cachePage("other", 0, bytes("[b]"));
+
+        listener.getValue().accept(new InvalidationEvent(InvalidationEvent.Type.NOTE, "note", "tenant", "user",
+                System.currentTimeMillis()));
+        assertNull(cache.get("tenant", "user", 0));
+        assertNotNull(cache.get("tenant", "other", 0));
+
+        // A delete carries no owner, so every user's pages go
+        listener.getValue().accept(new InvalidationEvent(InvalidationEvent.Type.NOTE, "note", null, null,
+                System.currentTimeMillis()));
+        assertNull(cache.get("tenant", "other", 0));
+    }
+
+    @Test
+    void leastRecentlyUsedPagesAreEvictedOverTheByteBudget() {
+        cachePage("user", 0, new byte[40]);
+        cachePage("user", 1, new byte[40]);
+        // Touching page 0 makes page 1 the eldest
+        assertNotNull(cache.get("tenant", "user", 0));
+
+        cachePage("user", 2, new byte[40]);
+
+        assertEquals(80, cache.getTotalBytes());
+        assertNotNull(cache.get("tenant", "user", 0));
+        assertNull(cache.get("tenant", "user", 1));
+        assertNotNull(cache.get("tenant", "user", 2));
+    }
+
+    @Test
+    void replacingAPageCountsOnlyItsNewSize() {
+        cachePage("user", 0, new byte[40]);
+        cachePage("user", 0, new byte[10]);
+
+        assertEquals(10, cache.getTotalBytes());
+    }
+
+    @Test
+    void pagesLargerThanTheBudgetAreReturnedButNotCached() {
+        byte[] body = new byte[101];
+        NoteListCache.Page page = cache.put("tenant", "user", 0, cache.generation("tenant", "user"), body);
+
+        assertNotNull(page.getETag());
+        assertEquals(0, cache.getTotalBytes());
+        assertNull(cache.get("tenant", "user", 0));
+    }
+
+    @Test
+    void pagesExpireAfterTheTtl() throws Exception {
+        NoteListCache shortLived = newCache(100, 20, 1000);
+        shortLived.put("tenant", "user", 0, shortLived.generation("tenant", "user"), bytes("[a]"));
+        assertNotNull(shortLived.get("tenant", "user", 0));
+
+        Thread.sleep(40);
+
+        assertNull(shortLived.get("tenant", "user", 0));
+    }
+
+    @Test
+    void etagsAreStrongAndDependOnlyOnTheBytes() {
+        String etag = cache.put("tenant", "user", 0, cache.generation("tenant", "user"), bytes("[1]")).getETag();
+        NoteListCache otherNode = newCache(100, 60000, 1000);
+        String sameOnAnotherNode = otherNode.put("t2", "u2", 3, otherNode.generation("t2", "u2"), bytes("[1]")).getETag();
+        String different = cache.put("tenant", "user", 0, cache.generation("tenant", "user"), bytes("[2]")).getETag();
+
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\"") && !etag.startsWith("W/"), etag);
+        assertEquals(etag, sameOnAnotherNode);
+        assertNotEquals(etag, different);
+    }
+}
@@ -0,0 +1,208 @@
+package com.fred.notesapp.collab;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fred.notesapp.model.Note;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Concurrent editors of one session, each on its own thread, make random inserts and
+ * deletes as an ot.js client would (one operation in flight, transformed against whatever
+ * arrives before its ack). Every editor's copy must end up equal to the session's text.
+ * The 100-editor load run is tagged "benchmark" and prints the submit-plus-fan-out
+ * latency, measured on the submitting thread.
+ */
+class CollabSessionConvergenceTest {
+
+    private static final int OPS_PER_EDITOR = 20;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void concurrentEditorsConverge() throws Exception {
+        converge(10);
+    }
+
+    @Test
+    @Tag("benchmark")
+    void hundredConcurrentEditorsConverge() throws Exception {
+        long began = System.nanoTime();
+        long[] latencies = converge(100);
+        long elapsedNanos = System.nanoTime() - began;
+
+        int n = latencies.length;
+        System.out.printf("%d editors, %d ops in %d ms (%.0f ops/s); submit+fan-out p50 %d us, p99 %d us%n",
+                100, n, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), n * 1e9 / elapsedNanos,
+                TimeUnit.NANOSECONDS.toMicros(latencies[n / 2]), TimeUnit.NANOSECONDS.toMicros(latencies[n * 99 / 100]));
+    }
+
+    // Runs the editors to completion, checks they converged and returns the sorted submit latencies
+    private long[] converge(int editorCount) throws Exception {
+        Note note = new Note("title", "The quick brown fox jumps over the lazy dog.", "tenant", "user");
+        note.setId("note");
+        CollabSession session = new CollabSession(note, objectMapper,
+                new CollabSession.Limits(1048576, 512, 262144, editorCount));
+
+        List<Editor> editors = new ArrayList<>();
+        for (int i = 0; i < editorCount; i++) {
+            Editor editor = new Editor("editor-" + i, new Random(i));
+            editor.participant = new Participant(editor.socket(), "user-" + i, 100000);
+            assertTrue(session.join(editor.participant));
+            editors.add(editor);
+        }
+        session.drain();
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (Editor editor : editors) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    editor.run(session);
+                } catch (Throwable e) {
+                    editor.failure = e;
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.MINUTES.toMillis(2));
+        }
+
+        CollabSession.Pending state = session.pending();
+        assertNotNull(state);
+        long[] latencies = new long[editorCount * OPS_PER_EDITOR];
+        int n = 0;
+        for (Editor editor : editors) {
+            if (editor.failure != null) {
+                throw new AssertionError(editor.id + " failed", editor.failure);
+            }
+            editor.receive();
+            assertEquals(state.text, editor.doc, editor.id + " diverged");
+            assertEquals(state.rev, editor.rev);
+            for (int i = 0; i < editor.sent; i++) {
+                latencies[n++] = editor.latencies[i];
+            }
+        }
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private final class Editor {
+        final String id;
+        final Random random;
+        final BlockingQueue<String> inbox = new LinkedBlockingQueue<>();
+        final long[] latencies = new long[OPS_PER_EDITOR];
+        Participant participant;
+        String doc = "";
+        long rev;
+        TextOperation outstanding;
+        int sent;
+        volatile Throwable failure;
+
+        Editor(String id, Random random) {
+            this.id = id;
+            this.random = random;
+        }
+
+        WebSocketSession socket() throws Exception {
+            // Stub-only: recording every send would dominate the measurement
+            WebSocketSession socket = mock(WebSocketSession.class, withSettings().stubOnly());
+            when(socket.getId()).thenReturn(id);
+            when(socket.isOpen()).thenReturn(true);
+            doAnswer(invocation -> inbox.add(invocation.getArgument(0, TextMessage.class).getPayload()))
+                    .when(socket).sendMessage(any());
+            return socket;
+        }
+
+        void run(CollabSession session) throws Exception {
+            while (sent < OPS_PER_EDITOR) {
+                receive();
+                if (outstanding != null) {
+                    awaitMessage();
+                    continue;
+                }
+                outstanding = randomEdit();
+                doc = outstanding.apply(doc);
+                long t0 = System.nanoTime();
+                session.submit(participant, rev, outstanding);
+                session.drain();
+                latencies[sent++] = System.nanoTime() - t0;
+            }
+            // Wait for the last ack so the final state includes everything this editor sent
+            while (outstanding != null) {
+                awaitMessage();
+            }
+        }
+
+        void awaitMessage() throws Exception {
+            String payload = inbox.poll(10, TimeUnit.MILLISECONDS);
+            if (payload != null) {
+                handle(payload);
+            }
+        }
+
+        void receive() throws Exception {
+            String payload;
+            while ((payload = inbox.poll()) != null) {
+                handle(payload);
+            }
+        }
+
+        private void handle(String payload) throws Exception {
+            JsonNode message = objectMapper.readTree(payload);
+            String type = message.get("type").asText();
+            if (type.equals("init") || type.equals("resync")) {
+                doc = message.get("text").asText();
+                outstanding = null;
+            } else if (type.equals("ack")) {
+                outstanding = null;
+            } else if (type.equals("op")) {
+                TextOperation incoming = TextOperation.fromJson(objectMapper.convertValue(message.get("op"), List.class));
+                if (outstanding != null) {
+                    TextOperation[] transformed = TextOperation.transform(outstanding, incoming);
+                    outstanding = transformed[0];
+                    incoming = transformed[1];
+                }
+                doc = incoming.apply(doc);
+            } else if (type.equals("error")) {
+                throw new AssertionError(message.get("message").asText());
+            }
+            rev = message.get("rev").asLong();
+        }
+
+        private TextOperation randomEdit() {
+            int at = random.nextInt(doc.length() + 1);
+            TextOperation edit = new TextOperation().retain(at);
+            if (doc.length() > at + 2 && random.nextInt(3) == 0) {
+                int length = 1 + random.nextInt(2);
+                return edit.delete(length).retain(doc.length() - at - length);
+            }
+            return edit.insert(Character.toString((char) ('a' + random.nextInt(26)))).retain(doc.length() - at);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.fred.notesapp.limit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveConcurrencyLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(40);
+
+    private static AdaptiveConcurrencyLimiter limiter() {
+        return new AdaptiveConcurrencyLimiter("test", 100, 4, 400, 2.0, 0.9);
+    }
+
+    // Keeps the limiter saturated, as under load, and completes one request
+    private static void sample(AdaptiveConcurrencyLimiter limiter, long latencyNanos) {
+        while (limiter.tryAcquire()) {
+            // fill up to the limit
+        }
+        limiter.release(latencyNanos, false);
+    }
+
+    @Test
+    void slowRepositoryCutsTheLimit() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        for (int i = 0; i < 1000; i++) {
+            sample(limiter, FAST);
+        }
+        int healthy = limiter.getLimit();
+        assertEquals(400, healthy);
+
+        // Every query now queues behind a slow repository
+        for (int i = 0; i < 50; i++) {
+            sample(limiter, SLOW);
+        }
+        assertTrue(limiter.getLimit() < healthy / 4, "limit was " + limiter.getLimit());
+    }
+
+    @Test
+    void limitRecoversOnceTheRepositoryIsFastAgain() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        for (int i = 0; i < 500; i++) {
+            sample(limiter, FAST);
+        }
+        for (int i = 0; i < 100; i++) {
+            sample(limiter, SLOW);
+        }
+        int degraded = limiter.getLimit();
+        for (int i = 0; i < 500; i++) {
+            sample(limiter, FAST);
+        }
+        assertTrue(limiter.getLimit() > degraded * 4, "limit was " + limiter.getLimit());
+    }
+
+    @Test
+    void mixedFastAndSlowRequestsDoNotCollapseTheLimit() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        Random random = new Random(42);
+        int lowest = Integer.MAX_VALUE;
+        for (int i = 0; i < 20000; i++) {
+            // One request in ten is a large note or an unindexed page, twenty times slower
+            sample(limiter, random.nextInt(10) == 0 ? SLOW : FAST);
+            if (i > 1000) {
+                lowest = Math.min(lowest, limiter.getLimit());
+            }
+        }
+        assertTrue(lowest >= 100, "limit fell to " + lowest);
+    }
+
+    @Test
+    void failuresBackOff() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        assertTrue(limiter.tryAcquire());
+        limiter.release(FAST, true);
+        assertEquals(90, limiter.getLimit());
+    }
+
+    @Test
+    void releaseWithoutSampleLeavesTheLimitAlone() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release();
+        }
+        assertEquals(100, limiter.getLimit());
+        assertEquals(0, limiter.getInflight());
+    }
+
+    @Test
+    void unusedCapacityDoesNotGrow() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(FAST, false);
+        }
+        assertEquals(100, limiter.getLimit());
+    }
+}
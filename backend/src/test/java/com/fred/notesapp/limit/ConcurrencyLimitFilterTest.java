@@ -0,0 +1,151 @@
+package com.fred.notesapp.limit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrencyLimitFilterTest {
+
+    private SimpleMeterRegistry registry;
+    private ConcurrencyLimitFilter filter;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        filter = new ConcurrencyLimitFilter();
+        ReflectionTestUtils.setField(filter, "meterRegistry", registry);
+        ReflectionTestUtils.setField(filter, "enabled", true);
+        ReflectionTestUtils.setField(filter, "readInitialLimit", 2);
+        ReflectionTestUtils.setField(filter, "readMaxLimit", 2);
+        ReflectionTestUtils.setField(filter, "writeInitialLimit", 2);
+        ReflectionTestUtils.setField(filter, "writeMaxLimit", 2);
+        ReflectionTestUtils.setField(filter, "loginLimit", 1);
+        ReflectionTestUtils.setField(filter, "minLimit", 1);
+        ReflectionTestUtils.setField(filter, "latencyTolerance", 2.0);
+        ReflectionTestUtils.setField(filter, "backoffRatio", 0.5);
+        filter.init();
+    }
+
+    private double gauge(String name, String route) {
+        return registry.get(name).tag("route", route).gauge().value();
+    }
+
+    @Test
+    void asyncLoginHoldsItsPermitUntilTheResponseCompletes() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/login");
+        request.setAsyncSupported(true);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, (req, res) -> req.startAsync());
+        assertEquals(1, gauge("concurrency.inflight", "login"));
+
+        // The only login permit is taken, so a second login is shed
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+        filter.doFilter(new MockHttpServletRequest("POST", "/login"), rejected, (req, res) -> { });
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, rejected.getStatus());
+
+        ((MockAsyncContext) request.getAsyncContext()).complete();
+        assertEquals(0, gauge("concurrency.inflight", "login"));
+    }
+
+    @Test
+    void notModifiedAndCachedResponsesDoNotFeedTheLimit() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            filter.doFilter(new MockHttpServletRequest("GET", "/notes"), response,
+                    (req, res) -> ((HttpServletResponse) res).setStatus(HttpServletResponse.SC_NOT_MODIFIED));
+            filter.doFilter(new MockHttpServletRequest("GET", "/notes"), new MockHttpServletResponse(),
+                    (req, res) -> ConcurrencyLimitFilter.skipLatencySample((MockHttpServletRequest) req));
+        }
+        assertEquals(2, gauge("concurrency.limit", "notes-read"));
+        assertEquals(0, gauge("concurrency.inflight", "notes-read"));
+    }
+
+    @Test
+    void repositoryErrorsCutTheLimit() throws Exception {
+        filter.doFilter(new MockHttpServletRequest("PUT", "/notes/1"), new MockHttpServletResponse(),
+                (req, res) -> ((HttpServletResponse) res).setStatus(500));
+        assertEquals(1, gauge("concurrency.limit", "notes-write"));
+    }
+
+    @Test
+    void slowWritesDoNotHoldUpReadsOrLogins() throws Exception {
+        SlowRepository repository = new SlowRepository();
+        List<Thread> writers = new ArrayList<>();
+        AtomicInteger shedWrites = new AtomicInteger();
+        try {
+            for (int i = 0; i < 4; i++) {
+                Thread writer = new Thread(() -> {
+                    MockHttpServletResponse response = new MockHttpServletResponse();
+                    try {
+                        filter.doFilter(new MockHttpServletRequest("PUT", "/notes/1"), response,
+                                (req, res) -> repository.save());
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    if (response.getStatus() == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+                        shedWrites.incrementAndGet();
+                    }
+                });
+                writer.start();
+                writers.add(writer);
+            }
+            // Both write permits are stuck in the repository and the other writes were shed
+            assertTrue(repository.writing.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 100 && shedWrites.get() < 2; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, shedWrites.get());
+            assertEquals(2, gauge("concurrency.inflight", "notes-write"));
+
+            for (int i = 0; i < 20; i++) {
+                MockHttpServletResponse read = new MockHttpServletResponse();
+                filter.doFilter(new MockHttpServletRequest("GET", "/notes"), read, (req, res) -> repository.find());
+                assertEquals(HttpServletResponse.SC_OK, read.getStatus());
+            }
+            MockHttpServletResponse login = new MockHttpServletResponse();
+            filter.doFilter(new MockHttpServletRequest("POST", "/login"), login, (req, res) -> repository.find());
+            assertEquals(HttpServletResponse.SC_OK, login.getStatus());
+            assertEquals(21, repository.reads.get());
+        } finally {
+            repository.release.countDown();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+        assertEquals(0, gauge("concurrency.inflight", "notes-write"));
+    }
+
+    // Stands in for a repository whose writes hang on a slow primary while reads stay fast
+    private static final class SlowRepository {
+        final CountDownLatch writing = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+
+        void save() {
+            writing.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void find() {
+            reads.incrementAndGet();
+        }
+    }
+}
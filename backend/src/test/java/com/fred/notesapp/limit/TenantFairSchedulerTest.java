@@ -0,0 +1,112 @@
+package com.fred.notesapp.limit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TenantFairSchedulerTest {
+
+    private static final long LONG_WAIT = TimeUnit.SECONDS.toNanos(30);
+
+    @Test
+    void totalQueuedIsBoundedAcrossTenants() throws Exception {
+        TenantFairScheduler scheduler = new TenantFairScheduler(1, 2, 3);
+        assertEquals(TenantFairScheduler.Outcome.ACQUIRED, scheduler.acquire("holder", 1, LONG_WAIT));
+
+        // Three tenants, each well within its own depth, fill the shared queue
+        List<Thread> waiters = new ArrayList<>();
+        for (String tenant : new String[] {"a", "b", "c"}) {
+            Thread thread = new Thread(() -> {
+                try {
+                    if (scheduler.acquire(tenant, 1, LONG_WAIT) == TenantFairScheduler.Outcome.ACQUIRED) {
+                        scheduler.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            waiters.add(thread);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.getQueuedCount() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(3, scheduler.getQueuedCount());
+
+        assertEquals(TenantFairScheduler.Outcome.QUEUE_FULL, scheduler.acquire("d", 1, LONG_WAIT));
+
+        scheduler.release();
+        for (Thread thread : waiters) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        assertEquals(0, scheduler.getQueuedCount());
+        assertEquals(TenantFairScheduler.Outcome.ACQUIRED, scheduler.acquire("d", 1, LONG_WAIT));
+    }
+
+    @Test
+    void perTenantDepthStillApplies() throws Exception {
+        TenantFairScheduler scheduler = new TenantFairScheduler(0, 1, 10);
+        Thread waiter = new Thread(() -> {
+            try {
+                scheduler.acquire("a", 1, TimeUnit.SECONDS.toNanos(2));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.getQueuedCount() < 1 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(TenantFairScheduler.Outcome.QUEUE_FULL, scheduler.acquire("a", 1, LONG_WAIT));
+        waiter.interrupt();
+        waiter.join();
+    }
+
+    @Test
+    void aLightlyLoadedTenantIsNotStuckBehindABusyOne() throws Exception {
+        TenantFairScheduler scheduler = new TenantFairScheduler(1, 50, 50);
+        assertEquals(TenantFairScheduler.Outcome.ACQUIRED, scheduler.acquire("holder", 1, LONG_WAIT));
+
+        // The busy tenant queues ten requests before the light one queues its two
+        List<String> granted = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> waiters = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            String tenant = i < 10 ? "busy" : "light";
+            Thread thread = new Thread(() -> {
+                try {
+                    if (scheduler.acquire(tenant, 1, LONG_WAIT) == TenantFairScheduler.Outcome.ACQUIRED) {
+                        granted.add(tenant);
+                        scheduler.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            waiters.add(thread);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (scheduler.getQueuedCount() < i + 1 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(12, scheduler.getQueuedCount());
+
+        scheduler.release();
+        for (Thread thread : waiters) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+
+        // FIFO would serve the light tenant 11th and 12th; fair queueing alternates
+        assertEquals(12, granted.size());
+        assertEquals(List.of("busy", "light", "busy", "light"), granted.subList(0, 4));
+        assertTrue(granted.subList(4, 12).stream().allMatch("busy"::equals));
+    }
+}
@@ -0,0 +1,232 @@
+package com.fred.notesapp.repository;
+
+import com.fred.notesapp.model.Note;
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The list endpoint's query language: the grammar it accepts, input that looks like a
+ * MongoDB operator staying a literal value, and queries that would scan the collection or
+ * sort in memory being refused, both when parsed and, with the explain check on, when run.
+ */
+class NoteQueryTest {
+
+    private MongoTemplate template;
+    private MongoCollection<Document> collection;
+    private FindIterable<Document> explained;
+    private NoteStore noteStore;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        template = mock(MongoTemplate.class);
+        collection = mock(MongoCollection.class);
+        explained = mock(FindIterable.class);
+        when(template.getCollection("notes")).thenReturn(collection);
+        when(collection.find(any(Bson.class))).thenReturn(explained);
+        when(explained.sort(any(Bson.class))).thenReturn(explained);
+        when(explained.hintString(anyString())).thenReturn(explained);
+
+        NotePartitionDirectory directory = mock(NotePartitionDirectory.class);
+        when(directory.placementFor("tenant")).thenReturn(
+                new NotePartitionDirectory.Placement(new NotePartitionDirectory.Target(template, "notes"), null));
+        ObjectIdReferences references = mock(ObjectIdReferences.class);
+        when(references.valuesOf(anyString())).thenAnswer(invocation -> List.of(invocation.getArgument(0, String.class)));
+
+        noteStore = new NoteStore();
+        ReflectionTestUtils.setField(noteStore, "mongoClient", mock(MongoClient.class));
+        ReflectionTestUtils.setField(noteStore, "partitionDirectory", directory);
+        ReflectionTestUtils.setField(noteStore, "references", references);
+        ReflectionTestUtils.setField(noteStore, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(noteStore, "readPreferenceName", "primary");
+        noteStore.init();
+        noteStore.setLegacyLiveReads(false);
+    }
+
+    private static void assertRejected(String filter, String sort) {
+        assertThrows(IllegalArgumentException.class, () -> NoteQuery.parse(filter, sort), filter + " / " + sort);
+    }
+
+    // The query object NoteStore ran for the parsed query
+    private Query run(String filter, String sort) {
+        noteStore.query("tenant", "user", NoteQuery.parse(filter, sort), null, 20);
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(template).find(query.capture(), eq(Note.class), eq("notes"));
+        return query.getValue();
+    }
+
+    private static Document winningPlan(String... stages) {
+        Document plan = null;
+        for (int i = stages.length - 1; i >= 0; i--) {
+            plan = plan == null ? new Document("stage", stages[i]) : new Document("stage", stages[i]).append("inputStage", plan);
+        }
+        return new Document("queryPlanner", new Document("winningPlan", plan).append("rejectedPlans",
+                List.of(new Document("stage", "SORT").append("inputStage", new Document("stage", "COLLSCAN")))));
+    }
+
+    @Test
+    void rangesPrefixesAndOwnersParse() {
+        NoteQuery query = NoteQuery.parse("updatedAt>=2024-01-01; updatedAt<2024-02-01T12:30:00+02:00;owner=u2", "-updatedAt");
+
+        assertEquals(NoteQuery.Shape.UPDATED, query.getShape());
+        assertEquals(LocalDateTime.of(2024, 1, 1, 0, 0), query.getLowerBound());
+        assertTrue(query.isLowerInclusive());
+        assertEquals(LocalDateTime.of(2024, 2, 1, 10, 30), query.getUpperBound());
+        assertFalse(query.isUpperInclusive());
+        assertEquals("u2", query.getOwner());
+        assertTrue(query.isDescending());
+
+        NoteQuery created = NoteQuery.parse("createdAt>2024-01-01T00:00:00Z", null);
+        assertEquals(NoteQuery.Shape.CREATED, created.getShape());
+        assertFalse(created.isLowerInclusive());
+        assertNull(created.getUpperBound());
+
+        NoteQuery title = NoteQuery.parse("title^=Meeting notes", "title");
+        assertEquals(NoteQuery.Shape.TITLE, title.getShape());
+        assertEquals("Meeting notes", title.getTitlePrefix());
+        assertFalse(title.isDescending());
+    }
+
+    @Test
+    void aSortAloneOrNothingPicksItsShape() {
+        assertEquals(NoteQuery.Shape.LIVE, NoteQuery.parse(null, null).getShape());
+        assertEquals(NoteQuery.Shape.LIVE, NoteQuery.parse(" ; ", "").getShape());
+        assertEquals(NoteQuery.Shape.CREATED, NoteQuery.parse(null, "-createdAt").getShape());
+        assertEquals(NoteQuery.Shape.LIVE, NoteQuery.parse("owner=u2", null).getShape());
+    }
+
+    @Test
+    void malformedClausesAreRejected() {
+        assertRejected("updatedAt=2024-01-01", null);
+        assertRejected("updatedAt>=", null);
+        assertRejected("updatedAt>=yesterday", null);
+        assertRejected("updatedAt>2024-01-01;updatedAt>=2024-01-02", null);
+        assertRejected("createdAt<2024-01-01;createdAt<=2024-01-02", null);
+        assertRejected("title^=a;title^=b", null);
+        assertRejected("title=exact", null);
+        assertRejected("owner=", null);
+        assertRejected("a;b;c;d;e;f;g;h;i", null);
+    }
+
+    @Test
+    void operatorsAreNotPartOfTheGrammar() {
+        assertRejected("$where=sleep(1000)", null);
+        assertRejected("{\"$where\":\"sleep(1000)\"}", null);
+        assertRejected("title[$ne]=x", null);
+        assertRejected("content^=secret", null);
+        assertRejected("deleted=true", null);
+        assertRejected("tenantId=other", null);
+        assertRejected("updatedAt>={\"$gt\":\"\"}", null);
+        assertRejected(null, "$natural");
+        assertRejected(null, "-{\"$meta\":\"textScore\"}");
+    }
+
+    @Test
+    void operatorLookingValuesStayLiterals() {
+        Query query = run("title^={\"$where\":\"sleep(1000)\"}.*;owner={\"$ne\":null}", "title");
+
+        Document criteria = query.getQueryObject();
+        Pattern prefix = (Pattern) criteria.get("title");
+        assertEquals("^\\{\"\\$where\":\"sleep\\(1000\\)\"\\}\\.\\*", prefix.pattern());
+        assertTrue(prefix.matcher("{\"$where\":\"sleep(1000)\"}.* and more").find());
+        assertFalse(prefix.matcher("anything").find());
+        // The owner is a plain string for the caller to authorise; the store filters on the user it is given
+        assertEquals("{\"$ne\":null}", NoteQuery.parse("owner={\"$ne\":null}", null).getOwner());
+        assertEquals(new Document("$in", List.of("user")), criteria.get("userId"));
+    }
+
+    @Test
+    void sortsTheirIndexCannotProduceAreRejected() {
+        assertRejected("updatedAt>=2024-01-01", "createdAt");
+        assertRejected("createdAt>=2024-01-01", "-title");
+        assertRejected("title^=a", "updatedAt");
+        assertRejected("title^=a;updatedAt>=2024-01-01", null);
+        assertRejected("createdAt>=2024-01-01;updatedAt<2024-02-01", null);
+        assertRejected(null, "content");
+        assertRejected(null, "_id");
+        assertRejected(null, "position");
+        assertRejected(null, "--updatedAt");
+    }
+
+    @Test
+    void queriesRunAlongTheirIndex() {
+        Query query = run("updatedAt>=2024-01-01;updatedAt<2024-02-01", "-updatedAt");
+
+        assertEquals("note_updated", query.getHint());
+        assertEquals(new Document("updatedAt", -1).append("_id", -1), query.getSortObject());
+        Document range = (Document) query.getQueryObject().get("updatedAt");
+        assertEquals(LocalDateTime.of(2024, 1, 1, 0, 0), range.get("$gte"));
+        assertEquals(LocalDateTime.of(2024, 2, 1, 0, 0), range.get("$lt"));
+        assertEquals(false, query.getQueryObject().get("deleted"));
+    }
+
+    @Test
+    void queriesWaitForTheLiveFlagBackfill() {
+        noteStore.setLegacyLiveReads(true);
+
+        assertThrows(NoteQueryPendingException.class,
+                () -> noteStore.query("tenant", "user", NoteQuery.parse("title^=a", null), null, 20));
+
+        verify(template, never()).find(any(Query.class), eq(Note.class), anyString());
+    }
+
+    @Test
+    void theExplainCheckRejectsACollectionScan() {
+        ReflectionTestUtils.setField(noteStore, "explainCheck", true);
+        when(explained.explain(ExplainVerbosity.QUERY_PLANNER)).thenReturn(winningPlan("FETCH", "COLLSCAN"));
+
+        IllegalStateException rejected = assertThrows(IllegalStateException.class,
+                () -> noteStore.query("tenant", "user", NoteQuery.parse("title^=a", "title"), null, 20));
+
+        assertTrue(rejected.getMessage().contains("note_title"), rejected.getMessage());
+        verify(explained).hintString("note_title");
+        verify(template, never()).find(any(Query.class), eq(Note.class), anyString());
+    }
+
+    @Test
+    void theExplainCheckRejectsAnInMemorySort() {
+        ReflectionTestUtils.setField(noteStore, "explainCheck", true);
+        when(explained.explain(ExplainVerbosity.QUERY_PLANNER)).thenReturn(winningPlan("SORT", "FETCH", "IXSCAN"));
+
+        assertThrows(IllegalStateException.class,
+                () -> noteStore.query("tenant", "user", NoteQuery.parse(null, "-createdAt"), null, 20));
+    }
+
+    @Test
+    void theExplainCheckPassesAnIndexScanAndIgnoresRejectedPlans() {
+        ReflectionTestUtils.setField(noteStore, "explainCheck", true);
+        when(explained.explain(ExplainVerbosity.QUERY_PLANNER)).thenReturn(winningPlan("LIMIT", "FETCH", "IXSCAN"));
+
+        Query query = run("createdAt<2024-01-01", "createdAt");
+
+        assertEquals("note_created", query.getHint());
+    }
+}
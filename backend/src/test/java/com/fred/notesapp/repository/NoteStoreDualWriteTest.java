@@ -0,0 +1,178 @@
+package com.fred.notesapp.repository;
+
+import com.fred.notesapp.model.Note;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.ReplaceOptions;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Writes while a tenant is being moved: the move target gets the whole note as the
+ * authoritative target now has it, never a partial update it may have nothing to apply to.
+ */
+class NoteStoreDualWriteTest {
+
+    private MongoTemplate source;
+    private MongoTemplate target;
+    private NoteStore noteStore;
+
+    @BeforeEach
+    void setUp() {
+        MongoClient mongoClient = mock(MongoClient.class);
+        source = mock(MongoTemplate.class);
+        target = mock(MongoTemplate.class);
+        when(mongoClient.startSession(any(ClientSessionOptions.class))).thenReturn(mock(ClientSession.class));
+        when(source.withSession(any(ClientSession.class))).thenReturn(source);
+        when(target.withSession(any(ClientSession.class))).thenReturn(target);
+
+        NotePartitionDirectory directory = mock(NotePartitionDirectory.class);
+        when(directory.placementFor("tenant")).thenReturn(new NotePartitionDirectory.Placement(
+                new NotePartitionDirectory.Target(source, "notes"), new NotePartitionDirectory.Target(target, "tenant_notes")));
+        ObjectIdReferences references = mock(ObjectIdReferences.class);
+        when(references.valuesOf(anyString())).thenAnswer(invocation -> List.of(invocation.getArgument(0, String.class)));
+
+        noteStore = new NoteStore();
+        ReflectionTestUtils.setField(noteStore, "mongoClient", mongoClient);
+        ReflectionTestUtils.setField(noteStore, "partitionDirectory", directory);
+        ReflectionTestUtils.setField(noteStore, "references", references);
+        ReflectionTestUtils.setField(noteStore, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(noteStore, "readPreferenceName", "primary");
+        noteStore.init();
+    }
+
+    private static Note trashed(long version) {
+        Note note = new Note("title", "body", "tenant", "user");
+        note.setId("note");
+        note.setDeleted(true);
+        note.setVersion(version);
+        return note;
+    }
+
+    @Test
+    void trashingWritesTheWholeNoteToTheMoveTarget() {
+        Note stored = trashed(4);
+        when(source.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(Note.class), eq("notes")))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        when(source.stream(any(Query.class), eq(Note.class), eq("notes"))).thenReturn(Stream.of(stored));
+
+        assertTrue(noteStore.trash("note", "tenant", "writer", null, LocalDateTime.now()));
+
+        verify(target, never()).updateFirst(any(Query.class), any(UpdateDefinition.class), eq(Note.class), anyString());
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<ReplaceOptions> options = ArgumentCaptor.forClass(ReplaceOptions.class);
+        verify(target).replace(query.capture(), eq(stored), options.capture(), eq("tenant_notes"));
+        assertTrue(options.getValue().isUpsert());
+        // Only over a copy that is not newer
+        Document condition = query.getValue().getQueryObject();
+        assertEquals("note", condition.get("_id"));
+        List<?> or = (List<?>) condition.get("$or");
+        assertEquals(new Document("version", new Document("$lte", 4L)), or.get(0));
+    }
+
+    @Test
+    void aNewerCopyOnTheMoveTargetIsLeftAlone() {
+        when(source.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(Note.class), eq("notes")))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        when(source.stream(any(Query.class), eq(Note.class), eq("notes"))).thenReturn(Stream.of(trashed(4)));
+        // The upsert found no copy at or below version 4, so it tried to insert next to a newer one
+        when(target.replace(any(Query.class), any(Note.class), any(ReplaceOptions.class), eq("tenant_notes")))
+                .thenThrow(new DuplicateKeyException("E11000 duplicate key error"));
+
+        assertTrue(noteStore.restore("note", "tenant", "writer", LocalDateTime.now()));
+    }
+
+    @Test
+    void nothingIsCopiedWhenTheAuthoritativeWriteMatchedNothing() {
+        when(source.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(Note.class), eq("notes")))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+
+        assertFalse(noteStore.setPosition("note", "tenant", "a1", "a2"));
+
+        verify(source, never()).stream(any(Query.class), eq(Note.class), anyString());
+        verify(target, never()).replace(any(Query.class), any(Note.class), any(ReplaceOptions.class), anyString());
+    }
+
+    @Test
+    void archivingIsConditionalOnTheVersionAndCopiesTheStub() {
+        Note stub = trashed(7);
+        stub.setDeleted(false);
+        stub.setArchived(true);
+        stub.setContent(null);
+        when(source.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(Note.class), eq("notes")))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        when(source.stream(any(Query.class), eq(Note.class), eq("notes"))).thenReturn(Stream.of(stub));
+        Note read = trashed(7);
+        read.setDeleted(false);
+
+        assertTrue(noteStore.stub(read));
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(source).updateFirst(query.capture(), any(UpdateDefinition.class), eq(Note.class), eq("notes"));
+        assertEquals(7L, query.getValue().getQueryObject().get("version"));
+        assertFalse(query.getValue().getQueryObject().containsKey("updatedAt"));
+        verify(target, never()).updateFirst(any(Query.class), any(UpdateDefinition.class), eq(Note.class), anyString());
+        verify(target).replace(any(Query.class), eq(stub), any(ReplaceOptions.class), eq("tenant_notes"));
+    }
+
+    @Test
+    void promotingCopiesTheNoteWithItsBodyBack() {
+        Note promoted = trashed(7);
+        promoted.setDeleted(false);
+        when(source.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(Note.class), eq("notes")))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        when(source.stream(any(Query.class), eq(Note.class), eq("notes"))).thenReturn(Stream.of(promoted));
+        ReflectionTestUtils.setField(noteStore, "codec", mock(NoteContentCodec.class));
+
+        assertTrue(noteStore.unstub(promoted, "body", LocalDateTime.now()));
+
+        verify(target, never()).updateFirst(any(Query.class), any(UpdateDefinition.class), eq(Note.class), anyString());
+        verify(target).replace(any(Query.class), eq(promoted), any(ReplaceOptions.class), eq("tenant_notes"));
+    }
+
+    @Test
+    void savesCopyWhatWasStoredAfterPuttingBackAMovedPosition() {
+        Note note = trashed(0);
+        note.setDeleted(false);
+        note.setPosition("a1");
+        Note previous = new Note();
+        previous.setPosition("a5");
+        when(source.findAndReplace(any(Query.class), eq(note), any(), eq(Note.class), eq("notes"))).thenReturn(previous);
+        when(source.stream(any(Query.class), eq(Note.class), eq("notes"))).thenAnswer(invocation -> Stream.of(new Note(note)));
+
+        noteStore.replace(note, "writer", 0L);
+
+        ArgumentCaptor<Note> copied = ArgumentCaptor.forClass(Note.class);
+        verify(target).replace(any(Query.class), copied.capture(), any(ReplaceOptions.class), eq("tenant_notes"));
+        assertEquals("a5", copied.getValue().getPosition());
+        assertEquals(1, copied.getValue().getVersion());
+        verify(target, never()).save(any(Note.class), anyString());
+        assertSame(previous.getPosition(), note.getPosition());
+    }
+}
@@ -0,0 +1,154 @@
+package com.fred.notesapp.repository;
+
+import com.fred.notesapp.model.Note;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The read-your-writes routing decision: after a user writes, that user's reads carry the
+ * write's cluster and operation time in a causally consistent session; everyone else's
+ * reads, and the writer's once the staleness window has passed, go straight to the
+ * configured read preference.
+ */
+class NoteStoreReadRoutingTest {
+
+    private static final BsonDocument CLUSTER_TIME = new BsonDocument("clusterTime", new BsonInt64(42));
+    private static final BsonTimestamp OPERATION_TIME = new BsonTimestamp(1700000000, 7);
+
+    private MongoClient mongoClient;
+    private MongoTemplate template;
+    private MongoTemplate sessionTemplate;
+    private ClientSession writeSession;
+    private ClientSession readSession;
+    private SimpleMeterRegistry registry;
+    private NoteStore noteStore;
+
+    @BeforeEach
+    void setUp() {
+        mongoClient = mock(MongoClient.class);
+        template = mock(MongoTemplate.class);
+        sessionTemplate = mock(MongoTemplate.class);
+        writeSession = mock(ClientSession.class);
+        readSession = mock(ClientSession.class);
+        when(writeSession.getClusterTime()).thenReturn(CLUSTER_TIME);
+        when(writeSession.getOperationTime()).thenReturn(OPERATION_TIME);
+        when(mongoClient.startSession(any(ClientSessionOptions.class))).thenReturn(writeSession, readSession);
+        when(template.withSession(any(ClientSession.class))).thenReturn(sessionTemplate);
+        when(sessionTemplate.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(Note.class), anyString()))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+        NotePartitionDirectory directory = mock(NotePartitionDirectory.class);
+        when(directory.placementFor("tenant")).thenReturn(
+                new NotePartitionDirectory.Placement(new NotePartitionDirectory.Target(template, "notes"), null));
+        ObjectIdReferences references = mock(ObjectIdReferences.class);
+        when(references.valuesOf(anyString())).thenAnswer(invocation -> List.of(invocation.getArgument(0, String.class)));
+
+        registry = new SimpleMeterRegistry();
+        noteStore = new NoteStore();
+        ReflectionTestUtils.setField(noteStore, "mongoClient", mongoClient);
+        ReflectionTestUtils.setField(noteStore, "partitionDirectory", directory);
+        ReflectionTestUtils.setField(noteStore, "references", references);
+        ReflectionTestUtils.setField(noteStore, "meterRegistry", registry);
+        ReflectionTestUtils.setField(noteStore, "readPreferenceName", "secondaryPreferred");
+        ReflectionTestUtils.setField(noteStore, "maxStalenessSeconds", 90L);
+        noteStore.init();
+    }
+
+    private double routed(String route) {
+        return registry.get("notes.read.route").tag("query", "findById").tag("route", route).counter().count();
+    }
+
+    @Test
+    void readsWithoutARecentWriteGoToTheReadPreference() {
+        noteStore.findById("note", "tenant", "reader");
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(template).findOne(query.capture(), eq(Note.class), eq("notes"));
+        assertEquals("secondaryPreferred", query.getValue().getReadPreference().getName());
+        assertNull(query.getValue().getReadConcern());
+        verify(mongoClient, never()).startSession(any(ClientSessionOptions.class));
+        assertEquals(1, routed("secondaryPreferred"));
+    }
+
+    @Test
+    void theWritersNextReadWaitsForItsWrite() {
+        assertTrue(noteStore.trash("note", "tenant", "writer", null, LocalDateTime.now()));
+
+        noteStore.findById("note", "tenant", "writer");
+
+        verify(readSession).advanceClusterTime(CLUSTER_TIME);
+        verify(readSession).advanceOperationTime(OPERATION_TIME);
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(sessionTemplate).findOne(query.capture(), eq(Note.class), eq("notes"));
+        assertEquals("secondaryPreferred", query.getValue().getReadPreference().getName());
+        assertEquals(ReadConcern.MAJORITY, query.getValue().getReadConcern());
+        verify(template, never()).findOne(any(Query.class), eq(Note.class), anyString());
+        assertEquals(1, routed("secondaryPreferred-causal"));
+    }
+
+    @Test
+    void otherUsersAreNotSlowedBySomeoneElsesWrite() {
+        noteStore.trash("note", "tenant", "writer", null, LocalDateTime.now());
+
+        noteStore.findById("note", "tenant", "someone-else");
+
+        verify(template).findOne(any(Query.class), eq(Note.class), eq("notes"));
+        verify(mongoClient, times(1)).startSession(any(ClientSessionOptions.class));
+        assertEquals(1, routed("secondaryPreferred"));
+    }
+
+    @Test
+    void tokensExpireWithTheStalenessWindow() {
+        // Every eligible secondary is guaranteed to have the write once max staleness has passed
+        ReflectionTestUtils.setField(noteStore, "maxStalenessSeconds", -1L);
+        noteStore.trash("note", "tenant", "writer", null, LocalDateTime.now());
+
+        noteStore.findById("note", "tenant", "writer");
+
+        verify(template).findOne(any(Query.class), eq(Note.class), eq("notes"));
+        assertEquals(1, routed("secondaryPreferred"));
+        noteStore.evictExpiredTokens();
+        assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(noteStore, "lastWrites")).isEmpty());
+    }
+
+    @Test
+    void primaryReadsAreStillCausalForTheWriter() {
+        noteStore.trash("note", "tenant", "writer", null, LocalDateTime.now());
+
+        noteStore.findById("note", "tenant", "writer", ReadPreference.primary());
+
+        verify(readSession).advanceOperationTime(OPERATION_TIME);
+        assertEquals(1, registry.get("notes.read.route").tag("route", "primary-causal").counter().count());
+    }
+}
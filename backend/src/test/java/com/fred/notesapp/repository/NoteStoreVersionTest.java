@@ -0,0 +1,158 @@
+package com.fred.notesapp.repository;
+
+import com.fred.notesapp.model.Note;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Every stored representation of a note gets its own version: replacements land on the
+ * version they were based on and store the next one, so ETags never repeat for different
+ * bodies, however close together the writes are.
+ */
+class NoteStoreVersionTest {
+
+    private MongoTemplate template;
+    private NoteStore noteStore;
+
+    @BeforeEach
+    void setUp() {
+        MongoClient mongoClient = mock(MongoClient.class);
+        template = mock(MongoTemplate.class);
+        when(mongoClient.startSession(any(ClientSessionOptions.class))).thenReturn(mock(ClientSession.class));
+        when(template.withSession(any(ClientSession.class))).thenReturn(template);
+
+        NotePartitionDirectory directory = mock(NotePartitionDirectory.class);
+        when(directory.placementFor("tenant")).thenReturn(
+                new NotePartitionDirectory.Placement(new NotePartitionDirectory.Target(template, "notes"), null));
+        ObjectIdReferences references = mock(ObjectIdReferences.class);
+        when(references.valuesOf(anyString())).thenAnswer(invocation -> List.of(invocation.getArgument(0, String.class)));
+
+        noteStore = new NoteStore();
+        ReflectionTestUtils.setField(noteStore, "mongoClient", mongoClient);
+        ReflectionTestUtils.setField(noteStore, "partitionDirectory", directory);
+        ReflectionTestUtils.setField(noteStore, "references", references);
+        ReflectionTestUtils.setField(noteStore, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(noteStore, "readPreferenceName", "primary");
+        noteStore.init();
+    }
+
+    private static Note note(long version) {
+        Note note = new Note("title", "body", "tenant", "user");
+        note.setId("note");
+        note.setVersion(version);
+        return note;
+    }
+
+    @Test
+    void conditionalWritesStoreTheNextVersion() {
+        Note note = note(4);
+        Note previous = note(4);
+        when(template.findAndReplace(any(Query.class), eq(note), any(FindAndReplaceOptions.class), eq(Note.class), eq("notes")))
+                .thenReturn(previous);
+
+        assertSame(previous, noteStore.replace(note, "writer", 4L));
+
+        assertEquals(5, note.getVersion());
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(template).findAndReplace(query.capture(), eq(note), any(FindAndReplaceOptions.class), eq(Note.class), eq("notes"));
+        assertEquals(4L, query.getValue().getQueryObject().get("version"));
+    }
+
+    @Test
+    void aConditionalWriteOnAChangedVersionFails() {
+        Note note = note(4);
+
+        assertThrows(OptimisticLockingFailureException.class, () -> noteStore.replace(note, "writer", 4L));
+
+        assertEquals(4, note.getVersion());
+    }
+
+    @Test
+    void unconditionalWritesRebaseOntoWhateverWasStoredMeanwhile() {
+        Note note = note(4);
+        when(template.findOne(any(Query.class), eq(Note.class), eq("notes"))).thenReturn(note(5), note(6));
+        when(template.findAndReplace(any(Query.class), eq(note), any(FindAndReplaceOptions.class), eq(Note.class), eq("notes")))
+                .thenReturn(null, note(6));
+
+        noteStore.replace(note, "writer", null);
+
+        // Lost the race to a writer that stored 6, so it retried on top of that
+        assertEquals(7, note.getVersion());
+        verify(template, times(2)).findAndReplace(any(Query.class), eq(note), any(FindAndReplaceOptions.class), eq(Note.class), eq("notes"));
+    }
+
+    @Test
+    void anUnconditionalWriteNeverRecreatesADeletedNote() {
+        Note note = note(4);
+        when(template.findOne(any(Query.class), eq(Note.class), eq("notes"))).thenReturn(null);
+
+        assertThrows(OptimisticLockingFailureException.class, () -> noteStore.replace(note, "writer", null));
+
+        ArgumentCaptor<Query> lookup = ArgumentCaptor.forClass(Query.class);
+        verify(template).findOne(lookup.capture(), eq(Note.class), eq("notes"));
+        // Trashed notes do not count as stored
+        assertTrue(lookup.getValue().getQueryObject().containsKey("deleted"));
+        verify(template, never()).insert(any(Note.class), anyString());
+        verify(template, never()).findAndReplace(any(Query.class), any(Note.class), any(FindAndReplaceOptions.class), eq(Note.class), anyString());
+    }
+
+    @Test
+    void replacementsOnlyLandOnLiveNotes() {
+        Note note = note(4);
+        when(template.findOne(any(Query.class), eq(Note.class), eq("notes"))).thenReturn(note(4));
+        when(template.findAndReplace(any(Query.class), eq(note), any(FindAndReplaceOptions.class), eq(Note.class), eq("notes")))
+                .thenReturn(note(4));
+
+        noteStore.replace(note, "writer", null);
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(template).findAndReplace(query.capture(), eq(note), any(FindAndReplaceOptions.class), eq(Note.class), eq("notes"));
+        assertTrue(query.getValue().getQueryObject().containsKey("deleted"));
+        assertEquals(List.of("tenant"), ((Document) query.getValue().getQueryObject().get("tenantId")).get("$in"));
+    }
+
+    @Test
+    void newNotesStartAtVersionOne() {
+        MongoDatabase database = mock(MongoDatabase.class);
+        when(database.getName()).thenReturn("notes");
+        when(template.getDb()).thenReturn(database);
+        BulkOperations bulk = mock(BulkOperations.class);
+        when(template.bulkOps(any(BulkOperations.BulkMode.class), eq(Note.class), eq("notes"))).thenReturn(bulk);
+        when(bulk.insert(anyList())).thenReturn(bulk);
+        Note note = note(0);
+
+        noteStore.insert(note, "writer");
+
+        assertEquals(1, note.getVersion());
+        verify(bulk).insert(List.of(note));
+    }
+}
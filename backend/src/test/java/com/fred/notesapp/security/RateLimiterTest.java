@@ -0,0 +1,54 @@
+package com.fred.notesapp.security;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    private RateLimiter rateLimiter;
+
+    @BeforeEach
+    void setUp() {
+        rateLimiter = new RateLimiter();
+        ReflectionTestUtils.setField(rateLimiter, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(rateLimiter, "enabled", true);
+        // Slow refill so the test sees bursts only
+        ReflectionTestUtils.setField(rateLimiter, "freeTenantRps", 0.01);
+        ReflectionTestUtils.setField(rateLimiter, "freeTenantBurst", 5);
+        ReflectionTestUtils.setField(rateLimiter, "freeUserRps", 0.01);
+        ReflectionTestUtils.setField(rateLimiter, "freeUserBurst", 1);
+        ReflectionTestUtils.setField(rateLimiter, "proTenantRps", 0.01);
+        ReflectionTestUtils.setField(rateLimiter, "proTenantBurst", 5);
+        ReflectionTestUtils.setField(rateLimiter, "proUserRps", 0.01);
+        ReflectionTestUtils.setField(rateLimiter, "proUserBurst", 1);
+        rateLimiter.init();
+    }
+
+    @Test
+    void userRejectionsDoNotSpendTenantTokens() {
+        assertEquals(0, rateLimiter.tryAcquire("acme", "noisy@acme.test", "FREE"));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(rateLimiter.tryAcquire("acme", "noisy@acme.test", "FREE") > 0);
+        }
+        // The tenant still has four of its five tokens for everyone else
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, rateLimiter.tryAcquire("acme", "user" + i + "@acme.test", "FREE"));
+        }
+        assertTrue(rateLimiter.tryAcquire("acme", "late@acme.test", "FREE") > 0);
+    }
+
+    @Test
+    void tenantRejectionsDoNotSpendUserTokens() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, rateLimiter.tryAcquire("acme", "user" + i + "@acme.test", "FREE"));
+        }
+        assertTrue(rateLimiter.tryAcquire("acme", "fresh@acme.test", "FREE") > 0);
+        // fresh@acme.test was never charged, so another tenant's limit is all that applies
+        assertEquals(0, rateLimiter.tryAcquire("globex", "fresh@acme.test", "FREE"));
+    }
+}
@@ -0,0 +1,224 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.model.Attachment;
+import com.fred.notesapp.model.AttachmentBlob;
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.TenantUsage;
+import com.fred.notesapp.repository.AttachmentRepository;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.result.DeleteResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Content-addressed attachment storage: identical uploads share one blob through its
+ * reference count, new blobs reserve quota with a conditional $inc on tenant_usage, and
+ * every path that gives up on a blob deletes its GridFS file and returns its bytes.
+ */
+class AttachmentServiceTest {
+
+    private static final String TENANT = "tenant";
+    private static final byte[] BODY = "attachment body".getBytes(StandardCharsets.UTF_8);
+    private static final String SHA256 = "baebb75e3b75608ff9c4483c5c93ae00b989a63378a9d0831fecc26f8c75f90e";
+
+    private MongoTemplate template;
+    private GridFSBucket bucket;
+    private AttachmentRepository attachmentRepository;
+    private SimpleMeterRegistry registry;
+    private AttachmentService attachmentService;
+    private ObjectId fileId;
+    private Note note;
+
+    @BeforeEach
+    void setUp() {
+        template = mock(MongoTemplate.class);
+        bucket = mock(GridFSBucket.class);
+        attachmentRepository = mock(AttachmentRepository.class);
+        registry = new SimpleMeterRegistry();
+        attachmentService = new AttachmentService();
+        ReflectionTestUtils.setField(attachmentService, "mongoTemplate", template);
+        ReflectionTestUtils.setField(attachmentService, "attachmentRepository", attachmentRepository);
+        ReflectionTestUtils.setField(attachmentService, "meterRegistry", registry);
+        ReflectionTestUtils.setField(attachmentService, "maxBytes", 1024L);
+        ReflectionTestUtils.setField(attachmentService, "bucket", bucket);
+        ReflectionTestUtils.setField(attachmentService, "stored", registry.counter("attachments.uploads", "result", "stored"));
+        ReflectionTestUtils.setField(attachmentService, "deduplicated", registry.counter("attachments.uploads", "result", "deduplicated"));
+
+        fileId = new ObjectId();
+        // GridFS reads the whole stream, which computes the hash and size
+        when(bucket.uploadFromStream(anyString(), any(InputStream.class), any(GridFSUploadOptions.class))).thenAnswer(invocation -> {
+            invocation.getArgument(1, InputStream.class).readAllBytes();
+            return fileId;
+        });
+        when(attachmentRepository.save(any(Attachment.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        note = new Note("title", "body", TENANT, "user");
+        note.setId("note");
+    }
+
+    private Attachment upload(long quotaBytes) throws Exception {
+        return attachmentService.upload(note, "user", "file.txt", "text/plain", new ByteArrayInputStream(BODY), quotaBytes);
+    }
+
+    private static AttachmentBlob blob(long refCount) {
+        AttachmentBlob blob = new AttachmentBlob(TENANT, SHA256, new ObjectId().toHexString(), BODY.length);
+        blob.setRefCount(refCount);
+        return blob;
+    }
+
+    private void sharesExistingBlob(AttachmentBlob... answers) {
+        when(template.findAndModify(any(Query.class), any(UpdateDefinition.class), eq(AttachmentBlob.class)))
+                .thenReturn(answers[0], Arrays.copyOfRange(answers, 1, answers.length));
+    }
+
+    // The $inc deltas applied to tenant_usage, in order
+    private List<Long> usageDeltas() {
+        ArgumentCaptor<UpdateDefinition> updates = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(template, atLeast(0)).upsert(any(Query.class), updates.capture(), eq(TenantUsage.class));
+        return updates.getAllValues().stream()
+                .map(update -> ((Document) update.getUpdateObject().get("$inc")).get("attachmentBytes", Number.class).longValue())
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void identicalContentSharesTheStoredBlob() throws Exception {
+        sharesExistingBlob(blob(2));
+
+        Attachment attachment = upload(1000);
+
+        assertEquals(SHA256, attachment.getSha256());
+        assertEquals(BODY.length, attachment.getSize());
+        ArgumentCaptor<UpdateDefinition> increment = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(template).findAndModify(any(Query.class), increment.capture(), eq(AttachmentBlob.class));
+        assertEquals(new Document("refCount", 1), increment.getValue().getUpdateObject().get("$inc"));
+        // The new copy is dropped and nothing is charged to the quota
+        verify(bucket).delete(fileId);
+        verify(template, never()).insert(any(AttachmentBlob.class));
+        assertEquals(List.of(), usageDeltas());
+        assertEquals(1, registry.counter("attachments.uploads", "result", "deduplicated").count());
+    }
+
+    @Test
+    void newContentReservesItsBytesConditionally() throws Exception {
+        sharesExistingBlob((AttachmentBlob) null);
+
+        upload(1000);
+
+        ArgumentCaptor<Query> reservation = ArgumentCaptor.forClass(Query.class);
+        verify(template).upsert(reservation.capture(), any(UpdateDefinition.class), eq(TenantUsage.class));
+        Document condition = (Document) reservation.getValue().getQueryObject().get("attachmentBytes");
+        assertEquals(1000L - BODY.length, ((Number) condition.get("$lte")).longValue());
+        assertEquals(List.of((long) BODY.length), usageDeltas());
+        verify(template).insert(any(AttachmentBlob.class));
+        verify(bucket, never()).delete(any(ObjectId.class));
+    }
+
+    @Test
+    void aConcurrentIdenticalUploadIsSharedAndItsReservationReturned() throws Exception {
+        // Nobody has the blob yet, then the other upload's insert wins
+        sharesExistingBlob(null, blob(2));
+        when(template.insert(any(AttachmentBlob.class))).thenThrow(new DuplicateKeyException("E11000 duplicate key error"));
+
+        Attachment attachment = upload(1000);
+
+        assertEquals(SHA256, attachment.getSha256());
+        assertEquals(List.of((long) BODY.length, (long) -BODY.length), usageDeltas());
+        verify(template, times(2)).findAndModify(any(Query.class), any(UpdateDefinition.class), eq(AttachmentBlob.class));
+        verify(bucket).delete(fileId);
+    }
+
+    @Test
+    void anUploadOverTheQuotaIsRolledBack() {
+        sharesExistingBlob((AttachmentBlob) null);
+        // The usage document exists, but has no room left for this blob
+        when(template.upsert(any(Query.class), any(UpdateDefinition.class), eq(TenantUsage.class)))
+                .thenThrow(new DuplicateKeyException("E11000 duplicate key error collection: tenant_usage"));
+
+        assertThrows(StorageQuotaExceededException.class, () -> upload(1000));
+
+        verify(bucket).delete(fileId);
+        verify(template, never()).insert(any(AttachmentBlob.class));
+        verify(attachmentRepository, never()).save(any(Attachment.class));
+    }
+
+    @Test
+    void aFullQuotaRejectsBeforeReadingTheUpload() {
+        TenantUsage usage = new TenantUsage();
+        usage.setAttachmentBytes(1000);
+        when(template.findById(TENANT, TenantUsage.class)).thenReturn(usage);
+
+        assertThrows(StorageQuotaExceededException.class, () -> upload(1000));
+
+        verify(bucket, never()).uploadFromStream(anyString(), any(InputStream.class), any(GridFSUploadOptions.class));
+    }
+
+    @Test
+    void deletingASharedAttachmentKeepsTheBlob() {
+        when(template.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(AttachmentBlob.class)))
+                .thenReturn(blob(1));
+
+        attachmentService.delete(new Attachment("note", TENANT, "user", "file.txt", "text/plain", BODY.length, SHA256));
+
+        verify(template, never()).remove(any(Query.class), eq(AttachmentBlob.class));
+        verify(bucket, never()).delete(any(ObjectId.class));
+        assertEquals(List.of(), usageDeltas());
+    }
+
+    @Test
+    void deletingTheLastReferenceRemovesTheBlobAndReturnsItsBytes() {
+        AttachmentBlob last = blob(0);
+        when(template.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(AttachmentBlob.class)))
+                .thenReturn(last);
+        when(template.remove(any(Query.class), eq(AttachmentBlob.class))).thenReturn(DeleteResult.acknowledged(1));
+
+        attachmentService.delete(new Attachment("note", TENANT, "user", "file.txt", "text/plain", BODY.length, SHA256));
+
+        ArgumentCaptor<Query> removal = ArgumentCaptor.forClass(Query.class);
+        verify(template).remove(removal.capture(), eq(AttachmentBlob.class));
+        assertEquals(new Document("$lte", 0), removal.getValue().getQueryObject().get("refCount"));
+        verify(bucket).delete(new ObjectId(last.getFileId()));
+        assertEquals(List.of((long) -BODY.length), usageDeltas());
+    }
+
+    @Test
+    void aBlobSharedAgainBeforeItsRemovalIsKept() {
+        when(template.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(AttachmentBlob.class)))
+                .thenReturn(blob(0));
+        // An upload incremented refCount between the decrement and the removal
+        when(template.remove(any(Query.class), eq(AttachmentBlob.class))).thenReturn(DeleteResult.acknowledged(0));
+
+        attachmentService.delete(new Attachment("note", TENANT, "user", "file.txt", "text/plain", BODY.length, SHA256));
+
+        verify(bucket, never()).delete(any(ObjectId.class));
+        assertEquals(List.of(), usageDeltas());
+    }
+}
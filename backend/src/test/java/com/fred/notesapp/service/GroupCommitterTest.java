@@ -0,0 +1,249 @@
+package com.fred.notesapp.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Batching, per-item failures and shutdown of the group committer, plus a throughput
+ * harness against a simulated database: a 1 ms round trip in parallel and a commit that
+ * serializes on one journal (150 us per write command, 10 us per document). The harness
+ * is tagged "benchmark" and only runs with -Dgroups=benchmark.
+ */
+class GroupCommitterTest {
+
+    private static final long RTT_NANOS = 1_000_000;
+    private static final long PER_WRITE_NANOS = 150_000;
+    private static final long PER_DOC_NANOS = 10_000;
+
+    private final Object journal = new Object();
+
+    private void simulatedWrite(int documents) {
+        LockSupport.parkNanos(RTT_NANOS / 2);
+        synchronized (journal) {
+            LockSupport.parkNanos(PER_WRITE_NANOS + PER_DOC_NANOS * documents);
+        }
+        LockSupport.parkNanos(RTT_NANOS / 2);
+    }
+
+    @Test
+    void concurrentSubmitsAreWrittenInBatches() throws Exception {
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        GroupCommitter<Integer> committer = new GroupCommitter<>("test", 1024, 64, 0, TimeUnit.MICROSECONDS,
+                (items, failures) -> {
+                    batchSizes.add(items.size());
+                    simulatedWrite(items.size());
+                }, new SimpleMeterRegistry());
+        try {
+            List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+            runClients(32, 20, i -> futures.add(committer.submit(i)), futures);
+
+            assertEquals(32 * 20, batchSizes.stream().mapToInt(Integer::intValue).sum());
+            assertTrue(batchSizes.size() < 32 * 20 / 4, "expected batching, got " + batchSizes.size() + " writes");
+        } finally {
+            committer.close();
+        }
+    }
+
+    @Test
+    void onlyTheFailedItemsOfABatchFail() {
+        CountDownLatch release = new CountDownLatch(1);
+        GroupCommitter<Integer> committer = new GroupCommitter<>("test", 16, 16, 0, TimeUnit.MICROSECONDS,
+                (items, failures) -> {
+                    awaitQuietly(release);
+                    for (int i = 0; i < items.size(); i++) {
+                        if (items.get(i) % 2 == 1) {
+                            failures[i] = new IllegalArgumentException("odd " + items.get(i));
+                        }
+                    }
+                }, new SimpleMeterRegistry());
+        try {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(committer.submit(i));
+            }
+            release.countDown();
+
+            for (int i = 0; i < futures.size(); i++) {
+                CompletableFuture<Void> future = futures.get(i);
+                if (i % 2 == 1) {
+                    CompletionException e = assertThrows(CompletionException.class, future::join);
+                    assertEquals("odd " + i, e.getCause().getMessage());
+                } else {
+                    assertNull(future.join());
+                }
+            }
+        } finally {
+            committer.close();
+        }
+    }
+
+    @Test
+    void aFullBufferHandsTheWriteBackToTheCaller() {
+        CountDownLatch release = new CountDownLatch(1);
+        GroupCommitter<Integer> committer = new GroupCommitter<>("test", 2, 1, 0, TimeUnit.MICROSECONDS,
+                (items, failures) -> awaitQuietly(release), new SimpleMeterRegistry());
+        try {
+            CompletableFuture<Void> inFlight = committer.submit(0);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+            // The writer is stuck, so the ring fills up (capacity rounds up to a power of two)
+            int queued = 0;
+            while (queued < 16 && committer.submit(queued + 1) != null) {
+                queued++;
+            }
+
+            assertTrue(queued >= 2 && queued < 16, "queued " + queued);
+            release.countDown();
+            inFlight.join();
+        } finally {
+            release.countDown();
+            committer.close();
+        }
+    }
+
+    @Test
+    void closeWritesWhatIsQueuedAndRefusesNewItems() {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        GroupCommitter<Integer> committer = new GroupCommitter<>("test", 64, 4, 0, TimeUnit.MICROSECONDS,
+                (items, failures) -> {
+                    awaitQuietly(release);
+                    written.addAll(items);
+                }, new SimpleMeterRegistry());
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(committer.submit(i));
+        }
+        release.countDown();
+
+        committer.close();
+
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone());
+            assertFalse(future.isCompletedExceptionally());
+        }
+        assertEquals(10, written.size());
+        assertNull(committer.submit(10));
+    }
+
+    /**
+     * Prints throughput and latency of 64 clients writing one at a time versus through the
+     * committer with a few batch and delay settings, and the latency a lone client pays for
+     * a delay. Only checks that batching beats direct writes under concurrency.
+     */
+    @Test
+    @Tag("benchmark")
+    void throughputAgainstASimulatedDatabase() throws Exception {
+        long millis = 500;
+        double direct = benchmark("64 clients, direct", 64, millis, null);
+        double batched = 0;
+        int[][] settings = {{128, 0}, {128, 200}, {16, 0}};
+        for (int[] setting : settings) {
+            GroupCommitter<Integer> committer = new GroupCommitter<>("bench", 4096, setting[0], setting[1], TimeUnit.MICROSECONDS,
+                    (items, failures) -> simulatedWrite(items.size()), new SimpleMeterRegistry());
+            try {
+                batched = Math.max(batched, benchmark("64 clients, batch " + setting[0] + ", delay " + setting[1] + "us",
+                        64, millis, committer));
+            } finally {
+                committer.close();
+            }
+        }
+        benchmark("1 client, direct", 1, millis, null);
+        GroupCommitter<Integer> committer = new GroupCommitter<>("bench", 4096, 128, 0, TimeUnit.MICROSECONDS,
+                (items, failures) -> simulatedWrite(items.size()), new SimpleMeterRegistry());
+        try {
+            benchmark("1 client, batch 128, delay 0us", 1, millis, committer);
+        } finally {
+            committer.close();
+        }
+
+        assertTrue(batched > direct * 2, "batched " + batched + "/s vs direct " + direct + "/s");
+    }
+
+    private double benchmark(String name, int clients, long millis, GroupCommitter<Integer> committer) throws Exception {
+        List<long[]> latencies = Collections.synchronizedList(new ArrayList<>());
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread thread = new Thread(() -> {
+                long[] samples = new long[100000];
+                int n = 0;
+                while (System.nanoTime() < end && n < samples.length) {
+                    long start = System.nanoTime();
+                    CompletableFuture<Void> future = committer == null ? null : committer.submit(1);
+                    if (future == null) {
+                        simulatedWrite(1);
+                    } else {
+                        future.join();
+                    }
+                    samples[n++] = System.nanoTime() - start;
+                }
+                latencies.add(Arrays.copyOf(samples, n));
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        double perSecond = all.length * 1000.0 / millis;
+        System.out.printf("%-34s %8.0f inserts/s  p50 %6.2f ms  p99 %6.2f ms%n", name, perSecond,
+                all[all.length / 2] / 1e6, all[(int) (all.length * 0.99)] / 1e6);
+        return perSecond;
+    }
+
+    private interface Client {
+        void submit(int item);
+    }
+
+    private static void runClients(int clients, int perClient, Client client, List<CompletableFuture<Void>> futures)
+            throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int base = c * perClient;
+            Thread thread = new Thread(() -> {
+                awaitQuietly(start);
+                for (int i = 0; i < perClient; i++) {
+                    client.submit(base + i);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (CompletableFuture<Void> future : futures) {
+            assertNotNull(future);
+            future.join();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.cache.RenderedHtmlCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Rendered notes are shown to other users, so whatever the Markdown holds, the HTML that
+ * comes out has no script, no event handler attributes and no script URLs, while ordinary
+ * formatting, links and code survive.
+ */
+class MarkdownRendererTest {
+
+    private MarkdownRenderer renderer;
+
+    @BeforeEach
+    void setUp() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        RenderedHtmlCache cache = new RenderedHtmlCache();
+        ReflectionTestUtils.setField(cache, "meterRegistry", registry);
+        ReflectionTestUtils.setField(cache, "maxBytes", 1L << 20);
+        cache.init();
+        renderer = new MarkdownRenderer();
+        ReflectionTestUtils.setField(renderer, "cache", cache);
+        ReflectionTestUtils.setField(renderer, "meterRegistry", registry);
+        ReflectionTestUtils.setField(renderer, "maxSourceChars", 1000);
+        ReflectionTestUtils.setField(renderer, "previewChars", 20);
+        ReflectionTestUtils.setField(renderer, "warmThreads", 1);
+        ReflectionTestUtils.setField(renderer, "warmQueueCapacity", 1);
+        renderer.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        renderer.shutdown();
+    }
+
+    // Lower-cased, so a check is not fooled by JaVaScRiPt
+    private String render(String markdown) {
+        return renderer.render(markdown).toLowerCase(Locale.ROOT);
+    }
+
+    // Only the tags are checked: a script URL shown as link text is harmless
+    private static void assertInert(String html) {
+        String tags = html.replaceAll(">[^<]*<", "><");
+        assertFalse(tags.contains("<script"), html);
+        assertFalse(tags.contains("javascript:"), html);
+        assertFalse(tags.contains("vbscript:"), html);
+        assertFalse(tags.contains("data:text/html"), html);
+        assertFalse(tags.matches("(?s).*<[^>]*\\son[a-z]+\\s*=.*"), html);
+    }
+
+    @Test
+    void scriptLinksLoseTheirTarget() {
+        for (String markdown : new String[] {
+                "[click](javascript:alert(1))",
+                "[click](JaVaScRiPt:alert(1))",
+                "[click](  javascript:alert(1))",
+                "[click](&#106;avascript:alert(1))",
+                "[click](java%0ascript:alert(1))",
+                "[click](vbscript:msgbox(1))",
+                "[click](data:text/html;base64,PHNjcmlwdD5hbGVydCgxKTwvc2NyaXB0Pg==)",
+                "<javascript:alert(1)>",
+                "[click][ref]\n\n[ref]: javascript:alert(1)",
+                "![img](javascript:alert(1))",
+        }) {
+            assertInert(render(markdown));
+        }
+    }
+
+    @Test
+    void ordinaryLinksAndImagesSurvive() {
+        String html = render("[docs](https://example.com/a?b=c) ![logo](https://example.com/logo.png)");
+
+        assertTrue(html.contains("href=\"https://example.com/a?b&#61;c\""), html);
+        assertTrue(html.contains("src=\"https://example.com/logo.png\""), html);
+    }
+
+    @Test
+    void rawHtmlIsStripped() {
+        for (String markdown : new String[] {
+                "<script>alert(1)</script>",
+                "text <script>alert(1)</script> more",
+                "<img src=x onerror=alert(1)>",
+                "<a href=\"javascript:alert(1)\">click</a>",
+                "<iframe src=\"https://example.com\"></iframe>",
+                "<svg onload=alert(1)></svg>",
+                "<div style=\"background:url(javascript:alert(1))\">x</div>",
+                "<p onclick=\"alert(1)\">x</p>",
+                "<object data=\"x.swf\"></object>",
+                "<form action=\"https://example.com\"><input name=\"p\"></form>",
+        }) {
+            String html = render(markdown);
+            assertInert(html);
+            assertFalse(html.contains("<iframe"), html);
+            assertFalse(html.contains("<svg"), html);
+            assertFalse(html.contains("<object"), html);
+            assertFalse(html.contains("<form"), html);
+            assertFalse(html.contains("<input"), html);
+            assertFalse(html.contains("style="), html);
+        }
+    }
+
+    @Test
+    void attributesCannotBeInjectedThroughMarkdown() {
+        for (String markdown : new String[] {
+                "[a](https://example.com/\" onmouseover=\"alert(1))",
+                "[a](https://example.com \"title\" onmouseover=\"alert(1)\")",
+                "![a\" onerror=\"alert(1)](https://example.com/x.png)",
+                "![a](https://example.com/x.png \"t\\\" onerror=\\\"alert(1)\")",
+                "[a](<https://example.com/\"onmouseover=alert(1)>)",
+        }) {
+            assertInert(render(markdown));
+        }
+    }
+
+    @Test
+    void codeKeepsOnlyAPlainLanguageClass() {
+        assertTrue(render("```java\nint x;\n```").contains("<code class=\"language-java\">"));
+
+        String injected = render("```java\" onclick=\"alert(1)\nint x;\n```");
+        assertInert(injected);
+        assertFalse(injected.contains("class="), injected);
+        // Markup inside code is shown as text
+        assertTrue(render("`<script>alert(1)</script>`").contains("&lt;script&gt;"));
+    }
+
+    @Test
+    void previewsEndWithAnEllipsis() {
+        String html = renderer.preview("one two three four five six seven");
+
+        assertEquals("<p>one two three four \u2026</p>", html.strip());
+    }
+
+    @Test
+    void tooLargeSourcesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> renderer.render("x".repeat(1001)));
+    }
+
+    @Test
+    void identicalSourcesShareTheCachedRender() {
+        assertSame(renderer.render("**bold**"), renderer.render("**bold**"));
+    }
+}
@@ -0,0 +1,206 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.NoteFacet;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tag and folder counts: writes adjust them with one bulk $inc upsert, and the reconciler's
+ * corrections read the stored counts before recounting and only apply over a count that
+ * has not moved since.
+ */
+class NoteFacetServiceTest {
+
+    private MongoTemplate template;
+    private BulkOperations bulk;
+    private MongoCollection<Document> stale;
+    private NoteFacetService noteFacetService;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        template = mock(MongoTemplate.class);
+        bulk = mock(BulkOperations.class);
+        stale = mock(MongoCollection.class);
+        when(template.indexOps(NoteFacet.class)).thenReturn(mock(IndexOperations.class));
+        when(template.bulkOps(BulkOperations.BulkMode.UNORDERED, NoteFacet.class)).thenReturn(bulk);
+        when(template.getCollection(NoteFacetService.STALE_COLLECTION)).thenReturn(stale);
+        noteFacetService = new NoteFacetService();
+        ReflectionTestUtils.setField(noteFacetService, "mongoTemplate", template);
+    }
+
+    private static Note note(String folder, String... tags) {
+        Note note = new Note("title", "body", "tenant", "user");
+        note.setFolder(folder);
+        note.setTags(List.of(tags));
+        return note;
+    }
+
+    private static NoteFacet stored(String kind, String value, long count) {
+        NoteFacet facet = new NoteFacet();
+        facet.setId("tenant|user|" + kind + "|" + value);
+        facet.setTenantId("tenant");
+        facet.setUserId("user");
+        facet.setKind(kind);
+        facet.setValue(value);
+        facet.setCount(count);
+        return facet;
+    }
+
+    private static Document firstOf(ArgumentCaptor<? extends Bson> captor) {
+        return Document.parse(captor.getValue().toBsonDocument().toJson());
+    }
+
+    @Test
+    void aChangeUpsertsOnlyTheCountsThatMoved() {
+        noteFacetService.applyChange(note("/work", "a", "b"), note("/home", "b", "c"));
+
+        ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updates = ArgumentCaptor.forClass(Update.class);
+        verify(bulk, times(4)).upsert(queries.capture(), updates.capture());
+        verify(bulk).execute();
+        // Tag b is on both sides and is left alone
+        assertEquals(List.of("tenant|user|tag|a", "tenant|user|folder|/work", "tenant|user|tag|c", "tenant|user|folder|/home"),
+                queries.getAllValues().stream().map(query -> query.getQueryObject().get("_id")).toList());
+        assertEquals(List.of(-1L, -1L, 1L, 1L),
+                updates.getAllValues().stream().map(update -> ((Document) update.getUpdateObject().get("$inc")).get("count")).toList());
+        Document onInsert = (Document) updates.getAllValues().get(2).getUpdateObject().get("$setOnInsert");
+        assertEquals("tag", onInsert.get("kind"));
+        assertEquals("c", onInsert.get("value"));
+        assertFalse(onInsert.containsKey("count"));
+    }
+
+    @Test
+    void anUnchangedNoteWritesNothing() {
+        noteFacetService.applyChange(note("/work", "a"), note("/work", "a"));
+
+        verify(template, never()).bulkOps(any(BulkOperations.BulkMode.class), eq(NoteFacet.class));
+    }
+
+    @Test
+    void storedCountsAreReadBeforeTheRecount() {
+        when(template.find(any(Query.class), eq(NoteFacet.class))).thenReturn(List.of());
+        @SuppressWarnings("unchecked")
+        Supplier<Map<String, Map<String, Long>>> recount = mock(Supplier.class);
+        when(recount.get()).thenReturn(Map.of());
+
+        noteFacetService.reconcile("tenant", "user", recount);
+
+        InOrder order = inOrder(template, recount);
+        order.verify(template).find(any(Query.class), eq(NoteFacet.class));
+        order.verify(recount).get();
+    }
+
+    @Test
+    void aCorrectionIsAnIncrementOverTheCountThatWasRead() {
+        when(template.find(any(Query.class), eq(NoteFacet.class))).thenReturn(List.of(stored("tag", "a", 5), stored("tag", "gone", 2)));
+        when(template.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(NoteFacet.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+        int corrected = noteFacetService.reconcile("tenant", "user", () -> Map.of("tag", Map.of("a", 3L)));
+
+        assertEquals(2, corrected);
+        ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<UpdateDefinition> updates = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(template, times(2)).updateFirst(queries.capture(), updates.capture(), eq(NoteFacet.class));
+        assertEquals(new Document("_id", "tenant|user|tag|a").append("count", 5L), queries.getAllValues().get(0).getQueryObject());
+        assertEquals(new Document("count", -2L), updates.getAllValues().get(0).getUpdateObject().get("$inc"));
+        // A value with no live notes left goes to zero
+        assertEquals(new Document("_id", "tenant|user|tag|gone").append("count", 2L), queries.getAllValues().get(1).getQueryObject());
+        assertEquals(new Document("count", -2L), updates.getAllValues().get(1).getUpdateObject().get("$inc"));
+    }
+
+    @Test
+    void aCountThatMovedSinceItWasReadIsLeftForTheNextPass() {
+        when(template.find(any(Query.class), eq(NoteFacet.class))).thenReturn(List.of(stored("folder", "/work", 4)));
+        // A write adjusted the count between the read and the correction
+        when(template.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(NoteFacet.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+
+        assertEquals(0, noteFacetService.reconcile("tenant", "user", () -> Map.of("folder", Map.of("/work", 5L))));
+    }
+
+    @Test
+    void matchingCountsAreNotWritten() {
+        when(template.find(any(Query.class), eq(NoteFacet.class))).thenReturn(List.of(stored("tag", "a", 3)));
+
+        assertEquals(0, noteFacetService.reconcile("tenant", "user", () -> Map.of("tag", Map.of("a", 3L))));
+
+        verify(template, never()).updateFirst(any(Query.class), any(UpdateDefinition.class), eq(NoteFacet.class));
+        verify(template, never()).upsert(any(Query.class), any(UpdateDefinition.class), eq(NoteFacet.class));
+    }
+
+    @Test
+    void aMissingCountIsOnlyInserted() {
+        when(template.find(any(Query.class), eq(NoteFacet.class))).thenReturn(List.of());
+        when(template.upsert(any(Query.class), any(UpdateDefinition.class), eq(NoteFacet.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, new BsonString("tenant|user|tag|new")));
+
+        assertEquals(1, noteFacetService.reconcile("tenant", "user", () -> Map.of("tag", Map.of("new", 2L))));
+
+        ArgumentCaptor<UpdateDefinition> update = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(template).upsert(any(Query.class), update.capture(), eq(NoteFacet.class));
+        // Nothing outside $setOnInsert, so a count a write created meanwhile is kept as is
+        assertEquals(List.of("$setOnInsert"), List.copyOf(update.getValue().getUpdateObject().keySet()));
+        assertEquals(2L, ((Document) update.getValue().getUpdateObject().get("$setOnInsert")).get("count"));
+    }
+
+    @Test
+    void markingStaleUpsertsTheMarkTime() {
+        long before = System.currentTimeMillis();
+
+        noteFacetService.markStale("tenant", "user");
+
+        ArgumentCaptor<Bson> filter = ArgumentCaptor.forClass(Bson.class);
+        ArgumentCaptor<Bson> update = ArgumentCaptor.forClass(Bson.class);
+        ArgumentCaptor<UpdateOptions> options = ArgumentCaptor.forClass(UpdateOptions.class);
+        verify(stale).updateOne(filter.capture(), update.capture(), options.capture());
+        assertEquals(new Document("_id", "tenant|user"), firstOf(filter));
+        assertTrue(options.getValue().isUpsert());
+        Document set = (Document) firstOf(update).get("$set");
+        assertEquals("tenant", set.get("tenantId"));
+        assertEquals("user", set.get("userId"));
+        assertTrue(((Number) set.get("markedAt")).longValue() >= before);
+    }
+
+    @Test
+    void clearingOnlyRemovesTheMarkThatWasRecounted() {
+        noteFacetService.clearStale(new Document("_id", "tenant|user").append("markedAt", 42L));
+
+        ArgumentCaptor<Bson> filter = ArgumentCaptor.forClass(Bson.class);
+        verify(stale).deleteOne(filter.capture());
+        assertEquals(new Document("$and", List.of(new Document("_id", "tenant|user"), new Document("markedAt", 42))), firstOf(filter));
+    }
+}
@@ -0,0 +1,368 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.cache.InvalidationBus;
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.NotePartition;
+import com.fred.notesapp.repository.NotePartitionDirectory;
+import com.fred.notesapp.repository.ObjectIdReferences;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.ReplaceOptions;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Moving a tenant from the shared collection in the default database to a dedicated
+ * collection in another database, with the directory, both databases and a second node
+ * simulated.
+ */
+class NotePartitionServiceTest {
+
+    private static final String TENANT = "tenant-1";
+    private static final String OTHER_DATABASE = "notes_eu";
+    private static final String DEDICATED = "tenant_1_notes";
+
+    private MongoTemplate directoryTemplate;
+    private FakeNotes sourceNotes;
+    private FakeNotes targetNotes;
+    private NotePartitionDirectory directory;
+    private NotePartitionService node;
+
+    @BeforeEach
+    void setUp() {
+        directoryTemplate = mock(MongoTemplate.class);
+        when(directoryTemplate.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(NotePartition.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+        sourceNotes = new FakeNotes("notes");
+        targetNotes = new FakeNotes(DEDICATED);
+        directory = mock(NotePartitionDirectory.class);
+        when(directory.target(isNull(), eq("notes"))).thenReturn(sourceNotes.target);
+        when(directory.target(eq(OTHER_DATABASE), eq(DEDICATED))).thenReturn(targetNotes.target);
+        when(sourceNotes.target.sameAs(targetNotes.target)).thenReturn(false);
+        when(directory.getTtlMs()).thenReturn(0L);
+
+        node = newNode();
+    }
+
+    @AfterEach
+    void tearDown() {
+        node.shutdown();
+    }
+
+    private NotePartitionService newNode() {
+        NotePartitionService service = new NotePartitionService();
+        ObjectIdReferences references = mock(ObjectIdReferences.class);
+        when(references.valuesOf(anyString())).thenAnswer(invocation -> List.of(invocation.getArgument(0, String.class)));
+        ReflectionTestUtils.setField(service, "mongoTemplate", directoryTemplate);
+        ReflectionTestUtils.setField(service, "partitionDirectory", directory);
+        ReflectionTestUtils.setField(service, "references", references);
+        ReflectionTestUtils.setField(service, "invalidationBus", mock(InvalidationBus.class));
+        ReflectionTestUtils.setField(service, "batchSize", 2);
+        ReflectionTestUtils.setField(service, "leaseMs", 60000L);
+        service.init();
+        return service;
+    }
+
+    private static NotePartition moving(String checkpoint) {
+        NotePartition partition = new NotePartition(TENANT, null, "notes");
+        partition.setState("MOVING");
+        partition.setTargetDatabase(OTHER_DATABASE);
+        partition.setTargetCollection(DEDICATED);
+        partition.setMoveCheckpoint(checkpoint);
+        return partition;
+    }
+
+    private List<Document> partitionUpdates() {
+        ArgumentCaptor<UpdateDefinition> updates = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(directoryTemplate, atLeastOnce())
+                .updateFirst(any(Query.class), updates.capture(), eq(NotePartition.class));
+        return updates.getAllValues().stream().map(UpdateDefinition::getUpdateObject).collect(Collectors.toList());
+    }
+
+    @Test
+    void copiesEveryNoteIntoTheOtherDatabaseAndDrainsTheSource() throws Exception {
+        sourceNotes.add("n1", "n2", "n3", "n4", "n5");
+
+        node.move(moving(null));
+
+        assertEquals(List.of("n1", "n2", "n3", "n4", "n5"), targetNotes.ids());
+        assertTrue(sourceNotes.ids().isEmpty());
+        List<Document> updates = partitionUpdates();
+        // A checkpoint per batch, the flip, then ACTIVE once drained
+        assertEquals("n2", ((Document) updates.get(0).get("$set")).get("moveCheckpoint"));
+        Document flip = (Document) updates.stream().filter(u -> "DRAINING".equals(((Document) u.get("$set")).get("state"))).findFirst().get().get("$set");
+        assertEquals(OTHER_DATABASE, flip.get("database"));
+        assertEquals(DEDICATED, flip.get("collection"));
+        assertEquals("notes", flip.get("targetCollection"));
+        assertEquals("ACTIVE", ((Document) updates.get(updates.size() - 1).get("$set")).get("state"));
+    }
+
+    @Test
+    void resumedMoveStartsAfterItsCheckpoint() throws Exception {
+        sourceNotes.add("n1", "n2", "n3", "n4");
+        targetNotes.add("n1", "n2");
+
+        node.move(moving("n2"));
+
+        assertEquals(List.of("n1", "n2", "n3", "n4"), targetNotes.ids());
+        assertEquals(List.of("n3", "n4"), targetNotes.inserted);
+    }
+
+    @Test
+    void notesDeletedDuringTheCopyAreRemovedFromTheTarget() throws Exception {
+        sourceNotes.add("n1", "n3");
+        // n2 was dual-written, then deleted from the source after the copy passed it
+        targetNotes.add("n2");
+
+        node.move(moving(null));
+
+        assertEquals(List.of("n1", "n3"), targetNotes.ids());
+    }
+
+    @Test
+    void copiesDeletedFromTheSourceAreFoundAcrossPages() throws Exception {
+        sourceNotes.add("n1", "n3", "n5", "n7", "n8");
+        // Dual-written copies of notes deleted before the flip, spread over several pages
+        targetNotes.add("n0", "n2", "n4", "n6", "n9");
+
+        node.move(moving(null));
+
+        assertEquals(List.of("n1", "n3", "n5", "n7", "n8"), targetNotes.ids());
+    }
+
+    @Test
+    void aNoteTrashedWhileItsBatchIsBeingCopiedIsCopiedAgain() throws Exception {
+        sourceNotes.add("n1", "n2", "n3", "n4", "n5");
+        // n3 is trashed right after the copier read its batch; the update on the target found nothing there yet
+        sourceNotes.afterBatch = after -> {
+            if ("n2".equals(after)) {
+                Note n3 = sourceNotes.notes.get("n3");
+                n3.setDeleted(true);
+                n3.setVersion(n3.getVersion() + 1);
+                sourceNotes.afterBatch = null;
+            }
+        };
+
+        node.move(moving(null));
+
+        Note copy = targetNotes.notes.get("n3");
+        assertTrue(copy.isDeleted());
+        assertEquals(1, copy.getVersion());
+        assertEquals(List.of("n1", "n2", "n3", "n4", "n5"), targetNotes.ids());
+    }
+
+    @Test
+    void aCopyUpdatedByADualWriteDuringTheCheckIsKept() throws Exception {
+        sourceNotes.add("n1", "n2");
+        targetNotes.add("n1", "n2");
+        // The target's n2 is behind; a dual write brings it up to date after the check read it
+        sourceNotes.notes.get("n2").setVersion(2);
+        sourceNotes.notes.get("n2").setPosition("b");
+        when(sourceNotes.template.findById("n2", Note.class, "notes")).thenAnswer(invocation -> {
+            Note fresher = new Note(sourceNotes.notes.get("n2"));
+            fresher.setVersion(3);
+            fresher.setPosition("c");
+            targetNotes.notes.put("n2", new Note(fresher));
+            return new Note(sourceNotes.notes.get("n2"));
+        });
+
+        node.move(moving(null));
+
+        assertEquals(3, targetNotes.notes.get("n2").getVersion());
+        assertEquals("c", targetNotes.notes.get("n2").getPosition());
+    }
+
+    @Test
+    void drainCopiesNotesWhoseDualWriteFailed() throws Exception {
+        // Current location (after the flip) is the dedicated collection; n2 and n4 never reached it
+        targetNotes.add("n1", "n3", "n5");
+        sourceNotes.add("n1", "n2", "n3", "n4", "n5");
+        NotePartition draining = new NotePartition(TENANT, OTHER_DATABASE, DEDICATED);
+        draining.setState("DRAINING");
+        draining.setTargetCollection("notes");
+        for (String id : List.of("n2", "n4")) {
+            when(sourceNotes.template.findById(id, Note.class, "notes")).thenReturn(sourceNotes.notes.get(id));
+        }
+
+        node.move(draining);
+
+        assertEquals(List.of("n2", "n4"), targetNotes.inserted);
+        assertEquals(List.of("n1", "n2", "n3", "n4", "n5"), targetNotes.ids());
+        assertTrue(sourceNotes.ids().isEmpty());
+    }
+
+    @Test
+    void aNodeThatLostItsClaimStopsWithoutTouchingTheSource() {
+        sourceNotes.add("n1", "n2", "n3");
+        when(directoryTemplate.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(NotePartition.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+
+        assertThrows(IllegalStateException.class, () -> node.move(moving(null)));
+        assertEquals(3, sourceNotes.ids().size());
+    }
+
+    @Test
+    void onlyOneNodeCanClaimAMove() {
+        when(directoryTemplate.findById(TENANT, NotePartition.class)).thenReturn(null);
+        when(directoryTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(NotePartition.class)))
+                .thenReturn(moving(null))
+                .thenThrow(new DuplicateKeyException("E11000 duplicate key error collection: note_partitions"));
+        NotePartitionService otherNode = newNode();
+        try {
+            assertTrue(node.startMove(TENANT, OTHER_DATABASE, DEDICATED));
+            assertFalse(otherNode.startMove(TENANT, OTHER_DATABASE, DEDICATED));
+        } finally {
+            otherNode.shutdown();
+        }
+
+        ArgumentCaptor<Query> claim = ArgumentCaptor.forClass(Query.class);
+        verify(directoryTemplate, times(2))
+                .findAndModify(claim.capture(), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(NotePartition.class));
+        Document state = (Document) claim.getValue().getQueryObject().get("state");
+        assertEquals(List.of("MOVING", "DRAINING"), state.get("$nin"));
+    }
+
+    @Test
+    void stalledMovesAreResumedByAnotherNode() {
+        sourceNotes.add("n1", "n2", "n3");
+        targetNotes.add("n1");
+        NotePartition stalled = moving("n1");
+        stalled.setOwner("a-node-that-died");
+        stalled.setLeaseUntil(LocalDateTime.now(ZoneOffset.UTC).minusMinutes(1));
+        when(directoryTemplate.find(any(Query.class), eq(NotePartition.class))).thenReturn(List.of(stalled));
+        when(directoryTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(NotePartition.class)))
+                .thenReturn(stalled);
+
+        node.resumeStalledMoves();
+
+        verify(sourceNotes.template, timeout(5000)).remove(any(Query.class), eq(Note.class), eq("notes"));
+        assertEquals(List.of("n2", "n3"), targetNotes.inserted);
+    }
+
+    @Test
+    void drainingMovesOnlyFinishTheCleanup() throws Exception {
+        sourceNotes.add("n1");
+        targetNotes.add("n1");
+        NotePartition draining = new NotePartition(TENANT, OTHER_DATABASE, DEDICATED);
+        draining.setState("DRAINING");
+        draining.setTargetCollection("notes");
+
+        node.move(draining);
+
+        assertTrue(sourceNotes.ids().isEmpty());
+        verify(targetNotes.template, never()).insert(any(Note.class), anyString());
+    }
+
+    // One collection in one database, answering the queries the mover makes with copies of its notes
+    private static final class FakeNotes {
+        final TreeMap<String, Note> notes = new TreeMap<>();
+        final List<String> inserted = new ArrayList<>();
+        final MongoTemplate template = mock(MongoTemplate.class);
+        final NotePartitionDirectory.Target target = mock(NotePartitionDirectory.Target.class);
+        // Runs after the copier reads a batch, with the id the batch started after
+        Consumer<String> afterBatch;
+
+        FakeNotes(String collection) {
+            when(target.getTemplate()).thenReturn(template);
+            when(target.getCollection()).thenReturn(collection);
+            when(template.find(any(Query.class), eq(Note.class), eq(collection))).thenAnswer(invocation -> {
+                Query query = invocation.getArgument(0);
+                Object id = query.getQueryObject().get("_id");
+                String after = id instanceof Document ? ((Document) id).getString("$gt") : null;
+                List<Note> batch = (after == null ? notes : notes.tailMap(after, false)).values().stream()
+                        .limit(query.getLimit() > 0 ? query.getLimit() : Long.MAX_VALUE)
+                        .map(Note::new)
+                        .collect(Collectors.toList());
+                // The copier reads whole notes, the merge walks only some fields
+                if (afterBatch != null && query.getFieldsObject().isEmpty()) {
+                    afterBatch.accept(after);
+                }
+                return batch;
+            });
+            when(template.findById(anyString(), eq(Note.class), eq(collection))).thenAnswer(invocation -> {
+                Note note = notes.get(invocation.getArgument(0, String.class));
+                return note == null ? null : new Note(note);
+            });
+            when(template.replace(any(Query.class), any(Note.class), any(ReplaceOptions.class), eq(collection))).thenAnswer(invocation -> {
+                Document query = invocation.getArgument(0, Query.class).getQueryObject();
+                Note note = invocation.getArgument(1);
+                Note current = notes.get(query.getString("_id"));
+                // Notes stored before the counter existed are matched on version 0 or none
+                Object version = query.get("version");
+                boolean sameVersion = version instanceof Document
+                        ? current != null && current.getVersion() == 0
+                        : current != null && version.equals(current.getVersion());
+                if (!sameVersion || !Objects.equals(query.get("position"), current.getPosition())) {
+                    return UpdateResult.acknowledged(0, 0L, null);
+                }
+                notes.put(note.getId(), note);
+                return UpdateResult.acknowledged(1, 1L, null);
+            });
+            when(template.insert(any(Note.class), eq(collection))).thenAnswer(invocation -> {
+                Note note = invocation.getArgument(0);
+                if (notes.containsKey(note.getId())) {
+                    throw new DuplicateKeyException("E11000 duplicate key error");
+                }
+                notes.put(note.getId(), note);
+                inserted.add(note.getId());
+                return note;
+            });
+            when(template.remove(any(Query.class), eq(Note.class), eq(collection))).thenAnswer(invocation -> {
+                Query query = invocation.getArgument(0);
+                Object id = query.getQueryObject().get("_id");
+                if (id instanceof String) {
+                    notes.remove(id);
+                } else {
+                    notes.clear();
+                }
+                return null;
+            });
+        }
+
+        void add(String... ids) {
+            for (String id : ids) {
+                Note note = new Note("title " + id, "content", TENANT, "user-1");
+                note.setId(id);
+                notes.put(id, note);
+            }
+        }
+
+        List<String> ids() {
+            return new ArrayList<>(notes.keySet());
+        }
+    }
+}
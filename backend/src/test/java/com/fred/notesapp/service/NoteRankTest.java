@@ -0,0 +1,108 @@
+package com.fred.notesapp.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Rank keys under 100,000 moves over 1,000 notes, rebalancing as {@link NoteRebalancer}
+ * does once a key passes 32 characters: order must hold after every move and keys must
+ * stay bounded, for random moves and for the worst case of always moving between the same
+ * two notes.
+ */
+class NoteRankTest {
+
+    private static final int NOTES = 1000;
+    private static final int MOVES = 100000;
+    private static final int REBALANCE_KEY_LENGTH = 32;
+
+    @Test
+    void randomMovesKeepOrderWithShortKeys() {
+        Result result = stress(false);
+
+        assertEquals(0, result.rebalances);
+        assertTrue(result.maxKeyLength <= REBALANCE_KEY_LENGTH, "max key length " + result.maxKeyLength);
+    }
+
+    @Test
+    void movesBetweenTheSameTwoNotesAreBoundedByRebalancing() {
+        Result result = stress(true);
+
+        assertTrue(result.rebalances > 0);
+        // One move past the limit, then the order is rewritten
+        assertTrue(result.maxKeyLength <= REBALANCE_KEY_LENGTH + 1, "max key length " + result.maxKeyLength);
+    }
+
+    @Test
+    void prependsAndAppendsStayOrdered() {
+        String key = "a0";
+        for (int i = 0; i < 5000; i++) {
+            String previous = NoteRank.between(null, key);
+            assertTrue(previous.compareTo(key) < 0, previous + " before " + key);
+            key = previous;
+        }
+        assertEquals("XziM", key);
+        key = null;
+        for (int i = 0; i < 5000; i++) {
+            String next = NoteRank.between(key, null);
+            assertTrue(key == null || next.compareTo(key) > 0, next + " after " + key);
+            key = next;
+        }
+        assertEquals("c0Hd", key);
+    }
+
+    @Test
+    void keysBetweenNeighbours() {
+        assertEquals("a0V", NoteRank.between("a0", "a1"));
+        assertEquals("azV", NoteRank.between("az", "b00"));
+        // A fraction is dropped rather than extended when there is room
+        assertEquals("a0", NoteRank.between(null, "a0V"));
+        assertThrows(IllegalArgumentException.class, () -> NoteRank.between("a1", "a1"));
+        assertThrows(IllegalArgumentException.class, () -> NoteRank.between("a2", "a1"));
+    }
+
+    private Result stress(boolean wedge) {
+        Random random = new Random(42);
+        List<String> keys = new ArrayList<>();
+        String previous = null;
+        for (int i = 0; i < NOTES; i++) {
+            previous = NoteRank.between(previous, null);
+            keys.add(previous);
+        }
+        Result result = new Result();
+        for (int m = 0; m < MOVES; m++) {
+            keys.remove(random.nextInt(keys.size()));
+            int to = wedge ? 1 : random.nextInt(keys.size() + 1);
+            String before = to == 0 ? null : keys.get(to - 1);
+            String after = to == keys.size() ? null : keys.get(to);
+            String key = NoteRank.between(before, after);
+            assertTrue(before == null || before.compareTo(key) < 0, before + " before " + key);
+            assertTrue(after == null || key.compareTo(after) < 0, key + " before " + after);
+            keys.add(to, key);
+            result.maxKeyLength = Math.max(result.maxKeyLength, key.length());
+            if (key.length() > REBALANCE_KEY_LENGTH) {
+                result.rebalances++;
+                String position = null;
+                for (int i = 0; i < keys.size(); i++) {
+                    position = NoteRank.between(position, null);
+                    keys.set(i, position);
+                }
+            }
+        }
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(keys.get(i - 1).compareTo(keys.get(i)) < 0, "order broken at " + i);
+        }
+        return result;
+    }
+
+    private static final class Result {
+        int maxKeyLength;
+        int rebalances;
+    }
+}
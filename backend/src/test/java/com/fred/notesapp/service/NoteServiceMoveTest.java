@@ -0,0 +1,95 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.repository.NoteStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Moves next to notes that share a key (created or moved concurrently) must land directly
+ * after the requested note, and legacy notes without keys are left to the backfill.
+ */
+class NoteServiceMoveTest {
+
+    private NoteStore noteStore;
+    private NoteRebalancer noteRebalancer;
+    private NoteService noteService;
+
+    @BeforeEach
+    void setUp() {
+        noteStore = mock(NoteStore.class);
+        noteRebalancer = mock(NoteRebalancer.class);
+        noteService = new NoteService();
+        ReflectionTestUtils.setField(noteService, "noteStore", noteStore);
+        ReflectionTestUtils.setField(noteService, "noteRebalancer", noteRebalancer);
+        when(noteRebalancer.isBackfilled()).thenReturn(true);
+    }
+
+    private static Note note(String id, String position) {
+        Note note = new Note("title", "body", "tenant", "user");
+        note.setId(id);
+        note.setPosition(position);
+        return note;
+    }
+
+    @Test
+    void movingAfterANoteWithEqualKeyedNeighboursGivesThemRoom() {
+        // Order: a (a1), b (a1), c (a1), d (a2), x (a3); move x after a
+        Note x = note("x", "a3");
+        when(noteStore.findPositionById("x", "tenant")).thenReturn(Optional.of(x));
+        when(noteStore.findPositionById("a", "tenant")).thenReturn(Optional.of(note("a", "a1")));
+        when(noteStore.findNextPosition("tenant", "user", "a1", "x")).thenReturn("a2");
+        when(noteStore.findPositionTies("tenant", "user", "a1", "a", "x"))
+                .thenReturn(List.of(note("b", "a1"), note("c", "a1")));
+        when(noteStore.setPosition(anyString(), eq("tenant"), anyString(), anyString())).thenReturn(true);
+
+        String position = noteService.move(x, "a");
+
+        String b = NoteRank.between("a1", "a2");
+        String c = NoteRank.between(b, "a2");
+        verify(noteStore).setPosition("b", "tenant", "a1", b);
+        verify(noteStore).setPosition("c", "tenant", "a1", c);
+        verify(noteStore).setPosition("x", "tenant", "a3", position);
+        assertTrue("a1".compareTo(position) < 0 && position.compareTo(b) < 0, position);
+        assertTrue(b.compareTo(c) < 0 && c.compareTo("a2") < 0);
+    }
+
+    @Test
+    void withoutEqualKeysOnlyTheMovedNoteIsWritten() {
+        Note x = note("x", "a3");
+        when(noteStore.findPositionById("x", "tenant")).thenReturn(Optional.of(x));
+        when(noteStore.findPositionById("a", "tenant")).thenReturn(Optional.of(note("a", "a1")));
+        when(noteStore.findNextPosition("tenant", "user", "a1", "x")).thenReturn("a2");
+        when(noteStore.findPositionTies("tenant", "user", "a1", "a", "x")).thenReturn(List.of());
+        when(noteStore.setPosition("x", "tenant", "a3", "a1V")).thenReturn(true);
+
+        assertEquals("a1V", noteService.move(x, "a"));
+    }
+
+    @Test
+    void legacyNotesWithoutKeysAreQueuedForTheBackfill() {
+        when(noteRebalancer.isBackfilled()).thenReturn(false);
+        when(noteStore.hasUnpositioned("tenant", "user")).thenReturn(true);
+
+        assertThrows(NoteOrderPendingException.class, () -> noteService.move(note("x", null), "a"));
+
+        verify(noteRebalancer).queue("tenant", "user");
+        verify(noteRebalancer, never()).rebalance(any(), any());
+        verify(noteStore, never()).setPosition(any(), any(), any(), any());
+    }
+}
@@ -0,0 +1,207 @@
+package com.fred.notesapp.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Fault injection for hedged reads: slow, failing and uninterruptible first attempts,
+ * saturated pools and a spent budget.
+ */
+class ReadHedgerTest {
+
+    private static final long DELAY_MS = 20;
+
+    private SimpleMeterRegistry registry;
+    private ReadHedger hedger;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        hedger = new ReadHedger();
+        ReflectionTestUtils.setField(hedger, "meterRegistry", registry);
+        ReflectionTestUtils.setField(hedger, "enabled", true);
+        ReflectionTestUtils.setField(hedger, "percentile", 0.95);
+        ReflectionTestUtils.setField(hedger, "minDelayMs", DELAY_MS);
+        // Every read earns a whole hedge
+        ReflectionTestUtils.setField(hedger, "budgetRatio", 1.0);
+        ReflectionTestUtils.setField(hedger, "primaryThreads", 4);
+        ReflectionTestUtils.setField(hedger, "threads", 1);
+        ReflectionTestUtils.setField(hedger, "queueCapacity", 1);
+        hedger.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        hedger.shutdown();
+        Thread.interrupted();
+    }
+
+    private double count(String name) {
+        return registry.get(name).counter().count();
+    }
+
+    private static Supplier<String> sleeping(long millis, String value) {
+        return () -> {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("interrupted", e);
+            }
+            return value;
+        };
+    }
+
+    // Blocks like a driver socket read: interrupts neither end it nor make it throw
+    private static Supplier<String> uninterruptible(long millis, String value, AtomicBoolean interrupted) {
+        return () -> {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            while (System.nanoTime() < end) {
+                LockSupport.parkNanos(end - System.nanoTime());
+                if (Thread.currentThread().isInterrupted()) {
+                    interrupted.set(true);
+                }
+            }
+            return value;
+        };
+    }
+
+    @Test
+    void fastFirstAttemptIsNotHedged() {
+        assertEquals("primary", hedger.read(() -> "primary", () -> "hedge"));
+        assertEquals(0, count("notes.hedge.issued"));
+    }
+
+    @Test
+    void callerReturnsWithTheHedgeWhileAnUninterruptibleFirstAttemptIsStillBlocked() {
+        Thread caller = Thread.currentThread();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        long start = System.nanoTime();
+        String value = hedger.read(uninterruptible(2000, "primary", interrupted),
+                () -> Thread.currentThread() == caller ? "wrong thread" : "hedge");
+
+        assertEquals("hedge", value);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        // Counted by the hedge thread just after it hands over the result
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (count("notes.hedge.won") == 0 && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertEquals(1, count("notes.hedge.won"));
+        assertFalse(Thread.currentThread().isInterrupted());
+        // The loser is left to finish (under maxTimeMS in production) rather than interrupted
+        ThreadPoolExecutor primaries = (ThreadPoolExecutor) ReflectionTestUtils.getField(hedger, "primaries");
+        assertEquals(1, primaries.getActiveCount());
+        assertFalse(interrupted.get());
+    }
+
+    @Test
+    void slowLosersAreStillSampled() throws Exception {
+        hedger.read(sleeping(DELAY_MS * 5, "primary"), () -> "hedge");
+
+        AtomicLongArray samples = (AtomicLongArray) ReflectionTestUtils.getField(hedger, "samples");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (samples.get(0) == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(samples.get(0) >= TimeUnit.MILLISECONDS.toNanos(DELAY_MS * 5));
+    }
+
+    @Test
+    void readsRunOnTheCallerWhenEveryAttemptThreadIsBusy() {
+        ReflectionTestUtils.setField(hedger, "primaryThreads", 1);
+        hedger.init();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread busy = new Thread(() -> hedger.read(uninterruptible(500, "primary", interrupted), () -> "hedge"));
+        busy.start();
+        ThreadPoolExecutor primaries = (ThreadPoolExecutor) ReflectionTestUtils.getField(hedger, "primaries");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (primaries.getActiveCount() == 0 && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+
+        Thread caller = Thread.currentThread();
+        assertEquals("caller", hedger.read(() -> Thread.currentThread() == caller ? "caller" : "pool", () -> "hedge"));
+        assertEquals(1, count("notes.hedge.unhedged"));
+    }
+
+    @Test
+    void firstAttemptFailureWaitsForAnInFlightHedge() {
+        String value = hedger.read(() -> {
+            sleeping(DELAY_MS * 3, "ignored").get();
+            throw new IllegalStateException("primary down");
+        }, sleeping(DELAY_MS * 5, "hedge"));
+
+        assertEquals("hedge", value);
+    }
+
+    @Test
+    void failureIsSurfacedOnlyOnceBothAttemptsFail() {
+        long start = System.nanoTime();
+        RuntimeException thrown = assertThrows(RuntimeException.class, () -> hedger.read(() -> {
+            sleeping(DELAY_MS * 3, "ignored").get();
+            throw new IllegalStateException("primary down");
+        }, () -> {
+            throw new IllegalStateException("hedge down");
+        }));
+
+        // The hedge failed first, but the read kept waiting for the first attempt
+        assertEquals("hedge down", thrown.getMessage());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(DELAY_MS * 3));
+    }
+
+    @Test
+    void fastFailureIsNotHedged() {
+        assertThrows(IllegalStateException.class, () -> hedger.read(() -> {
+            throw new IllegalStateException("bad query");
+        }, () -> "hedge"));
+        assertEquals(0, count("notes.hedge.issued"));
+    }
+
+    @Test
+    void hedgesAreDroppedWhenThePoolIsFull() throws Exception {
+        // Occupy the single hedge thread and its one queue slot
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) ReflectionTestUtils.getField(hedger, "executor");
+        executor.execute(blocker);
+        executor.execute(blocker);
+
+        String value = hedger.read(sleeping(DELAY_MS * 4, "primary"), () -> "hedge");
+        release.countDown();
+
+        assertEquals("primary", value);
+        assertEquals(1, count("notes.hedge.dropped"));
+        assertEquals(0, count("notes.hedge.issued"));
+    }
+
+    @Test
+    void hedgesStopWhenTheBudgetIsSpent() {
+        ReflectionTestUtils.setField(hedger, "budgetRatio", 0.0);
+        hedger.init();
+
+        assertEquals("primary", hedger.read(sleeping(DELAY_MS * 3, "primary"), () -> "hedge"));
+        assertEquals(1, count("notes.hedge.denied"));
+    }
+}
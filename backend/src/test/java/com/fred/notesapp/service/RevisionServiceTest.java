@@ -0,0 +1,308 @@
+package com.fred.notesapp.service;
+
+import com.fred.notesapp.model.Note;
+import com.fred.notesapp.model.NoteRevision;
+import com.fred.notesapp.repository.TenantRepository;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Delta chains of note revisions: single-span diffs around surrogate pairs, reconstruction
+ * across snapshot boundaries, and reconstruction once compaction has cut the chain.
+ */
+class RevisionServiceTest {
+
+    private static final String NOTE_ID = "note";
+    private static final int SNAPSHOT_INTERVAL = 20;
+
+    private FakeRevisions revisions;
+    private RevisionService revisionService;
+
+    @BeforeEach
+    void setUp() {
+        revisions = new FakeRevisions();
+        revisionService = new RevisionService();
+        ReflectionTestUtils.setField(revisionService, "mongoTemplate", revisions.template);
+        ReflectionTestUtils.setField(revisionService, "tenantRepository", mock(TenantRepository.class));
+        ReflectionTestUtils.setField(revisionService, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(revisionService, "enabled", true);
+        ReflectionTestUtils.setField(revisionService, "snapshotInterval", SNAPSHOT_INTERVAL);
+        ReflectionTestUtils.setField(revisionService, "indexed", true);
+        revisionService.init();
+    }
+
+    private static String diffAndApply(String base, String target) {
+        NoteRevision revision = new NoteRevision();
+        RevisionService.diff(base, target, revision);
+        assertWellFormed(revision.getInsert());
+        return RevisionService.apply(base, revision);
+    }
+
+    private static void assertWellFormed(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c)) {
+                assertTrue(i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)), "lone high surrogate at " + i);
+                i++;
+            } else {
+                assertFalse(Character.isLowSurrogate(c), "lone low surrogate at " + i);
+            }
+        }
+    }
+
+    // Saves each body in turn as the note's next revision, the way NoteService does
+    private List<String> saveRevisions(int count) {
+        List<String> bodies = new ArrayList<>();
+        Note previous = null;
+        String filler = "x".repeat(200);
+        for (int i = 1; i <= count; i++) {
+            String body = filler.substring(0, 100) + " edit " + i + " " + filler.substring(100);
+            Note note = new Note("title", body, "tenant", "user");
+            note.setId(NOTE_ID);
+            revisionService.record(previous, note, "user");
+            bodies.add(body);
+            previous = note;
+        }
+        return bodies;
+    }
+
+    @Test
+    void diffsNeverSplitASurrogatePair() {
+        // Same high surrogate, different low surrogate: the shared prefix must stop before the pair
+        NoteRevision revision = new NoteRevision();
+        RevisionService.diff("a😀b", "a😁b", revision);
+        assertEquals(1, revision.getPrefix());
+        assertEquals(1, revision.getSuffix());
+        assertEquals("😁", revision.getInsert());
+
+        // Different high surrogate, same low surrogate: the shared suffix must stop after the pair
+        revision = new NoteRevision();
+        RevisionService.diff("🈀", "😀", revision);
+        assertEquals(0, revision.getSuffix());
+        assertEquals("😀", revision.getInsert());
+
+        assertEquals("😀😀", diffAndApply("😀", "😀😀"));
+        assertEquals("", diffAndApply("😀", ""));
+    }
+
+    @Test
+    void randomEditsAroundSurrogatePairsRoundTrip() {
+        Random random = new Random(7);
+        String[] pieces = {"a", "b", "😀", "😁", "🈀", "é"};
+        for (int i = 0; i < 2000; i++) {
+            String base = randomText(random, pieces);
+            String target = randomText(random, pieces);
+            assertEquals(target, diffAndApply(base, target));
+        }
+    }
+
+    private static String randomText(Random random, String[] pieces) {
+        StringBuilder text = new StringBuilder();
+        int length = random.nextInt(8);
+        for (int i = 0; i < length; i++) {
+            text.append(pieces[random.nextInt(pieces.length)]);
+        }
+        return text.toString();
+    }
+
+    @Test
+    void everyRevisionIsReconstructedAcrossSnapshotBoundaries() {
+        List<String> bodies = saveRevisions(45);
+
+        // A snapshot every SNAPSHOT_INTERVAL revisions, deltas in between
+        assertEquals(List.of(1L, 21L, 41L), revisions.snapshotRevs());
+        assertEquals(SNAPSHOT_INTERVAL - 1, revisions.get(20).getDepth());
+        for (int rev = 1; rev <= bodies.size(); rev++) {
+            Optional<NoteRevision> revision = revisionService.reconstruct(NOTE_ID, rev);
+            assertTrue(revision.isPresent(), "rev " + rev);
+            assertEquals(bodies.get(rev - 1), revision.get().getContent(), "rev " + rev);
+        }
+    }
+
+    @Test
+    void retainedRevisionsAreReconstructedAfterCompaction() {
+        List<String> bodies = saveRevisions(45);
+
+        revisionService.compact(NOTE_ID, 10);
+
+        // 36 to 45 are kept; 36 was a delta on 35, so it became a snapshot
+        assertEquals(36L, revisions.revs().get(0));
+        assertEquals(10, revisions.revs().size());
+        assertEquals(List.of(36L, 41L), revisions.snapshotRevs());
+        for (int rev = 36; rev <= 45; rev++) {
+            assertEquals(bodies.get(rev - 1), revisionService.reconstruct(NOTE_ID, rev).get().getContent(), "rev " + rev);
+        }
+        assertFalse(revisionService.reconstruct(NOTE_ID, 35).isPresent());
+    }
+
+    @Test
+    void compactingAgainKeepsTheChainReadable() {
+        List<String> bodies = saveRevisions(45);
+        revisionService.compact(NOTE_ID, 10);
+
+        revisionService.compact(NOTE_ID, 3);
+
+        assertEquals(List.of(43L, 44L, 45L), revisions.revs());
+        for (int rev = 43; rev <= 45; rev++) {
+            assertEquals(bodies.get(rev - 1), revisionService.reconstruct(NOTE_ID, rev).get().getContent(), "rev " + rev);
+        }
+    }
+
+    // note_revisions and note_revision_seq for one note, answering the queries RevisionService makes
+    private static final class FakeRevisions {
+        final MongoTemplate template = mock(MongoTemplate.class);
+        private final TreeMap<Long, NoteRevision> stored = new TreeMap<>();
+        private final AtomicLong seq = new AtomicLong();
+
+        @SuppressWarnings("unchecked")
+        FakeRevisions() {
+            MongoCollection<Document> sequences = mock(MongoCollection.class);
+            when(template.getCollection(RevisionService.SEQUENCES)).thenReturn(sequences);
+            when(sequences.findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class)))
+                    .thenAnswer(invocation -> new Document("_id", NOTE_ID).append("seq", seq.incrementAndGet()));
+            when(sequences.updateOne(any(Bson.class), any(Bson.class))).thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+            when(template.insert(any(NoteRevision.class))).thenAnswer(invocation -> {
+                NoteRevision revision = copy(invocation.getArgument(0));
+                revision.setId("r" + revision.getRev());
+                stored.put(revision.getRev(), revision);
+                return revision;
+            });
+            when(template.find(any(Query.class), eq(NoteRevision.class)))
+                    .thenAnswer(invocation -> matching(invocation.getArgument(0)).collect(Collectors.toList()));
+            when(template.findOne(any(Query.class), eq(NoteRevision.class)))
+                    .thenAnswer(invocation -> matching(invocation.getArgument(0)).findFirst().orElse(null));
+            when(template.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(NoteRevision.class))).thenAnswer(invocation -> {
+                Query query = invocation.getArgument(0);
+                NoteRevision revision = stored.get(Long.parseLong(query.getQueryObject().getString("_id").substring(1)));
+                Document update = invocation.getArgument(1, UpdateDefinition.class).getUpdateObject();
+                Document set = (Document) update.get("$set");
+                revision.setSnapshot(set.getBoolean("snapshot"));
+                revision.setContent(set.getString("content"));
+                revision.setDepth(set.getInteger("depth"));
+                revision.setBaseRev(set.getLong("baseRev"));
+                revision.setPrefix(0);
+                revision.setSuffix(0);
+                revision.setInsert(null);
+                return UpdateResult.acknowledged(1, 1L, null);
+            });
+            when(template.remove(any(Query.class), eq(NoteRevision.class))).thenAnswer(invocation -> {
+                List<Long> removed = matching(invocation.getArgument(0)).map(NoteRevision::getRev).collect(Collectors.toList());
+                removed.forEach(stored::remove);
+                return DeleteResult.acknowledged(removed.size());
+            });
+        }
+
+        NoteRevision get(long rev) {
+            return stored.get(rev);
+        }
+
+        List<Long> revs() {
+            return new ArrayList<>(stored.keySet());
+        }
+
+        List<Long> snapshotRevs() {
+            return stored.values().stream().filter(NoteRevision::isSnapshot).map(NoteRevision::getRev).collect(Collectors.toList());
+        }
+
+        // Copies, as a real read would return, since reconstruct fills in content on what it reads
+        private Stream<NoteRevision> matching(Query query) {
+            Document sort = query.getSortObject();
+            Comparator<NoteRevision> order = Comparator.comparingLong(NoteRevision::getRev);
+            if (sort != null && Integer.valueOf(-1).equals(sort.get("rev"))) {
+                order = order.reversed();
+            }
+            Stream<NoteRevision> found = stored.values().stream()
+                    .filter(revision -> matches(query.getQueryObject(), revision))
+                    .sorted(order)
+                    .skip(query.getSkip());
+            if (query.getLimit() > 0) {
+                found = found.limit(query.getLimit());
+            }
+            return found.map(FakeRevisions::copy);
+        }
+
+        private static boolean matches(Document criteria, NoteRevision revision) {
+            for (Map.Entry<String, Object> criterion : criteria.entrySet()) {
+                Object actual;
+                switch (criterion.getKey()) {
+                    case "noteId": actual = revision.getNoteId(); break;
+                    case "_id": actual = revision.getId(); break;
+                    case "rev": actual = revision.getRev(); break;
+                    case "baseRev": actual = revision.getBaseRev(); break;
+                    case "snapshot": actual = revision.isSnapshot(); break;
+                    default: throw new IllegalArgumentException("Unexpected criterion " + criterion.getKey());
+                }
+                if (criterion.getValue() instanceof Document) {
+                    long value = ((Number) actual).longValue();
+                    for (Map.Entry<String, Object> op : ((Document) criterion.getValue()).entrySet()) {
+                        long bound = ((Number) op.getValue()).longValue();
+                        boolean ok;
+                        switch (op.getKey()) {
+                            case "$lt": ok = value < bound; break;
+                            case "$lte": ok = value <= bound; break;
+                            case "$gt": ok = value > bound; break;
+                            case "$gte": ok = value >= bound; break;
+                            default: throw new IllegalArgumentException("Unexpected operator " + op.getKey());
+                        }
+                        if (!ok) {
+                            return false;
+                        }
+                    }
+                } else if (actual instanceof Number) {
+                    if (((Number) actual).longValue() != ((Number) criterion.getValue()).longValue()) {
+                        return false;
+                    }
+                } else if (!criterion.getValue().equals(actual)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static NoteRevision copy(NoteRevision revision) {
+            NoteRevision copy = new NoteRevision(revision.getNoteId(), revision.getTenantId(), revision.getRev(),
+                    revision.getTitle(), revision.getAuthorId());
+            copy.setId(revision.getId());
+            copy.setBaseRev(revision.getBaseRev());
+            copy.setDepth(revision.getDepth());
+            copy.setSnapshot(revision.isSnapshot());
+            copy.setContent(revision.getContent());
+            copy.setPrefix(revision.getPrefix());
+            copy.setSuffix(revision.getSuffix());
+            copy.setInsert(revision.getInsert());
+            copy.setLength(revision.getLength());
+            return copy;
+        }
+    }
+}